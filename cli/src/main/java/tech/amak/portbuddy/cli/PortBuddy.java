@@ -18,9 +18,17 @@ import static tech.amak.portbuddy.cli.utils.JsonUtils.MAPPER;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.MediaType;
@@ -28,10 +36,13 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import tech.amak.portbuddy.cli.config.ConfigurationService;
+import tech.amak.portbuddy.cli.config.TunnelsFile;
 import tech.amak.portbuddy.cli.tunnel.HttpTunnelClient;
+import tech.amak.portbuddy.cli.tunnel.LocalUpstream;
+import tech.amak.portbuddy.cli.tunnel.LocalUpstreams;
 import tech.amak.portbuddy.cli.tunnel.NetTunnelClient;
+import tech.amak.portbuddy.cli.tunnel.TunnelResources;
 import tech.amak.portbuddy.cli.ui.ConsoleUi;
-import tech.amak.portbuddy.cli.utils.HttpUtils;
 import tech.amak.portbuddy.common.ClientConfig;
 import tech.amak.portbuddy.common.TunnelType;
 import tech.amak.portbuddy.common.dto.ExposeRequest;
@@ -49,6 +60,11 @@ import tech.amak.portbuddy.common.dto.auth.TokenExchangeResponse;
 public class PortBuddy {
 
     private static final String OUTDATED = "outdated";
+    private static final String DEFAULT_TUNNELS_FILE = "portbuddy.yml";
+    // How long tunnels wait for warmed-up connections before connecting without them
+    private static final long WARM_UP_WAIT_MS = 2000;
+    // Fallback for the launch time where the OS does not report process start times
+    private static final Instant LOADED = Instant.now();
     private static final int EXIT_OK = 0;
     private static final int EXIT_ERROR = 1;
     private static final int EXIT_USAGE = 2;
@@ -58,10 +74,13 @@ public class PortBuddy {
     private String domain;
     private String portReservation;
     private String passcode;
+    private String tunnelsFile;
     private boolean verbose;
+    // Whether the server rejected the JWT in an expose call
+    private volatile boolean unauthorized;
     private final List<String> positionalArgs = new ArrayList<>();
 
-    private final OkHttpClient http = HttpUtils.createClient();
+    private final OkHttpClient http = TunnelResources.INSTANCE.http();
 
     /**
      * Main entry point for the application.
@@ -124,6 +143,13 @@ public class PortBuddy {
                 }
             } else if (arg.startsWith("--passcode=")) {
                 this.passcode = arg.substring("--passcode=".length());
+            } else if ("up".equals(arg)) {
+                // Optional tunnels file, default in the working directory
+                if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                    this.tunnelsFile = args[++i];
+                } else {
+                    this.tunnelsFile = DEFAULT_TUNNELS_FILE;
+                }
             } else if ("init".equals(arg)) {
                 if (++i < args.length) {
                     return init(args[i]);
@@ -141,7 +167,7 @@ public class PortBuddy {
             i++;
         }
 
-        return expose();
+        return tunnelsFile != null ? up() : expose();
     }
 
     private void printHelp() {
@@ -159,11 +185,15 @@ public class PortBuddy {
         System.out.println();
         System.out.println("Commands:");
         System.out.println("  init <apiToken>             Initialize CLI with API token");
+        System.out.println("  up [file]                   Expose all tunnels listed in a YAML file (default: "
+                           + DEFAULT_TUNNELS_FILE + ")");
         System.out.println();
         System.out.println("Examples:");
         System.out.println("  portbuddy 3000");
         System.out.println("  portbuddy tcp 5432");
+        System.out.println("  portbuddy http 3000,3001,3002");
         System.out.println("  portbuddy --domain=my-app 8080");
+        System.out.println("  portbuddy up tunnels.yml");
     }
 
     private void printVersion() {
@@ -195,30 +225,203 @@ public class PortBuddy {
             hostPortStr = positionalArgs.get(1);
         }
 
-        final var mode = TunnelType.from(modeStr);
-        final var hostPort = parseHostPort(hostPortStr);
-        if (hostPort == null) {
+        final var target = parseTarget(modeStr, hostPortStr, domain, portReservation, passcode);
+        if (target == null) {
             return EXIT_USAGE;
         }
-        if (hostPort.port < 1 || hostPort.port > 65535) {
-            System.err.println("Port must be in range [1, 65535]");
+        return run(List.of(target));
+    }
+
+    /**
+     * Exposes all tunnels of a tunnels file from this process.
+     */
+    private int up() {
+        final TunnelsFile file;
+        try {
+            file = configurationService.loadTunnelsFile(Path.of(tunnelsFile));
+        } catch (final IOException e) {
+            System.err.println("Failed to read tunnels file " + tunnelsFile + ": " + e.getMessage());
+            return EXIT_USAGE;
+        }
+        if (file.getTunnels().isEmpty()) {
+            System.err.println("No tunnels defined in " + tunnelsFile);
             return EXIT_USAGE;
         }
+        final var targets = new ArrayList<Target>();
+        for (final var tunnel : file.getTunnels()) {
+            final var hostPorts = tunnel.getTargets() != null && !tunnel.getTargets().isEmpty()
+                ? String.join(",", tunnel.getTargets())
+                : tunnel.getTarget();
+            final var target = parseTarget(tunnel.getMode(), hostPorts, tunnel.getDomain(),
+                tunnel.getPortReservation(), tunnel.getPasscode());
+            if (target == null) {
+                return EXIT_USAGE;
+            }
+            targets.add(target);
+        }
+        return run(targets);
+    }
+
+    private Target parseTarget(final String modeStr,
+                               final String hostPortStr,
+                               final String domain,
+                               final String portReservation,
+                               final String passcode) {
+        final TunnelType mode;
+        try {
+            mode = TunnelType.from(modeStr);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+        // An HTTP tunnel may balance over several local instances, e.g. 3000,3001,3002
+        final var parts = hostPortStr == null ? new String[] {null} : hostPortStr.split(",");
+        if (parts.length > 1 && mode != TunnelType.HTTP) {
+            System.err.println("Several local targets are only supported by http tunnels");
+            return null;
+        }
+        final var hostPorts = new ArrayList<HostPort>(parts.length);
+        for (final var part : parts) {
+            final var hostPort = parseHostPort(part);
+            if (hostPort == null) {
+                return null;
+            }
+            if (hostPort.port < 1 || hostPort.port > 65535) {
+                System.err.println("Port must be in range [1, 65535]");
+                return null;
+            }
+            hostPorts.add(hostPort);
+        }
+        return new Target(mode, List.copyOf(hostPorts), domain, portReservation, passcode);
+    }
 
+    /**
+     * Exposes the targets and serves them until the user exits. All tunnels share one token exchange,
+     * one console and the connection pools, threads and heartbeats of {@link TunnelResources}.
+     */
+    private int run(final List<Target> targets) {
         final var config = configurationService.getConfig();
 
-        // 1) Ensure API key is present and exchange it for a JWT at startup
+        // 1) Ensure API key is present and get a JWT: cached by a previous run or exchanged now
         if (!ensureAuthenticated(config)) {
             return EXIT_ERROR;
         }
 
+        // The connections of the tunnel WebSockets are set up while the tunnels are being exposed
+        final var warmUp = TunnelResources.INSTANCE.warmUp(config.getServerUrl(), targets.size());
+
+        final var cachedJwt = configurationService.loadCachedJwt(config.getApiToken(), resolveCliVersion());
+        var jwt = cachedJwt.orElseGet(() -> obtainJwt(config));
+        if (jwt == null) {
+            return EXIT_ERROR;
+        }
+
+        // 2) Create all tunnels, in parallel, before connecting any
+        var exposed = exposeAll(config, jwt, targets);
+        if (exposed == null && unauthorized && cachedJwt.isPresent()) {
+            // The server no longer accepts the cached JWT, e.g. after its signing key changed
+            configurationService.clearCachedJwt();
+            unauthorized = false;
+            jwt = obtainJwt(config);
+            if (jwt == null) {
+                return EXIT_ERROR;
+            }
+            exposed = exposeAll(config, jwt, targets);
+        }
+        if (exposed == null) {
+            if (unauthorized) {
+                System.err.println("Authentication failed. Please re-initialize CLI with a valid API Key.\n"
+                                   + "Example: portbuddy init {API_TOKEN}");
+            }
+            return EXIT_ERROR;
+        }
+
+        // 3) Connect every tunnel on its own thread and wait for the user to exit
+        warmUp.completeOnTimeout(null, WARM_UP_WAIT_MS, TimeUnit.MILLISECONDS).join();
+        final var ui = new ConsoleUi(exposed.stream().map(ExposedTunnel::view).toList());
+        if (verbose) {
+            ui.setStartupDetails("exposed " + millisSinceLaunch() + " ms after launch");
+        }
+        final var closers = new ArrayList<Runnable>();
+        final var threads = new ArrayList<Thread>();
+        for (var i = 0; i < exposed.size(); i++) {
+            final var tunnel = exposed.get(i);
+            final var target = tunnel.target();
+            final var hostPort = target.hostPort();
+            if (target.mode() == TunnelType.HTTP) {
+                final var healthSink = ui.healthSink(i);
+                final var upstreams = target.hostPorts().stream()
+                    .map(local -> new LocalUpstream(local.scheme, local.host, local.port, healthSink))
+                    .toList();
+                final var client = new HttpTunnelClient(
+                    config.getServerUrl(),
+                    tunnel.tunnelId(),
+                    new LocalUpstreams(upstreams),
+                    jwt,
+                    tunnel.view().publicDetails(),
+                    ui,
+                    verbose
+                );
+                closers.add(client::close);
+                threads.add(new Thread(client::runBlocking, "port-buddy-http-client"));
+            } else {
+                // Use configured API server URL for the WebSocket control channel, not the public TCP host
+                final var serverUri = URI.create(config.getServerUrl());
+                final var wsHost = serverUri.getHost();
+                final var wsPort = serverUri.getPort() == -1
+                    ? ("https".equalsIgnoreCase(serverUri.getScheme()) ? 443 : 80)
+                    : serverUri.getPort();
+                final var secure = "https".equalsIgnoreCase(serverUri.getScheme());
+                final var tcpClient = new NetTunnelClient(
+                    wsHost,
+                    wsPort,
+                    secure,
+                    tunnel.tunnelId(),
+                    hostPort.host,
+                    hostPort.port,
+                    target.mode(),
+                    tunnel.response().publicHost(),
+                    tunnel.response().publicPort(),
+                    jwt,
+                    ui.trafficSink(i),
+                    verbose);
+                closers.add(tcpClient::close);
+                threads.add(new Thread(tcpClient::runBlocking,
+                    "port-buddy-net-client-" + target.mode().name().toLowerCase()));
+            }
+        }
+        ui.setOnExit(() -> closers.forEach(Runnable::run));
+        threads.forEach(Thread::start);
+        ui.start();
+        ui.waitForExit();
+        final var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        try {
+            for (final var thread : threads) {
+                thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        System.out.println("\nThanks, bye!");
+
+        return EXIT_OK;
+    }
+
+    /**
+     * Exchanges the API token for a JWT and caches it for the next runs.
+     *
+     * @return the JWT, or null if the exchange failed; the reason is printed
+     */
+    private String obtainJwt(final ClientConfig config) {
         final var apiKey = config.getApiToken();
+        final var cliVersion = resolveCliVersion();
         final var jwt = exchangeApiTokenForJwt(config.getServerUrl(), apiKey);
         if (Objects.equals(jwt, OUTDATED)) {
             System.err.println("""
                 Your portbuddy CLI is outdated.
                 Please upgrade to the latest version and try again.""");
-            return EXIT_ERROR;
+            return null;
         }
 
         if (jwt == null || jwt.isBlank()) {
@@ -226,99 +429,68 @@ public class PortBuddy {
                 Failed to authenticate with the provided API Key.
                 CLI must be initialized with a valid API Key.
                 Example: portbuddy init {API_TOKEN}""");
-            return EXIT_ERROR;
+            return null;
+        }
+
+        configurationService.saveJwt(apiKey, cliVersion, jwt);
+        return jwt;
+    }
+
+    /**
+     * Exposes the targets with one concurrent call each.
+     *
+     * @return the exposed tunnels in the order of the targets, or null if any call failed
+     */
+    private List<ExposedTunnel> exposeAll(final ClientConfig config, final String jwt, final List<Target> targets) {
+        if (targets.size() == 1) {
+            final var tunnel = exposeTunnel(config, jwt, targets.getFirst());
+            return tunnel == null ? null : List.of(tunnel);
         }
+        try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final var calls = targets.stream()
+                .map(target -> CompletableFuture.supplyAsync(() -> exposeTunnel(config, jwt, target), executor))
+                .toList();
+            final var exposed = calls.stream().map(CompletableFuture::join).toList();
+            return exposed.stream().anyMatch(Objects::isNull) ? null : exposed;
+        }
+    }
 
+    private ExposedTunnel exposeTunnel(final ClientConfig config, final String jwt, final Target target) {
+        final var mode = target.mode();
+        final var hostPort = target.hostPort();
         if (mode == TunnelType.HTTP) {
+            // The server only needs one local address to describe the tunnel
             final var expose = callExposeTunnel(config.getServerUrl(), jwt,
-                new ExposeRequest(mode, hostPort.scheme, hostPort.host, hostPort.port, domain, null, passcode));
+                new ExposeRequest(mode, hostPort.scheme, hostPort.host, hostPort.port, target.domain(), null,
+                    target.passcode()));
             if (expose == null) {
                 System.err.println("Failed to contact server to create tunnel");
-                return EXIT_ERROR;
-            }
-
-            final var localInfo = String.format("%s://%s:%d", hostPort.scheme, hostPort.host, hostPort.port);
-            final var publicInfo = expose.publicUrl();
-            final var ui = new ConsoleUi(TunnelType.HTTP, localInfo, publicInfo);
-            final var tunnelId = expose.tunnelId();
-            if (tunnelId == null) {
-                System.err.println("Server did not return tunnelId");
-                return EXIT_ERROR;
-            }
-
-            final var client = new HttpTunnelClient(
-                config.getServerUrl(),
-                tunnelId,
-                hostPort.host,
-                hostPort.port,
-                hostPort.scheme,
-                jwt,
-                publicInfo,
-                ui,
-                verbose
-            );
-
-            final var thread = new Thread(client::runBlocking, "port-buddy-http-client");
-            ui.setOnExit(client::close);
-            thread.start();
-            ui.start();
-            ui.waitForExit();
-            try {
-                thread.join(2000);
-            } catch (final InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        } else {
-            final var scheme = mode == TunnelType.UDP ? "udp" : "tcp";
-            final var expose = callExposeTunnel(config.getServerUrl(), jwt,
-                new ExposeRequest(mode, scheme, hostPort.host, hostPort.port, null, portReservation, null));
-            if (expose == null || expose.publicHost() == null || expose.publicPort() == null) {
-                System.err.println("Failed to contact server to create " + mode + " tunnel");
-                return EXIT_ERROR;
+                return null;
             }
-            final var localInfo = String.format("%s %s:%d", mode.name().toLowerCase(), hostPort.host, hostPort.port);
-            final var publicInfo = String.format("%s:%d", expose.publicHost(), expose.publicPort());
-            final var ui = new ConsoleUi(mode, localInfo, publicInfo);
-            final var tunnelId = expose.tunnelId();
-            if (tunnelId == null) {
+            if (expose.tunnelId() == null) {
                 System.err.println("Server did not return tunnelId");
-                return EXIT_ERROR;
-            }
-            // Use configured API server URL for the WebSocket control channel, not the public TCP host
-            final var serverUri = URI.create(config.getServerUrl());
-            final var wsHost = serverUri.getHost();
-            final var wsPort = serverUri.getPort() == -1
-                ? ("https".equalsIgnoreCase(serverUri.getScheme()) ? 443 : 80)
-                : serverUri.getPort();
-            final var secure = "https".equalsIgnoreCase(serverUri.getScheme());
-            final var tcpClient = new NetTunnelClient(
-                wsHost,
-                wsPort,
-                secure,
-                tunnelId,
-                hostPort.host,
-                hostPort.port,
-                mode,
-                expose.publicHost(),
-                expose.publicPort(),
-                jwt,
-                ui,
-                verbose);
-            final var thread = new Thread(tcpClient::runBlocking, "port-buddy-net-client-" + mode.name().toLowerCase());
-            ui.setOnExit(tcpClient::close);
-            thread.start();
-            ui.start();
-            ui.waitForExit();
-            try {
-                thread.join(2000);
-            } catch (final InterruptedException e) {
-                Thread.currentThread().interrupt();
+                return null;
             }
+            final var localInfo = target.hostPorts().stream()
+                .map(local -> String.format("%s://%s:%d", local.scheme, local.host, local.port))
+                .collect(Collectors.joining(", "));
+            final var view = new ConsoleUi.TunnelView(TunnelType.HTTP, localInfo, expose.publicUrl());
+            return new ExposedTunnel(target, expose, view);
         }
-
-        System.out.println("\nThanks, bye!");
-
-        return EXIT_OK;
+        final var scheme = mode == TunnelType.UDP ? "udp" : "tcp";
+        final var expose = callExposeTunnel(config.getServerUrl(), jwt,
+            new ExposeRequest(mode, scheme, hostPort.host, hostPort.port, null, target.portReservation(), null));
+        if (expose == null || expose.publicHost() == null || expose.publicPort() == null) {
+            System.err.println("Failed to contact server to create " + mode + " tunnel");
+            return null;
+        }
+        if (expose.tunnelId() == null) {
+            System.err.println("Server did not return tunnelId");
+            return null;
+        }
+        final var localInfo = String.format("%s %s:%d", mode.name().toLowerCase(), hostPort.host, hostPort.port);
+        final var publicInfo = String.format("%s:%d", expose.publicHost(), expose.publicPort());
+        return new ExposedTunnel(target, expose, new ConsoleUi.TunnelView(mode, localInfo, publicInfo));
     }
 
     private ExposeResponse callExposeTunnel(final String baseUrl, final String jwt, final ExposeRequest requestBody) {
@@ -339,8 +511,7 @@ public class PortBuddy {
                 if (!response.isSuccessful()) {
                     log.warn("Expose {} failed: {} {}", tunnelType, response.code(), response.message());
                     if (response.code() == 401) {
-                        System.err.println("Authentication failed. Please re-initialize CLI with a valid API Key.\n"
-                                           + "Example: portbuddy init {API_TOKEN}");
+                        unauthorized = true;
                     }
                     return null;
                 }
@@ -397,6 +568,11 @@ public class PortBuddy {
         }
     }
 
+    private static long millisSinceLaunch() {
+        final var launched = ProcessHandle.current().info().startInstant().orElse(LOADED);
+        return Duration.between(launched, Instant.now()).toMillis();
+    }
+
     private String resolveCliVersion() {
         final var pkg = PortBuddy.class.getPackage();
         final var impl = pkg == null ? null : pkg.getImplementationVersion();
@@ -568,6 +744,27 @@ public class PortBuddy {
         return new HostPort(host, port, scheme);
     }
 
+    private record Target(TunnelType mode,
+                          List<HostPort> hostPorts,
+                          String domain,
+                          String portReservation,
+                          String passcode) {
+
+        /**
+         * The local target, or the first one of an HTTP tunnel balancing over several.
+         */
+        HostPort hostPort() {
+            return hostPorts.getFirst();
+        }
+    }
+
+    private record ExposedTunnel(Target target, ExposeResponse response, ConsoleUi.TunnelView view) {
+
+        UUID tunnelId() {
+            return response.tunnelId();
+        }
+    }
+
     private static final class HostPort {
         private final String host;
         private final int port;
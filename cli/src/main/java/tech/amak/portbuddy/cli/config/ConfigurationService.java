@@ -15,10 +15,17 @@
 package tech.amak.portbuddy.cli.config;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
 import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -40,6 +47,11 @@ public class ConfigurationService {
     private static final String PORT_BUDDY_ENV_DEV = "dev";
     private static final String APP_DIR = ".port-buddy";
     private static final String TOKEN_FILE = "token";
+    private static final String JWT_FILE = "jwt";
+    /**
+     * A cached JWT is exchanged again once it expires within this time.
+     */
+    private static final Duration JWT_RENEW_BEFORE = Duration.ofHours(1);
 
     private final String home = System.getProperty("user.home");
     private final ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
@@ -109,6 +121,102 @@ public class ConfigurationService {
         return config.get();
     }
 
+    /**
+     * Reads the tunnels to expose with {@code portbuddy up}.
+     *
+     * @param file the YAML file
+     * @return the tunnels file
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public TunnelsFile loadTunnelsFile(final Path file) throws IOException {
+        try (final var stream = Files.newInputStream(file)) {
+            final var tunnelsFile = yamlMapper.readValue(stream, TunnelsFile.class);
+            return tunnelsFile == null ? new TunnelsFile() : tunnelsFile;
+        }
+    }
+
+    /**
+     * Returns the JWT cached by {@link #saveJwt} if it was exchanged for the given API token by the same
+     * CLI version and does not expire within {@link #JWT_RENEW_BEFORE}.
+     *
+     * @param apiToken   the current API token
+     * @param cliVersion the current CLI version
+     * @return the cached JWT, or empty if it must be exchanged again
+     */
+    public Optional<String> loadCachedJwt(final String apiToken, final String cliVersion) {
+        final var file = Path.of(home, APP_DIR, JWT_FILE);
+        if (apiToken == null || !Files.exists(file)) {
+            return Optional.empty();
+        }
+        try {
+            final var cached = yamlMapper.readValue(file.toFile(), CachedJwt.class);
+            if (cached.accessToken() == null
+                || !hash(apiToken).equals(cached.apiTokenHash())
+                || !cliVersion.equals(cached.cliVersion())
+                || Instant.now().plus(JWT_RENEW_BEFORE).isAfter(Instant.ofEpochSecond(cached.expiresAt()))) {
+                return Optional.empty();
+            }
+            return Optional.of(cached.accessToken());
+        } catch (final IOException | RuntimeException e) {
+            log.debug("Failed to read cached JWT: {}", e.toString());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Caches a JWT exchanged for the API token, readable by the owner only. Tokens without an
+     * expiration are not cached.
+     *
+     * @param apiToken    the API token the JWT was exchanged for; only its hash is stored
+     * @param cliVersion  the CLI version that exchanged it
+     * @param accessToken the JWT
+     */
+    public void saveJwt(final String apiToken, final String cliVersion, final String accessToken) {
+        try {
+            final var expiresAt = expiresAt(accessToken);
+            if (expiresAt == null) {
+                return;
+            }
+            final var cached = new CachedJwt(accessToken, expiresAt, hash(apiToken), cliVersion);
+            writeOwnerOnly(JWT_FILE, yamlMapper.writeValueAsString(cached));
+        } catch (final IOException | RuntimeException e) {
+            log.debug("Failed to cache JWT: {}", e.toString());
+        }
+    }
+
+    /**
+     * Drops the cached JWT, e.g. after the server rejected it.
+     */
+    public void clearCachedJwt() {
+        try {
+            Files.deleteIfExists(Path.of(home, APP_DIR, JWT_FILE));
+        } catch (final IOException e) {
+            log.debug("Failed to delete cached JWT: {}", e.toString());
+        }
+    }
+
+    /**
+     * Reads the {@code exp} claim without verifying the token; the server verifies it on every call.
+     */
+    private Long expiresAt(final String jwt) throws IOException {
+        final var parts = jwt.split("\\.");
+        if (parts.length < 2) {
+            return null;
+        }
+        final var payload = yamlMapper.readTree(Base64.getUrlDecoder().decode(parts[1]));
+        final var exp = payload.get("exp");
+        return exp == null || !exp.canConvertToLong() ? null : exp.asLong();
+    }
+
+    private static String hash(final String value) {
+        try {
+            final var digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public boolean isDev() {
         final var env = System.getenv(PORT_BUDDY_ENV);
         return PORT_BUDDY_ENV_DEV.equalsIgnoreCase(env);
@@ -124,14 +232,20 @@ public class ConfigurationService {
      * @throws IOException if an I/O error occurs while creating the directory, file, or writing the token.
      */
     public void saveApiToken(final String token) throws IOException {
+        writeOwnerOnly(TOKEN_FILE, token.strip());
+        // A JWT exchanged for the previous API token must not be used with the new one
+        clearCachedJwt();
+    }
+
+    private void writeOwnerOnly(final String fileName, final String content) throws IOException {
         final var dir = Path.of(home, APP_DIR);
 
         if (!Files.exists(dir)) {
             Files.createDirectories(dir);
         }
 
-        final var file = dir.resolve(TOKEN_FILE);
-        Files.writeString(file, token.strip());
+        final var file = dir.resolve(fileName);
+        Files.writeString(file, content);
         // Try to restrict permissions on POSIX systems
         try {
             final var perms = new HashSet<PosixFilePermission>();
@@ -143,4 +257,7 @@ public class ConfigurationService {
         }
     }
 
+    private record CachedJwt(String accessToken, long expiresAt, String apiTokenHash, String cliVersion) {
+    }
+
 }
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.cli.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import lombok.Data;
+
+/**
+ * Tunnels exposed together by {@code portbuddy up}, from one process, for example:
+ * <pre>
+ * tunnels:
+ *   - target: 3000
+ *     domain: my-app
+ *   - targets: [8080, 8081]
+ *   - mode: tcp
+ *     target: localhost:5432
+ * </pre>
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TunnelsFile {
+
+    @JsonProperty("tunnels")
+    private List<Tunnel> tunnels = new ArrayList<>();
+
+    /**
+     * One tunnel; the fields match the arguments and options of a single tunnel run.
+     */
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Tunnel {
+
+        /**
+         * http (default), tcp or udp.
+         */
+        @JsonProperty("mode")
+        private String mode;
+
+        /**
+         * [host:][port] or [schema://]host[:port] of the local service; several separated by commas
+         * for an http tunnel balancing over local instances.
+         */
+        @JsonProperty("target")
+        private String target;
+
+        /**
+         * Local instances of an http tunnel, as an alternative to a comma-separated {@link #target}.
+         */
+        @JsonProperty("targets")
+        private List<String> targets;
+
+        @JsonProperty("domain")
+        private String domain;
+
+        @JsonProperty("portReservation")
+        private String portReservation;
+
+        @JsonProperty("passcode")
+        private String passcode;
+    }
+}
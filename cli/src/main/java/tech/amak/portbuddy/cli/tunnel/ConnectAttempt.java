@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+/**
+ * Whether a call to a local target got a connection, tracked from the events of the local HTTP client.
+ * Attached to the request as a tag, it tells a target that could not be reached from a call that failed
+ * after connecting, without guessing from the exception.
+ */
+final class ConnectAttempt {
+
+    /**
+     * Event listener of the local HTTP client, updating the attempt tagged on each request.
+     */
+    static final EventListener LISTENER = new EventListener() {
+        @Override
+        public void connectionAcquired(final Call call, final Connection connection) {
+            update(call, true);
+        }
+
+        @Override
+        public void connectFailed(final Call call, final InetSocketAddress address, final Proxy proxy,
+                                  final Protocol protocol, final IOException error) {
+            // A pooled connection may have been acquired before, but the call is now trying a new one
+            update(call, false);
+        }
+    };
+
+    private volatile boolean connected;
+
+    /**
+     * Tags a request with a new attempt.
+     *
+     * @return the attempt, updated while the request is executed
+     */
+    static ConnectAttempt tag(final Request.Builder request) {
+        final var attempt = new ConnectAttempt();
+        request.tag(ConnectAttempt.class, attempt);
+        return attempt;
+    }
+
+    /**
+     * Whether a failed call could not reach the target: it got no connection, and not because it was
+     * cancelled.
+     */
+    boolean failedToConnect(final Call call) {
+        return !connected && !call.isCanceled();
+    }
+
+    private static void update(final Call call, final boolean connected) {
+        final var attempt = call.request().tag(ConnectAttempt.class);
+        if (attempt != null) {
+            attempt.connected = connected;
+        }
+    }
+}
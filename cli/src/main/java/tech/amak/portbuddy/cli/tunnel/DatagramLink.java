@@ -0,0 +1,182 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.common.tunnel.DatagramCipher;
+import tech.amak.portbuddy.common.tunnel.DatagramFrame;
+
+/**
+ * Client end of the datagram path of a UDP tunnel session, see {@link DatagramFrame}. Sends HELLO to the
+ * net proxy's datagram port every second until the proxy answers, and as a keepalive every
+ * {@link #KEEPALIVE_NANOS} afterwards. The path is used while the proxy answered within
+ * {@link #TIMEOUT_NANOS}; otherwise the tunnel keeps sending over the WebSocket. Datagrams are sealed with
+ * the session key, and received ones that fail authentication or were replayed are dropped.
+ */
+@Slf4j
+final class DatagramLink implements Closeable {
+
+    private static final long KEEPALIVE_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(15);
+    // Largest UDP payload plus the datagram overhead and the longest stream id
+    private static final int BUFFER_SIZE = 65535 + DatagramFrame.OVERHEAD + 5;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final DatagramChannel channel;
+    private final UUID token;
+    private final DatagramCipher sealer;
+    private final DatagramCipher opener;
+    private final Consumer<ByteBuffer> frames;
+    // Guarded by this
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ScheduledFuture<?> keepalive;
+    private volatile long lastHeard;
+    private volatile boolean answered;
+    private volatile long lastHello;
+
+    /**
+     * Opens the path and starts saying HELLO.
+     *
+     * @param proxy     the net proxy's datagram port
+     * @param token     the session token from the EXPOSED message
+     * @param key       the session key from the EXPOSED message
+     * @param frames    receives the data frames of the proxy's datagrams, on the link's thread
+     * @param scheduler runs the keepalive
+     * @throws IOException if the channel cannot be opened
+     */
+    DatagramLink(final InetSocketAddress proxy,
+                 final UUID token,
+                 final byte[] key,
+                 final Consumer<ByteBuffer> frames,
+                 final ScheduledExecutorService scheduler) throws IOException {
+        this.token = token;
+        this.sealer = DatagramCipher.sealing(key, DatagramCipher.CLIENT_TO_PROXY);
+        this.opener = DatagramCipher.opening(key, DatagramCipher.PROXY_TO_CLIENT);
+        this.frames = frames;
+        this.channel = DatagramChannel.open();
+        try {
+            channel.connect(proxy);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        final var thread = new Thread(this::receiveLoop, "pb-udp-link");
+        thread.setDaemon(true);
+        thread.start();
+        this.keepalive = scheduler.scheduleWithFixedDelay(this::keepalive, 0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Whether the proxy answered recently enough to send it datagrams.
+     */
+    boolean isActive() {
+        return answered && System.nanoTime() - lastHeard < TIMEOUT_NANOS;
+    }
+
+    /**
+     * Sends a data frame if the path is active.
+     *
+     * @return whether the frame was sent; if not, the caller sends it over the WebSocket
+     */
+    boolean send(final byte[] frame, final int offset, final int length) {
+        if (!isActive()) {
+            return false;
+        }
+        try {
+            write(DatagramFrame.DATA, ByteBuffer.wrap(frame, offset, length));
+            return true;
+        } catch (final IOException | IllegalStateException e) {
+            log.debug("Failed to send datagram: {}", e.toString());
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        keepalive.cancel(false);
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            log.debug("Failed to close datagram link: {}", e.toString());
+        }
+    }
+
+    private void keepalive() {
+        final var now = System.nanoTime();
+        if (isActive() && now - lastHello < KEEPALIVE_NANOS) {
+            return;
+        }
+        lastHello = now;
+        try {
+            write(DatagramFrame.HELLO, EMPTY);
+        } catch (final IOException | IllegalStateException e) {
+            // Retried on the next tick; the tunnel meanwhile uses the WebSocket
+            log.debug("Failed to send datagram HELLO: {}", e.toString());
+        }
+    }
+
+    private synchronized void write(final byte type, final ByteBuffer payload) throws IOException {
+        sendBuffer.clear();
+        sealer.seal(type, token, payload, sendBuffer);
+        channel.write(sendBuffer.flip());
+    }
+
+    private void receiveLoop() {
+        final var buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final var payload = ByteBuffer.allocate(BUFFER_SIZE);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                channel.receive(buffer);
+                buffer.flip();
+                final var type = DatagramFrame.type(buffer);
+                if ((type != DatagramFrame.HELLO_OK && type != DatagramFrame.DATA)
+                    || !token.equals(DatagramFrame.token(buffer)) || !opener.open(buffer, payload)) {
+                    continue;
+                }
+                lastHeard = System.nanoTime();
+                if (type == DatagramFrame.HELLO_OK) {
+                    if (!answered) {
+                        log.info("UDP tunnel data now flows in datagrams");
+                    }
+                    answered = true;
+                } else {
+                    frames.accept(payload);
+                }
+            } catch (final PortUnreachableException e) {
+                // Nobody listens on the proxy's datagram port (yet); keep the WebSocket path
+                log.debug("Datagram port of the net proxy is unreachable");
+            } catch (final IOException e) {
+                if (channel.isOpen()) {
+                    log.debug("Datagram link receive failed: {}", e.toString());
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.WebSocket;
+import okio.ByteString;
+import tech.amak.portbuddy.common.tunnel.BinaryWsFrame;
+
+/**
+ * Packs small binary frames sent by the pumps of a net tunnel into {@link BinaryWsFrame#BATCH} frames.
+ * Without a window a frame is sent right away while the WebSocket writer is idle; once OkHttp has
+ * queued data, frames are collected until the flush task runs, which happens as soon as the flush
+ * thread gets to it. With a window, frames are collected for up to that long. A batch holding a single
+ * frame is sent as that frame, and frames larger than a quarter of the batch are never packed.
+ */
+@Slf4j
+class FrameBatcher {
+
+    private final long windowNanos;
+    private final ScheduledExecutorService executor;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock
+    private final ByteBuffer batch;
+    private WebSocket target;
+    private int records;
+    private int firstLength;
+    private boolean flushScheduled;
+
+    /**
+     * Creates the batcher.
+     *
+     * @param maxSize     maximum size of a batch frame
+     * @param windowNanos how long frames are collected, 0 to only collect while OkHttp is busy writing
+     * @param executor    runs the flushes; must not be busy with anything slow
+     */
+    FrameBatcher(final int maxSize, final long windowNanos, final ScheduledExecutorService executor) {
+        this.batch = ByteBuffer.allocate(maxSize);
+        this.windowNanos = windowNanos;
+        this.executor = executor;
+    }
+
+    /**
+     * Drops the pending frames of the previous connection and sends to the given WebSocket from now on.
+     *
+     * @param webSocket the WebSocket of the current connection
+     */
+    void reset(final WebSocket webSocket) {
+        lock.lock();
+        try {
+            target = webSocket;
+            clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a frame of the stream id format, possibly packed with other frames.
+     *
+     * @param frame  the array holding the frame; only read during the call
+     * @param offset offset of the frame
+     * @param length length of the frame
+     */
+    void send(final byte[] frame, final int offset, final int length) {
+        lock.lock();
+        try {
+            if (target == null) {
+                return;
+            }
+            if (length > batch.capacity() / 4) {
+                flushPending();
+                target.send(ByteString.of(frame, offset, length));
+                return;
+            }
+            if (records == 0 && windowNanos == 0 && target.queueSize() == 0) {
+                // Nothing to wait for: the writer would send the frame alone anyway
+                target.send(ByteString.of(frame, offset, length));
+                return;
+            }
+            if (batch.remaining() < BinaryWsFrame.batchRecordLength(length)) {
+                flushPending();
+            }
+            BinaryWsFrame.appendBatchRecord(batch, ByteBuffer.wrap(frame, offset, length));
+            if (records++ == 0) {
+                firstLength = length;
+            }
+            if (!flushScheduled) {
+                flushScheduled = true;
+                executor.schedule(this::flush, windowNanos, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the pending frames, e.g. before a text message that must not overtake them.
+     */
+    void flush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            flushPending();
+        } catch (final RuntimeException e) {
+            log.debug("Failed to flush frame batch: {}", e.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushPending() {
+        if (records == 0) {
+            return;
+        }
+        if (records == 1) {
+            final var offset = BinaryWsFrame.BATCH_HEADER_LENGTH + BinaryWsFrame.batchRecordLength(firstLength)
+                               - firstLength;
+            target.send(ByteString.of(batch.array(), offset, firstLength));
+        } else {
+            target.send(ByteString.of(batch.array(), 0, batch.position()));
+        }
+        clear();
+    }
+
+    private void clear() {
+        batch.clear();
+        BinaryWsFrame.startBatch(batch);
+        records = 0;
+    }
+}
@@ -16,6 +16,8 @@ package tech.amak.portbuddy.cli.tunnel;
 
 import static tech.amak.portbuddy.cli.utils.JsonUtils.MAPPER;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -24,17 +26,19 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -42,11 +46,14 @@ import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
+import okio.Buffer;
+import okio.BufferedSource;
 import okio.ByteString;
 import tech.amak.portbuddy.cli.config.ConfigurationService;
 import tech.amak.portbuddy.cli.ui.HttpLogSink;
-import tech.amak.portbuddy.cli.utils.HttpUtils;
 import tech.amak.portbuddy.common.tunnel.ControlMessage;
+import tech.amak.portbuddy.common.tunnel.FlowWindow;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelFrame;
 import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
 import tech.amak.portbuddy.common.tunnel.MessageEnvelope;
 import tech.amak.portbuddy.common.tunnel.WsTunnelMessage;
@@ -57,65 +64,35 @@ public class HttpTunnelClient {
 
     private final String serverUrl; // e.g. https://portbuddy.dev
     private final UUID tunnelId;
-    private final String localHost;
-    private final int localPort;
-    private final String localScheme; // http or https
+    private final LocalUpstreams localUpstreams; // local service instances requests are balanced over
     private final String authToken; // Bearer token for API auth
     private final String publicBaseUrl; // e.g. https://abc123.portbuddy.dev
     private final HttpLogSink httpLogSink;
     private final boolean verbose;
 
-    // OkHttp client used exclusively for the control WebSocket connection to the server
-    private final OkHttpClient http = createHttpClient();
-    // Separate OkHttp client for calling the local target service (avoid any interference with WS client)
-    private final OkHttpClient localHttp = createLocalHttpClient();
+    static final long LOCAL_WRITE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final long RESPONSE_CHUNK_SIZE = 64 * 1024;
 
-    private static OkHttpClient createHttpClient() {
-        final var builder = new OkHttpClient.Builder()
-            .readTimeout(0, TimeUnit.MILLISECONDS) // keep-alive for WS
-            .pingInterval(15, TimeUnit.SECONDS) // send pings to keep intermediaries/proxies from dropping idle WS
-            .retryOnConnectionFailure(true);
-
-        if (ConfigurationService.INSTANCE.isDev()) {
-            HttpUtils.configureInsecureSsl(builder);
-        }
-
-        return builder.build();
-    }
-
-    private static OkHttpClient createLocalHttpClient() {
-        final var builder = new OkHttpClient.Builder()
-            .connectTimeout(10, TimeUnit.SECONDS)
-            .readTimeout(60, TimeUnit.SECONDS)
-            .writeTimeout(60, TimeUnit.SECONDS)
-            // Do not follow redirects automatically; they must be proxied back to the client
-            .followRedirects(false)
-            .followSslRedirects(false)
-            .retryOnConnectionFailure(true);
-
-        if (ConfigurationService.INSTANCE.isDev()) {
-            HttpUtils.configureInsecureSsl(builder);
-        }
-
-        return builder.build();
-    }
+    // Control WebSocket client and local target client, shared by all tunnels of the process
+    private final OkHttpClient http = TunnelResources.INSTANCE.controlHttp();
+    private final OkHttpClient localHttp = TunnelResources.INSTANCE.localHttp();
 
     private WebSocket webSocket;
     private CountDownLatch closed = new CountDownLatch(1);
     private final AtomicBoolean stop = new AtomicBoolean(false);
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
-        final var thread = new Thread(runnable, "port-buddy-heartbeat");
-        thread.setDaemon(true);
-        return thread;
-    });
+    private final ScheduledExecutorService scheduler = TunnelResources.INSTANCE.scheduler();
     private volatile ScheduledFuture<?> heartbeatTask;
-    private final ExecutorService requestExecutor = Executors.newFixedThreadPool(4, runnable -> {
-        final var thread = new Thread(runnable, "port-buddy-http-worker");
-        thread.setDaemon(true);
-        return thread;
-    });
+    private final ThreadPoolExecutor requestExecutor = createRequestExecutor();
 
     private final Map<String, WebSocket> localWebsocketMap = new ConcurrentHashMap<>();
+    // Bodies of streamed requests still receiving REQUEST_BODY frames, by request id
+    private final Map<String, StreamingRequestBody> uploads = new ConcurrentHashMap<>();
+    // Requests waiting for a worker, by request id, so that cancelled ones are dropped from the queue
+    private final Map<String, Runnable> queuedRequests = new ConcurrentHashMap<>();
+    // Local calls in progress, by request id, so that the server can cancel them
+    private final Map<String, Call> activeCalls = new ConcurrentHashMap<>();
+    // Send credit of responses streamed to servers that acknowledge them, by request id
+    private final Map<String, FlowWindow> responseWindows = new ConcurrentHashMap<>();
 
     /**
      * Establishes and maintains a blocking WebSocket connection to the server.
@@ -140,7 +117,10 @@ public class HttpTunnelClient {
             try {
                 closed = new CountDownLatch(1);
                 final var wsUrl = toWebSocketUrl(serverUrl, "/api/http-tunnel/" + tunnelId);
-                final var request = new Request.Builder().url(wsUrl);
+                final var request = new Request.Builder()
+                    .url(wsUrl)
+                    // Advertise binary HTTP frames; servers that do not know the header keep using JSON
+                    .header(HttpTunnelFrame.PROTOCOL_HEADER, String.valueOf(HttpTunnelFrame.VERSION));
                 if (authToken != null && !authToken.isBlank()) {
                     request.addHeader("Authorization", "Bearer " + authToken);
                 }
@@ -199,6 +179,7 @@ public class HttpTunnelClient {
                 task.cancel(true);
             }
             requestExecutor.shutdownNow();
+            localUpstreams.close();
             if (webSocket != null) {
                 webSocket.close(1000, "Client exit");
                 log.debug("Websocket closed: 1000 OK");
@@ -252,7 +233,11 @@ public class HttpTunnelClient {
                 log.debug("Received WS message: {}", text);
                 final var env = MAPPER.readValue(text, MessageEnvelope.class);
                 if (env.getKind() != null && env.getKind().equals("CTRL")) {
-                    // Ignore control messages (e.g., PONG)
+                    final var ctrl = MAPPER.readValue(text, ControlMessage.class);
+                    if (ctrl.getType() == ControlMessage.Type.HELLO) {
+                        log.debug("Server HTTP tunnel protocol version: {}", ctrl.getProtocolVersion());
+                    }
+                    // Other control messages (e.g., PONG) are ignored
                     return;
                 }
                 if (env.getKind() != null && env.getKind().equals("WS")) {
@@ -262,23 +247,10 @@ public class HttpTunnelClient {
                 }
                 final var message = MAPPER.readValue(text, HttpTunnelMessage.class);
                 if (message.getType() == HttpTunnelMessage.Type.REQUEST) {
-                    // Offload request processing to a worker thread to avoid blocking the WS listener
-                    requestExecutor.submit(() -> {
-                        try {
-                            final var resp = handleRequest(message);
-                            final var json = MAPPER.writeValueAsString(resp);
-                            HttpTunnelClient.this.webSocket.send(json);
-                            log.debug("Responded to WS request: {}", resp.getId());
-                        } catch (final Exception ex) {
-                            log.warn("Failed to handle tunneled request {}: {}", message.getId(), ex.toString());
-                            try {
-                                final var error = buildErrorMessage(message.getId(), 502, "Proxy error");
-                                HttpTunnelClient.this.webSocket.send(MAPPER.writeValueAsString(error));
-                            } catch (final Exception e) {
-                                log.error("Failed to send error response: {}", e.getMessage(), e);
-                            }
-                        }
-                    });
+                    if (message.getBodyB64() != null) {
+                        message.setBody(Base64.getDecoder().decode(message.getBodyB64()));
+                    }
+                    submitRequest(message, false, null);
                 } else {
                     log.debug("Ignoring non-REQUEST msg");
                 }
@@ -287,6 +259,61 @@ public class HttpTunnelClient {
             }
         }
 
+        @Override
+        public void onMessage(final WebSocket webSocket, final ByteString bytes) {
+            final var message = HttpTunnelFrame.decode(bytes.asByteBuffer());
+            if (message == null) {
+                log.warn("Failed to decode binary WS message of {} bytes", bytes.size());
+                return;
+            }
+            switch (message.getType()) {
+                case REQUEST -> submitRequest(message, true, null);
+                case REQUEST_HEAD -> {
+                    final var body = createStreamingBody(message);
+                    uploads.put(message.getId(), body);
+                    submitRequest(message, true, body);
+                }
+                case REQUEST_BODY -> {
+                    final var body = uploads.get(message.getId());
+                    if (body != null) {
+                        body.offer(message.getBody());
+                    }
+                }
+                case REQUEST_END -> {
+                    final var body = uploads.remove(message.getId());
+                    if (body != null) {
+                        body.end();
+                    }
+                }
+                case RESPONSE_BODY_ACK -> {
+                    final var window = responseWindows.get(message.getId());
+                    if (window != null && message.getCredit() != null) {
+                        window.grant(message.getCredit());
+                    }
+                }
+                case REQUEST_CANCEL -> {
+                    final var queued = queuedRequests.remove(message.getId());
+                    if (queued != null && requestExecutor.remove(queued)) {
+                        log.debug("Dropped cancelled request {} before it started", message.getId());
+                    }
+                    final var call = activeCalls.get(message.getId());
+                    if (call != null) {
+                        call.cancel();
+                    }
+                    final var window = responseWindows.get(message.getId());
+                    if (window != null) {
+                        window.close();
+                    }
+                    // Never end the body here: the local service would take what arrived for the whole of it
+                    final var body = uploads.remove(message.getId());
+                    if (body != null) {
+                        body.abort();
+                    }
+                }
+                default -> log.debug("Ignoring unexpected binary msg: {}", message.getType());
+            }
+        }
+
         @Override
         public void onClosed(final WebSocket webSocket, final int code, final String reason) {
             log.info("Tunnel closed: {} {}", code, reason);
@@ -294,6 +321,8 @@ public class HttpTunnelClient {
             if (task != null) {
                 task.cancel(true);
             }
+            // Acknowledgements will not come anymore; stop the responses waiting for them
+            responseWindows.values().forEach(FlowWindow::close);
             closed.countDown();
         }
 
@@ -304,18 +333,144 @@ public class HttpTunnelClient {
             if (task != null) {
                 task.cancel(true);
             }
+            responseWindows.values().forEach(FlowWindow::close);
             closed.countDown();
         }
     }
 
+    /**
+     * Creates the executor running the local calls: up to {@code httpMaxInFlight} concurrent requests,
+     * each on its own thread (virtual unless {@code virtualThreads} is off) that ends when idle, and up to
+     * {@code httpMaxQueuedRequests} waiting for one. Requests beyond that are rejected.
+     */
+    private static ThreadPoolExecutor createRequestExecutor() {
+        final var config = ConfigurationService.INSTANCE.getConfig();
+        final var maxInFlight = Math.max(1, config.getHttpMaxInFlight());
+        final var threads = config.isVirtualThreads() ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        final var executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, config.getHttpMaxQueuedRequests())),
+            threads.name("port-buddy-http-worker-", 0).factory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Offloads request processing to a worker thread to avoid blocking the WS listener.
+     * The response is sent in the same format the request arrived in. While the maximum number
+     * of requests is in flight and queued, further requests are answered with 503 right away.
+     *
+     * @param streamingBody body of a streamed request, or null to use the message body
+     */
+    private void submitRequest(final HttpTunnelMessage message,
+                               final boolean binary,
+                               final StreamingRequestBody streamingBody) {
+        final var id = message.getId();
+        final Runnable task = () -> {
+            queuedRequests.remove(id);
+            handle(message, binary, streamingBody);
+        };
+        queuedRequests.put(id, task);
+        try {
+            requestExecutor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            queuedRequests.remove(id);
+            log.debug("Rejecting request {}, too many requests in flight", message.getId());
+            if (streamingBody != null) {
+                uploads.remove(message.getId());
+            }
+            logHttp(message, 503);
+            try {
+                sendResponse(buildErrorMessage(message.getId(), 503, "Service Unavailable: too many requests"),
+                    binary);
+            } catch (final Exception ex) {
+                log.debug("Failed to send 503 for {}: {}", message.getId(), ex.toString());
+            }
+        }
+    }
+
+    private void handle(final HttpTunnelMessage message,
+                        final boolean binary,
+                        final StreamingRequestBody streamingBody) {
+        try {
+            // Servers that send binary frames take streamed responses; JSON ones get each response whole
+            final var streamResponse = binary;
+            if (streamResponse) {
+                responseWindows.put(message.getId(), new FlowWindow(HttpTunnelFrame.RESPONSE_BODY_WINDOW));
+            }
+            final var resp = handleRequest(message, streamingBody, streamResponse);
+            if (resp != null) {
+                sendResponse(resp, binary);
+            }
+            log.debug("Responded to WS request: {}", message.getId());
+        } catch (final Exception ex) {
+            log.warn("Failed to handle tunneled request {}: {}", message.getId(), ex.toString());
+            try {
+                sendResponse(buildErrorMessage(message.getId(), 502, "Proxy error"), binary);
+            } catch (final Exception e) {
+                log.error("Failed to send error response: {}", e.getMessage(), e);
+            }
+        } finally {
+            if (streamingBody != null) {
+                uploads.remove(message.getId());
+            }
+            responseWindows.remove(message.getId());
+        }
+    }
+
+    private StreamingRequestBody createStreamingBody(final HttpTunnelMessage head) {
+        final var id = head.getId();
+        return new StreamingRequestBody(
+            resolveMediaType(head.getBodyContentType()),
+            resolveContentLength(head.getHeaders()),
+            LOCAL_WRITE_TIMEOUT_MS,
+            consumed -> {
+                final var ack = new HttpTunnelMessage();
+                ack.setId(id);
+                ack.setType(HttpTunnelMessage.Type.REQUEST_BODY_ACK);
+                ack.setCredit(consumed);
+                webSocket.send(ByteString.of(HttpTunnelFrame.encode(ack)));
+            });
+    }
+
+    private static long resolveContentLength(final Map<String, List<String>> headers) {
+        if (headers == null) {
+            return -1;
+        }
+        for (final var header : headers.entrySet()) {
+            if ("Content-Length".equalsIgnoreCase(header.getKey())
+                && header.getValue() != null && !header.getValue().isEmpty()) {
+                try {
+                    return Long.parseLong(header.getValue().getFirst().trim());
+                } catch (final NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void sendResponse(final HttpTunnelMessage response, final boolean binary) throws Exception {
+        if (binary) {
+            webSocket.send(ByteString.of(HttpTunnelFrame.encode(response)));
+            return;
+        }
+        if (response.getBody() != null) {
+            response.setRespBodyB64(Base64.getEncoder().encodeToString(response.getBody()));
+        }
+        webSocket.send(MAPPER.writeValueAsString(response));
+    }
+
     private void handleWsFromServer(final WsTunnelMessage message) {
         final var connId = message.getConnectionId();
         switch (message.getWsType()) {
             case OPEN -> {
                 // Connect to local target via WS
-                final var localWsScheme = "https".equalsIgnoreCase(localScheme) ? "wss" : "ws";
-                var url = localWsScheme + "://" + localHost + ":" + localPort
-                          + (message.getPath() != null ? message.getPath() : "/");
+                final var upstream = localUpstreams.acquire(List.of());
+                if (upstream == null) {
+                    sendWsClose(connId, 1013, "Local service unavailable");
+                    return;
+                }
+                var url = upstream.webSocketBaseUrl() + (message.getPath() != null ? message.getPath() : "/");
                 if (message.getQuery() != null && !message.getQuery().isBlank()) {
                     url += "?" + message.getQuery();
                 }
@@ -334,7 +489,7 @@ public class HttpTunnelClient {
                         }
                     }
                 }
-                final var local = http.newWebSocket(builder.build(), new LocalWsListener(connId));
+                final var local = http.newWebSocket(builder.build(), new LocalWsListener(connId, upstream));
                 localWebsocketMap.put(connId, local);
             }
             case TEXT -> {
@@ -366,9 +521,15 @@ public class HttpTunnelClient {
     private class LocalWsListener extends WebSocketListener {
 
         private final String connectionId;
+        private final LocalUpstream upstream;
+        private final long started = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean opened;
 
         @Override
         public void onOpen(final WebSocket webSocket, final Response response) {
+            opened = true;
+            upstream.health().onResponse(System.nanoTime() - started);
             try {
                 final var ack = new WsTunnelMessage();
                 ack.setWsType(WsTunnelMessage.Type.OPEN_OK);
@@ -407,35 +568,54 @@ public class HttpTunnelClient {
 
         @Override
         public void onClosed(final WebSocket webSocket, final int code, final String reason) {
-            try {
-                localWebsocketMap.remove(connectionId);
-                final var message = new WsTunnelMessage();
-                message.setWsType(WsTunnelMessage.Type.CLOSE);
-                message.setConnectionId(connectionId);
-                message.setCloseCode(code);
-                message.setCloseReason(reason);
-                HttpTunnelClient.this.webSocket.send(MAPPER.writeValueAsString(message));
-            } catch (final Exception e) {
-                log.debug("Failed to notify close: {}", e.toString());
+            localWebsocketMap.remove(connectionId);
+            if (released.compareAndSet(false, true)) {
+                localUpstreams.release(upstream);
             }
+            sendWsClose(connectionId, code, reason);
         }
 
         @Override
         public void onFailure(final WebSocket webSocket, final Throwable error, final Response response) {
+            if (!opened) {
+                upstream.health().onFailure(error, LocalTargetHealth.isConnectFailure(error));
+            }
             onClosed(webSocket, 1011, error.toString());
         }
     }
 
-    private HttpTunnelMessage handleRequest(final HttpTunnelMessage requestMessage) {
+    private void sendWsClose(final String connectionId, final int code, final String reason) {
+        try {
+            final var message = new WsTunnelMessage();
+            message.setWsType(WsTunnelMessage.Type.CLOSE);
+            message.setConnectionId(connectionId);
+            message.setCloseCode(code);
+            message.setCloseReason(reason);
+            webSocket.send(MAPPER.writeValueAsString(message));
+        } catch (final Exception e) {
+            log.debug("Failed to notify close: {}", e.toString());
+        }
+    }
+
+    /**
+     * Calls the local service. Returns the response message to send, or {@code null} if the
+     * response was already streamed to the server (RESPONSE_HEAD, RESPONSE_BODY..., RESPONSE_END).
+     * A request that could not connect to its instance is sent to another one, unless its body is
+     * streamed and can only be sent once.
+     */
+    private HttpTunnelMessage handleRequest(final HttpTunnelMessage requestMessage,
+                                            final RequestBody streamingBody,
+                                            final boolean streamResponse) {
         final var method = requestMessage.getMethod();
-        var url = localScheme + "://" + localHost + ":" + localPort + requestMessage.getPath();
+        var pathAndQuery = requestMessage.getPath();
         if (requestMessage.getQuery() != null && !requestMessage.getQuery().isBlank()) {
-            url += "?" + requestMessage.getQuery();
+            pathAndQuery += "?" + requestMessage.getQuery();
         }
 
         final var targetRequest = new Request.Builder()
-            .url(url)
-            .method(method, buildBody(method, requestMessage.getBodyB64(), requestMessage.getBodyContentType()));
+            .method(method, streamingBody != null
+                ? streamingBody
+                : buildBody(method, requestMessage.getBody(), requestMessage.getBodyContentType()));
 
         final var publicHost = URI.create(publicBaseUrl).getHost();
         if (publicHost != null) {
@@ -464,52 +644,145 @@ public class HttpTunnelClient {
             }
         }
 
-        try (final var targetResponse = localHttp.newCall(targetRequest.build()).execute()) {
-            final var successMessage = new HttpTunnelMessage();
-            successMessage.setId(requestMessage.getId());
-            successMessage.setType(HttpTunnelMessage.Type.RESPONSE);
-            successMessage.setStatus(targetResponse.code());
-            successMessage.setRespHeaders(extractHeaders(targetResponse));
-            final var body = targetResponse.body();
-            if (body != null) {
-                final var bytes = body.bytes();
-                if (bytes.length > 0) {
-                    successMessage.setRespBodyB64(Base64.getEncoder().encodeToString(bytes));
+        final var id = requestMessage.getId();
+        final var tried = new ArrayList<LocalUpstream>();
+        var upstream = localUpstreams.acquire(tried);
+        if (upstream == null) {
+            // The local service is known to be down; answer right away instead of waiting for a connect timeout
+            logHttp(requestMessage, 503);
+            return buildUnreachableMessage(id, 503, localUpstreams.describe(),
+                "it did not accept connections recently");
+        }
+        while (true) {
+            final var attempt = ConnectAttempt.tag(targetRequest);
+            final var call = localHttp.newCall(targetRequest.url(upstream.baseUrl() + pathAndQuery).build());
+            activeCalls.put(id, call);
+            var headSent = false;
+            var responded = false;
+            LocalUpstream retry = null;
+            final var started = System.nanoTime();
+            try (final var targetResponse = call.execute()) {
+                responded = true;
+                upstream.health().onResponse(System.nanoTime() - started);
+                final var successMessage = new HttpTunnelMessage();
+                successMessage.setId(id);
+                successMessage.setType(HttpTunnelMessage.Type.RESPONSE);
+                successMessage.setStatus(targetResponse.code());
+                successMessage.setRespHeaders(extractHeaders(targetResponse));
+                final var body = targetResponse.body();
+                if (streamResponse) {
+                    successMessage.setType(HttpTunnelMessage.Type.RESPONSE_HEAD);
+                    sendFrame(successMessage);
+                    headSent = true;
+                    logHttp(requestMessage, targetResponse.code());
+                    if (body != null) {
+                        streamResponseBody(id, body.source());
+                    }
+                    sendFrame(frame(HttpTunnelMessage.Type.RESPONSE_END, id, null));
+                    return null;
                 }
-            }
-            // Log to UI sink
-            try {
-                if (httpLogSink != null) {
-                    var displayUrl = publicBaseUrl;
-                    if (requestMessage.getPath() != null) {
-                        displayUrl += requestMessage.getPath();
+                if (body != null) {
+                    final var bytes = body.bytes();
+                    if (bytes.length > 0) {
+                        successMessage.setBody(bytes);
                     }
-                    if (requestMessage.getQuery() != null && !requestMessage.getQuery().isBlank()) {
-                        displayUrl += "?" + requestMessage.getQuery();
+                }
+                logHttp(requestMessage, targetResponse.code());
+                return successMessage;
+            } catch (final Exception e) {
+                final var connectFailure = !responded && attempt.failedToConnect(call);
+                if (!responded) {
+                    upstream.health().onFailure(e, connectFailure);
+                }
+                if (headSent) {
+                    // Status and headers are already out; abort the stream so the public client does not take
+                    // the truncated body for a complete one
+                    log.debug("Streamed response {} aborted: {}", id, e.toString());
+                    try {
+                        sendFrame(frame(HttpTunnelMessage.Type.RESPONSE_ABORT, id, null));
+                    } catch (final IOException ignore) {
+                        log.debug("Failed to abort streamed response {}: {}", id, ignore.toString());
                     }
-                    httpLogSink.onHttpLog(method, displayUrl, targetResponse.code());
+                    return null;
                 }
-            } catch (final Exception ignore) {
-                log.debug("HTTP log sink failed: {}", ignore.toString());
+                if (!connectFailure) {
+                    logHttp(requestMessage, 502);
+                    return buildErrorMessage(id, 502, "Bad Gateway: " + e.getMessage());
+                }
+                // Nothing reached the instance, so the request can go to another one
+                tried.add(upstream);
+                retry = streamingBody == null ? localUpstreams.acquire(tried) : null;
+                if (retry == null) {
+                    logHttp(requestMessage, 502);
+                    return buildUnreachableMessage(id, 502, upstream.health().target(), e.toString());
+                }
+                log.debug("Request {} could not reach {}, retrying on {}", id, upstream.health().target(),
+                    retry.health().target());
+            } finally {
+                activeCalls.remove(id);
+                localUpstreams.release(upstream);
             }
-            return successMessage;
-        } catch (final Exception e) {
-            final var errorMessage = buildErrorMessage(requestMessage.getId(), 502, "Bad Gateway: " + e.getMessage());
-            try {
-                if (httpLogSink != null) {
-                    var displayUrl = publicBaseUrl;
-                    if (requestMessage.getPath() != null) {
-                        displayUrl += requestMessage.getPath();
-                    }
-                    if (requestMessage.getQuery() != null && !requestMessage.getQuery().isBlank()) {
-                        displayUrl += "?" + requestMessage.getQuery();
-                    }
-                    httpLogSink.onHttpLog(method, displayUrl, 502);
+            upstream = retry;
+        }
+    }
+
+    /**
+     * Relays the local response body as RESPONSE_BODY frames as soon as bytes are available, so
+     * server-sent events and long-poll responses reach the public client without delay. At most
+     * {@link HttpTunnelFrame#RESPONSE_BODY_WINDOW} bytes are sent ahead of what the server acknowledged,
+     * so large downloads are not buffered in the tunnel.
+     */
+    private void streamResponseBody(final String id, final BufferedSource source) throws IOException {
+        final var window = responseWindows.get(id);
+        final var buffer = new Buffer();
+        while (source.read(buffer, RESPONSE_CHUNK_SIZE) != -1) {
+            final var chunk = buffer.readByteArray();
+            sendFrame(frame(HttpTunnelMessage.Type.RESPONSE_BODY, id, chunk));
+            if (!window.acquire(chunk.length)) {
+                awaitCredit(window);
+            }
+        }
+    }
+
+    private static void awaitCredit(final FlowWindow window) throws IOException {
+        try {
+            if (!window.awaitCredit()) {
+                throw new IOException("Response cancelled");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response credit");
+        }
+    }
+
+    private void sendFrame(final HttpTunnelMessage message) throws IOException {
+        if (!webSocket.send(ByteString.of(HttpTunnelFrame.encode(message)))) {
+            throw new IOException("Tunnel is closing");
+        }
+    }
+
+    private static HttpTunnelMessage frame(final HttpTunnelMessage.Type type, final String id, final byte[] body) {
+        final var message = new HttpTunnelMessage();
+        message.setId(id);
+        message.setType(type);
+        message.setBody(body);
+        return message;
+    }
+
+    private void logHttp(final HttpTunnelMessage requestMessage, final int status) {
+        try {
+            if (httpLogSink != null) {
+                var displayUrl = publicBaseUrl;
+                if (requestMessage.getPath() != null) {
+                    displayUrl += requestMessage.getPath();
                 }
-            } catch (final Exception ignore) {
-                log.debug("HTTP log sink failed: {}", ignore.toString());
+                if (requestMessage.getQuery() != null && !requestMessage.getQuery().isBlank()) {
+                    displayUrl += "?" + requestMessage.getQuery();
+                }
+                httpLogSink.onHttpLog(requestMessage.getMethod(), displayUrl, status);
             }
-            return errorMessage;
+        } catch (final Exception ignore) {
+            log.debug("HTTP log sink failed: {}", ignore.toString());
         }
     }
 
@@ -520,23 +793,60 @@ public class HttpTunnelClient {
         error.setStatus(status);
         final var headers = Map.<String, List<String>>of("Content-Type", List.of("text/plain; charset=utf-8"));
         error.setRespHeaders(headers);
-        error.setRespBodyB64(Base64.getEncoder().encodeToString((message).getBytes(StandardCharsets.UTF_8)));
+        error.setBody(message.getBytes(StandardCharsets.UTF_8));
 
         return error;
     }
 
-    private RequestBody buildBody(final String method, final String bodyB64, final String contentType) {
+    /**
+     * Builds the page answered when the local service cannot be reached, so that public clients see
+     * that the tunnel is up but the service behind it is not. 503 responses carry a Retry-After of one
+     * probe interval.
+     */
+    private HttpTunnelMessage buildUnreachableMessage(final String id,
+                                                      final int status,
+                                                      final String target,
+                                                      final String reason) {
+        final var title = status == 503 ? "503 Service Unavailable" : "502 Bad Gateway";
+        final var page = "<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>" + title + "</title></head>\n"
+                         + "<body><h1>" + title + "</h1>\n"
+                         + "<p>The tunnel is up, but the local service at " + escapeHtml(target)
+                         + " could not be reached: " + escapeHtml(reason) + ".</p>\n"
+                         + "<p>Make sure the service is running; this page goes away once it responds.</p>\n"
+                         + "</body></html>\n";
+        final var headers = new HashMap<String, List<String>>();
+        headers.put("Content-Type", List.of("text/html; charset=utf-8"));
+        headers.put("Cache-Control", List.of("no-store"));
+        if (status == 503) {
+            headers.put("Retry-After", List.of(String.valueOf(localUpstreams.retryAfterSeconds())));
+        }
+        final var error = new HttpTunnelMessage();
+        error.setId(id);
+        error.setType(HttpTunnelMessage.Type.RESPONSE);
+        error.setStatus(status);
+        error.setRespHeaders(headers);
+        error.setBody(page.getBytes(StandardCharsets.UTF_8));
+        return error;
+    }
+
+    private static String escapeHtml(final String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private RequestBody buildBody(final String method, final byte[] bytes, final String contentType) {
         // Methods that usually don't have body
-        if (bodyB64 == null) {
+        if (bytes == null) {
             return methodSupportsBody(method)
                 ? RequestBody.create(new byte[0], contentType != null ? MediaType.parse(contentType) : null)
                 : null;
         }
-        final var bytes = Base64.getDecoder().decode(bodyB64);
-        final var mediaType = contentType != null && !contentType.isBlank()
+        return RequestBody.create(bytes, resolveMediaType(contentType));
+    }
+
+    private static MediaType resolveMediaType(final String contentType) {
+        return contentType != null && !contentType.isBlank()
             ? MediaType.parse(contentType)
             : MediaType.parse("application/octet-stream");
-        return RequestBody.create(bytes, mediaType);
     }
 
     private boolean methodSupportsBody(final String method) {
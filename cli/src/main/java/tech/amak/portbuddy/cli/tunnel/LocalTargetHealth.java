@@ -0,0 +1,244 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.cli.config.ConfigurationService;
+import tech.amak.portbuddy.cli.ui.TargetHealthSink;
+
+/**
+ * Health of a local target with a circuit breaker in front of it. After {@code localFailureThreshold}
+ * consecutive failures to connect, the circuit opens: requests fail fast instead of each waiting for the
+ * connect timeout, and a TCP probe checks the target every {@code localProbeIntervalSec}. Once a probe
+ * connects, a single trial request is let through; a response closes the circuit, a failure opens it
+ * again. Responses of any status count as success, only failures to reach the target count against it.
+ */
+@Slf4j
+final class LocalTargetHealth {
+
+    private enum Circuit {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    // Weight of the latest response time in the moving average
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final String host;
+    private final int port;
+    private final String target;
+    private final TargetHealthSink sink;
+    private final int failureThreshold;
+    private final long probeIntervalSec;
+    private final int probeTimeoutMs;
+    private final boolean virtualThreads;
+    private final ScheduledExecutorService scheduler = TunnelResources.INSTANCE.scheduler();
+
+    // Guarded by this
+    private Circuit circuit = Circuit.CLOSED;
+    private int consecutiveFailures;
+    private boolean trialInFlight;
+    private double latencyMillis = -1;
+    private ScheduledFuture<?> probeTask;
+    private boolean closed;
+
+    /**
+     * Creates the health of a local target, initially considered up.
+     *
+     * @param sink receives the state changes and response times, may be {@code null}
+     */
+    LocalTargetHealth(final String host, final int port, final TargetHealthSink sink) {
+        final var config = ConfigurationService.INSTANCE.getConfig();
+        this.host = host;
+        this.port = port;
+        this.target = host + ":" + port;
+        this.sink = sink;
+        this.failureThreshold = Math.max(1, config.getLocalFailureThreshold());
+        this.probeIntervalSec = Math.max(1, config.getLocalProbeIntervalSec());
+        this.probeTimeoutMs = (int) TimeUnit.SECONDS.toMillis(Math.max(1, config.getLocalConnectTimeoutSec()));
+        this.virtualThreads = config.isVirtualThreads();
+    }
+
+    String target() {
+        return target;
+    }
+
+    /**
+     * Seconds after which a request rejected by {@link #tryAcquire()} may succeed.
+     */
+    long retryAfterSeconds() {
+        return probeIntervalSec;
+    }
+
+    /**
+     * Whether a request may be sent to the target: always while the circuit is closed, never while it is
+     * open, and only the trial request once a probe connected. A caller that gets {@code true} reports the
+     * outcome with {@link #onResponse} or {@link #onFailure}.
+     */
+    synchronized boolean tryAcquire() {
+        return switch (circuit) {
+            case CLOSED -> true;
+            case OPEN -> false;
+            case HALF_OPEN -> {
+                if (trialInFlight) {
+                    yield false;
+                }
+                trialInFlight = true;
+                yield true;
+            }
+        };
+    }
+
+    /**
+     * The target answered, with any status.
+     *
+     * @param elapsedNanos time until the response head arrived
+     */
+    synchronized void onResponse(final long elapsedNanos) {
+        final var millis = elapsedNanos / 1_000_000.0;
+        latencyMillis = latencyMillis < 0 ? millis : latencyMillis + LATENCY_WEIGHT * (millis - latencyMillis);
+        consecutiveFailures = 0;
+        trialInFlight = false;
+        if (circuit != Circuit.CLOSED) {
+            circuit = Circuit.CLOSED;
+            cancelProbe();
+            log.info("Local target {} is reachable again", target);
+        }
+        report();
+    }
+
+    /**
+     * The call to the target failed before a response arrived. Only failures to connect count against
+     * the target; others, e.g. cancelled calls or read timeouts, just end a trial.
+     *
+     * @param connectFailure whether the call got no connection to the target, see {@link ConnectAttempt}
+     */
+    synchronized void onFailure(final Throwable error, final boolean connectFailure) {
+        trialInFlight = false;
+        if (!connectFailure) {
+            return;
+        }
+        consecutiveFailures++;
+        if (circuit == Circuit.HALF_OPEN
+            || circuit == Circuit.CLOSED && consecutiveFailures >= failureThreshold) {
+            circuit = Circuit.OPEN;
+            log.info("Local target {} is unreachable ({}), failing fast until it is back", target, error.toString());
+            scheduleProbe();
+            report();
+        }
+    }
+
+    /**
+     * Stops probing the target.
+     */
+    synchronized void close() {
+        closed = true;
+        cancelProbe();
+    }
+
+    /**
+     * Whether the error can only mean that the target could not be reached at all. For calls whose
+     * connection events are not observed, e.g. WebSocket upgrades; a timeout is not told apart there.
+     */
+    static boolean isConnectFailure(final Throwable error) {
+        return error instanceof ConnectException
+               || error instanceof NoRouteToHostException
+               || error instanceof UnknownHostException;
+    }
+
+    private void scheduleProbe() {
+        if (!closed) {
+            probeTask = scheduler.schedule(this::startProbe, probeIntervalSec, TimeUnit.SECONDS);
+        }
+    }
+
+    private void cancelProbe() {
+        if (probeTask != null) {
+            probeTask.cancel(false);
+            probeTask = null;
+        }
+    }
+
+    private void startProbe() {
+        // Connecting blocks, which the shared scheduler must not
+        final var threads = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        threads.name("port-buddy-probe").start(this::probe);
+    }
+
+    private void probe() {
+        final var reachable = connects();
+        synchronized (this) {
+            if (closed || circuit != Circuit.OPEN) {
+                return;
+            }
+            if (reachable) {
+                circuit = Circuit.HALF_OPEN;
+                log.info("Local target {} accepts connections again, sending a trial request", target);
+                report();
+            } else {
+                scheduleProbe();
+            }
+        }
+    }
+
+    /**
+     * Whether a TCP connection to any address of the target can be opened.
+     */
+    private boolean connects() {
+        final InetAddress[] addresses;
+        try {
+            addresses = InetAddress.getAllByName(host);
+        } catch (final UnknownHostException e) {
+            return false;
+        }
+        for (final var address : addresses) {
+            try (final var socket = new Socket()) {
+                socket.connect(new InetSocketAddress(address, port), probeTimeoutMs);
+                return true;
+            } catch (final IOException e) {
+                log.debug("Probe of {} at {} failed: {}", target, address, e.toString());
+            }
+        }
+        return false;
+    }
+
+    private void report() {
+        if (sink == null) {
+            return;
+        }
+        final var state = switch (circuit) {
+            case CLOSED -> TargetHealthSink.State.UP;
+            case OPEN -> TargetHealthSink.State.DOWN;
+            case HALF_OPEN -> TargetHealthSink.State.RECOVERING;
+        };
+        try {
+            sink.onTargetHealth(target, state, Math.round(latencyMillis));
+        } catch (final Exception e) {
+            log.debug("Target health sink failed: {}", e.toString());
+        }
+    }
+}
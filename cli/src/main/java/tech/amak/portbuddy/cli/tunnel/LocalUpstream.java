@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tech.amak.portbuddy.cli.ui.TargetHealthSink;
+
+/**
+ * A local service instance behind an HTTP tunnel, with its health and the number of requests and
+ * WebSocket connections it is serving.
+ */
+public final class LocalUpstream {
+
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final LocalTargetHealth health;
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * Creates an instance.
+     *
+     * @param scheme http or https
+     * @param sink   receives the health of the instance, may be {@code null}
+     */
+    public LocalUpstream(final String scheme, final String host, final int port, final TargetHealthSink sink) {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.health = new LocalTargetHealth(host, port, sink);
+    }
+
+    /**
+     * Base URL of requests, e.g. {@code http://localhost:3000}.
+     */
+    String baseUrl() {
+        return scheme + "://" + host + ":" + port;
+    }
+
+    /**
+     * Base URL of WebSocket connections, e.g. {@code ws://localhost:3000}.
+     */
+    String webSocketBaseUrl() {
+        return ("https".equalsIgnoreCase(scheme) ? "wss" : "ws") + "://" + host + ":" + port;
+    }
+
+    LocalTargetHealth health() {
+        return health;
+    }
+
+    int outstanding() {
+        return outstanding.get();
+    }
+
+    void startRequest() {
+        outstanding.incrementAndGet();
+    }
+
+    void endRequest() {
+        outstanding.decrementAndGet();
+    }
+}
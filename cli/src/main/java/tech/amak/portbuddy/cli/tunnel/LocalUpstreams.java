@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * The local service instances of an HTTP tunnel. Each request goes to the instance with the fewest
+ * requests in progress; ties are broken round-robin, so that idle instances take turns. Instances whose
+ * circuit is open (see {@link LocalTargetHealth}) are skipped, which ejects an instance once live
+ * requests fail to connect to it, until its probe finds it back.
+ */
+public final class LocalUpstreams {
+
+    private final List<LocalUpstream> upstreams;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates the set of instances.
+     *
+     * @param upstreams the instances, at least one
+     */
+    public LocalUpstreams(final List<LocalUpstream> upstreams) {
+        if (upstreams.isEmpty()) {
+            throw new IllegalArgumentException("At least one local upstream is required");
+        }
+        this.upstreams = List.copyOf(upstreams);
+    }
+
+    /**
+     * Picks the instance for a request and counts the request as in progress until {@link #release}.
+     * The health of the picked instance gets the outcome of the request.
+     *
+     * @param excluded instances already tried for the request
+     * @return the instance, or {@code null} if none accepts requests
+     */
+    LocalUpstream acquire(final Collection<LocalUpstream> excluded) {
+        if (upstreams.size() == 1) {
+            final var upstream = upstreams.getFirst();
+            return !excluded.contains(upstream) && start(upstream) ? upstream : null;
+        }
+        // Snapshot the loads, they change while sorting
+        final var offset = Math.floorMod(next.getAndIncrement(), upstreams.size());
+        final var candidates = new ArrayList<Candidate>(upstreams.size());
+        for (var i = 0; i < upstreams.size(); i++) {
+            final var upstream = upstreams.get((offset + i) % upstreams.size());
+            if (!excluded.contains(upstream)) {
+                candidates.add(new Candidate(upstream, upstream.outstanding()));
+            }
+        }
+        // Stable sort: instances with the same load keep their round-robin order
+        candidates.sort(Comparator.comparingInt(Candidate::outstanding));
+        for (final var candidate : candidates) {
+            if (start(candidate.upstream())) {
+                return candidate.upstream();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ends a request started by {@link #acquire}.
+     */
+    void release(final LocalUpstream upstream) {
+        upstream.endRequest();
+    }
+
+    /**
+     * The instances for messages, e.g. {@code localhost:3000, localhost:3001}.
+     */
+    String describe() {
+        return upstreams.stream()
+            .map(upstream -> upstream.health().target())
+            .collect(Collectors.joining(", "));
+    }
+
+    long retryAfterSeconds() {
+        return upstreams.getFirst().health().retryAfterSeconds();
+    }
+
+    /**
+     * Stops probing the instances.
+     */
+    void close() {
+        upstreams.forEach(upstream -> upstream.health().close());
+    }
+
+    private static boolean start(final LocalUpstream upstream) {
+        if (!upstream.health().tryAcquire()) {
+            return false;
+        }
+        upstream.startRequest();
+        return true;
+    }
+
+    private record Candidate(LocalUpstream upstream, int outstanding) {
+    }
+}
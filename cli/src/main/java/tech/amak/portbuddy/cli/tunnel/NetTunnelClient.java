@@ -16,24 +16,32 @@ package tech.amak.portbuddy.cli.tunnel;
 
 import static tech.amak.portbuddy.cli.utils.JsonUtils.MAPPER;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -47,10 +55,10 @@ import okhttp3.WebSocketListener;
 import okio.ByteString;
 import tech.amak.portbuddy.cli.config.ConfigurationService;
 import tech.amak.portbuddy.cli.ui.NetTrafficSink;
-import tech.amak.portbuddy.cli.utils.HttpUtils;
 import tech.amak.portbuddy.common.TunnelType;
 import tech.amak.portbuddy.common.tunnel.BinaryWsFrame;
 import tech.amak.portbuddy.common.tunnel.ControlMessage;
+import tech.amak.portbuddy.common.tunnel.FlowWindow;
 import tech.amak.portbuddy.common.tunnel.MessageEnvelope;
 import tech.amak.portbuddy.common.tunnel.WsTunnelMessage;
 
@@ -58,6 +66,8 @@ import tech.amak.portbuddy.common.tunnel.WsTunnelMessage;
 @RequiredArgsConstructor
 public class NetTunnelClient {
 
+    private static final int BATCH_SIZE = 16 * 1024;
+
     private final String proxyHost;
     private final int proxyHttpPort;
     /**
@@ -75,23 +85,33 @@ public class NetTunnelClient {
     private final NetTrafficSink trafficSink;
     private final boolean verbose;
 
-    private final OkHttpClient http = HttpUtils.createClient();
-    private final OkHttpClient rest = HttpUtils.createClient();
+    // Shared by all tunnels of the process, like the scheduler and the status heartbeats
+    private final OkHttpClient http = TunnelResources.INSTANCE.http();
     private WebSocket webSocket;
 
     private final Map<String, LocalTcp> locals = new ConcurrentHashMap<>();
-    private final Map<String, LocalUdp> udpLocals = new ConcurrentHashMap<>();
+    // The same connections by stream id, used with proxies speaking BinaryWsFrame.STREAM_ID_VERSION
+    private final Map<Integer, LocalTcp> localsByStream = new ConcurrentHashMap<>();
     private CountDownLatch closed = new CountDownLatch(1);
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
-        final var thread = new Thread(runnable, "pb-net-heartbeat");
-        thread.setDaemon(true);
-        return thread;
-    });
-    private volatile ScheduledFuture<?> heartbeatTask;
+    private final ScheduledExecutorService scheduler = TunnelResources.INSTANCE.scheduler();
+    // Threads pumping local sockets to the proxy; they only block on local socket reads
+    private final ThreadFactory pumpThreads = pumpThreadFactory();
     private volatile ScheduledFuture<?> wsHeartbeatTask;
     private final AtomicBoolean closedReported = new AtomicBoolean(false);
     private final AtomicBoolean stop = new AtomicBoolean(false);
     private final AtomicBoolean warnedAboutReassignment = new AtomicBoolean(false);
+    // Net tunnel protocol version announced by the proxy in its EXPOSED message
+    private volatile int protocolVersion = BinaryWsFrame.LEGACY_VERSION;
+    // Packs small frames for proxies speaking BinaryWsFrame.BATCH_VERSION, null if disabled
+    private final FrameBatcher batcher = createBatcher();
+    // Whether the proxy confirmed the current connection; TCP pumps hold their data while it is not
+    private final ReentrantLock attachLock = new ReentrantLock();
+    private final Condition attachChanged = attachLock.newCondition();
+    private volatile boolean attached;
+    // Flows of a UDP tunnel towards the local service, created on first use
+    private volatile UdpRelay udpRelay;
+    // Datagram path of the current connection's UDP data, null unless the proxy offered it
+    private volatile DatagramLink datagramLink;
 
     /**
      * Establishes and maintains a WebSocket connection for TCP/UDP tunneling.
@@ -120,11 +140,16 @@ public class NetTunnelClient {
                                  + "&port=" + expectedPublicPort
                                  + publicHostParam;
                 final var url = toWebSocketUrl(scheme + proxyHost + ":" + proxyHttpPort, path);
-                final var request = new Request.Builder().url(url);
+                final var request = new Request.Builder().url(url)
+                    .header(BinaryWsFrame.PROTOCOL_HEADER, String.valueOf(BinaryWsFrame.VERSION));
+                protocolVersion = BinaryWsFrame.LEGACY_VERSION;
                 if (authToken != null && !authToken.isBlank()) {
                     request.addHeader("Authorization", "Bearer " + authToken);
                 }
                 webSocket = http.newWebSocket(request.build(), new Listener());
+                if (batcher != null) {
+                    batcher.reset(webSocket);
+                }
 
                 // Block until this connection is closed
                 closed.await();
@@ -169,10 +194,7 @@ public class NetTunnelClient {
     public void close() {
         try {
             stop.set(true);
-            final var task = heartbeatTask;
-            if (task != null) {
-                task.cancel(true);
-            }
+            TunnelResources.INSTANCE.stopHeartbeat(tunnelId);
             final var wsTask = wsHeartbeatTask;
             if (wsTask != null) {
                 wsTask.cancel(true);
@@ -181,6 +203,11 @@ public class NetTunnelClient {
                 webSocket.close(1000, "Client exit");
             }
             reportClosedSafe();
+            closeDatagramLink();
+            final var relay = udpRelay;
+            if (relay != null) {
+                relay.close();
+            }
         } catch (final Exception ignore) {
             log.debug("TCP tunnel close error: {}", ignore.toString());
         }
@@ -188,6 +215,10 @@ public class NetTunnelClient {
 
     private void close(final LocalTcp localTcp) {
         if (localTcp != null) {
+            if (localTcp.window != null) {
+                localTcp.window.close();
+                localTcp.outbound.offer(LocalTcp.END);
+            }
             try {
                 localTcp.sock.close();
             } catch (final Exception e) {
@@ -196,14 +227,79 @@ public class NetTunnelClient {
         }
     }
 
-    private void close(final LocalUdp localUdp) {
-        if (localUdp != null) {
-            try {
-                localUdp.sock.close();
-            } catch (final Exception e) {
-                log.debug("Failed to close UDP local: {}", e.toString());
+    private UdpRelay udpRelay() throws IOException {
+        var relay = udpRelay;
+        if (relay == null) {
+            synchronized (this) {
+                relay = udpRelay;
+                if (relay == null) {
+                    final var config = ConfigurationService.INSTANCE.getConfig();
+                    relay = new UdpRelay(new InetSocketAddress(localHost, localPort),
+                        Math.max(1, config.getUdpMaxFlows()),
+                        TimeUnit.SECONDS.toNanos(Math.max(1, config.getUdpFlowIdleTimeoutSec())),
+                        this::sendUdpFrame, trafficSink);
+                    udpRelay = relay;
+                }
             }
         }
+        return relay;
+    }
+
+    private void closeUdpFlows() {
+        closeDatagramLink();
+        final var relay = udpRelay;
+        if (relay != null) {
+            relay.closeAll();
+        }
+    }
+
+    /**
+     * Opens the datagram path the proxy offered in its EXPOSED message, if the configuration allows it.
+     */
+    private void openDatagramLink(final WsTunnelMessage exposed) {
+        closeDatagramLink();
+        if (tunnelType != TunnelType.UDP || exposed.getDatagramPort() == null || exposed.getDatagramToken() == null
+            || exposed.getDatagramKey() == null
+            || !ConfigurationService.INSTANCE.getConfig().isUdpDatagramTransport()) {
+            return;
+        }
+        try {
+            datagramLink = new DatagramLink(new InetSocketAddress(proxyHost, exposed.getDatagramPort()),
+                UUID.fromString(exposed.getDatagramToken()), Base64.getDecoder().decode(exposed.getDatagramKey()),
+                this::routeDatagramFrame, scheduler);
+        } catch (final Exception e) {
+            log.info("UDP datagram path unavailable, using the WebSocket: {}", e.toString());
+        }
+    }
+
+    private void closeDatagramLink() {
+        final var link = datagramLink;
+        if (link != null) {
+            datagramLink = null;
+            link.close();
+        }
+    }
+
+    private void routeDatagramFrame(final ByteBuffer frame) {
+        final var decoded = BinaryWsFrame.decodeStream(frame);
+        if (decoded == null || decoded.isWindowUpdate()) {
+            return;
+        }
+        try {
+            udpRelay().deliver(decoded.connectionId(), decoded.streamId(), decoded.data());
+        } catch (final IOException e) {
+            log.debug("Failed to deliver datagram: {}", e.toString());
+        }
+    }
+
+    /**
+     * Sends a frame of a UDP flow in a datagram while that path is active, over the WebSocket otherwise.
+     */
+    private void sendUdpFrame(final byte[] frame, final int offset, final int length) {
+        final var link = datagramLink;
+        if (link == null || !link.send(frame, offset, length)) {
+            sendFrame(frame, offset, length);
+        }
     }
 
     private String toWebSocketUrl(final String httpUri, final String path) {
@@ -230,21 +326,8 @@ public class NetTunnelClient {
             }
             // allow reporting CLOSED again for future disconnects after a successful reconnect
             closedReported.set(false);
-            try {
-                final var existing = heartbeatTask;
-                if (existing != null && !existing.isCancelled()) {
-                    existing.cancel(true);
-                }
-                heartbeatTask = scheduler.scheduleAtFixedRate(() -> {
-                    try {
-                        postStatus("/api/tunnels/" + tunnelId + "/heartbeat");
-                    } catch (final Exception e) {
-                        log.debug("NET heartbeat failed: {}", e.toString());
-                    }
-                }, 0, 20, TimeUnit.SECONDS);
-            } catch (final Exception e) {
-                log.debug("Failed to start NET heartbeat: {}", e.toString());
-            }
+            // Status heartbeats of all tunnels of the process go out together
+            TunnelResources.INSTANCE.startHeartbeat(statusBaseUrl(), authToken, tunnelId);
 
             // Start WS application-level heartbeat (PING/PONG)
             try {
@@ -290,51 +373,59 @@ public class NetTunnelClient {
 
         @Override
         public void onMessage(final WebSocket webSocket, final ByteString bytes) {
+            final var frame = bytes.asByteBuffer();
+            if (protocolVersion >= BinaryWsFrame.BATCH_VERSION && BinaryWsFrame.isBatch(frame)) {
+                final var records = BinaryWsFrame.splitBatch(frame);
+                if (records == null) {
+                    log.debug("Dropping malformed batch frame");
+                    return;
+                }
+                for (final var record : records) {
+                    routeFrame(record);
+                }
+            } else {
+                routeFrame(frame);
+            }
+        }
+
+        private void routeFrame(final ByteBuffer frame) {
             try {
-                final var decoded = BinaryWsFrame.decode(bytes.toByteArray());
+                final var streamIds = protocolVersion >= BinaryWsFrame.STREAM_ID_VERSION;
+                final var decoded = streamIds ? BinaryWsFrame.decodeStream(frame) : BinaryWsFrame.decode(frame);
                 if (decoded == null) {
                     return;
                 }
                 if (tunnelType == TunnelType.TCP) {
-                    final var local = locals.get(decoded.connectionId());
+                    final var local = streamIds
+                        ? localsByStream.get(decoded.streamId())
+                        : locals.get(decoded.connectionId());
+                    if (local != null && decoded.isWindowUpdate()) {
+                        if (local.window != null) {
+                            local.window.grant(decoded.windowIncrement());
+                        }
+                        return;
+                    }
                     if (local != null) {
+                        local.receivedBytes += decoded.data().remaining();
+                    }
+                    if (local != null && local.window != null) {
+                        // The proxy never sends more than a window, so this queue stays bounded;
+                        // the data is a view of the immutable message bytes and stays valid
+                        local.outbound.offer(decoded.data());
+                    } else if (local != null) {
                         try {
-                            local.out.write(decoded.data());
-                            local.out.flush();
+                            final var length = decoded.data().remaining();
+                            local.channel.write(decoded.data());
                             if (trafficSink != null) {
-                                trafficSink.onBytesIn(decoded.data().length);
+                                trafficSink.onBytesIn(length);
                             }
                         } catch (final Exception e) {
                             log.debug("Write to local TCP failed: {}", e.toString());
                         }
                     }
                 } else if (tunnelType == TunnelType.UDP) {
-                    // For UDP, forward the datagram to local UDP server using per-connection socket
-                    final var connId = decoded.connectionId();
-                    var localUdp = udpLocals.get(connId);
-                    if (localUdp == null) {
-                        try {
-                            final var sock = new DatagramSocket();
-                            localUdp = new LocalUdp(connId, sock);
-                            udpLocals.put(connId, localUdp);
-                            // start receive loop for this connection
-                            final var localUdpRef = localUdp;
-                            new Thread(() -> pumpUdpLocalToProxy(localUdpRef)).start();
-                        } catch (final Exception e) {
-                            log.debug("Failed to create local UDP socket: {}", e.toString());
-                            return;
-                        }
-                    }
-                    try {
-                        final var packet = new DatagramPacket(decoded.data(), decoded.data().length,
-                            new InetSocketAddress(localHost, localPort));
-                        localUdp.sock.send(packet);
-                        if (trafficSink != null) {
-                            trafficSink.onBytesIn(decoded.data().length);
-                        }
-                    } catch (final Exception e) {
-                        log.debug("Write to local UDP failed: {}", e.toString());
-                    }
+                    // For UDP, forward the datagram to the local UDP server on the flow's channel
+                    udpRelay().deliver(decoded.connectionId(), streamIds ? decoded.streamId() : 0, decoded.data());
                 }
             } catch (final Exception e) {
                 log.debug("Failed to handle binary WS frame: {}", e.toString());
@@ -344,45 +435,77 @@ public class NetTunnelClient {
         @Override
         public void onClosed(final WebSocket webSocket, final int code, final String reason) {
             log.info("Tunnel closed: {} {}", code, reason);
-            final var task = heartbeatTask;
-            if (task != null) {
-                task.cancel(true);
-            }
+            TunnelResources.INSTANCE.stopHeartbeat(tunnelId);
             final var wsTask = wsHeartbeatTask;
             if (wsTask != null) {
                 wsTask.cancel(true);
             }
+            setAttached(false);
             reportClosedSafe();
             closed.countDown();
-            // Close UDP sockets
-            if (tunnelType == TunnelType.UDP) {
-                for (final var entry : udpLocals.entrySet()) {
-                    close(entry.getValue());
-                }
-                udpLocals.clear();
-            }
+            // The proxy assigns new stream ids to the flows of the next connection
+            closeUdpFlows();
         }
 
         @Override
         public void onFailure(final WebSocket webSocket, final Throwable throwable, final Response response) {
             log.warn("Tunnel failure: {}", throwable.toString());
-            final var task = heartbeatTask;
-            if (task != null) {
-                task.cancel(true);
-            }
+            TunnelResources.INSTANCE.stopHeartbeat(tunnelId);
             final var wsTask = wsHeartbeatTask;
             if (wsTask != null) {
                 wsTask.cancel(true);
             }
+            setAttached(false);
             reportClosedSafe();
             closed.countDown();
-            if (tunnelType == TunnelType.UDP) {
-                for (final var entry : udpLocals.entrySet()) {
-                    close(entry.getValue());
-                }
-                udpLocals.clear();
-            }
+            closeUdpFlows();
+        }
+    }
+
+    /**
+     * Creates the pump threads: virtual threads unless disabled with {@code virtualThreads: false}
+     * in the client configuration. Pumps block only in local socket reads, which unmount a virtual
+     * thread; {@code WebSocket.send} merely enqueues into OkHttp's writer, so nothing pins a carrier.
+     */
+    private static ThreadFactory pumpThreadFactory() {
+        final var builder = ConfigurationService.INSTANCE.getConfig().isVirtualThreads()
+            ? Thread.ofVirtual()
+            : Thread.ofPlatform();
+        return builder.name("pb-net-pump-", 0).factory();
+    }
+
+    /**
+     * Creates the frame batcher unless disabled with {@code frameBatching: false}. Flushes run on the
+     * flush thread shared by all tunnels, which does nothing else, so a slow status request never delays data.
+     */
+    private static FrameBatcher createBatcher() {
+        final var config = ConfigurationService.INSTANCE.getConfig();
+        if (!config.isFrameBatching()) {
+            return null;
+        }
+        return new FrameBatcher(BATCH_SIZE, TimeUnit.MICROSECONDS.toNanos(config.getBatchWindowMicros()),
+            TunnelResources.INSTANCE.batchExecutor());
+    }
+
+    /**
+     * Sends a binary frame, packed into a batch if the proxy accepts batches.
+     */
+    private void sendFrame(final byte[] frame, final int offset, final int length) {
+        if (batcher != null && protocolVersion >= BinaryWsFrame.BATCH_VERSION) {
+            batcher.send(frame, offset, length);
+        } else {
+            webSocket.send(ByteString.of(frame, offset, length));
+        }
+    }
+
+    /**
+     * Sends a text message after the frames still waiting in a batch.
+     */
+    private void sendText(final String text) {
+        if (batcher != null) {
+            batcher.flush();
         }
+        webSocket.send(text);
     }
 
     private void reportClosedSafe() {
@@ -399,6 +522,11 @@ public class NetTunnelClient {
         final var connId = message.getConnectionId();
         switch (message.getWsType()) {
             case EXPOSED -> {
+                final var announced = message.getProtocolVersion();
+                protocolVersion = announced == null ? BinaryWsFrame.LEGACY_VERSION : announced;
+                resumeStreams(message.getResumedStreams());
+                openDatagramLink(message);
+                setAttached(true);
                 final var actualHost = message.getPublicHost();
                 final var actualPort = message.getPublicPort();
                 if (actualHost != null && actualPort != null) {
@@ -420,15 +548,26 @@ public class NetTunnelClient {
                     // Establish local TCP
                     final var socket = new Socket();
                     socket.connect(new InetSocketAddress(localHost, localPort), 5000);
-                    final var local = new LocalTcp(connId, socket);
+                    final var streamId = message.getStreamId() == null ? 0 : message.getStreamId();
+                    final var flowControl = protocolVersion >= BinaryWsFrame.FLOW_CONTROL_VERSION;
+                    final var local = new LocalTcp(connId, streamId, socket,
+                        flowControl ? new FlowWindow(BinaryWsFrame.INITIAL_WINDOW) : null);
                     locals.put(connId, local);
+                    if (streamId > 0) {
+                        localsByStream.put(streamId, local);
+                    }
+                    if (local.window != null) {
+                        // Writes to the local socket get their own thread, so a slow local peer
+                        // only stalls its own connection
+                        pumpThreads.newThread(() -> pumpProxyToLocal(local)).start();
+                    }
                     // Ack
                     final var ack = new WsTunnelMessage();
                     ack.setWsType(WsTunnelMessage.Type.OPEN_OK);
                     ack.setConnectionId(connId);
                     webSocket.send(MAPPER.writeValueAsString(ack));
                     // Start reader thread from local TCP to proxy WS
-                    new Thread(() -> pumpLocalToProxy(local)).start();
+                    pumpThreads.newThread(() -> pumpLocalToProxy(local)).start();
                 } else {
                     // UDP does not use OPEN for per-flow; ignore or acknowledge for compatibility
                     final var ack = new WsTunnelMessage();
@@ -456,29 +595,19 @@ public class NetTunnelClient {
                 } else if (tunnelType == TunnelType.UDP) {
                     // Legacy TEXT BINARY for UDP: forward to local as datagram
                     if (message.getDataB64() != null) {
-                        var localUdp = udpLocals.get(connId);
-                        if (localUdp == null) {
-                            final var sock = new DatagramSocket();
-                            localUdp = new LocalUdp(connId, sock);
-                            udpLocals.put(connId, localUdp);
-                            final var localUdpRef = localUdp;
-                            new Thread(() -> pumpUdpLocalToProxy(localUdpRef)).start();
-                        }
                         final var bytes = Base64.getDecoder().decode(message.getDataB64());
-                        final var packet = new DatagramPacket(bytes, bytes.length,
-                            new InetSocketAddress(localHost, localPort));
-                        localUdp.sock.send(packet);
-                        if (trafficSink != null) {
-                            trafficSink.onBytesIn(bytes.length);
-                        }
+                        udpRelay().deliver(connId, 0, ByteBuffer.wrap(bytes));
                     }
                 }
             }
             case CLOSE -> {
                 if (tunnelType == TunnelType.TCP) {
-                    close(locals.remove(connId));
+                    close(removeLocal(connId));
                 } else {
-                    close(udpLocals.remove(connId));
+                    final var relay = udpRelay;
+                    if (relay != null) {
+                        relay.close(connId, message.getStreamId());
+                    }
                 }
             }
             default -> {
@@ -486,16 +615,25 @@ public class NetTunnelClient {
         }
     }
 
+    /**
+     * Reads the local socket right behind the connection's frame header, so a chunk is only copied
+     * once, into the message handed to OkHttp.
+     */
     private void pumpLocalToProxy(final LocalTcp local) {
-        final var buffer = new byte[8192];
+        final var header = BinaryWsFrame.dataHeader(local.connectionId, local.streamId);
+        final var buffer = new byte[header.length + 8192];
+        System.arraycopy(header, 0, buffer, 0, header.length);
         try {
-            while (true) {
-                final var byteCount = local.in.read(buffer);
-                if (byteCount == -1) {
+            while (local.window == null || local.window.awaitCredit()) {
+                final var byteCount = local.in.read(buffer, header.length, buffer.length - header.length);
+                if (byteCount == -1 || !awaitAttached(local)) {
                     break;
                 }
-                final var frame = BinaryWsFrame.encodeToArray(local.connectionId, buffer, 0, byteCount);
-                webSocket.send(ByteString.of(frame));
+                sendFrame(buffer, 0, header.length + byteCount);
+                local.sentBytes += byteCount;
+                if (local.window != null) {
+                    local.window.acquire(byteCount);
+                }
                 if (trafficSink != null) {
                     trafficSink.onBytesOut(byteCount);
                 }
@@ -507,69 +645,169 @@ public class NetTunnelClient {
                 final var message = new WsTunnelMessage();
                 message.setWsType(WsTunnelMessage.Type.CLOSE);
                 message.setConnectionId(local.connectionId);
-                webSocket.send(MAPPER.writeValueAsString(message));
+                sendText(MAPPER.writeValueAsString(message));
             } catch (final Exception ignore) {
                 log.error("Failed to send local WS close: {}", ignore.toString());
             }
             close(local);
-            locals.remove(local.connectionId);
+            removeLocal(local.connectionId);
         }
     }
 
-    private static class LocalTcp {
-        final String connectionId;
-        final Socket sock;
-        final InputStream in;
-        final OutputStream out;
+    /**
+     * Continues the TCP connections the proxy kept while this client was disconnected, if no data was
+     * lost in between; the others are closed. The proxy checks the other direction with the received
+     * bytes reported in OPEN_OK.
+     */
+    private void resumeStreams(final List<WsTunnelMessage.ResumedStream> resumedStreams) throws Exception {
+        final var resumed = new HashMap<String, WsTunnelMessage.ResumedStream>();
+        if (resumedStreams != null) {
+            for (final var stream : resumedStreams) {
+                resumed.put(stream.connectionId(), stream);
+            }
+        }
+        for (final var local : locals.values()) {
+            final var stream = resumed.remove(local.connectionId);
+            if (stream == null || stream.receivedBytes() != local.sentBytes) {
+                // Its pump reports CLOSE once the connection is attached
+                close(removeLocal(local.connectionId));
+                continue;
+            }
+            if (local.window != null) {
+                local.window.reset();
+            }
+            final var ack = new WsTunnelMessage();
+            ack.setWsType(WsTunnelMessage.Type.OPEN_OK);
+            ack.setConnectionId(local.connectionId);
+            ack.setReceivedBytes(local.receivedBytes);
+            webSocket.send(MAPPER.writeValueAsString(ack));
+        }
+        // Streams this client does not know, e.g. accepted while the proxy lost the previous connection
+        for (final var stream : resumed.values()) {
+            final var close = new WsTunnelMessage();
+            close.setWsType(WsTunnelMessage.Type.CLOSE);
+            close.setConnectionId(stream.connectionId());
+            webSocket.send(MAPPER.writeValueAsString(close));
+        }
+        if (!locals.isEmpty()) {
+            log.info("Resumed {} TCP connections", locals.size());
+        }
+    }
 
-        LocalTcp(final String connectionId, final Socket sock) throws Exception {
-            this.connectionId = connectionId;
-            this.sock = sock;
-            this.in = sock.getInputStream();
-            this.out = sock.getOutputStream();
+    private void setAttached(final boolean value) {
+        attachLock.lock();
+        try {
+            attached = value;
+            attachChanged.signalAll();
+        } finally {
+            attachLock.unlock();
         }
     }
 
-    private static class LocalUdp {
-        final String connectionId;
-        final DatagramSocket sock;
+    /**
+     * Waits until the proxy confirmed the current tunnel connection, so data read from a local socket
+     * is not sent into a connection that is gone.
+     *
+     * @return {@code false} if the local connection was closed or the client stopped meanwhile
+     */
+    private boolean awaitAttached(final LocalTcp local) throws InterruptedException {
+        if (!attached) {
+            attachLock.lock();
+            try {
+                while (!attached && !stop.get() && !local.sock.isClosed()) {
+                    attachChanged.await(1, TimeUnit.SECONDS);
+                }
+            } finally {
+                attachLock.unlock();
+            }
+        }
+        return attached && !local.sock.isClosed();
+    }
 
-        LocalUdp(final String connectionId, final DatagramSocket sock) {
-            this.connectionId = connectionId;
-            this.sock = sock;
+    private LocalTcp removeLocal(final String connectionId) {
+        final var local = locals.remove(connectionId);
+        if (local != null && local.streamId > 0) {
+            localsByStream.remove(local.streamId);
         }
+        return local;
     }
 
-    private void pumpUdpLocalToProxy(final LocalUdp local) {
-        final var buffer = new byte[65535];
+
+    /**
+     * Writes the data queued by the proxy to the local socket and grants the proxy credit for it.
+     */
+    private void pumpProxyToLocal(final LocalTcp local) {
         try {
-            while (!local.sock.isClosed()) {
-                final var packet = new DatagramPacket(buffer, buffer.length);
-                local.sock.receive(packet);
-                final var frame = BinaryWsFrame
-                    .encodeToArray(local.connectionId, packet.getData(), packet.getOffset(), packet.getLength());
-                webSocket.send(ByteString.of(frame));
+            while (true) {
+                final var data = local.outbound.take();
+                if (data == LocalTcp.END) {
+                    break;
+                }
+                final var length = data.remaining();
+                local.channel.write(data);
                 if (trafficSink != null) {
-                    trafficSink.onBytesOut(packet.getLength());
+                    trafficSink.onBytesIn(length);
+                }
+                final var increment = local.window.delivered(length);
+                if (increment > 0) {
+                    final var frame = local.streamId > 0
+                        ? BinaryWsFrame.encodeStreamWindowUpdate(local.streamId, increment)
+                        : BinaryWsFrame.encodeWindowUpdate(local.connectionId, increment);
+                    sendFrame(frame.array(), 0, frame.limit());
                 }
             }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (final Exception e) {
-            // ignore normal close
-        } finally {
+            log.debug("Write to local TCP failed: {}", e.toString());
+            // Closing the socket ends the local pump, which reports CLOSE to the proxy
             close(local);
-            udpLocals.remove(local.connectionId);
         }
     }
 
+    private static class LocalTcp {
+        static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        final String connectionId;
+        // Stream id assigned by the proxy, 0 with proxies that do not support it
+        final int streamId;
+        final Socket sock;
+        final InputStream in;
+        final OutputStream out;
+        // Writes buffers through a reused transfer array
+        final WritableByteChannel channel;
+        // Flow control window, null with proxies that do not support it
+        final FlowWindow window;
+        // Payload bytes sent to and received from the proxy, compared when the stream is resumed;
+        // each is written by a single thread
+        volatile long sentBytes;
+        volatile long receivedBytes;
+        final BlockingQueue<ByteBuffer> outbound = new LinkedBlockingQueue<>();
+
+        LocalTcp(final String connectionId, final int streamId, final Socket sock, final FlowWindow window)
+            throws Exception {
+            this.connectionId = connectionId;
+            this.streamId = streamId;
+            this.sock = sock;
+            this.in = sock.getInputStream();
+            this.out = sock.getOutputStream();
+            this.channel = Channels.newChannel(out);
+            this.window = window;
+        }
+    }
+
+    private String statusBaseUrl() {
+        return (secure ? "https://" : "http://") + proxyHost + ":" + proxyHttpPort;
+    }
+
     private void postStatus(final String path) throws Exception {
-        final var base = (secure ? "https://" : "http://") + proxyHost + ":" + proxyHttpPort;
-        final var url = base + path;
+        final var url = statusBaseUrl() + path;
         final var body = RequestBody.create("{}", MediaType.parse("application/json"));
         final var builder = new Request.Builder().url(url).post(body);
         if (authToken != null && !authToken.isBlank()) {
             builder.header("Authorization", "Bearer " + authToken);
         }
-        try (final var response = rest.newCall(builder.build()).execute()) {
+        try (final var response = http.newCall(builder.build()).execute()) {
             if (!response.isSuccessful()) {
                 log.debug("Status POST failed {} {} for {}", response.code(), response.message(), path);
             }
@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import lombok.RequiredArgsConstructor;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Request body of a streamed tunnel request (REQUEST_HEAD, REQUEST_BODY..., REQUEST_END).
+ * Chunks are queued by the WebSocket listener as they arrive and written to the local service
+ * by the worker executing the call. Every written chunk is reported to {@code onConsumed} so the
+ * server can be granted credit to send more; the server's window bounds the queue size.
+ * A cancelled request is aborted rather than ended, so the local service never takes a truncated
+ * body for a complete one.
+ */
+@RequiredArgsConstructor
+class StreamingRequestBody extends RequestBody {
+
+    private static final byte[] END = new byte[0];
+    private static final byte[] ABORT = new byte[0];
+
+    private final MediaType mediaType;
+    private final long contentLength;
+    private final long chunkTimeoutMillis;
+    private final IntConsumer onConsumed;
+
+    private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+    private volatile boolean aborted;
+
+    /**
+     * Queues a body chunk. Never blocks.
+     *
+     * @param chunk the chunk received from the server
+     */
+    void offer(final byte[] chunk) {
+        if (chunk != null && chunk.length > 0) {
+            chunks.add(chunk);
+        }
+    }
+
+    /**
+     * Marks the end of the body.
+     */
+    void end() {
+        chunks.add(END);
+    }
+
+    /**
+     * Aborts the body: chunks not written yet are dropped and the worker writing it fails. Never blocks.
+     */
+    void abort() {
+        aborted = true;
+        chunks.clear();
+        chunks.add(ABORT);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return mediaType;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public boolean isOneShot() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(final BufferedSink sink) throws IOException {
+        while (true) {
+            final byte[] chunk;
+            try {
+                chunk = chunks.poll(chunkTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for request body");
+            }
+            if (chunk == null) {
+                throw new IOException("Timed out waiting for request body from server");
+            }
+            if (chunk == ABORT || aborted) {
+                throw new IOException("Request cancelled by the server");
+            }
+            if (chunk == END) {
+                return;
+            }
+            sink.write(chunk);
+            onConsumed.accept(chunk.length);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import static tech.amak.portbuddy.cli.utils.JsonUtils.MAPPER;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import tech.amak.portbuddy.cli.config.ConfigurationService;
+import tech.amak.portbuddy.cli.utils.HttpUtils;
+
+/**
+ * Resources shared by all tunnels of the process, so that running many tunnels from one CLI costs
+ * one set of threads and connection pools rather than one per tunnel: the OkHttp clients (which share
+ * a dispatcher and, for the server, a connection pool), a scheduler for heartbeats and keepalives,
+ * the flush thread of the frame batchers, and the status heartbeats of net tunnels, which are sent
+ * for all tunnels of a server in one request.
+ * Tasks on the scheduler and the flush thread must not block.
+ */
+@Slf4j
+public final class TunnelResources {
+
+    public static final TunnelResources INSTANCE = new TunnelResources();
+
+    /**
+     * Interval of the status heartbeats of net tunnels.
+     */
+    static final long NET_HEARTBEAT_INTERVAL_SEC = 20;
+    /**
+     * Most tunnels reported in one batched heartbeat; the server rejects larger batches.
+     */
+    static final int MAX_HEARTBEAT_BATCH = 100;
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    // REST calls and net tunnel WebSockets
+    private final OkHttpClient http = HttpUtils.createClient();
+    // HTTP tunnel WebSockets: no read timeout, pings keep intermediaries from dropping idle connections
+    private final OkHttpClient controlHttp = http.newBuilder()
+        .readTimeout(0, TimeUnit.MILLISECONDS)
+        .pingInterval(15, TimeUnit.SECONDS)
+        .retryOnConnectionFailure(true)
+        .build();
+    // Same connection address as the WebSockets, which only use HTTP/1.1, so they reuse its connections
+    private final OkHttpClient webSocketWarmUp = http.newBuilder()
+        .protocols(List.of(Protocol.HTTP_1_1))
+        .build();
+    // Calls to local target services; own pool, so local connections never evict the server ones
+    private final OkHttpClient localHttp = createLocalHttpClient();
+    private final ScheduledExecutorService scheduler = daemonScheduler("port-buddy-scheduler");
+    private final ScheduledExecutorService batchExecutor = daemonScheduler("pb-net-batch");
+
+    // Net tunnels sending status heartbeats, by tunnel id
+    private final Map<UUID, HeartbeatTarget> heartbeats = new ConcurrentHashMap<>();
+    // Servers that answered a batched heartbeat with 404 or 405; they get one request per tunnel
+    private final Set<String> batchUnsupported = ConcurrentHashMap.newKeySet();
+    private ScheduledFuture<?> heartbeatTask;
+
+    private TunnelResources() {
+    }
+
+    /**
+     * Client for REST calls to the server and for net tunnel WebSockets.
+     */
+    public OkHttpClient http() {
+        return http;
+    }
+
+    /**
+     * Client for HTTP tunnel WebSockets.
+     */
+    OkHttpClient controlHttp() {
+        return controlHttp;
+    }
+
+    /**
+     * Client for calls to local target services.
+     */
+    OkHttpClient localHttp() {
+        return localHttp;
+    }
+
+    /**
+     * Scheduler for heartbeats and keepalives of all tunnels.
+     */
+    ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Executor running the flushes of all frame batchers.
+     */
+    ScheduledExecutorService batchExecutor() {
+        return batchExecutor;
+    }
+
+    /**
+     * Opens connections to the server ahead of the tunnel WebSockets, which then skip the TCP and TLS
+     * handshakes. The requests are asynchronous, so that the connections are set up while the tunnels
+     * are being exposed. A WebSocket opened while a warm-up request is still in flight opens its own
+     * connection, so callers wait for the returned future before connecting.
+     *
+     * @param serverUrl   the server base URL
+     * @param connections number of WebSockets about to be opened
+     * @return completes once every warm-up request finished, successfully or not
+     */
+    public CompletableFuture<Void> warmUp(final String serverUrl, final int connections) {
+        final Request request;
+        try {
+            request = new Request.Builder().url(serverUrl).head().build();
+        } catch (final IllegalArgumentException e) {
+            log.debug("Cannot warm up connections to {}: {}", serverUrl, e.toString());
+            return CompletableFuture.completedFuture(null);
+        }
+        final var calls = new ArrayList<CompletableFuture<Void>>();
+        for (var i = 0; i < connections; i++) {
+            final var done = new CompletableFuture<Void>();
+            calls.add(done);
+            webSocketWarmUp.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(final Call call, final IOException e) {
+                    log.debug("Connection warm-up failed: {}", e.toString());
+                    done.complete(null);
+                }
+
+                @Override
+                public void onResponse(final Call call, final Response response) {
+                    response.close();
+                    done.complete(null);
+                }
+            });
+        }
+        return CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Sends status heartbeats for the net tunnel until {@link #stopHeartbeat} is called. The heartbeats of
+     * all tunnels registered with the same server and token go out together.
+     *
+     * @param baseUrl   the server base URL, e.g. https://portbuddy.dev
+     * @param authToken the bearer token, may be null
+     * @param tunnelId  the tunnel
+     */
+    synchronized void startHeartbeat(final String baseUrl, final String authToken, final UUID tunnelId) {
+        heartbeats.put(tunnelId, new HeartbeatTarget(baseUrl, authToken));
+        if (heartbeatTask == null) {
+            heartbeatTask = scheduler.scheduleAtFixedRate(this::sendHeartbeats,
+                NET_HEARTBEAT_INTERVAL_SEC, NET_HEARTBEAT_INTERVAL_SEC, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the status heartbeats of the net tunnel.
+     */
+    synchronized void stopHeartbeat(final UUID tunnelId) {
+        heartbeats.remove(tunnelId);
+        if (heartbeats.isEmpty() && heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
+        }
+    }
+
+    private void sendHeartbeats() {
+        final var byTarget = new LinkedHashMap<HeartbeatTarget, List<UUID>>();
+        heartbeats.forEach((tunnelId, target) ->
+            byTarget.computeIfAbsent(target, ignored -> new ArrayList<>()).add(tunnelId));
+        byTarget.forEach((target, tunnelIds) -> {
+            if (tunnelIds.size() == 1 || batchUnsupported.contains(target.baseUrl())) {
+                tunnelIds.forEach(tunnelId -> sendHeartbeat(target, tunnelId));
+                return;
+            }
+            for (var from = 0; from < tunnelIds.size(); from += MAX_HEARTBEAT_BATCH) {
+                sendBatch(target, tunnelIds.subList(from, Math.min(from + MAX_HEARTBEAT_BATCH, tunnelIds.size())));
+            }
+        });
+    }
+
+    private void sendHeartbeat(final HeartbeatTarget target, final UUID tunnelId) {
+        post(target, "/api/tunnels/" + tunnelId + "/heartbeat", "{}", response -> {
+            if (!response.isSuccessful()) {
+                log.debug("NET heartbeat failed {} {} for {}", response.code(), response.message(), tunnelId);
+            }
+        });
+    }
+
+    private void sendBatch(final HeartbeatTarget target, final List<UUID> tunnelIds) {
+        final String json;
+        try {
+            json = MAPPER.writeValueAsString(tunnelIds);
+        } catch (final IOException e) {
+            log.debug("Failed to encode heartbeat batch: {}", e.toString());
+            return;
+        }
+        final var batch = List.copyOf(tunnelIds);
+        post(target, "/api/tunnels/heartbeat", json, response -> {
+            if (response.code() == 404 || response.code() == 405) {
+                // Server without batched heartbeats
+                batchUnsupported.add(target.baseUrl());
+                batch.forEach(tunnelId -> sendHeartbeat(target, tunnelId));
+            } else if (!response.isSuccessful()) {
+                log.debug("NET heartbeat batch failed {} {}", response.code(), response.message());
+            }
+        });
+    }
+
+    private void post(final HeartbeatTarget target,
+                      final String path,
+                      final String json,
+                      final ResponseHandler handler) {
+        final var builder = new Request.Builder()
+            .url(target.baseUrl() + path)
+            .post(RequestBody.create(json, JSON));
+        if (target.authToken() != null && !target.authToken().isBlank()) {
+            builder.header("Authorization", "Bearer " + target.authToken());
+        }
+        // Asynchronous, so that a slow server never delays the other tasks of the scheduler
+        http.newCall(builder.build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(final Call call, final IOException e) {
+                log.debug("NET heartbeat call failed: {}", e.toString());
+            }
+
+            @Override
+            public void onResponse(final Call call, final Response response) {
+                try (response) {
+                    handler.handle(response);
+                }
+            }
+        });
+    }
+
+    private static OkHttpClient createLocalHttpClient() {
+        final var config = ConfigurationService.INSTANCE.getConfig();
+        // Keep a connection per concurrent request alive, so bursts do not reconnect to the local service
+        final var maxIdle = Math.max(5, config.getHttpMaxInFlight());
+        final var builder = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(maxIdle, 5, TimeUnit.MINUTES))
+            .connectTimeout(Math.max(1, config.getLocalConnectTimeoutSec()), TimeUnit.SECONDS)
+            .readTimeout(60, TimeUnit.SECONDS)
+            .writeTimeout(HttpTunnelClient.LOCAL_WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            // Do not follow redirects automatically; they must be proxied back to the client
+            .followRedirects(false)
+            .followSslRedirects(false)
+            .retryOnConnectionFailure(true)
+            // Tells failed calls that never reached the target apart for its circuit breaker
+            .eventListener(ConnectAttempt.LISTENER);
+
+        if (ConfigurationService.INSTANCE.isDev()) {
+            HttpUtils.configureInsecureSsl(builder);
+        }
+
+        return builder.build();
+    }
+
+    private static ScheduledExecutorService daemonScheduler(final String name) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private interface ResponseHandler {
+        void handle(Response response);
+    }
+
+    private record HeartbeatTarget(String baseUrl, String authToken) {
+    }
+}
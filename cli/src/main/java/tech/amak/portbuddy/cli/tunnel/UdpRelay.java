@@ -0,0 +1,300 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.cli.ui.NetTrafficSink;
+import tech.amak.portbuddy.common.tunnel.BinaryWsFrame;
+
+/**
+ * Local side of a UDP tunnel. Every flow (public remote) gets a non-blocking datagram channel connected to
+ * the local target, so that the target's replies can be told apart, and one selector thread reads the
+ * replies of all flows right behind the flow's frame header. The number of flows is bounded and flows
+ * without datagrams in either direction for longer than the idle timeout are closed.
+ */
+@Slf4j
+class UdpRelay implements Closeable {
+
+    private static final int MAX_DATAGRAM = 65535;
+    // Room for the frame header in front of a datagram; legacy headers carry a host:port connection id
+    private static final int MAX_HEADER = 512;
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+    // Datagrams read from one flow per selection, so a busy flow does not starve the others
+    private static final int MAX_READS_PER_SELECT = 64;
+
+    private final InetSocketAddress target;
+    private final int maxFlows;
+    private final long idleTimeoutNanos;
+    private final FrameSink sink;
+    private final NetTrafficSink trafficSink;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<Integer, Flow> byStream = new ConcurrentHashMap<>();
+    private final Map<String, Flow> byConnectionId = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    /**
+     * Receives the frames carrying the local target's replies.
+     */
+    interface FrameSink {
+
+        /**
+         * Sends a frame; the array is only valid during the call.
+         */
+        void send(byte[] frame, int offset, int length);
+    }
+
+    /**
+     * Starts the relay's selector thread.
+     *
+     * @param target           the local UDP service
+     * @param maxFlows         maximum number of flows; datagrams of further flows are dropped
+     * @param idleTimeoutNanos time without datagrams after which a flow is closed
+     * @param sink             sends the replies to the proxy
+     * @param trafficSink      traffic statistics, may be {@code null}
+     * @throws IOException if the selector cannot be opened
+     */
+    UdpRelay(final InetSocketAddress target,
+             final int maxFlows,
+             final long idleTimeoutNanos,
+             final FrameSink sink,
+             final NetTrafficSink trafficSink) throws IOException {
+        this.target = target;
+        this.maxFlows = maxFlows;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        this.sink = sink;
+        this.trafficSink = trafficSink;
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, "pb-udp-relay");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Sends a datagram of the proxy to the local target, opening the flow on its first datagram.
+     *
+     * @param connectionId connection id of the flow
+     * @param streamId     stream id of the flow, 0 with proxies addressing flows by connection id
+     * @param data         the datagram
+     */
+    void deliver(final String connectionId, final int streamId, final ByteBuffer data) {
+        var flow = streamId > 0 ? byStream.get(streamId) : byConnectionId.get(connectionId);
+        if (flow == null) {
+            flow = open(connectionId, streamId);
+            if (flow == null) {
+                return;
+            }
+        }
+        flow.lastActive = System.nanoTime();
+        final var length = data.remaining();
+        try {
+            flow.channel.write(data);
+            if (trafficSink != null) {
+                trafficSink.onBytesIn(length);
+            }
+        } catch (final IOException e) {
+            log.debug("Write to local UDP failed: {}", e.toString());
+        }
+    }
+
+    /**
+     * Closes a flow the proxy forgot.
+     *
+     * @param connectionId connection id of the flow
+     * @param streamId     stream id of the flow, {@code null} or 0 if unknown
+     */
+    void close(final String connectionId, final Integer streamId) {
+        final var flow = streamId != null && streamId > 0
+            ? byStream.get(streamId)
+            : byConnectionId.get(connectionId);
+        if (flow != null) {
+            close(flow);
+        }
+    }
+
+    /**
+     * Closes all flows, e.g. when the tunnel connection is lost and the proxy assigns new stream ids.
+     */
+    void closeAll() {
+        byStream.values().forEach(this::close);
+        byConnectionId.values().forEach(this::close);
+    }
+
+    int size() {
+        return byConnectionId.size() + byStream.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        closeAll();
+    }
+
+    private Flow open(final String connectionId, final int streamId) {
+        if (size() >= maxFlows) {
+            evictIdle();
+            if (size() >= maxFlows) {
+                log.debug("Too many UDP flows, dropping datagram of {}", streamId > 0 ? streamId : connectionId);
+                return null;
+            }
+        }
+        final DatagramChannel channel;
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(target);
+        } catch (final IOException e) {
+            log.debug("Failed to open local UDP channel: {}", e.toString());
+            return null;
+        }
+        final var flow = new Flow(connectionId, streamId, channel, BinaryWsFrame.dataHeader(connectionId, streamId));
+        if (streamId > 0) {
+            byStream.put(streamId, flow);
+        } else {
+            byConnectionId.put(connectionId, flow);
+        }
+        tasks.add(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, flow);
+            } catch (final ClosedChannelException e) {
+                log.debug("UDP flow closed before registration: {}", e.toString());
+            }
+        });
+        selector.wakeup();
+        return flow;
+    }
+
+    private void close(final Flow flow) {
+        if (flow.streamId > 0) {
+            byStream.remove(flow.streamId, flow);
+        } else {
+            byConnectionId.remove(flow.connectionId, flow);
+        }
+        try {
+            flow.channel.close();
+        } catch (final IOException e) {
+            log.debug("Failed to close local UDP channel: {}", e.toString());
+        }
+    }
+
+    private void evictIdle() {
+        final var now = System.nanoTime();
+        for (final var flow : byStream.values()) {
+            if (now - flow.lastActive > idleTimeoutNanos) {
+                close(flow);
+            }
+        }
+        for (final var flow : byConnectionId.values()) {
+            if (now - flow.lastActive > idleTimeoutNanos) {
+                close(flow);
+            }
+        }
+    }
+
+    private void run() {
+        final var buffer = ByteBuffer.allocate(MAX_HEADER + MAX_DATAGRAM);
+        var nextSweep = System.nanoTime() + SWEEP_INTERVAL_NANOS;
+        while (running) {
+            try {
+                selector.select(1000);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                final var keys = selector.selectedKeys();
+                for (final var key : keys) {
+                    if (key.isValid() && key.isReadable()) {
+                        relay((Flow) key.attachment(), buffer);
+                    }
+                }
+                keys.clear();
+                final var now = System.nanoTime();
+                if (now - nextSweep > 0) {
+                    evictIdle();
+                    nextSweep = now + SWEEP_INTERVAL_NANOS;
+                }
+            } catch (final Exception e) {
+                log.debug("UDP relay iteration failed: {}", e.toString());
+            }
+        }
+        try {
+            selector.close();
+        } catch (final IOException e) {
+            log.debug("Failed to close selector: {}", e.toString());
+        }
+    }
+
+    /**
+     * Sends the pending replies of a flow, each read right behind the flow's frame header.
+     */
+    private void relay(final Flow flow, final ByteBuffer buffer) {
+        final var header = flow.header;
+        for (var i = 0; i < MAX_READS_PER_SELECT; i++) {
+            buffer.clear().position(header.length);
+            final int read;
+            try {
+                read = flow.channel.read(buffer);
+            } catch (final IOException e) {
+                // E.g. ICMP port unreachable while the local service is down
+                log.debug("Read from local UDP failed: {}", e.toString());
+                return;
+            }
+            if (read <= 0) {
+                return;
+            }
+            flow.lastActive = System.nanoTime();
+            buffer.put(0, header);
+            sink.send(buffer.array(), 0, header.length + read);
+            if (trafficSink != null) {
+                trafficSink.onBytesOut(read);
+            }
+        }
+    }
+
+    private static final class Flow {
+
+        private final String connectionId;
+        private final int streamId;
+        private final DatagramChannel channel;
+        private final byte[] header;
+        private volatile long lastActive = System.nanoTime();
+
+        private Flow(final String connectionId,
+                     final int streamId,
+                     final DatagramChannel channel,
+                     final byte[] header) {
+            this.connectionId = connectionId;
+            this.streamId = streamId;
+            this.channel = channel;
+            this.header = header;
+        }
+    }
+}
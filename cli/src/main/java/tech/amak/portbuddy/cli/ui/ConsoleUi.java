@@ -18,7 +18,11 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.time.Duration;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -29,7 +33,6 @@ import org.jline.terminal.TerminalBuilder;
 import org.jline.utils.InfoCmp;
 
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import tech.amak.portbuddy.cli.config.ConfigurationService;
@@ -38,21 +41,32 @@ import tech.amak.portbuddy.common.TunnelType;
 import tech.amak.portbuddy.common.dto.auth.RegisterRequest;
 
 @Slf4j
-@RequiredArgsConstructor
 public class ConsoleUi implements HttpLogSink, NetTrafficSink {
 
     public record HttpLog(String method, String url, int status) {
     }
 
-    private final TunnelType tunnelType;
-    private final String localDetails;
-    private final String publicDetails;
+    /**
+     * A tunnel shown by the UI.
+     */
+    public record TunnelView(TunnelType tunnelType, String localDetails, String publicDetails) {
+    }
+
+    private record TargetStatus(TargetHealthSink.State state, long latencyMillis) {
+    }
+
+    private final List<TunnelView> tunnels;
 
     private Terminal terminal;
     private PrintWriter out;
+    // Lines printed above the render area
+    private int headerLines;
     private final Deque<HttpLog> httpLogs = new ArrayDeque<>();
-    private final AtomicLong inBytes = new AtomicLong();
-    private final AtomicLong outBytes = new AtomicLong();
+    // Traffic of each tunnel, in the order of the tunnels
+    private final AtomicLong[] inBytes;
+    private final AtomicLong[] outBytes;
+    // Health of the local targets of each tunnel, in the order of the tunnels
+    private final List<Map<String, TargetStatus>> targetHealth = new ArrayList<>();
     private final AtomicBoolean running = new AtomicBoolean(false);
     private final CountDownLatch exit = new CountDownLatch(1);
     private final ClientConfig config = ConfigurationService.INSTANCE.getConfig();
@@ -63,6 +77,59 @@ public class ConsoleUi implements HttpLogSink, NetTrafficSink {
     @Setter
     private Runnable onExit;
 
+    /**
+     * Startup timing shown below the tunnels, e.g. in verbose mode.
+     */
+    @Setter
+    private String startupDetails;
+
+    /**
+     * Creates the UI of a single tunnel.
+     */
+    public ConsoleUi(final TunnelType tunnelType, final String localDetails, final String publicDetails) {
+        this(List.of(new TunnelView(tunnelType, localDetails, publicDetails)));
+    }
+
+    /**
+     * Creates the UI of tunnels exposed together. Net tunnels report their traffic to
+     * {@link #trafficSink(int)} of their position.
+     */
+    public ConsoleUi(final List<TunnelView> tunnels) {
+        this.tunnels = List.copyOf(tunnels);
+        this.inBytes = new AtomicLong[this.tunnels.size()];
+        this.outBytes = new AtomicLong[this.tunnels.size()];
+        for (var i = 0; i < this.tunnels.size(); i++) {
+            inBytes[i] = new AtomicLong();
+            outBytes[i] = new AtomicLong();
+            targetHealth.add(new ConcurrentSkipListMap<>());
+        }
+    }
+
+    /**
+     * Returns the sink counting the traffic of the tunnel at the given position.
+     */
+    public NetTrafficSink trafficSink(final int index) {
+        return new NetTrafficSink() {
+            @Override
+            public void onBytesIn(final long bytes) {
+                inBytes[index].addAndGet(Math.max(0, bytes));
+            }
+
+            @Override
+            public void onBytesOut(final long bytes) {
+                outBytes[index].addAndGet(Math.max(0, bytes));
+            }
+        };
+    }
+
+    /**
+     * Returns the sink showing the health of the local targets of the tunnel at the given position.
+     */
+    public TargetHealthSink healthSink(final int index) {
+        return (target, state, latencyMillis) ->
+            targetHealth.get(index).put(target, new TargetStatus(state, latencyMillis));
+    }
+
     /**
      * Prompts the user for registration details using the console.
      * When no API key is initialized, the user should only be asked for the email address.
@@ -133,18 +200,31 @@ public class ConsoleUi implements HttpLogSink, NetTrafficSink {
 
         clear();
 
-        out.printf("Port Buddy - Mode: %s%n", tunnelType.name().toLowerCase());
-        out.println();
-        out.printf("Local:  %s%n", localDetails);
-        out.printf("Public: %s%n", publicDetails);
-        out.println();
-        out.println("Press Ctrl+C to exit");
+        if (tunnels.size() == 1) {
+            final var tunnel = tunnels.getFirst();
+            header("Port Buddy - Mode: %s", tunnel.tunnelType().name().toLowerCase());
+            header("");
+            header("Local:  %s", tunnel.localDetails());
+            header("Public: %s", tunnel.publicDetails());
+        } else {
+            header("Port Buddy - %d tunnels", tunnels.size());
+            header("");
+            for (final var tunnel : tunnels) {
+                header("%-4s %s -> %s", tunnel.tunnelType().name().toLowerCase(), tunnel.localDetails(),
+                    tunnel.publicDetails());
+            }
+        }
+        if (startupDetails != null) {
+            header("Startup: %s", startupDetails);
+        }
+        header("");
+        header("Press Ctrl+C to exit");
         out.flush();
 
         if (config.isLogEnabled()) {
-            out.println("----------------------------------------------");
-            out.println();
-            out.println("HTTP requests log:");
+            header("----------------------------------------------");
+            header("");
+            header(hasHttpTunnel() || tunnels.size() == 1 ? "HTTP requests log:" : "Traffic:");
             out.flush();
 
             renderThread = new Thread(this::renderLoop, "port-buddy-ui");
@@ -206,19 +286,28 @@ public class ConsoleUi implements HttpLogSink, NetTrafficSink {
 
     @Override
     public void onBytesIn(final long bytes) {
-        inBytes.addAndGet(Math.max(0, bytes));
+        inBytes[0].addAndGet(Math.max(0, bytes));
     }
 
     @Override
     public void onBytesOut(final long bytes) {
-        outBytes.addAndGet(Math.max(0, bytes));
+        outBytes[0].addAndGet(Math.max(0, bytes));
+    }
+
+    private void header(final String format, final Object... args) {
+        out.println(String.format(format, args));
+        headerLines++;
+    }
+
+    private boolean hasHttpTunnel() {
+        return tunnels.stream().anyMatch(tunnel -> tunnel.tunnelType() == TunnelType.HTTP);
     }
 
     private void renderLoop() {
         final var frameDelay = Duration.ofMillis(config.getConsoleFrameDelayMs());
         while (running.get()) {
             try {
-                terminal.puts(InfoCmp.Capability.cursor_address, 9, 0);
+                terminal.puts(InfoCmp.Capability.cursor_address, headerLines, 0);
                 terminal.flush();
                 render();
 
@@ -241,7 +330,33 @@ public class ConsoleUi implements HttpLogSink, NetTrafficSink {
     }
 
     private void render() {
-        if (tunnelType == TunnelType.HTTP) {
+        for (var i = 0; i < tunnels.size(); i++) {
+            final var tunnel = tunnels.get(i);
+            if (tunnel.tunnelType() == TunnelType.HTTP) {
+                continue;
+            }
+            final var inKb = inBytes[i].get() / 1024.0;
+            final var outKb = outBytes[i].get() / 1024.0;
+            if (tunnels.size() == 1) {
+                out.printf("TCP traffic: IN %.2f KB | OUT %.2f KB%n", inKb, outKb);
+            } else {
+                out.printf("%-4s %s: IN %.2f KB | OUT %.2f KB%n", tunnel.tunnelType().name().toLowerCase(),
+                    tunnel.publicDetails(), inKb, outKb);
+            }
+        }
+        for (var i = 0; i < tunnels.size(); i++) {
+            final var tunnel = tunnels.get(i);
+            for (final var entry : targetHealth.get(i).entrySet()) {
+                terminal.puts(InfoCmp.Capability.clr_eol);
+                if (tunnels.size() == 1) {
+                    out.printf("Local %s: %s%n", entry.getKey(), describe(entry.getValue()));
+                } else {
+                    out.printf("%-4s %s -> %s: %s%n", tunnel.tunnelType().name().toLowerCase(),
+                        tunnel.publicDetails(), entry.getKey(), describe(entry.getValue()));
+                }
+            }
+        }
+        if (hasHttpTunnel()) {
 
             synchronized (httpLogs) {
                 if (httpLogs.isEmpty()) {
@@ -254,15 +369,19 @@ public class ConsoleUi implements HttpLogSink, NetTrafficSink {
                     });
                 }
             }
-        } else {
-            final var inKb = inBytes.get() / 1024.0;
-            final var outKb = outBytes.get() / 1024.0;
-            out.printf("TCP traffic: IN %.2f KB | OUT %.2f KB%n", inKb, outKb);
         }
 
         out.flush();
     }
 
+    private static String describe(final TargetStatus status) {
+        return switch (status.state()) {
+            case UP -> status.latencyMillis() >= 0 ? "up, " + status.latencyMillis() + " ms" : "up";
+            case DOWN -> "DOWN, answering 503 until it accepts connections";
+            case RECOVERING -> "accepting connections, checking with a request";
+        };
+    }
+
     private String safe(final String value) {
         return value == null ? "" : value;
     }
@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.cli.ui;
+
+public interface TargetHealthSink {
+
+    enum State {
+        UP,
+        DOWN,
+        RECOVERING
+    }
+
+    /**
+     * Reports the health of a local target of a tunnel.
+     *
+     * @param target        the local target, e.g. {@code localhost:3000}
+     * @param latencyMillis moving average of its response time, or -1 before its first response
+     */
+    void onTargetHealth(final String target, final State state, final long latencyMillis);
+}
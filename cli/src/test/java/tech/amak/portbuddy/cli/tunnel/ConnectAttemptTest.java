@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+class ConnectAttemptTest {
+
+    private final OkHttpClient client = new OkHttpClient.Builder()
+        .connectTimeout(2, TimeUnit.SECONDS)
+        .readTimeout(2, TimeUnit.SECONDS)
+        .eventListener(ConnectAttempt.LISTENER)
+        .build();
+
+    private ServerSocket server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    @Test
+    void failedToConnect_TargetRefuses_True() throws IOException {
+        final int port;
+        try (final var socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        final var request = new Request.Builder().url("http://127.0.0.1:" + port + "/");
+        final var attempt = ConnectAttempt.tag(request);
+        final var call = client.newCall(request.build());
+
+        assertThrows(IOException.class, call::execute);
+
+        assertTrue(attempt.failedToConnect(call));
+    }
+
+    @Test
+    void failedToConnect_TargetClosesAfterAccepting_False() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().start(() -> {
+            while (!server.isClosed()) {
+                try (final var socket = server.accept()) {
+                    socket.setSoLinger(true, 0);
+                } catch (final IOException ignore) {
+                    // Closed by the test
+                }
+            }
+        });
+        final var request = new Request.Builder().url("http://127.0.0.1:" + server.getLocalPort() + "/");
+        final var attempt = ConnectAttempt.tag(request);
+        final var call = client.newCall(request.build());
+
+        assertThrows(IOException.class, call::execute);
+
+        assertFalse(attempt.failedToConnect(call));
+    }
+
+    @Test
+    void failedToConnect_CancelledCall_False() {
+        final var request = new Request.Builder().url("http://127.0.0.1:1/");
+        final var attempt = ConnectAttempt.tag(request);
+        final var call = client.newCall(request.build());
+        call.cancel();
+
+        assertThrows(IOException.class, call::execute);
+
+        assertFalse(attempt.failedToConnect(call));
+    }
+}
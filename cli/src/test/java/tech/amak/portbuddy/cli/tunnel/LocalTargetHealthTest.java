@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import tech.amak.portbuddy.cli.config.ConfigurationService;
+import tech.amak.portbuddy.cli.ui.TargetHealthSink;
+
+class LocalTargetHealthTest {
+
+    private static final int THRESHOLD = ConfigurationService.INSTANCE.getConfig().getLocalFailureThreshold();
+    private static final long PROBE_WAIT_SEC =
+        ConfigurationService.INSTANCE.getConfig().getLocalProbeIntervalSec() + 10L;
+
+    private final BlockingQueue<TargetHealthSink.State> states = new LinkedBlockingQueue<>();
+    private final TargetHealthSink sink = (target, state, latencyMillis) -> states.add(state);
+    private ServerSocket server;
+    private LocalTargetHealth health;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (health != null) {
+            health.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void onFailure_ConnectFailuresUpToThreshold_OpensCircuit() throws IOException {
+        health = new LocalTargetHealth("127.0.0.1", closedPort(), sink);
+
+        for (var i = 1; i < THRESHOLD; i++) {
+            assertTrue(health.tryAcquire());
+            health.onFailure(new ConnectException("Connection refused"), true);
+        }
+        assertTrue(health.tryAcquire());
+        assertTrue(states.isEmpty());
+
+        health.onFailure(new ConnectException("Connection refused"), true);
+
+        assertEquals(TargetHealthSink.State.DOWN, states.poll());
+        assertFalse(health.tryAcquire());
+    }
+
+    @Test
+    void onFailure_NotConnectFailures_KeepCircuitClosed() throws IOException {
+        health = new LocalTargetHealth("127.0.0.1", closedPort(), sink);
+
+        for (var i = 0; i < THRESHOLD * 2; i++) {
+            health.onFailure(new SocketTimeoutException("timeout"), false);
+        }
+
+        assertTrue(health.tryAcquire());
+        assertTrue(states.isEmpty());
+    }
+
+    @Test
+    void onResponse_BetweenConnectFailures_ResetsCount() throws IOException {
+        health = new LocalTargetHealth("127.0.0.1", closedPort(), sink);
+
+        for (var i = 1; i < THRESHOLD; i++) {
+            health.onFailure(new ConnectException("Connection refused"), true);
+        }
+        health.onResponse(TimeUnit.MILLISECONDS.toNanos(5));
+        for (var i = 1; i < THRESHOLD; i++) {
+            health.onFailure(new ConnectException("Connection refused"), true);
+        }
+
+        assertTrue(health.tryAcquire());
+        assertEquals(TargetHealthSink.State.UP, states.poll());
+        assertTrue(states.isEmpty());
+    }
+
+    @Test
+    void probe_TargetAcceptsAgain_LetsSingleTrialThrough() throws Exception {
+        openAndRecover();
+
+        assertTrue(health.tryAcquire());
+        assertFalse(health.tryAcquire());
+
+        health.onResponse(TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertEquals(TargetHealthSink.State.UP, states.poll());
+        assertTrue(health.tryAcquire());
+        assertTrue(health.tryAcquire());
+    }
+
+    @Test
+    void trial_NotConnectFailure_EndsTrialWithoutOpening() throws Exception {
+        openAndRecover();
+        assertTrue(health.tryAcquire());
+
+        health.onFailure(new SocketTimeoutException("timeout"), false);
+
+        assertTrue(states.isEmpty());
+        assertTrue(health.tryAcquire());
+        assertFalse(health.tryAcquire());
+    }
+
+    @Test
+    void trial_ConnectFailure_OpensCircuitAgain() throws Exception {
+        openAndRecover();
+        assertTrue(health.tryAcquire());
+
+        health.onFailure(new ConnectException("Connection refused"), true);
+
+        assertEquals(TargetHealthSink.State.DOWN, states.poll());
+        assertFalse(health.tryAcquire());
+    }
+
+    @Test
+    void isConnectFailure_OnlyErrorsRaisedWhileConnecting() {
+        assertTrue(LocalTargetHealth.isConnectFailure(new ConnectException("Connection refused")));
+        assertTrue(LocalTargetHealth.isConnectFailure(new UnknownHostException("nowhere.invalid")));
+        assertFalse(LocalTargetHealth.isConnectFailure(new SocketTimeoutException("connect timed out")));
+        assertFalse(LocalTargetHealth.isConnectFailure(new IOException("Canceled")));
+    }
+
+    /**
+     * Opens the circuit of a target that accepts connections and waits for its probe to half-open it.
+     */
+    private void openAndRecover() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        health = new LocalTargetHealth("127.0.0.1", server.getLocalPort(), sink);
+        for (var i = 0; i < THRESHOLD; i++) {
+            health.onFailure(new ConnectException("Connection refused"), true);
+        }
+        assertEquals(TargetHealthSink.State.DOWN, states.poll());
+        assertFalse(health.tryAcquire());
+
+        assertEquals(TargetHealthSink.State.RECOVERING, states.poll(PROBE_WAIT_SEC, TimeUnit.SECONDS));
+        assertNull(states.poll());
+    }
+
+    private static int closedPort() throws IOException {
+        try (final var socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import tech.amak.portbuddy.cli.config.ConfigurationService;
+
+class LocalUpstreamsTest {
+
+    // Nothing connects to these ports, only the circuits of the instances are exercised
+    private final LocalUpstream first = new LocalUpstream("http", "127.0.0.1", 1, null);
+    private final LocalUpstream second = new LocalUpstream("http", "127.0.0.1", 2, null);
+    private final LocalUpstream third = new LocalUpstream("http", "127.0.0.1", 3, null);
+    private final LocalUpstreams upstreams = new LocalUpstreams(List.of(first, second, third));
+
+    @AfterEach
+    void tearDown() {
+        upstreams.close();
+    }
+
+    @Test
+    void constructor_NoInstances_Throws() {
+        assertThrows(IllegalArgumentException.class, () -> new LocalUpstreams(List.of()));
+    }
+
+    @Test
+    void acquire_EqualLoads_RotatesInstances() {
+        final var picked = new ArrayList<LocalUpstream>();
+        for (var i = 0; i < 6; i++) {
+            final var upstream = upstreams.acquire(Set.of());
+            picked.add(upstream);
+            upstreams.release(upstream);
+        }
+
+        assertEquals(List.of(first, second, third, first, second, third), picked);
+    }
+
+    @Test
+    void acquire_UnequalLoads_PicksFewestOutstanding() {
+        first.startRequest();
+        first.startRequest();
+        second.startRequest();
+
+        for (var i = 0; i < 3; i++) {
+            final var upstream = upstreams.acquire(Set.of());
+            assertSame(third, upstream);
+            upstreams.release(upstream);
+        }
+    }
+
+    @Test
+    void acquire_InstancesInProgress_SpreadsRequests() {
+        final var picked = new HashSet<LocalUpstream>();
+        for (var i = 0; i < 3; i++) {
+            picked.add(upstreams.acquire(Set.of()));
+        }
+
+        assertEquals(Set.of(first, second, third), picked);
+        assertEquals(1, first.outstanding());
+        assertEquals(1, second.outstanding());
+        assertEquals(1, third.outstanding());
+    }
+
+    @Test
+    void acquire_OpenCircuit_SkipsInstance() {
+        open(second);
+
+        for (var i = 0; i < 6; i++) {
+            final var upstream = upstreams.acquire(Set.of());
+            assertTrue(upstream == first || upstream == third);
+            upstreams.release(upstream);
+        }
+        assertEquals(0, second.outstanding());
+    }
+
+    @Test
+    void acquire_AllOpenOrExcluded_ReturnsNull() {
+        open(first);
+        open(third);
+
+        assertNull(upstreams.acquire(Set.of(second)));
+        assertEquals(0, first.outstanding());
+        assertEquals(0, second.outstanding());
+        assertEquals(0, third.outstanding());
+    }
+
+    @Test
+    void acquire_SingleInstance_ChecksItsCircuit() {
+        final var only = new LocalUpstreams(List.of(first));
+
+        final var upstream = only.acquire(Set.of());
+        assertSame(first, upstream);
+        only.release(upstream);
+        assertNull(only.acquire(Set.of(first)));
+
+        open(first);
+        assertNull(only.acquire(Set.of()));
+        assertEquals(0, first.outstanding());
+    }
+
+    @Test
+    void release_EndsRequestOfInstance() {
+        final var upstream = upstreams.acquire(Set.of());
+        assertEquals(1, upstream.outstanding());
+
+        upstreams.release(upstream);
+
+        assertEquals(0, upstream.outstanding());
+    }
+
+    @Test
+    void describe_ListsTargets() {
+        assertEquals("127.0.0.1:1, 127.0.0.1:2, 127.0.0.1:3", upstreams.describe());
+    }
+
+    private static void open(final LocalUpstream upstream) {
+        final var threshold = ConfigurationService.INSTANCE.getConfig().getLocalFailureThreshold();
+        for (var i = 0; i < threshold; i++) {
+            upstream.health().onFailure(new ConnectException("Connection refused"), true);
+        }
+    }
+}
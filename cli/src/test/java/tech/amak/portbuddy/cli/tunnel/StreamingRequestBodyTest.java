@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.cli.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import okio.Buffer;
+
+class StreamingRequestBodyTest {
+
+    private final AtomicInteger consumed = new AtomicInteger();
+    private final StreamingRequestBody body = new StreamingRequestBody(null, -1, 5000, consumed::addAndGet);
+
+    @Test
+    void writeTo_WritesChunksUntilEnd() throws Exception {
+        body.offer(bytes("hello "));
+        body.offer(bytes("world"));
+        body.end();
+
+        final var sink = new Buffer();
+        body.writeTo(sink);
+
+        assertEquals("hello world", sink.readUtf8());
+        assertEquals(11, consumed.get());
+    }
+
+    @Test
+    void writeTo_AbortedWhileWaiting_FailsInsteadOfEnding() throws Exception {
+        body.offer(bytes("partial"));
+        final var sink = new Buffer();
+        final var writer = CompletableFuture.runAsync(() -> {
+            try {
+                body.writeTo(sink);
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (consumed.get() == 0) {
+            Thread.onSpinWait();
+        }
+
+        body.abort();
+
+        final var error = assertThrows(Exception.class, () -> writer.get(5, TimeUnit.SECONDS));
+        assertEquals(IOException.class, error.getCause().getCause().getClass());
+        assertEquals("partial", sink.readUtf8());
+    }
+
+    @Test
+    void writeTo_AbortedBeforeStart_WritesNothing() {
+        body.offer(bytes("queued"));
+        body.end();
+        body.abort();
+
+        final var sink = new Buffer();
+        assertThrows(IOException.class, () -> body.writeTo(sink));
+        assertEquals(0, sink.size());
+        assertEquals(0, consumed.get());
+    }
+
+    private static byte[] bytes(final String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
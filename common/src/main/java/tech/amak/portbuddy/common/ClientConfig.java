@@ -39,4 +39,71 @@ public class ClientConfig {
 
     @JsonProperty("healthcheckIntervalSec")
     private int healthcheckIntervalSec = 5;
+
+    /**
+     * Maximum number of requests of an HTTP tunnel served by the local service at the same time.
+     */
+    @JsonProperty("httpMaxInFlight")
+    private int httpMaxInFlight = 64;
+
+    /**
+     * Requests of an HTTP tunnel waiting for one in flight to finish; further requests get a 503.
+     */
+    @JsonProperty("httpMaxQueuedRequests")
+    private int httpMaxQueuedRequests = 256;
+
+    /**
+     * Seconds to wait for a connection to the local service of an HTTP tunnel, also used by its probes.
+     */
+    @JsonProperty("localConnectTimeoutSec")
+    private int localConnectTimeoutSec = 5;
+
+    /**
+     * Consecutive failures to connect to the local service after which requests fail fast with a 503.
+     */
+    @JsonProperty("localFailureThreshold")
+    private int localFailureThreshold = 3;
+
+    /**
+     * Seconds between probes of a local service that requests fail fast for.
+     */
+    @JsonProperty("localProbeIntervalSec")
+    private int localProbeIntervalSec = 2;
+
+    /**
+     * Whether local socket pumps of TCP/UDP tunnels run on virtual threads.
+     */
+    @JsonProperty("virtualThreads")
+    private boolean virtualThreads = true;
+
+    /**
+     * Whether small frames of TCP/UDP tunnels are packed into batches for proxies that accept them.
+     */
+    @JsonProperty("frameBatching")
+    private boolean frameBatching = true;
+
+    /**
+     * How long frames are collected into a batch; 0 only packs frames queued while the connection is busy.
+     */
+    @JsonProperty("batchWindowMicros")
+    private int batchWindowMicros = 0;
+
+    /**
+     * Maximum number of concurrent flows of a UDP tunnel towards the local service.
+     */
+    @JsonProperty("udpMaxFlows")
+    private int udpMaxFlows = 1024;
+
+    /**
+     * Seconds without datagrams after which a UDP flow and its local channel are released.
+     */
+    @JsonProperty("udpFlowIdleTimeoutSec")
+    private int udpFlowIdleTimeoutSec = 120;
+
+    /**
+     * Whether UDP tunnels send their data in datagrams when the net proxy offers it, instead of the WebSocket.
+     * Off by default: the datagrams are encrypted and authenticated, but travel outside the TLS connection.
+     */
+    @JsonProperty("udpDatagramTransport")
+    private boolean udpDatagramTransport;
 }
@@ -16,6 +16,8 @@ package tech.amak.portbuddy.common.tunnel;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Utility to encode/decode binary WebSocket frames for TCP tunneling.
@@ -23,12 +25,186 @@ import java.nio.charset.StandardCharsets;
  * - 2 bytes: unsigned short representing the byte length of the UTF-8 encoded connectionId (N)
  * - N bytes: connectionId UTF-8 bytes
  * - R bytes: raw payload data
+ * Control frames start with the length {@link #CONTROL_MARKER}, which decoders predating them reject
+ * as an incomplete frame and therefore ignore:
+ * - 2 bytes: {@link #CONTROL_MARKER}
+ * - 1 byte: control type ({@link #WINDOW_UPDATE})
+ * - 2 bytes + N bytes: connectionId as above
+ * - 4 bytes: window increment in bytes
+ * From {@link #STREAM_ID_VERSION} on, frames address connections by a stream id the net proxy assigns
+ * instead (see {@link #encodeStream}):
+ * - varint: stream id, unsigned LEB128; 0 marks a control frame
+ * - R bytes: raw payload data
+ * Control frames:
+ * - varint: 0
+ * - 1 byte: control type ({@link #WINDOW_UPDATE} or {@link #BATCH})
+ * - WINDOW_UPDATE: varint stream id, 4 bytes window increment in bytes
+ * - BATCH: records until the end of the frame, each a varint length followed by a frame of the
+ *   stream id format, so that many small payloads share one WebSocket message
+ * Protocol versions:
+ * - 1: data frames only
+ * - 2: per-connection flow control with {@link #WINDOW_UPDATE} frames; the net proxy announces the
+ *   negotiated version in its {@link WsTunnelMessage.Type#EXPOSED} message
+ * - 3: varint stream ids, announced in {@link WsTunnelMessage.Type#OPEN} for TCP connections and
+ *   implied by the first datagram for UDP flows
+ * - 4: {@link #BATCH} frames
+ * - 5: TCP streams survive a reconnect of the client within the net proxy's grace period, see
+ *   {@link WsTunnelMessage#getResumedStreams()}
+ * - 6: UDP tunnels may carry their data frames in datagrams instead, see {@link DatagramFrame}
+ * The header of a connection's data frames never changes, so hot paths compute it once with
+ * {@link #dataHeader} and encode with {@link #encode} into pooled buffers, or read payloads right behind
+ * it. Decoding does not copy: the payload is a read-only view of the frame.
  */
 public final class BinaryWsFrame {
 
+    /**
+     * Handshake header the CLI uses to advertise the highest net tunnel protocol version it supports.
+     */
+    public static final String PROTOCOL_HEADER = "X-PortBuddy-Net-Protocol";
+
+    /**
+     * Highest protocol version implemented by this codec.
+     */
+    public static final int VERSION = 6;
+
+    /**
+     * Version spoken with peers that do not send {@link #PROTOCOL_HEADER}.
+     */
+    public static final int LEGACY_VERSION = 1;
+
+    /**
+     * First protocol version with per-connection flow control.
+     */
+    public static final int FLOW_CONTROL_VERSION = 2;
+
+    /**
+     * First protocol version addressing connections by varint stream ids.
+     */
+    public static final int STREAM_ID_VERSION = 3;
+
+    /**
+     * First protocol version accepting {@link #BATCH} frames.
+     */
+    public static final int BATCH_VERSION = 4;
+
+    /**
+     * First protocol version resuming TCP streams after a reconnect.
+     */
+    public static final int RESUME_VERSION = 5;
+
+    /**
+     * First protocol version offering UDP tunnels the {@link DatagramFrame} transport.
+     */
+    public static final int DATAGRAM_VERSION = 6;
+
+    /**
+     * Bytes each side of a connection may send before the peer grants more with {@link #WINDOW_UPDATE}.
+     */
+    public static final int INITIAL_WINDOW = 512 * 1024;
+
+    /**
+     * Connection id length value marking a control frame.
+     */
+    public static final int CONTROL_MARKER = 0xFFFF;
+
+    /**
+     * Control type granting the sender of the connection more credit.
+     */
+    public static final byte WINDOW_UPDATE = 1;
+
+    /**
+     * Control type of a frame carrying several frames of the stream id format.
+     */
+    public static final byte BATCH = 2;
+
+    /**
+     * Length of the header of a {@link #BATCH} frame.
+     */
+    public static final int BATCH_HEADER_LENGTH = 2;
+
     private BinaryWsFrame() {
     }
 
+    /**
+     * Resolves the protocol version to use with a peer that advertised the given header value.
+     *
+     * @param headerValue value of the {@link #PROTOCOL_HEADER} handshake header, may be null
+     * @return the highest version supported by both peers, at least {@link #LEGACY_VERSION}
+     */
+    public static int negotiateVersion(final String headerValue) {
+        if (headerValue == null || headerValue.isBlank()) {
+            return LEGACY_VERSION;
+        }
+        try {
+            final var requested = Integer.parseInt(headerValue.trim());
+            return Math.max(LEGACY_VERSION, Math.min(requested, VERSION));
+        } catch (final NumberFormatException e) {
+            return LEGACY_VERSION;
+        }
+    }
+
+    /**
+     * Returns the header preceding the payload in every data frame of a connection.
+     *
+     * @param connectionId the connection id, used if the connection has no stream id
+     * @param streamId     the stream id, or 0 for the connection id format
+     * @return the header bytes
+     */
+    public static byte[] dataHeader(final String connectionId, final int streamId) {
+        final ByteBuffer buffer;
+        if (streamId > 0) {
+            buffer = ByteBuffer.allocate(varintSize(streamId));
+            putVarint(buffer, streamId);
+        } else {
+            final var idBytes = connectionId.getBytes(StandardCharsets.UTF_8);
+            buffer = ByteBuffer.allocate(2 + idBytes.length);
+            buffer.putShort((short) (idBytes.length & 0xFFFF));
+            buffer.put(idBytes);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a data frame into a buffer of the pool.
+     *
+     * @param pool   the pool providing the buffer; the caller releases it once the frame was sent
+     * @param header the connection's {@link #dataHeader}
+     * @param data   the raw payload data
+     * @param offset the starting position of the data array to be included
+     * @param length the number of bytes from the data array to be included
+     * @return the frame, ready to be sent as a binary WebSocket message
+     */
+    public static ByteBuffer encode(final FrameBufferPool pool,
+                                    final byte[] header,
+                                    final byte[] data,
+                                    final int offset,
+                                    final int length) {
+        final var buffer = pool.acquire(header.length + length);
+        buffer.put(header);
+        buffer.put(data, offset, length);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a {@link #WINDOW_UPDATE} control frame.
+     *
+     * @param connectionId the connection whose sender gets more credit
+     * @param increment    number of bytes the receiver consumed since its last update
+     * @return a {@link ByteBuffer} ready to be sent as a binary WebSocket message
+     */
+    public static ByteBuffer encodeWindowUpdate(final String connectionId, final int increment) {
+        final var idBytes = connectionId.getBytes(StandardCharsets.UTF_8);
+        final var buffer = ByteBuffer.allocate(2 + 1 + 2 + idBytes.length + 4);
+        buffer.putShort((short) CONTROL_MARKER);
+        buffer.put(WINDOW_UPDATE);
+        buffer.putShort((short) (idBytes.length & 0xFFFF));
+        buffer.put(idBytes);
+        buffer.putInt(increment);
+        buffer.flip();
+        return buffer;
+    }
+
     /**
      * Encodes the given connection ID and data into a {@link ByteBuffer} following a specific binary
      * frame format. The encoded frame contains the connection ID length, the UTF-8 encoded connection ID,
@@ -54,6 +230,127 @@ public final class BinaryWsFrame {
         return buffer;
     }
 
+    /**
+     * Encodes a data frame of the stream id format.
+     *
+     * @param streamId the stream id of the connection, positive
+     * @param data     the raw payload data
+     * @param offset   the starting position of the data array to be included
+     * @param length   the number of bytes from the data array to be included
+     * @return a {@link ByteBuffer} containing the encoded frame data
+     */
+    public static ByteBuffer encodeStream(final int streamId, final byte[] data, final int offset, final int length) {
+        final var buffer = ByteBuffer.allocate(varintSize(streamId) + length);
+        putVarint(buffer, streamId);
+        buffer.put(data, offset, length);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a {@link #WINDOW_UPDATE} control frame of the stream id format.
+     *
+     * @param streamId  the stream whose sender gets more credit
+     * @param increment number of bytes the receiver consumed since its last update
+     * @return a {@link ByteBuffer} ready to be sent as a binary WebSocket message
+     */
+    public static ByteBuffer encodeStreamWindowUpdate(final int streamId, final int increment) {
+        final var buffer = ByteBuffer.allocate(1 + 1 + varintSize(streamId) + 4);
+        putVarint(buffer, 0);
+        buffer.put(WINDOW_UPDATE);
+        putVarint(buffer, streamId);
+        buffer.putInt(increment);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes a frame of the stream id format. The returned {@link Decoded} has no connection id and
+     * its data is a view of the buffer.
+     *
+     * @param buffer the binary frame
+     * @return the decoded frame, or {@code null} if the frame is malformed
+     */
+    public static Decoded decodeStream(final ByteBuffer buffer) {
+        final var streamId = getVarint(buffer);
+        if (streamId < 0) {
+            return null;
+        }
+        if (streamId > 0) {
+            return new Decoded(null, streamId, buffer.slice().asReadOnlyBuffer(), 0);
+        }
+        if (!buffer.hasRemaining() || buffer.get() != WINDOW_UPDATE) {
+            return null;
+        }
+        final var target = getVarint(buffer);
+        if (target <= 0 || buffer.remaining() != 4) {
+            return null;
+        }
+        final var increment = buffer.getInt();
+        return increment > 0 ? new Decoded(null, target, ByteBuffer.allocate(0), increment) : null;
+    }
+
+    /**
+     * Writes the header of a {@link #BATCH} frame.
+     *
+     * @param batch the buffer the batch is built in
+     */
+    public static void startBatch(final ByteBuffer batch) {
+        putVarint(batch, 0);
+        batch.put(BATCH);
+    }
+
+    /**
+     * Number of bytes a frame takes as a record of a {@link #BATCH} frame.
+     *
+     * @param frameLength length of the frame
+     * @return the record length
+     */
+    public static int batchRecordLength(final int frameLength) {
+        return varintSize(frameLength) + frameLength;
+    }
+
+    /**
+     * Appends the remaining bytes of a frame as a record to a {@link #BATCH} frame.
+     *
+     * @param batch the buffer the batch is built in
+     * @param frame the frame of the stream id format; its position is not changed
+     */
+    public static void appendBatchRecord(final ByteBuffer batch, final ByteBuffer frame) {
+        putVarint(batch, frame.remaining());
+        batch.put(frame.duplicate());
+    }
+
+    /**
+     * Whether the frame of the stream id format is a {@link #BATCH} frame.
+     */
+    public static boolean isBatch(final ByteBuffer frame) {
+        return frame.remaining() >= BATCH_HEADER_LENGTH
+               && frame.get(frame.position()) == 0
+               && frame.get(frame.position() + 1) == BATCH;
+    }
+
+    /**
+     * Splits a {@link #BATCH} frame into its records.
+     *
+     * @param frame the batch frame
+     * @return read-only views of the contained frames, or {@code null} if the batch is malformed
+     */
+    public static List<ByteBuffer> splitBatch(final ByteBuffer frame) {
+        final var buffer = frame.duplicate();
+        buffer.position(buffer.position() + BATCH_HEADER_LENGTH);
+        final var records = new ArrayList<ByteBuffer>();
+        while (buffer.hasRemaining()) {
+            final var length = getVarint(buffer);
+            if (length <= 0 || length > buffer.remaining()) {
+                return null;
+            }
+            records.add(buffer.slice(buffer.position(), length).asReadOnlyBuffer());
+            buffer.position(buffer.position() + length);
+        }
+        return records;
+    }
+
     /**
      * Encodes the given connection ID and data into a byte array following a specific binary
      * frame format. The encoded frame includes the connection ID length, the UTF-8 encoded
@@ -84,7 +381,7 @@ public final class BinaryWsFrame {
      *
      * @param buffer the {@link ByteBuffer} containing the binary frame data to decode;
      *               must have sufficient remaining bytes to represent a valid frame.
-     * @return a {@code Decoded} object containing the connection ID and data extracted from the frame,
+     * @return a {@code Decoded} object containing the connection ID and a view of the data of the frame,
      *     or {@code null} if the buffer does not contain a valid or complete frame.
      */
     public static Decoded decode(final ByteBuffer buffer) {
@@ -92,15 +389,16 @@ public final class BinaryWsFrame {
             return null;
         }
         final var length = Short.toUnsignedInt(buffer.getShort());
+        if (length == CONTROL_MARKER) {
+            return decodeControl(buffer);
+        }
         if (buffer.remaining() < length) {
             return null;
         }
         final var idBytes = new byte[length];
         buffer.get(idBytes);
         final var connectionId = new String(idBytes, StandardCharsets.UTF_8);
-        final var data = new byte[buffer.remaining()];
-        buffer.get(data);
-        return new Decoded(connectionId, data);
+        return new Decoded(connectionId, buffer.slice().asReadOnlyBuffer());
     }
 
     /**
@@ -118,17 +416,88 @@ public final class BinaryWsFrame {
         return decode(ByteBuffer.wrap(frameBytes));
     }
 
+    private static Decoded decodeControl(final ByteBuffer buffer) {
+        if (buffer.remaining() < 3 || buffer.get() != WINDOW_UPDATE) {
+            return null;
+        }
+        final var length = Short.toUnsignedInt(buffer.getShort());
+        if (buffer.remaining() != length + 4) {
+            return null;
+        }
+        final var idBytes = new byte[length];
+        buffer.get(idBytes);
+        final var increment = buffer.getInt();
+        if (increment <= 0) {
+            return null;
+        }
+        return new Decoded(new String(idBytes, StandardCharsets.UTF_8), 0, ByteBuffer.allocate(0), increment);
+    }
+
+    private static int varintSize(final int value) {
+        var size = 1;
+        var rest = value >>> 7;
+        while (rest != 0) {
+            size++;
+            rest >>>= 7;
+        }
+        return size;
+    }
+
+    private static void putVarint(final ByteBuffer buffer, final int value) {
+        var rest = value;
+        while ((rest & ~0x7F) != 0) {
+            buffer.put((byte) ((rest & 0x7F) | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    /**
+     * Reads an unsigned LEB128 int of at most 5 bytes.
+     *
+     * @return the value, or -1 if the buffer ends early or the value does not fit a positive int
+     */
+    private static int getVarint(final ByteBuffer buffer) {
+        var value = 0;
+        for (var shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final var b = buffer.get();
+            if (shift == 28 && (b & 0xF8) != 0) {
+                return -1;
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
     /**
      * A record that represents the result of decoding a binary WebSocket frame.
      * It contains a connection identifier and the corresponding payload data.
      *
      * <ul>
-     *   <li>The {@code connectionId} represents the unique identifier of the connection.
-     *   <li>The {@code data} represents the raw payload data associated with the frame.
+     *   <li>The {@code connectionId} represents the unique identifier of the connection; {@code null} in
+     *   frames of the stream id format.
+     *   <li>The {@code streamId} identifies the connection in frames of the stream id format, 0 otherwise.
+     *   <li>The {@code data} is a read-only view of the raw payload data of the frame, valid as long as
+     *   the frame buffer is not reused.
+     *   <li>The {@code windowIncrement} is positive for {@link #WINDOW_UPDATE} frames, which carry no data.
      * </ul>
      * Instances of this record are typically produced by decoding operations on binary
      * WebSocket frames, which follow a specific format.
      */
-    public record Decoded(String connectionId, byte[] data) {
+    public record Decoded(String connectionId, int streamId, ByteBuffer data, int windowIncrement) {
+
+        public Decoded(final String connectionId, final ByteBuffer data) {
+            this(connectionId, 0, data, 0);
+        }
+
+        public boolean isWindowUpdate() {
+            return windowIncrement > 0;
+        }
     }
 }
@@ -38,8 +38,19 @@ public class ControlMessage {
     @JsonProperty("ts")
     private Long ts;
 
+    /**
+     * Negotiated HTTP tunnel binary protocol version (HELLO only).
+     */
+    @JsonProperty("protocolVersion")
+    private Integer protocolVersion;
+
     public enum Type {
         PING,
-        PONG
+        PONG,
+        /**
+         * Sent by the server once the tunnel is registered to announce the negotiated
+         * {@link HttpTunnelFrame} protocol version.
+         */
+        HELLO
     }
 }
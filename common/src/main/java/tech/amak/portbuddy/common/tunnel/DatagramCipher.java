@@ -0,0 +1,216 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.common.tunnel;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption of the datagrams one side of a UDP tunnel session sends, or of those it
+ * receives, see {@link DatagramFrame}. Datagrams are sealed with AES-GCM under the key the net proxy
+ * generates for the session and sends over the TLS protected WebSocket: the payload is encrypted, and
+ * the header with its type, token and sequence number is authenticated along with it. Each direction
+ * numbers its datagrams from 1 and the nonce is the direction followed by the sequence number, so no
+ * nonce repeats under a key. Received datagrams that fail authentication or whose sequence number was
+ * already seen or is older than the last {@link #REPLAY_WINDOW} are dropped; reordering within the
+ * window is accepted.
+ */
+public final class DatagramCipher {
+
+    /**
+     * Length of a session key in bytes (AES-256).
+     */
+    public static final int KEY_LENGTH = 32;
+
+    /**
+     * Length of the authentication tag following the encrypted payload.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * Number of sequence numbers below the highest one received that are still accepted once.
+     */
+    public static final int REPLAY_WINDOW = 64;
+
+    /**
+     * Direction of the datagrams the client sends.
+     */
+    public static final int CLIENT_TO_PROXY = 1;
+
+    /**
+     * Direction of the datagrams the net proxy sends.
+     */
+    public static final int PROXY_TO_CLIENT = 2;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int NONCE_LENGTH = 12;
+
+    private final SecretKeySpec key;
+    private final int direction;
+    private final boolean sealing;
+    private final Cipher cipher;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    // Guarded by this. Sealing: the last sequence number used. Opening: the highest one authenticated,
+    // and a bit per sequence number of the window below it, bit 0 being the highest itself
+    private long sequence;
+    private long seen;
+
+    private DatagramCipher(final byte[] key, final int direction, final boolean sealing) {
+        if (key.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("Datagram keys have " + KEY_LENGTH + " bytes, got " + key.length);
+        }
+        this.key = new SecretKeySpec(key, "AES");
+        this.direction = direction;
+        this.sealing = sealing;
+        try {
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    }
+
+    /**
+     * Generates a session key.
+     */
+    public static byte[] newKey() {
+        final var key = new byte[KEY_LENGTH];
+        RANDOM.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Creates the cipher sealing the datagrams sent in the given direction.
+     *
+     * @param key       the session key
+     * @param direction {@link #CLIENT_TO_PROXY} or {@link #PROXY_TO_CLIENT}
+     * @return the cipher
+     */
+    public static DatagramCipher sealing(final byte[] key, final int direction) {
+        return new DatagramCipher(key, direction, true);
+    }
+
+    /**
+     * Creates the cipher opening the datagrams received from the given direction.
+     *
+     * @param key       the session key
+     * @param direction {@link #CLIENT_TO_PROXY} or {@link #PROXY_TO_CLIENT}
+     * @return the cipher
+     */
+    public static DatagramCipher opening(final byte[] key, final int direction) {
+        return new DatagramCipher(key, direction, false);
+    }
+
+    /**
+     * Writes a datagram: its header with the next sequence number, the encrypted payload and the tag.
+     *
+     * @param type     the datagram type
+     * @param token    the session token
+     * @param payload  the payload, consumed; empty for control datagrams
+     * @param datagram the buffer written at its position, with room for the payload and
+     *                 {@link DatagramFrame#OVERHEAD}
+     */
+    public synchronized void seal(final byte type,
+                                  final UUID token,
+                                  final ByteBuffer payload,
+                                  final ByteBuffer datagram) {
+        if (!sealing) {
+            throw new IllegalStateException("Cipher opens datagrams");
+        }
+        if (sequence == Long.MAX_VALUE) {
+            // Out of nonces; the session key must not be used any further
+            throw new IllegalStateException("Datagram sequence numbers exhausted");
+        }
+        final var start = datagram.position();
+        DatagramFrame.putHeader(datagram, type, token, ++sequence);
+        final var header = datagram.duplicate().limit(datagram.position()).position(start);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce(sequence)));
+            cipher.updateAAD(header);
+            cipher.doFinal(payload, datagram);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to seal datagram", e);
+        }
+    }
+
+    /**
+     * Authenticates and decrypts a received datagram.
+     *
+     * @param datagram the datagram from its position to its limit, not changed
+     * @param payload  receives the decrypted payload, flipped for reading
+     * @return {@code false} if the datagram was forged, corrupted or replayed; the payload is then empty
+     */
+    public synchronized boolean open(final ByteBuffer datagram, final ByteBuffer payload) {
+        if (sealing) {
+            throw new IllegalStateException("Cipher seals datagrams");
+        }
+        payload.clear();
+        final var start = datagram.position();
+        if (datagram.remaining() < DatagramFrame.OVERHEAD) {
+            payload.flip();
+            return false;
+        }
+        final var received = DatagramFrame.sequence(datagram);
+        if (!isFresh(received)) {
+            payload.flip();
+            return false;
+        }
+        final var header = datagram.duplicate().limit(start + DatagramFrame.HEADER_LENGTH);
+        final var body = datagram.duplicate().position(start + DatagramFrame.HEADER_LENGTH);
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce(received)));
+            cipher.updateAAD(header);
+            cipher.doFinal(body, payload);
+        } catch (final GeneralSecurityException e) {
+            payload.clear().flip();
+            return false;
+        }
+        payload.flip();
+        markSeen(received);
+        return true;
+    }
+
+    private byte[] nonce(final long sequenceNumber) {
+        ByteBuffer.wrap(nonce).putInt(direction).putLong(sequenceNumber);
+        return nonce;
+    }
+
+    private boolean isFresh(final long received) {
+        if (received <= 0) {
+            return false;
+        }
+        if (received > sequence) {
+            return true;
+        }
+        final var age = sequence - received;
+        return age < REPLAY_WINDOW && (seen & (1L << age)) == 0;
+    }
+
+    private void markSeen(final long received) {
+        if (received > sequence) {
+            final var shift = received - sequence;
+            seen = shift >= REPLAY_WINDOW ? 1 : (seen << shift) | 1;
+            sequence = received;
+        } else {
+            seen |= 1L << (sequence - received);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.common.tunnel;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Utility to encode/decode the datagrams UDP tunnels exchange with the net proxy from
+ * {@link BinaryWsFrame#DATAGRAM_VERSION} on, so that a lost packet delays only its own datagram
+ * instead of every flow queued behind it on the WebSocket. The proxy announces its datagram port, a token
+ * and a key for the session in the {@link WsTunnelMessage.Type#EXPOSED} message. Every datagram carries
+ * the token and a sequence number, and is sealed with the key, see {@link DatagramCipher}: its payload is
+ * encrypted, and datagrams that fail authentication or replay an earlier one are dropped. The proxy
+ * therefore follows the client to a new address only with a datagram that only the client could have sent.
+ * Datagram format (big-endian):
+ * - 1 byte: type ({@link #HELLO}, {@link #HELLO_OK} or {@link #DATA})
+ * - 16 bytes: session token
+ * - 8 bytes: sequence number of the sending direction, from 1
+ * - encrypted payload, for DATA a data frame of the stream id format, see {@link BinaryWsFrame#encodeStream};
+ *   empty otherwise
+ * - 16 bytes: AES-GCM authentication tag over the header and the payload
+ * The client sends HELLO until the proxy answers with HELLO_OK and keeps sending it as a keepalive.
+ * Either side uses the datagram path only while it heard from the other side recently, and falls back
+ * to the WebSocket otherwise, e.g. when a firewall drops UDP.
+ */
+public final class DatagramFrame {
+
+    /**
+     * Client to proxy: opens or keeps the datagram path of the session.
+     */
+    public static final byte HELLO = 1;
+
+    /**
+     * Proxy to client: answers a {@link #HELLO}.
+     */
+    public static final byte HELLO_OK = 2;
+
+    /**
+     * Either direction: a data frame of a UDP flow.
+     */
+    public static final byte DATA = 3;
+
+    /**
+     * Length of the header preceding the encrypted payload.
+     */
+    public static final int HEADER_LENGTH = 1 + 16 + 8;
+
+    /**
+     * Bytes a datagram takes in addition to its payload.
+     */
+    public static final int OVERHEAD = HEADER_LENGTH + DatagramCipher.TAG_LENGTH;
+
+    private DatagramFrame() {
+    }
+
+    /**
+     * Writes the header of a datagram.
+     *
+     * @param buffer   the buffer, written at its position
+     * @param type     the datagram type
+     * @param token    the session token
+     * @param sequence the sequence number of the datagram
+     */
+    public static void putHeader(final ByteBuffer buffer, final byte type, final UUID token, final long sequence) {
+        buffer.put(type);
+        buffer.putLong(token.getMostSignificantBits());
+        buffer.putLong(token.getLeastSignificantBits());
+        buffer.putLong(sequence);
+    }
+
+    /**
+     * Returns the type of a received datagram.
+     *
+     * @param datagram the datagram from its start to its end
+     * @return the type, or 0 if the datagram is too short to be valid
+     */
+    public static byte type(final ByteBuffer datagram) {
+        return datagram.remaining() < OVERHEAD ? 0 : datagram.get(datagram.position());
+    }
+
+    /**
+     * Returns the session token of a received datagram, whose {@link #type} was valid.
+     */
+    public static UUID token(final ByteBuffer datagram) {
+        final var start = datagram.position();
+        return new UUID(datagram.getLong(start + 1), datagram.getLong(start + 9));
+    }
+
+    /**
+     * Returns the sequence number of a received datagram, whose {@link #type} was valid.
+     */
+    public static long sequence(final ByteBuffer datagram) {
+        return datagram.getLong(datagram.position() + 17);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.common.tunnel;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Credit based flow control state of one tunneled connection, shared by both directions.
+ * The sending side may send while it has credit, starting with the window size; the receiving side
+ * reports delivered bytes and grants them back with {@link BinaryWsFrame#WINDOW_UPDATE} frames once
+ * half a window has been consumed. Readers check for credit before every read, so a connection may
+ * overshoot its window by at most one read buffer.
+ */
+public final class FlowWindow {
+
+    private final int size;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition credited = lock.newCondition();
+    private long credit;
+    private long delivered;
+    private boolean closed;
+
+    /**
+     * Creates the window.
+     *
+     * @param size initial credit of the sender and the receive window of the receiver, in bytes
+     */
+    public FlowWindow(final int size) {
+        this.size = size;
+        this.credit = size;
+    }
+
+    /**
+     * Takes credit for bytes that were just sent.
+     *
+     * @param bytes number of bytes sent
+     * @return whether credit is left for the next read
+     */
+    public boolean acquire(final int bytes) {
+        lock.lock();
+        try {
+            credit -= bytes;
+            return credit > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasCredit() {
+        lock.lock();
+        try {
+            return credit > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the peer granted credit or the window is closed.
+     *
+     * @return {@code false} if the window was closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitCredit() throws InterruptedException {
+        lock.lock();
+        try {
+            while (credit <= 0 && !closed) {
+                credited.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds credit granted by the peer.
+     *
+     * @param increment the increment of a {@link BinaryWsFrame#WINDOW_UPDATE} frame
+     * @return whether credit is available afterwards
+     */
+    public boolean grant(final int increment) {
+        lock.lock();
+        try {
+            credit += increment;
+            if (credit > 0) {
+                credited.signalAll();
+            }
+            return credit > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records bytes the receiving side delivered to its socket.
+     *
+     * @param bytes number of bytes delivered
+     * @return the increment to grant to the peer now, or 0 if less than half a window is pending
+     */
+    public int delivered(final int bytes) {
+        lock.lock();
+        try {
+            delivered += bytes;
+            if (delivered < size / 2) {
+                return 0;
+            }
+            final var increment = (int) delivered;
+            delivered = 0;
+            return increment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Restores the initial credit and forgets delivered bytes not yet granted, e.g. once a stream resumed
+     * on a new tunnel connection where window updates in flight on the old one were lost.
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            credit = size;
+            delivered = 0;
+            credited.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up readers waiting for credit; they stop reading.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            credited.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.common.tunnel;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of equally sized frame buffers, so that encoding a frame does not allocate.
+ * Requests larger than the buffer size get a one-off buffer, which {@link #release} ignores, as it does
+ * buffers beyond the pool's capacity.
+ */
+public final class FrameBufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Creates an empty pool; buffers are allocated on demand.
+     *
+     * @param bufferSize size of the pooled buffers
+     * @param maxPooled  maximum number of idle buffers kept
+     * @param direct     whether to allocate direct buffers
+     */
+    public FrameBufferPool(final int bufferSize, final int maxPooled, final boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity.
+     *
+     * @param capacity the required capacity
+     * @return a pooled buffer, or a new one if the capacity exceeds the buffer size
+     */
+    public ByteBuffer acquire(final int capacity) {
+        if (capacity > bufferSize) {
+            return allocate(capacity);
+        }
+        final var buffer = free.poll();
+        if (buffer == null) {
+            return allocate(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer.clear();
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire} to the pool. The caller must not use it afterwards.
+     *
+     * @param buffer the buffer
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.add(buffer);
+    }
+
+    private ByteBuffer allocate(final int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
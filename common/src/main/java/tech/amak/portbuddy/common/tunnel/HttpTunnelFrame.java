@@ -0,0 +1,318 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.common.tunnel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Utility to encode/decode binary WebSocket frames carrying HTTP tunnel messages.
+ * Replaces JSON {@link HttpTunnelMessage} text frames with base64 bodies on the HTTP tunnel
+ * when both peers support it (see {@link #PROTOCOL_HEADER}).
+ * Frame format (big-endian):
+ * - 1 byte: protocol version
+ * - 1 byte: frame type
+ * - string: message id
+ * - type specific header block (see {@link #encode(HttpTunnelMessage)})
+ * - R bytes: raw body data
+ * Strings are encoded as a 2-byte unsigned length followed by UTF-8 bytes; the length
+ * {@code 0xFFFF} denotes {@code null}.
+ * A single binary version is defined on top of the JSON messages: request bodies may be streamed
+ * (REQUEST_HEAD, REQUEST_BODY, REQUEST_END) against REQUEST_BODY_ACK credit, and responses may be
+ * streamed (RESPONSE_HEAD, RESPONSE_BODY, RESPONSE_END) with at most {@link #RESPONSE_BODY_WINDOW}
+ * body bytes of a request unacknowledged by RESPONSE_BODY_ACK; REQUEST_CANCEL stops a request and
+ * RESPONSE_ABORT ends a streamed response that failed half-way. The server announces the negotiated
+ * version with a {@link ControlMessage.Type#HELLO} message.
+ */
+public final class HttpTunnelFrame {
+
+    /**
+     * Handshake header the CLI uses to advertise the highest binary protocol version it supports.
+     * Clients that do not send it keep receiving JSON text messages.
+     */
+    public static final String PROTOCOL_HEADER = "X-PortBuddy-Tunnel-Protocol";
+
+    /**
+     * Binary protocol version implemented by this codec.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Streamed response body bytes of a request the CLI may send before the server acknowledged them.
+     */
+    public static final int RESPONSE_BODY_WINDOW = 1024 * 1024;
+
+    /**
+     * Version value meaning "no binary support": JSON text messages are used.
+     */
+    public static final int JSON = 0;
+
+    private static final int NULL_STRING = 0xFFFF;
+
+    private HttpTunnelFrame() {
+    }
+
+    /**
+     * Resolves the protocol version to use with a peer that advertised the given header value.
+     *
+     * @param headerValue value of the {@link #PROTOCOL_HEADER} handshake header, may be null
+     * @return the highest version supported by both peers, or {@link #JSON} if the peer does not
+     *     support binary frames
+     */
+    public static int negotiateVersion(final String headerValue) {
+        if (headerValue == null || headerValue.isBlank()) {
+            return JSON;
+        }
+        try {
+            final var requested = Integer.parseInt(headerValue.trim());
+            return Math.max(JSON, Math.min(requested, VERSION));
+        } catch (final NumberFormatException e) {
+            return JSON;
+        }
+    }
+
+    /**
+     * Encodes the given HTTP tunnel message into a binary frame.
+     * Header blocks per type:
+     * - REQUEST, REQUEST_HEAD: method, path, query, body content type, headers
+     * - RESPONSE, RESPONSE_HEAD: status (2 bytes, 0 for none), headers
+     * - REQUEST_BODY_ACK, RESPONSE_BODY_ACK: credit (4 bytes)
+     * - REQUEST_BODY, REQUEST_END, RESPONSE_BODY, RESPONSE_END, REQUEST_CANCEL, RESPONSE_ABORT: none
+     * The raw {@link HttpTunnelMessage#getBody()} bytes follow the header block.
+     *
+     * @param message the message to encode; its type must be set
+     * @return a {@link ByteBuffer} ready to be sent as a binary WebSocket message
+     */
+    public static ByteBuffer encode(final HttpTunnelMessage message) {
+        final var type = message.getType();
+        if (type == null) {
+            throw new IllegalArgumentException("Message type is required");
+        }
+        final var frameType = FrameType.of(type);
+        final var header = new ByteArrayOutputStream(frameType.hasHeaders ? 256 : 64);
+        final var out = new DataOutputStream(header);
+        try {
+            out.writeByte(VERSION);
+            out.writeByte(frameType.code);
+            writeString(out, message.getId());
+            switch (type) {
+                case REQUEST, REQUEST_HEAD -> {
+                    writeString(out, message.getMethod());
+                    writeString(out, message.getPath());
+                    writeString(out, message.getQuery());
+                    writeString(out, message.getBodyContentType());
+                    writeHeaders(out, message.getHeaders());
+                }
+                case RESPONSE, RESPONSE_HEAD -> {
+                    final var status = message.getStatus();
+                    out.writeShort(status == null ? 0 : status);
+                    writeHeaders(out, message.getRespHeaders());
+                }
+                case REQUEST_BODY_ACK, RESPONSE_BODY_ACK -> out.writeInt(message.getCredit() == null ? 0 : message.getCredit());
+                default -> {
+                    // Body, end and cancel frames have no header block
+                }
+            }
+        } catch (final IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new UncheckedIOException(e);
+        }
+
+        final var body = message.getBody();
+        final var buffer = ByteBuffer.allocate(header.size() + (body == null ? 0 : body.length));
+        buffer.put(header.toByteArray());
+        if (body != null) {
+            buffer.put(body);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes a binary frame from the provided {@link ByteBuffer} into an {@link HttpTunnelMessage}.
+     * The body (if any) is available via {@link HttpTunnelMessage#getBody()}; base64 fields stay null.
+     *
+     * @param buffer the buffer containing a complete frame
+     * @return the decoded message, or {@code null} if the frame is malformed or uses an
+     *     unsupported version or type
+     */
+    public static HttpTunnelMessage decode(final ByteBuffer buffer) {
+        try {
+            final var version = Byte.toUnsignedInt(buffer.get());
+            if (version != VERSION) {
+                return null;
+            }
+            final var frameType = FrameType.of(buffer.get());
+            if (frameType == null) {
+                return null;
+            }
+            final var message = new HttpTunnelMessage();
+            message.setType(frameType.type);
+            message.setId(getString(buffer));
+            switch (frameType.type) {
+                case REQUEST, REQUEST_HEAD -> {
+                    message.setMethod(getString(buffer));
+                    message.setPath(getString(buffer));
+                    message.setQuery(getString(buffer));
+                    message.setBodyContentType(getString(buffer));
+                    message.setHeaders(getHeaders(buffer));
+                }
+                case RESPONSE, RESPONSE_HEAD -> {
+                    final var status = Short.toUnsignedInt(buffer.getShort());
+                    message.setStatus(status == 0 ? null : status);
+                    message.setRespHeaders(getHeaders(buffer));
+                }
+                case REQUEST_BODY_ACK, RESPONSE_BODY_ACK -> message.setCredit(buffer.getInt());
+                default -> {
+                    // Body, end and cancel frames have no header block
+                }
+            }
+            if (buffer.hasRemaining()) {
+                final var body = new byte[buffer.remaining()];
+                buffer.get(body);
+                message.setBody(body);
+            }
+            return message;
+        } catch (final BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a binary frame from the provided byte array.
+     *
+     * @param frameBytes the byte array containing a complete frame
+     * @return the decoded message, or {@code null} if the frame is malformed
+     * @see #decode(ByteBuffer)
+     */
+    public static HttpTunnelMessage decode(final byte[] frameBytes) {
+        return decode(ByteBuffer.wrap(frameBytes));
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeShort(NULL_STRING);
+            return;
+        }
+        final var bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NULL_STRING) {
+            throw new IllegalArgumentException("String too long for HTTP tunnel frame: " + bytes.length);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final var length = Short.toUnsignedInt(buffer.getShort());
+        if (length == NULL_STRING) {
+            return null;
+        }
+        final var bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeHeaders(final DataOutputStream out,
+                                     final Map<String, List<String>> headers) throws IOException {
+        if (headers == null) {
+            out.writeShort(0);
+            return;
+        }
+        final var entries = headers.entrySet().stream()
+            .filter(header -> header.getKey() != null && header.getValue() != null)
+            .toList();
+        out.writeShort(entries.size());
+        for (final var header : entries) {
+            writeString(out, header.getKey());
+            final var values = header.getValue().stream()
+                .filter(Objects::nonNull)
+                .toList();
+            out.writeShort(values.size());
+            for (final var value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static Map<String, List<String>> getHeaders(final ByteBuffer buffer) {
+        final var count = Short.toUnsignedInt(buffer.getShort());
+        final var headers = new LinkedHashMap<String, List<String>>(count * 2);
+        for (var i = 0; i < count; i++) {
+            final var name = getString(buffer);
+            final var valuesCount = Short.toUnsignedInt(buffer.getShort());
+            final var values = new ArrayList<String>(valuesCount);
+            for (var j = 0; j < valuesCount; j++) {
+                values.add(getString(buffer));
+            }
+            if (name != null) {
+                headers.put(name, values);
+            }
+        }
+        return headers;
+    }
+
+    private enum FrameType {
+        REQUEST(HttpTunnelMessage.Type.REQUEST, 1, true),
+        RESPONSE(HttpTunnelMessage.Type.RESPONSE, 2, true),
+        REQUEST_HEAD(HttpTunnelMessage.Type.REQUEST_HEAD, 3, true),
+        REQUEST_BODY(HttpTunnelMessage.Type.REQUEST_BODY, 4, false),
+        REQUEST_END(HttpTunnelMessage.Type.REQUEST_END, 5, false),
+        REQUEST_BODY_ACK(HttpTunnelMessage.Type.REQUEST_BODY_ACK, 6, false),
+        RESPONSE_HEAD(HttpTunnelMessage.Type.RESPONSE_HEAD, 7, true),
+        RESPONSE_BODY(HttpTunnelMessage.Type.RESPONSE_BODY, 8, false),
+        RESPONSE_END(HttpTunnelMessage.Type.RESPONSE_END, 9, false),
+        REQUEST_CANCEL(HttpTunnelMessage.Type.REQUEST_CANCEL, 10, false),
+        RESPONSE_BODY_ACK(HttpTunnelMessage.Type.RESPONSE_BODY_ACK, 11, false),
+        RESPONSE_ABORT(HttpTunnelMessage.Type.RESPONSE_ABORT, 12, false);
+
+        private final HttpTunnelMessage.Type type;
+        private final byte code;
+        private final boolean hasHeaders;
+
+        FrameType(final HttpTunnelMessage.Type type, final int code, final boolean hasHeaders) {
+            this.type = type;
+            this.code = (byte) code;
+            this.hasHeaders = hasHeaders;
+        }
+
+        static FrameType of(final HttpTunnelMessage.Type type) {
+            for (final var frameType : values()) {
+                if (frameType.type == type) {
+                    return frameType;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported message type: " + type);
+        }
+
+        static FrameType of(final byte code) {
+            for (final var frameType : values()) {
+                if (frameType.code == code) {
+                    return frameType;
+                }
+            }
+            return null;
+        }
+    }
+}
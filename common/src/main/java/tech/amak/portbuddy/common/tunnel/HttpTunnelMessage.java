@@ -17,6 +17,7 @@ package tech.amak.portbuddy.common.tunnel;
 import java.util.List;
 import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
@@ -24,7 +25,8 @@ import lombok.Data;
 
 /**
  * Envelope for HTTP tunnel messages exchanged over WebSocket between server and CLI.
- * To keep it simple, messages are whole-request/whole-response with base64 bodies.
+ * To keep it simple, messages are whole-request/whole-response. In JSON form bodies are
+ * base64 encoded; peers that negotiated {@link HttpTunnelFrame} exchange raw bodies instead.
  */
 @Data
 @JsonInclude(JsonInclude.Include.NON_NULL)
@@ -82,8 +84,68 @@ public class HttpTunnelMessage {
     @JsonProperty("respBodyB64")
     private String respBodyB64;
 
+    /**
+     * Raw request or response body as carried by {@link HttpTunnelFrame}. Never serialized to JSON.
+     */
+    @JsonIgnore
+    private byte[] body;
+
+    /**
+     * Number of streamed body bytes consumed by the receiver (REQUEST_BODY_ACK and RESPONSE_BODY_ACK only).
+     */
+    @JsonIgnore
+    private Integer credit;
+
     public enum Type {
         REQUEST,
-        RESPONSE
+        RESPONSE,
+        /**
+         * Request line and headers; the body follows as {@link #REQUEST_BODY} chunks terminated
+         * by {@link #REQUEST_END}. Binary protocol only.
+         */
+        REQUEST_HEAD,
+        /**
+         * A chunk of a streamed request body. Binary protocol only.
+         */
+        REQUEST_BODY,
+        /**
+         * End of a streamed request body. Binary protocol only.
+         */
+        REQUEST_END,
+        /**
+         * Sent by the CLI once streamed request body bytes were handed to the local service,
+         * granting the server credit to send more. Binary protocol only.
+         */
+        REQUEST_BODY_ACK,
+        /**
+         * Response status and headers; the body follows as {@link #RESPONSE_BODY} chunks
+         * terminated by {@link #RESPONSE_END}. Binary protocol only.
+         */
+        RESPONSE_HEAD,
+        /**
+         * A chunk of a streamed response body, sent as soon as it was read from the local service.
+         * Binary protocol only.
+         */
+        RESPONSE_BODY,
+        /**
+         * End of a streamed response body. Binary protocol only.
+         */
+        RESPONSE_END,
+        /**
+         * Sent by the server when the public client went away or the request timed out, so the CLI
+         * can stop processing the request. Binary protocol only.
+         */
+        REQUEST_CANCEL,
+        /**
+         * Sent by the server once streamed response body bytes were handed to the public client,
+         * granting the CLI credit to send more. Binary protocol only.
+         */
+        RESPONSE_BODY_ACK,
+        /**
+         * Sent by the CLI instead of {@link #RESPONSE_END} when the local service failed after the
+         * response head went out, so the public client sees a truncated response rather than a
+         * complete one. Binary protocol only.
+         */
+        RESPONSE_ABORT
     }
 }
@@ -14,12 +14,14 @@
 
 package tech.amak.portbuddy.common.tunnel;
 
+import java.util.List;
 import java.util.Map;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import lombok.Data;
+import lombok.ToString;
 
 /**
  * Envelope for WebSocket tunneling over the existing control WebSocket between server and CLI.
@@ -40,6 +42,13 @@ public class WsTunnelMessage {
     @JsonProperty("connectionId")
     private String connectionId;
 
+    /**
+     * Stream id addressing the connection in binary frames, set on OPEN by net proxies speaking
+     * {@link BinaryWsFrame#STREAM_ID_VERSION}.
+     */
+    @JsonProperty("streamId")
+    private Integer streamId;
+
     /**
      * Optional request/response id alignment if needed.
      */
@@ -93,4 +102,56 @@ public class WsTunnelMessage {
 
     @JsonProperty("publicPort")
     private Integer publicPort;
+
+    /**
+     * Net tunnel protocol version negotiated by the net proxy, see {@link BinaryWsFrame#PROTOCOL_HEADER}.
+     * Absent from EXPOSED messages of proxies that only speak {@link BinaryWsFrame#LEGACY_VERSION}.
+     */
+    @JsonProperty("protocolVersion")
+    private Integer protocolVersion;
+
+    /**
+     * TCP streams the net proxy kept while the client was disconnected, sent in EXPOSED to clients
+     * reconnecting with {@link BinaryWsFrame#RESUME_VERSION}. The client answers each stream it can
+     * continue with OPEN_OK carrying {@link #receivedBytes}, and with CLOSE otherwise.
+     */
+    @JsonProperty("resumedStreams")
+    private List<ResumedStream> resumedStreams;
+
+    /**
+     * Payload bytes of the connection received so far, sent in OPEN_OK for a resumed stream.
+     */
+    @JsonProperty("receivedBytes")
+    private Long receivedBytes;
+
+    /**
+     * UDP port of the net proxy's datagram transport, sent in EXPOSED for UDP tunnels of clients speaking
+     * {@link BinaryWsFrame#DATAGRAM_VERSION} if the proxy offers it, see {@link DatagramFrame}.
+     */
+    @JsonProperty("datagramPort")
+    private Integer datagramPort;
+
+    /**
+     * Token identifying the session in the datagrams, sent along with {@link #datagramPort}.
+     */
+    @JsonProperty("datagramToken")
+    private String datagramToken;
+
+    /**
+     * Base64 encoded key sealing the session's datagrams, sent along with {@link #datagramPort}; see
+     * {@link DatagramCipher}.
+     */
+    @JsonProperty("datagramKey")
+    @ToString.Exclude
+    private String datagramKey;
+
+    /**
+     * A TCP stream kept by the net proxy.
+     *
+     * @param connectionId  connection id of the stream
+     * @param streamId      stream id of the stream
+     * @param receivedBytes payload bytes the proxy received from the client on this stream
+     */
+    public record ResumedStream(String connectionId, Integer streamId, long receivedBytes) {
+    }
 }
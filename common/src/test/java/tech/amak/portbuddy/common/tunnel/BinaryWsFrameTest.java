@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.common.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+class BinaryWsFrameTest {
+
+    private static final byte[] PAYLOAD = "payload".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void encodeStream_VarintBoundaries_RoundTrip() {
+        final int[][] idsAndHeaderLengths = {
+            {1, 1}, {127, 1}, {128, 2}, {16_383, 2}, {16_384, 3}, {2_097_151, 3}, {2_097_152, 4},
+            {268_435_455, 4}, {268_435_456, 5}, {Integer.MAX_VALUE, 5}
+        };
+        for (final var idAndHeaderLength : idsAndHeaderLengths) {
+            final var streamId = idAndHeaderLength[0];
+            assertEquals(idAndHeaderLength[1], BinaryWsFrame.dataHeader(null, streamId).length, "id " + streamId);
+
+            final var frame = BinaryWsFrame.encodeStream(streamId, PAYLOAD, 0, PAYLOAD.length);
+            assertEquals(idAndHeaderLength[1] + PAYLOAD.length, frame.remaining());
+
+            final var decoded = BinaryWsFrame.decodeStream(frame);
+            assertEquals(streamId, decoded.streamId());
+            assertFalse(decoded.isWindowUpdate());
+            assertEquals(ByteBuffer.wrap(PAYLOAD), decoded.data());
+        }
+    }
+
+    @Test
+    void encode_PooledBuffer_SameBytesAsEncodeStream() {
+        final var pool = new FrameBufferPool(64, 4, false);
+
+        final var frame = BinaryWsFrame.encode(pool, BinaryWsFrame.dataHeader(null, 300), PAYLOAD, 2, 4);
+
+        assertEquals(BinaryWsFrame.encodeStream(300, PAYLOAD, 2, 4), frame);
+        assertEquals(64, frame.capacity());
+    }
+
+    @Test
+    void decodeStream_DataIsReadOnlyViewOfFrame() {
+        final var frame = BinaryWsFrame.encodeStream(5, PAYLOAD, 0, PAYLOAD.length);
+
+        final var data = BinaryWsFrame.decodeStream(frame).data();
+
+        assertTrue(data.isReadOnly());
+        assertThrows(ReadOnlyBufferException.class, () -> data.put(0, (byte) 1));
+        frame.put(1, (byte) 'P');
+        assertEquals('P', data.get(0));
+    }
+
+    @Test
+    void decodeStream_MalformedVarint_ReturnsNull() {
+        // Ends within the varint
+        assertNull(BinaryWsFrame.decodeStream(bytes(0x80)));
+        assertNull(BinaryWsFrame.decodeStream(bytes()));
+        // Larger than Integer.MAX_VALUE
+        assertNull(BinaryWsFrame.decodeStream(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0x0F)));
+        // More than five bytes
+        assertNull(BinaryWsFrame.decodeStream(bytes(0x81, 0x80, 0x80, 0x80, 0x80, 0x00)));
+    }
+
+    @Test
+    void encodeStreamWindowUpdate_VarintBoundaries_RoundTrip() {
+        for (final var streamId : new int[] {1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE}) {
+            final var decoded = BinaryWsFrame.decodeStream(BinaryWsFrame.encodeStreamWindowUpdate(streamId, 65_536));
+
+            assertTrue(decoded.isWindowUpdate());
+            assertEquals(streamId, decoded.streamId());
+            assertEquals(65_536, decoded.windowIncrement());
+            assertFalse(decoded.data().hasRemaining());
+        }
+    }
+
+    @Test
+    void decodeStream_MalformedWindowUpdate_ReturnsNull() {
+        final var valid = BinaryWsFrame.encodeStreamWindowUpdate(1, 10);
+
+        // Truncated increment
+        assertNull(BinaryWsFrame.decodeStream(valid.duplicate().limit(valid.limit() - 1)));
+        // Trailing bytes
+        assertNull(BinaryWsFrame.decodeStream(ByteBuffer.allocate(valid.remaining() + 1).put(valid.duplicate())
+            .put((byte) 0).flip()));
+        // Increment not positive
+        assertNull(BinaryWsFrame.decodeStream(BinaryWsFrame.encodeStreamWindowUpdate(1, 0)));
+        assertNull(BinaryWsFrame.decodeStream(BinaryWsFrame.encodeStreamWindowUpdate(1, -1)));
+        // Stream id 0 or missing
+        assertNull(BinaryWsFrame.decodeStream(bytes(0, BinaryWsFrame.WINDOW_UPDATE, 0, 0, 0, 0, 1)));
+        assertNull(BinaryWsFrame.decodeStream(bytes(0, BinaryWsFrame.WINDOW_UPDATE)));
+        // Unknown or missing control type
+        assertNull(BinaryWsFrame.decodeStream(bytes(0, 9, 1, 0, 0, 0, 1)));
+        assertNull(BinaryWsFrame.decodeStream(bytes(0)));
+    }
+
+    @Test
+    void encodeToArray_ConnectionIdFormat_RoundTrip() {
+        final var frame = BinaryWsFrame.encodeToArray("conn-ü", PAYLOAD, 1, 3);
+
+        final var decoded = BinaryWsFrame.decode(frame);
+
+        assertEquals("conn-ü", decoded.connectionId());
+        assertEquals(0, decoded.streamId());
+        assertEquals(ByteBuffer.wrap(PAYLOAD, 1, 3), decoded.data());
+        assertTrue(decoded.data().isReadOnly());
+    }
+
+    @Test
+    void decode_TruncatedFrame_ReturnsNull() {
+        assertNull(BinaryWsFrame.decode(bytes(0)));
+        // Connection id of 10 bytes, only 3 present
+        assertNull(BinaryWsFrame.decode(bytes(0, 10, 'a', 'b', 'c')));
+    }
+
+    @Test
+    void encodeWindowUpdate_ConnectionIdFormat_RoundTrip() {
+        final var decoded = BinaryWsFrame.decode(BinaryWsFrame.encodeWindowUpdate("conn", 1024));
+
+        assertTrue(decoded.isWindowUpdate());
+        assertEquals("conn", decoded.connectionId());
+        assertEquals(1024, decoded.windowIncrement());
+
+        assertNull(BinaryWsFrame.decode(BinaryWsFrame.encodeWindowUpdate("conn", 0)));
+        final var truncated = BinaryWsFrame.encodeWindowUpdate("conn", 1024);
+        assertNull(BinaryWsFrame.decode(truncated.limit(truncated.limit() - 2)));
+    }
+
+    @Test
+    void splitBatch_RecordsRoundTrip() {
+        final var frames = List.of(
+            BinaryWsFrame.encodeStream(1, PAYLOAD, 0, PAYLOAD.length),
+            BinaryWsFrame.encodeStreamWindowUpdate(2, 4096),
+            BinaryWsFrame.encodeStream(16_384, new byte[200], 0, 200));
+        var length = BinaryWsFrame.BATCH_HEADER_LENGTH;
+        for (final var frame : frames) {
+            length += BinaryWsFrame.batchRecordLength(frame.remaining());
+        }
+        final var batch = ByteBuffer.allocate(length);
+        BinaryWsFrame.startBatch(batch);
+        frames.forEach(frame -> BinaryWsFrame.appendBatchRecord(batch, frame));
+        assertFalse(batch.hasRemaining());
+        batch.flip();
+
+        assertTrue(BinaryWsFrame.isBatch(batch));
+        final var records = BinaryWsFrame.splitBatch(batch);
+
+        assertEquals(frames, records);
+        assertEquals(16_384, BinaryWsFrame.decodeStream(records.get(2)).streamId());
+        assertEquals(4096, BinaryWsFrame.decodeStream(records.get(1)).windowIncrement());
+        assertEquals(0, batch.position());
+        frames.forEach(frame -> assertEquals(0, frame.position()));
+    }
+
+    @Test
+    void splitBatch_MalformedRecords_ReturnsNull() {
+        // Record longer than the rest of the batch
+        assertNull(BinaryWsFrame.splitBatch(bytes(0, BinaryWsFrame.BATCH, 5, 1, 2)));
+        // Empty record
+        assertNull(BinaryWsFrame.splitBatch(bytes(0, BinaryWsFrame.BATCH, 0)));
+        // Record length ends within its varint
+        assertNull(BinaryWsFrame.splitBatch(bytes(0, BinaryWsFrame.BATCH, 2, 1, 'a', 0x80)));
+        // No records at all
+        assertEquals(List.of(), BinaryWsFrame.splitBatch(bytes(0, BinaryWsFrame.BATCH)));
+    }
+
+    @Test
+    void isBatch_OtherFrames_False() {
+        assertFalse(BinaryWsFrame.isBatch(BinaryWsFrame.encodeStream(1, PAYLOAD, 0, PAYLOAD.length)));
+        assertFalse(BinaryWsFrame.isBatch(BinaryWsFrame.encodeStreamWindowUpdate(1, 1)));
+        assertFalse(BinaryWsFrame.isBatch(bytes(0)));
+    }
+
+    @Test
+    void negotiateVersion_ClampsToSupportedRange() {
+        assertEquals(BinaryWsFrame.LEGACY_VERSION, BinaryWsFrame.negotiateVersion(null));
+        assertEquals(BinaryWsFrame.LEGACY_VERSION, BinaryWsFrame.negotiateVersion("garbage"));
+        assertEquals(BinaryWsFrame.LEGACY_VERSION, BinaryWsFrame.negotiateVersion("0"));
+        assertEquals(BinaryWsFrame.STREAM_ID_VERSION, BinaryWsFrame.negotiateVersion(" 3 "));
+        assertEquals(BinaryWsFrame.VERSION, BinaryWsFrame.negotiateVersion("99"));
+    }
+
+    /**
+     * Benchmark: encoding into pooled buffers and decoding to slices do not allocate per payload byte,
+     * unlike encoding into a new buffer per frame and copying the decoded payload.
+     */
+    @Test
+    @Tag("perf")
+    void encodeAndDecode_PooledAndSliced_AllocateNoPayloadCopies() {
+        final var chunk = new byte[8192];
+        final var pool = new FrameBufferPool(16 * 1024, 16, false);
+        final var header = BinaryWsFrame.dataHeader(null, 42);
+        final var frame = BinaryWsFrame.encodeStream(42, chunk, 0, chunk.length);
+
+        final var allocatingEncode = allocatedBytesPerOp(() -> BinaryWsFrame.encodeStream(42, chunk, 0, chunk.length));
+        final var pooledEncode = allocatedBytesPerOp(() -> pool.release(BinaryWsFrame.encode(pool, header, chunk, 0,
+            chunk.length)));
+        final var copyingDecode = allocatedBytesPerOp(() -> {
+            final var data = BinaryWsFrame.decodeStream(frame.duplicate()).data();
+            data.get(new byte[data.remaining()]);
+        });
+        final var slicingDecode = allocatedBytesPerOp(() -> BinaryWsFrame.decodeStream(frame.duplicate()));
+
+        final var results = "encode %d -> %d B/op, decode %d -> %d B/op".formatted(
+            allocatingEncode, pooledEncode, copyingDecode, slicingDecode);
+        assertTrue(allocatingEncode >= chunk.length, results);
+        assertTrue(pooledEncode < 64, results);
+        assertTrue(copyingDecode >= chunk.length, results);
+        assertTrue(slicingDecode < 256, results);
+    }
+
+    private static long allocatedBytesPerOp(final Runnable operation) {
+        final var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final var operations = 200_000;
+        for (var i = 0; i < operations; i++) {
+            operation.run();
+        }
+        final var before = threads.getCurrentThreadAllocatedBytes();
+        for (var i = 0; i < operations; i++) {
+            operation.run();
+        }
+        return (threads.getCurrentThreadAllocatedBytes() - before) / operations;
+    }
+
+    private static ByteBuffer bytes(final int... values) {
+        final var buffer = ByteBuffer.allocate(values.length);
+        for (final var value : values) {
+            buffer.put((byte) value);
+        }
+        return buffer.flip();
+    }
+}
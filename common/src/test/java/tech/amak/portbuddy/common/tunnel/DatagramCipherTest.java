@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.common.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class DatagramCipherTest {
+
+    private static final byte[] PAYLOAD = "a datagram of a UDP flow".getBytes(StandardCharsets.UTF_8);
+
+    private final UUID token = UUID.randomUUID();
+    private final byte[] key = DatagramCipher.newKey();
+    private final DatagramCipher sealer = DatagramCipher.sealing(key, DatagramCipher.CLIENT_TO_PROXY);
+    private final DatagramCipher opener = DatagramCipher.opening(key, DatagramCipher.CLIENT_TO_PROXY);
+    private final ByteBuffer payload = ByteBuffer.allocate(1024);
+
+    @Test
+    void seal_OpenedWithTheSessionKey_RoundTrip() {
+        final var datagram = seal(DatagramFrame.DATA);
+
+        assertEquals(DatagramFrame.OVERHEAD + PAYLOAD.length, datagram.remaining());
+        assertEquals(DatagramFrame.DATA, DatagramFrame.type(datagram));
+        assertEquals(token, DatagramFrame.token(datagram));
+        assertEquals(1, DatagramFrame.sequence(datagram));
+        assertTrue(opener.open(datagram, payload));
+        assertEquals(ByteBuffer.wrap(PAYLOAD), payload);
+        assertEquals(0, datagram.position());
+    }
+
+    @Test
+    void seal_PayloadIsEncrypted() {
+        final var datagram = seal(DatagramFrame.DATA);
+        final var sealed = new String(datagram.array(), StandardCharsets.ISO_8859_1);
+
+        assertFalse(sealed.contains("datagram"), "Payload sent in clear text");
+    }
+
+    @Test
+    void seal_EverySequenceNumberOnce() {
+        seal(DatagramFrame.HELLO);
+
+        assertEquals(2, DatagramFrame.sequence(seal(DatagramFrame.HELLO)));
+    }
+
+    @Test
+    void open_TamperedDatagram_Rejected() {
+        // Payload, tag and every authenticated header field
+        for (final var index : new int[] {0, 1, 20, DatagramFrame.HEADER_LENGTH, DatagramFrame.HEADER_LENGTH + 3}) {
+            final var datagram = seal(DatagramFrame.DATA);
+            datagram.put(index, (byte) (datagram.get(index) ^ 1));
+
+            assertFalse(opener.open(datagram, payload), "Flipped byte " + index);
+            assertFalse(payload.hasRemaining());
+        }
+        final var datagram = seal(DatagramFrame.DATA);
+        final var last = datagram.limit() - 1;
+        datagram.put(last, (byte) (datagram.get(last) ^ 1));
+        assertFalse(opener.open(datagram, payload), "Flipped tag byte");
+    }
+
+    @Test
+    void open_OtherKeyOrDirection_Rejected() {
+        final var datagram = seal(DatagramFrame.DATA);
+
+        assertFalse(DatagramCipher.opening(DatagramCipher.newKey(), DatagramCipher.CLIENT_TO_PROXY)
+            .open(datagram, payload));
+        // A datagram reflected back to its sender
+        assertFalse(DatagramCipher.opening(key, DatagramCipher.PROXY_TO_CLIENT).open(datagram, payload));
+        assertTrue(opener.open(datagram, payload));
+    }
+
+    @Test
+    void open_Replayed_Rejected() {
+        final var datagram = seal(DatagramFrame.HELLO);
+
+        assertTrue(opener.open(datagram, payload));
+        assertFalse(opener.open(datagram, payload));
+    }
+
+    @Test
+    void open_ReorderedWithinWindow_AcceptedOnce() {
+        final var first = seal(DatagramFrame.DATA);
+        final var delayed = seal(DatagramFrame.DATA);
+        ByteBuffer latest = null;
+        for (var i = 0; i < DatagramCipher.REPLAY_WINDOW - 1; i++) {
+            latest = seal(DatagramFrame.DATA);
+        }
+        assertTrue(opener.open(latest, payload));
+
+        // Sequence number 2 is the oldest the window of the latest, 65, still covers
+        assertTrue(opener.open(delayed, payload));
+        assertFalse(opener.open(delayed, payload));
+        assertFalse(opener.open(first, payload), "Accepted a datagram older than the window");
+    }
+
+    @Test
+    void open_AfterJumpBeyondWindow_ForgetsOlderNumbers() {
+        final var old = seal(DatagramFrame.DATA);
+        ByteBuffer latest = null;
+        for (var i = 0; i < 2 * DatagramCipher.REPLAY_WINDOW; i++) {
+            latest = seal(DatagramFrame.DATA);
+        }
+
+        assertTrue(opener.open(latest, payload));
+        assertFalse(opener.open(old, payload));
+    }
+
+    @Test
+    void open_Truncated_Rejected() {
+        final var datagram = seal(DatagramFrame.HELLO);
+
+        assertFalse(opener.open(datagram.limit(DatagramFrame.OVERHEAD - 1), payload));
+    }
+
+    @Test
+    void sealAndOpen_WrongRole_Throws() {
+        assertThrows(IllegalStateException.class, () -> opener.seal(DatagramFrame.HELLO, token,
+            ByteBuffer.allocate(0), ByteBuffer.allocate(DatagramFrame.OVERHEAD)));
+        assertThrows(IllegalStateException.class, () -> sealer.open(seal(DatagramFrame.HELLO), payload));
+        assertThrows(IllegalArgumentException.class, () -> DatagramCipher.sealing(new byte[16], 1));
+    }
+
+    private ByteBuffer seal(final byte type) {
+        final var body = type == DatagramFrame.DATA ? PAYLOAD : new byte[0];
+        final var datagram = ByteBuffer.allocate(DatagramFrame.OVERHEAD + body.length);
+        sealer.seal(type, token, ByteBuffer.wrap(body), datagram);
+        assertFalse(datagram.hasRemaining());
+        return datagram.flip();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.common.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class DatagramFrameTest {
+
+    private final UUID token = UUID.randomUUID();
+
+    @Test
+    void putHeader_RoundTripAtBufferOffset() {
+        // Received datagrams need not start at the beginning of the receive buffer
+        final var buffer = ByteBuffer.allocate(7 + DatagramFrame.OVERHEAD);
+        buffer.position(7);
+        DatagramFrame.putHeader(buffer, DatagramFrame.DATA, token, 300);
+        assertEquals(7 + DatagramFrame.HEADER_LENGTH, buffer.position());
+        final var datagram = buffer.position(buffer.limit()).flip().position(7);
+
+        assertEquals(DatagramFrame.DATA, DatagramFrame.type(datagram));
+        assertEquals(token, DatagramFrame.token(datagram));
+        assertEquals(300, DatagramFrame.sequence(datagram));
+        assertEquals(7, datagram.position());
+    }
+
+    @Test
+    void type_WithoutRoomForTheTag_IsZero() {
+        final var datagram = ByteBuffer.allocate(DatagramFrame.OVERHEAD);
+        DatagramFrame.putHeader(datagram, DatagramFrame.HELLO_OK, token, 1);
+
+        assertEquals(DatagramFrame.HELLO_OK, DatagramFrame.type(datagram.clear()));
+        assertEquals(0, DatagramFrame.type(datagram.limit(DatagramFrame.OVERHEAD - 1)));
+        assertEquals(0, DatagramFrame.type(ByteBuffer.allocate(0)));
+    }
+}
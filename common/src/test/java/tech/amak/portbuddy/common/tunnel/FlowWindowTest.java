@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.common.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class FlowWindowTest {
+
+    private final FlowWindow window = new FlowWindow(100);
+
+    @Test
+    void acquire_UntilWindowUsed_NoCreditLeft() {
+        assertTrue(window.acquire(60));
+        assertTrue(window.hasCredit());
+
+        assertFalse(window.acquire(40));
+        assertFalse(window.hasCredit());
+    }
+
+    @Test
+    void acquire_OvershootByOneRead_NeedsGrantOfOvershootToo() {
+        window.acquire(130);
+
+        assertFalse(window.grant(30));
+        assertTrue(window.grant(1));
+    }
+
+    @Test
+    void grant_BeyondIntRange_DoesNotOverflow() {
+        window.grant(Integer.MAX_VALUE);
+        window.grant(Integer.MAX_VALUE);
+
+        assertTrue(window.acquire(Integer.MAX_VALUE));
+        assertTrue(window.acquire(Integer.MAX_VALUE));
+        assertFalse(window.acquire(100));
+    }
+
+    @Test
+    void delivered_GrantsOnceHalfWindowConsumed() {
+        assertEquals(0, window.delivered(30));
+        assertEquals(0, window.delivered(19));
+
+        assertEquals(50, window.delivered(1));
+        assertEquals(0, window.delivered(49));
+        assertEquals(70, window.delivered(21));
+    }
+
+    @Test
+    void awaitCredit_BlocksUntilGranted() throws Exception {
+        window.acquire(100);
+        final var waiter = CompletableFuture.supplyAsync(this::awaitCredit);
+
+        Thread.sleep(50);
+        assertFalse(waiter.isDone());
+        window.grant(10);
+
+        assertTrue(waiter.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void awaitCredit_ClosedWindow_ReturnsFalse() throws Exception {
+        window.acquire(100);
+        final var waiter = CompletableFuture.supplyAsync(this::awaitCredit);
+
+        Thread.sleep(50);
+        window.close();
+
+        assertFalse(waiter.get(5, TimeUnit.SECONDS));
+        assertFalse(awaitCredit());
+    }
+
+    @Test
+    void reset_RestoresInitialCreditAndDropsPendingGrant() {
+        window.acquire(250);
+        window.delivered(40);
+
+        window.reset();
+
+        assertTrue(window.acquire(99));
+        assertFalse(window.acquire(1));
+        assertEquals(0, window.delivered(10));
+        assertEquals(50, window.delivered(40));
+    }
+
+    private boolean awaitCredit() {
+        try {
+            return window.awaitCredit();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
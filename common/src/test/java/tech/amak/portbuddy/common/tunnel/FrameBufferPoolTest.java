@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.common.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class FrameBufferPoolTest {
+
+    private final FrameBufferPool pool = new FrameBufferPool(64, 2, false);
+
+    @Test
+    void acquire_ReleasedBuffer_ReusedCleared() {
+        final var buffer = pool.acquire(10);
+        assertEquals(64, buffer.capacity());
+        buffer.put(new byte[20]).flip();
+        pool.release(buffer);
+
+        final var reused = pool.acquire(64);
+
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(64, reused.limit());
+    }
+
+    @Test
+    void acquire_LargerThanBufferSize_OneOffBufferNotPooled() {
+        final var large = pool.acquire(65);
+        assertEquals(65, large.capacity());
+
+        pool.release(large);
+
+        assertEquals(64, pool.acquire(1).capacity());
+    }
+
+    @Test
+    void release_BeyondMaxPooled_Dropped() {
+        final var first = pool.acquire(1);
+        final var second = pool.acquire(1);
+        final var third = pool.acquire(1);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        assertSame(first, pool.acquire(1));
+        assertSame(second, pool.acquire(1));
+        final var fresh = pool.acquire(1);
+        assertNotSame(third, fresh);
+    }
+
+    @Test
+    void release_ForeignBuffer_Ignored() {
+        final var directPool = new FrameBufferPool(64, 2, true);
+        final var heap = pool.acquire(1);
+
+        directPool.release(heap);
+
+        final var direct = directPool.acquire(1);
+        assertNotSame(heap, direct);
+        assertTrue(direct.isDirect());
+    }
+}
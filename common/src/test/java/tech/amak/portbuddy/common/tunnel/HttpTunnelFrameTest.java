@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.common.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class HttpTunnelFrameTest {
+
+    @Test
+    void encode_EveryType_DecodesToSameMessage() {
+        for (final var type : HttpTunnelMessage.Type.values()) {
+            final var message = new HttpTunnelMessage();
+            message.setId("r1");
+            message.setType(type);
+            message.setMethod("POST");
+            message.setPath("/upload");
+            message.setHeaders(Map.of("Content-Type", List.of("text/plain")));
+            message.setStatus(201);
+            message.setRespHeaders(Map.of("Location", List.of("/upload/1")));
+            message.setCredit(4096);
+            message.setBody("hello".getBytes(StandardCharsets.UTF_8));
+
+            final var decoded = HttpTunnelFrame.decode(HttpTunnelFrame.encode(message));
+
+            assertEquals(type, decoded.getType());
+            assertEquals("r1", decoded.getId());
+            assertArrayEquals(message.getBody(), decoded.getBody());
+            switch (type) {
+                case REQUEST, REQUEST_HEAD -> {
+                    assertEquals("POST", decoded.getMethod());
+                    assertEquals("/upload", decoded.getPath());
+                    assertEquals(message.getHeaders(), decoded.getHeaders());
+                }
+                case RESPONSE, RESPONSE_HEAD -> {
+                    assertEquals(201, decoded.getStatus());
+                    assertEquals(message.getRespHeaders(), decoded.getRespHeaders());
+                }
+                case REQUEST_BODY_ACK, RESPONSE_BODY_ACK -> assertEquals(4096, decoded.getCredit());
+                default -> assertNull(decoded.getMethod());
+            }
+        }
+    }
+
+    @Test
+    void decode_OtherVersion_Rejected() {
+        final var message = new HttpTunnelMessage();
+        message.setId("r1");
+        message.setType(HttpTunnelMessage.Type.REQUEST_END);
+        final var frame = HttpTunnelFrame.encode(message);
+        assertEquals(HttpTunnelFrame.VERSION, frame.get(0));
+
+        frame.put(0, (byte) (HttpTunnelFrame.VERSION + 1));
+        assertNull(HttpTunnelFrame.decode(frame.duplicate()));
+        frame.put(0, (byte) HttpTunnelFrame.JSON);
+        assertNull(HttpTunnelFrame.decode(frame.duplicate()));
+    }
+
+    @Test
+    void negotiateVersion_OnlyBinaryOrJson() {
+        assertEquals(HttpTunnelFrame.JSON, HttpTunnelFrame.negotiateVersion(null));
+        assertEquals(HttpTunnelFrame.JSON, HttpTunnelFrame.negotiateVersion("0"));
+        assertEquals(HttpTunnelFrame.VERSION, HttpTunnelFrame.negotiateVersion("1"));
+        assertEquals(HttpTunnelFrame.VERSION, HttpTunnelFrame.negotiateVersion("4"));
+    }
+}
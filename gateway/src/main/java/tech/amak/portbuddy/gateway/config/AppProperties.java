@@ -14,6 +14,8 @@
 
 package tech.amak.portbuddy.gateway.config;
 
+import java.time.Duration;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.core.io.Resource;
 
@@ -24,7 +26,8 @@ public record AppProperties(
     String url,
     String serverErrorPage,
     Jwt jwt,
-    Ssl ssl
+    Ssl ssl,
+    Routing routing
 ) {
 
     public record Ssl(
@@ -40,6 +43,18 @@ public record AppProperties(
     ) {
     }
 
+    /**
+     * Routing of tunnel hosts to server instances.
+     *
+     * @param refreshInterval how often the route table is fetched from the server instances
+     * @param probeTimeout    timeout of route fetches and of the resolve probes sent on a table miss
+     */
+    public record Routing(
+        Duration refreshInterval,
+        Duration probeTimeout
+    ) {
+    }
+
     public record Jwt(
         String issuer,
         String jwkSetUri
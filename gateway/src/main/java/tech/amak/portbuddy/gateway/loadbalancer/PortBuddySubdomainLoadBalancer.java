@@ -37,9 +37,10 @@ import reactor.core.publisher.Mono;
 
 /**
  * Custom load balancer that, for subdomain ingress requests, chooses the server instance
- * that currently holds an active tunnel for the requested subdomain. If no instance confirms
- * ownership, it falls back to the first instance from the list. For all other requests,
- * it delegates to round-robin.
+ * that currently holds an active tunnel for the requested subdomain. The owner is looked up in the
+ * {@link TunnelRouteTable}; only on a miss are all instances probed, and the answer is remembered
+ * in the table. If no instance confirms ownership, it falls back to the first instance from the
+ * list. For all other requests, it delegates to round-robin.
  */
 public class PortBuddySubdomainLoadBalancer implements ReactorServiceInstanceLoadBalancer {
 
@@ -47,19 +48,27 @@ public class PortBuddySubdomainLoadBalancer implements ReactorServiceInstanceLoa
     private final String serviceId;
     private final RoundRobinLoadBalancer roundRobin;
     private final WebClient webClient;
+    private final TunnelRouteTable routeTable;
+    private final Duration probeTimeout;
 
     /**
      * Constructor.
      *
      * @param supplierProvider the service instance supplier provider
      * @param serviceId        service ID
+     * @param routeTable       routing table of tunnel hosts to instances
+     * @param probeTimeout     timeout of the probes sent on a routing table miss
      */
     public PortBuddySubdomainLoadBalancer(final ObjectProvider<ServiceInstanceListSupplier> supplierProvider,
-                                          final String serviceId) {
+                                          final String serviceId,
+                                          final TunnelRouteTable routeTable,
+                                          final Duration probeTimeout) {
         this.supplierProvider = supplierProvider;
         this.serviceId = serviceId;
         this.roundRobin = new RoundRobinLoadBalancer(supplierProvider, serviceId);
         this.webClient = WebClient.builder().build();
+        this.routeTable = routeTable;
+        this.probeTimeout = probeTimeout;
     }
 
     @Override
@@ -87,14 +96,33 @@ public class PortBuddySubdomainLoadBalancer implements ReactorServiceInstanceLoa
                 return Mono.just(new EmptyResponse());
             }
 
-            // Probe all instances concurrently; pick the first that returns 200 OK.
-            final var probeTimeout = Duration.ofMillis(500);
+            final var routed = findRoutedInstance(instances, target);
+            if (routed != null) {
+                return Mono.just(new DefaultResponse(routed));
+            }
+
+            // Not in the table: probe all instances concurrently; pick the first that returns 200 OK.
             return findOwningInstance(instances, target, isCustomDomain, probeTimeout)
+                .doOnNext(instance -> routeTable.remember(target, instance.getInstanceId()))
                 .map(DefaultResponse::new)
                 .switchIfEmpty(Mono.just(new DefaultResponse(instances.getFirst())));
         });
     }
 
+    private ServiceInstance findRoutedInstance(final List<ServiceInstance> instances, final String target) {
+        final var instanceId = routeTable.find(target);
+        if (instanceId == null) {
+            return null;
+        }
+        // The instance must still be in the (health checked) list; otherwise treat it as a miss
+        for (final var instance : instances) {
+            if (instanceId.equals(instance.getInstanceId())) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
     private Mono<ServiceInstance> findOwningInstance(final List<ServiceInstance> instances,
                                                      final String target,
                                                      final boolean isCustomDomain,
@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.gateway.loadbalancer;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.ReactiveDiscoveryClient;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import tech.amak.portbuddy.gateway.config.AppProperties;
+import tech.amak.portbuddy.gateway.dto.IngressRoutesResponse;
+
+/**
+ * Routing table of tunnel hosts (subdomains and custom domains) to the server instance holding
+ * the tunnel. The table is refreshed in the background from {@code /ingress/routes} of every server
+ * instance; the request carries the ETag of the previous answer, so an unchanged instance costs a
+ * bodiless 304. Routes found by probing on a miss are remembered until the next change of the table.
+ */
+@Slf4j
+@Component
+public class TunnelRouteTable {
+
+    public static final String SERVICE_ID = "port-buddy-server";
+
+    private final ReactiveDiscoveryClient discoveryClient;
+    private final AppProperties properties;
+    private final WebClient webClient;
+
+    // Last routes answered by each server instance, by instance id
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    // Host to instance id, rebuilt from the snapshots whenever one of them changes
+    private volatile Map<String, String> routes = Map.of();
+    // Routes learned from probes since the last rebuild
+    private final Map<String, String> probed = new ConcurrentHashMap<>();
+
+    private Disposable refresher;
+
+    /**
+     * Creates the table.
+     *
+     * @param discoveryClient discovery client used to list the server instances
+     * @param properties      application properties
+     */
+    public TunnelRouteTable(final ReactiveDiscoveryClient discoveryClient, final AppProperties properties) {
+        this.discoveryClient = discoveryClient;
+        this.properties = properties;
+        this.webClient = WebClient.builder().build();
+    }
+
+    @PostConstruct
+    void start() {
+        final var interval = properties.routing().refreshInterval();
+        refresher = Flux.interval(interval)
+            .onBackpressureDrop()
+            .concatMap(tick -> refresh()
+                .onErrorResume(e -> {
+                    log.debug("Failed to refresh tunnel routes: {}", e.toString());
+                    return Mono.empty();
+                }))
+            .subscribe();
+    }
+
+    @PreDestroy
+    void stop() {
+        if (refresher != null) {
+            refresher.dispose();
+        }
+    }
+
+    /**
+     * Returns the id of the server instance that holds the tunnel for the given host.
+     *
+     * @param host the subdomain or custom domain
+     * @return the instance id, or {@code null} if the host is not in the table
+     */
+    public String find(final String host) {
+        final var key = host.toLowerCase();
+        // A probe only happens when the table had no usable answer, so its result takes precedence
+        final var instanceId = probed.get(key);
+        return instanceId != null ? instanceId : routes.get(key);
+    }
+
+    /**
+     * Remembers the owner of a host found by probing, until the table changes next time.
+     *
+     * @param host       the subdomain or custom domain
+     * @param instanceId the id of the owning instance
+     */
+    public void remember(final String host, final String instanceId) {
+        probed.put(host.toLowerCase(), instanceId);
+    }
+
+    /**
+     * Fetches the routes of all server instances, skipping instances whose routes did not change.
+     *
+     * @return completes once all instances were asked
+     */
+    Mono<Void> refresh() {
+        return discoveryClient.getInstances(SERVICE_ID)
+            .collectList()
+            .flatMap(instances -> {
+                final var ids = new HashSet<String>();
+                instances.forEach(instance -> ids.add(instance.getInstanceId()));
+                final var removed = snapshots.keySet().retainAll(ids);
+                return Flux.fromIterable(instances)
+                    .flatMap(this::fetch, Math.max(1, instances.size()))
+                    .reduce(removed, (changed, fetched) -> changed || fetched);
+            })
+            .doOnNext(changed -> {
+                if (changed) {
+                    rebuild();
+                }
+            })
+            .then();
+    }
+
+    /**
+     * Replaces the routes of one instance and rebuilds the table.
+     *
+     * @param instanceId the instance id
+     * @param snapshot   the routes of the instance
+     */
+    void update(final String instanceId, final Snapshot snapshot) {
+        snapshots.put(instanceId, snapshot);
+        rebuild();
+    }
+
+    private Mono<Boolean> fetch(final ServiceInstance instance) {
+        final var instanceId = instance.getInstanceId();
+        final var previous = snapshots.get(instanceId);
+        final var scheme = instance.isSecure() ? "https" : "http";
+        final var uri = URI.create("%s://%s:%d/ingress/routes".formatted(
+            scheme, instance.getHost(), instance.getPort()));
+        final var request = webClient.get().uri(uri);
+        if (previous != null) {
+            request.header(HttpHeaders.IF_NONE_MATCH, previous.etag());
+        }
+        return request.exchangeToMono(response -> {
+            if (response.statusCode().isSameCodeAs(HttpStatus.NOT_MODIFIED)) {
+                return Mono.just(false);
+            }
+            if (!response.statusCode().is2xxSuccessful()) {
+                return response.releaseBody().thenReturn(snapshots.remove(instanceId) != null);
+            }
+            final var etag = response.headers().asHttpHeaders().getETag();
+            return response.bodyToMono(IngressRoutesResponse.class)
+                .map(body -> {
+                    snapshots.put(instanceId, new Snapshot(etag, body.hosts() == null ? List.of() : body.hosts()));
+                    return true;
+                });
+        })
+            .timeout(properties.routing().probeTimeout())
+            .onErrorResume(e -> {
+                log.debug("Failed to fetch tunnel routes of {}: {}", instanceId, e.toString());
+                return Mono.just(snapshots.remove(instanceId) != null);
+            });
+    }
+
+    private void rebuild() {
+        final var table = new HashMap<String, String>();
+        snapshots.forEach((instanceId, snapshot) ->
+            snapshot.hosts().forEach(host -> table.put(host.toLowerCase(), instanceId)));
+        routes = Map.copyOf(table);
+        probed.clear();
+        log.debug("Rebuilt tunnel route table with {} hosts from {} instances", table.size(), snapshots.size());
+    }
+
+    /**
+     * Routes last answered by a server instance.
+     *
+     * @param etag  ETag of the answer, sent back to skip unchanged routes
+     * @param hosts subdomains and custom domains of the open tunnels on the instance
+     */
+    record Snapshot(String etag, List<String> hosts) {
+    }
+}
@@ -42,6 +42,8 @@ public class GatewaySecurityConfig {
                     "/api/auth/token-exchange", "/api/auth/login", "/api/auth/register",
                     "/api/auth/password-reset/**", "/api/webhooks/stripe"
                     ).permitAll()
+                // Calls between services never come through the gateway
+                .pathMatchers("/api/internal/**").denyAll()
                 // Secure API endpoints
                 .pathMatchers("/api/**").authenticated()
                 // Everything else is allowed (e.g., subdomain ingress and public tunnels)
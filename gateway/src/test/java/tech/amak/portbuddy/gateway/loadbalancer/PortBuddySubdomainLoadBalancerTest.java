@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.gateway.loadbalancer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.ReactiveDiscoveryClient;
+import org.springframework.cloud.client.loadbalancer.DefaultRequest;
+import org.springframework.cloud.client.loadbalancer.Request;
+import org.springframework.cloud.client.loadbalancer.RequestData;
+import org.springframework.cloud.client.loadbalancer.RequestDataContext;
+import org.springframework.cloud.loadbalancer.core.ServiceInstanceListSupplier;
+import org.springframework.cloud.loadbalancer.support.ServiceInstanceListSuppliers;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.util.LinkedMultiValueMap;
+
+import com.sun.net.httpserver.HttpServer;
+
+import tech.amak.portbuddy.gateway.config.AppProperties;
+
+class PortBuddySubdomainLoadBalancerTest {
+
+    private static final String SERVICE_ID = TunnelRouteTable.SERVICE_ID;
+
+    private final AtomicInteger probes = new AtomicInteger();
+    private HttpServer server;
+    private TunnelRouteTable routeTable;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ingress/resolve/", exchange -> {
+            probes.incrementAndGet();
+            final var owned = exchange.getRequestURI().getPath().endsWith("/abc");
+            exchange.sendResponseHeaders(owned ? 200 : 404, -1);
+            exchange.close();
+        });
+        server.start();
+        routeTable = new TunnelRouteTable(mock(ReactiveDiscoveryClient.class), mock(AppProperties.class));
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void choose_HostInRouteTable_PicksOwnerWithoutProbing() {
+        final var instances = instances(3);
+        routeTable.update("server-2", new TunnelRouteTable.Snapshot("\"v1\"", List.of("abc", "app.example.com")));
+        final var loadBalancer = loadBalancer(instances);
+
+        assertEquals("server-2", loadBalancer.choose(request("abc.portbuddy.dev")).block()
+            .getServer().getInstanceId());
+        assertEquals("server-2", loadBalancer.choose(request("App.Example.com:443")).block()
+            .getServer().getInstanceId());
+        assertEquals(0, probes.get());
+    }
+
+    @Test
+    void choose_RoutedInstanceGone_FallsBackToProbing() {
+        routeTable.update("server-9", new TunnelRouteTable.Snapshot("\"v1\"", List.of("abc")));
+        final var loadBalancer = loadBalancer(instances(2));
+
+        final var chosen = loadBalancer.choose(request("abc.portbuddy.dev")).block();
+
+        assertTrue(probes.get() > 0);
+        assertEquals(routeTable.find("abc"), chosen.getServer().getInstanceId());
+    }
+
+    @Test
+    void choose_Miss_ProbesOnceAndRemembersOwner() {
+        final var instances = new ArrayList<ServiceInstance>();
+        instances.add(new DefaultServiceInstance("closed", SERVICE_ID, "127.0.0.1", 1, false));
+        instances.add(new DefaultServiceInstance("owner", SERVICE_ID, "127.0.0.1", port(), false));
+        final var loadBalancer = loadBalancer(instances);
+
+        assertEquals("owner", loadBalancer.choose(request("abc.portbuddy.dev")).block()
+            .getServer().getInstanceId());
+        assertEquals("owner", routeTable.find("abc"));
+        assertEquals("owner", loadBalancer.choose(request("abc.portbuddy.dev")).block()
+            .getServer().getInstanceId());
+        assertEquals(1, probes.get());
+
+        // Any change of the table drops the probed routes
+        routeTable.update("closed", new TunnelRouteTable.Snapshot("\"v1\"", List.of()));
+        assertNull(routeTable.find("abc"));
+    }
+
+    @Test
+    void choose_RouteTableHitInLargeCluster_PicksOwnerWithoutProbes() {
+        final var instances = instances(128);
+        routeTable.update("server-127", new TunnelRouteTable.Snapshot("\"v1\"", List.of("abc")));
+        final var loadBalancer = loadBalancer(instances);
+
+        for (var i = 0; i < 10; i++) {
+            assertEquals("server-127", loadBalancer.choose(request("abc.portbuddy.dev")).block()
+                .getServer().getInstanceId());
+        }
+        assertEquals(0, probes.get());
+    }
+
+    /**
+     * Benchmark: with the owner in the route table the cost of choosing an instance does not grow with
+     * the number of server instances, because no instance is contacted. Before the route table every
+     * request sent one probe to each instance.
+     */
+    @Test
+    @Tag("perf")
+    void choose_RouteTableHit_LatencyIndependentOfClusterSize() {
+        final var iterations = 20_000;
+        final var averageNanos = new ArrayList<Long>();
+        for (final var size : new int[] {1, 128}) {
+            routeTable = new TunnelRouteTable(mock(ReactiveDiscoveryClient.class), mock(AppProperties.class));
+            final var instances = instances(size);
+            final var owner = "server-" + (size - 1);
+            routeTable.update(owner, new TunnelRouteTable.Snapshot("\"v" + size + "\"", List.of("abc")));
+            final var loadBalancer = loadBalancer(instances);
+            final var request = request("abc.portbuddy.dev");
+
+            for (var i = 0; i < iterations; i++) {
+                loadBalancer.choose(request).block();
+            }
+            final var started = System.nanoTime();
+            for (var i = 0; i < iterations; i++) {
+                assertEquals(owner, loadBalancer.choose(request).block().getServer().getInstanceId());
+            }
+            averageNanos.add((System.nanoTime() - started) / iterations);
+        }
+        assertEquals(0, probes.get());
+        // Probing every instance would cost a round trip each; allow for the larger instance list and noise
+        assertTrue(averageNanos.get(1) < Math.max(averageNanos.get(0), 1_000) * 10,
+            "choose() times per cluster size 1 and 128: " + averageNanos);
+    }
+
+    private PortBuddySubdomainLoadBalancer loadBalancer(final List<ServiceInstance> instances) {
+        final var supplier = ServiceInstanceListSuppliers.from(SERVICE_ID,
+            instances.toArray(ServiceInstance[]::new));
+        @SuppressWarnings("unchecked")
+        final ObjectProvider<ServiceInstanceListSupplier> provider = mock(ObjectProvider.class);
+        when(provider.getIfAvailable()).thenReturn(supplier);
+        return new PortBuddySubdomainLoadBalancer(provider, SERVICE_ID, routeTable, Duration.ofMillis(500));
+    }
+
+    private List<ServiceInstance> instances(final int count) {
+        final var instances = new ArrayList<ServiceInstance>(count);
+        for (var i = 0; i < count; i++) {
+            instances.add(new DefaultServiceInstance("server-" + i, SERVICE_ID, "127.0.0.1", port(), false));
+        }
+        return instances;
+    }
+
+    private int port() {
+        return server.getAddress().getPort();
+    }
+
+    private static Request<RequestDataContext> request(final String host) {
+        final var headers = new HttpHeaders();
+        headers.set(HttpHeaders.HOST, host);
+        final var data = new RequestData(HttpMethod.GET, URI.create("http://" + host + "/"), headers,
+            new LinkedMultiValueMap<>(), new HashMap<>());
+        return new DefaultRequest<>(new RequestDataContext(data));
+    }
+}
@@ -23,14 +23,103 @@ import org.springframework.util.unit.DataSize;
 public record AppProperties(
     String publicHost,
     WebSocket webSocket,
+    Tcp tcp,
+    Reattach reattach,
+    Udp udp,
+    boolean virtualThreads,
     Jwt jwt
 ) {
 
     public record WebSocket(
         DataSize maxTextMessageSize,
         DataSize maxBinaryMessageSize,
-        Duration sessionIdleTimeout
+        Duration sessionIdleTimeout,
+        DataSize sendBufferSize,
+        boolean directFrameBuffers,
+        Batching batching
     ) {
+
+        /**
+         * Packing of small data frames for a client into one WebSocket message.
+         *
+         * @param enabled whether to batch for clients that accept batches
+         * @param maxSize maximum size of a batch; frames up to a quarter of it are batched
+         * @param window  how long the writer waits for another frame; zero only packs frames already queued
+         * @param maxDelay upper bound of the waiting for one batch, measured from its first frame
+         */
+        public record Batching(
+            boolean enabled,
+            DataSize maxSize,
+            Duration window,
+            Duration maxDelay
+        ) {
+        }
+    }
+
+    /**
+     * Public TCP port handling.
+     *
+     * @param engine          socket engine serving the public ports
+     * @param selectorThreads number of selector loops of the NIO engine; 0 uses one per CPU
+     */
+    public record Tcp(
+        Engine engine,
+        int selectorThreads
+    ) {
+
+        public enum Engine {
+            /**
+             * A thread per listener and per public connection.
+             */
+            BLOCKING,
+            /**
+             * A fixed set of selector loops for all listeners and connections.
+             */
+            NIO
+        }
+    }
+
+    /**
+     * Keeping the tunnels of disconnected clients.
+     *
+     * @param gracePeriod           how long the public port and connections of a disconnected client are kept
+     *                              for it to reconnect; zero closes them at once
+     * @param maxPendingConnections public connections accepted and held while no client is attached; further
+     *                              ones are closed
+     */
+    public record Reattach(
+        Duration gracePeriod,
+        int maxPendingConnections
+    ) {
+    }
+
+    /**
+     * Public UDP port handling.
+     *
+     * @param maxFlows        maximum number of public remotes per tunnel; datagrams of further remotes are dropped
+     * @param flowIdleTimeout time without datagrams after which a remote is forgotten
+     * @param datagram        datagram transport between the proxy and the clients of UDP tunnels
+     */
+    public record Udp(
+        int maxFlows,
+        Duration flowIdleTimeout,
+        Datagram datagram
+    ) {
+
+        /**
+         * Carrying the data of UDP tunnels in datagrams instead of the WebSocket, for clients speaking
+         * protocol version 6. The datagrams are encrypted and authenticated with a key per session.
+         *
+         * @param enabled     whether to offer the transport, off by default
+         * @param port        the UDP port clients send their datagrams to
+         * @param peerTimeout time without datagrams from a client after which its data goes over the WebSocket
+         */
+        public record Datagram(
+            boolean enabled,
+            int port,
+            Duration peerTimeout
+        ) {
+        }
     }
 
     public record Jwt(
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.config;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.common.tunnel.FrameBufferPool;
+import tech.amak.portbuddy.netproxy.tunnel.BlockingTcpEngine;
+import tech.amak.portbuddy.netproxy.tunnel.DatagramTransport;
+import tech.amak.portbuddy.netproxy.tunnel.NioTcpEngine;
+import tech.amak.portbuddy.netproxy.tunnel.TcpEngine;
+
+@Slf4j
+@Configuration
+public class TcpEngineConfig {
+
+    public static final String IO_POOL = "netProxyIoPool";
+
+    // Fits a read of either engine (8 KiB) plus the longest frame header
+    private static final int FRAME_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_FRAME_BUFFERS = 1024;
+
+    /**
+     * Executor of the blocking socket loops (TCP accept loops and pumps of the blocking engine,
+     * UDP receive loops). Uses a virtual thread per task unless {@code app.virtual-threads} is off.
+     * The loops only queue data for the tunnel WebSocket; the blocking WebSocket sends run on the
+     * platform writer threads of {@code NetTunnelSender}, so they never pin a carrier thread.
+     */
+    @Bean(name = IO_POOL, destroyMethod = "shutdownNow")
+    public ExecutorService netProxyIoPool(final AppProperties properties) {
+        if (properties.virtualThreads()) {
+            log.info("Using virtual threads for socket loops");
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("net-proxy-io-", 0).factory());
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Buffers the data frames for tunnel clients are encoded into; they return to the pool once sent.
+     * Direct buffers are used if {@code app.web-socket.direct-frame-buffers} is on.
+     */
+    @Bean
+    public FrameBufferPool frameBufferPool(final AppProperties properties) {
+        return new FrameBufferPool(FRAME_BUFFER_SIZE, MAX_POOLED_FRAME_BUFFERS,
+            properties.webSocket().directFrameBuffers());
+    }
+
+    /**
+     * Creates the engine serving the public TCP ports, selected by {@code app.tcp.engine}.
+     */
+    @Bean(destroyMethod = "close")
+    public TcpEngine tcpEngine(final AppProperties properties,
+                               @Qualifier(IO_POOL) final ExecutorService ioPool) throws IOException {
+        final var tcp = properties.tcp();
+        if (tcp != null && tcp.engine() == AppProperties.Tcp.Engine.NIO) {
+            final var threads = tcp.selectorThreads() > 0
+                ? tcp.selectorThreads()
+                : Runtime.getRuntime().availableProcessors();
+            log.info("Using NIO TCP engine with {} selector loops", threads);
+            return new NioTcpEngine(threads);
+        }
+        log.info("Using blocking TCP engine");
+        return new BlockingTcpEngine(ioPool);
+    }
+
+    /**
+     * Binds the datagram port of UDP tunnel clients if {@code app.udp.datagram.enabled} is on.
+     */
+    @Bean(destroyMethod = "close")
+    public DatagramTransport datagramTransport(final AppProperties properties,
+                                               @Qualifier(IO_POOL) final ExecutorService ioPool)
+        throws IOException {
+        final var udp = properties.udp();
+        return new DatagramTransport(udp == null ? null : udp.datagram(), ioPool);
+    }
+}
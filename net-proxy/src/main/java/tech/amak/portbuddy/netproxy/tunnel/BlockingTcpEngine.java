@@ -0,0 +1,305 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * TCP engine built on blocking sockets: every listener runs an accept loop and every connection
+ * a read pump on its own thread of the given executor, which may create virtual threads. Writes are
+ * queued and drained by a writer task per connection, so a slow public peer never blocks the caller.
+ * Waiting is done with {@link ReentrantLock}s rather than monitors, so pumps never pin a carrier.
+ */
+@Slf4j
+public class BlockingTcpEngine implements TcpEngine {
+
+    private final ExecutorService ioPool;
+
+    /**
+     * Creates the engine.
+     *
+     * @param ioPool executor running the accept loops and pumps; owned by the caller
+     */
+    public BlockingTcpEngine(final ExecutorService ioPool) {
+        this.ioPool = ioPool;
+    }
+
+    @Override
+    public Listener listen(final Integer desiredPort, final Handler handler) throws IOException {
+        final ServerSocket serverSocket;
+        if (desiredPort != null && desiredPort > 0) {
+            ServerSocket sock;
+            try {
+                sock = new ServerSocket(desiredPort);
+            } catch (final IOException bindEx) {
+                // Requested port is busy; fallback to a random available port
+                log.info("TCP port {} is busy. Falling back to a random port.", desiredPort);
+                sock = new ServerSocket(0);
+            }
+            serverSocket = sock;
+        } else {
+            serverSocket = new ServerSocket(0);
+        }
+        final var listener = new BlockingListener(serverSocket, handler);
+        ioPool.execute(listener::acceptLoop);
+        return listener;
+    }
+
+    @Override
+    public void close() {
+        // The executor is shut down by its owner
+    }
+
+    private final class BlockingListener implements Listener {
+
+        private final ServerSocket serverSocket;
+        private final Handler handler;
+
+        private BlockingListener(final ServerSocket serverSocket, final Handler handler) {
+            this.serverSocket = serverSocket;
+            this.handler = handler;
+        }
+
+        @Override
+        public int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() {
+            try {
+                serverSocket.close();
+            } catch (final Exception e) {
+                log.debug("Failed to close ServerSocket: {}", e.toString());
+            }
+        }
+
+        private void acceptLoop() {
+            try {
+                while (!serverSocket.isClosed()) {
+                    final var socket = serverSocket.accept();
+                    // Wait for client OPEN_OK before starting to pump data from public socket
+                    handler.onAccepted(new BlockingConnection(UUID.randomUUID().toString(), socket, handler));
+                }
+            } catch (final Exception e) {
+                log.info("Accept loop on port {} ended: {}", serverSocket.getLocalPort(), e.toString());
+            }
+        }
+    }
+
+    private final class BlockingConnection implements Connection {
+
+        private final String connectionId;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final Handler handler;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition resumed = lock.newCondition();
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final Condition drained = writeLock.newCondition();
+        // Guarded by writeLock
+        private final Queue<byte[]> pendingWrites = new ArrayDeque<>();
+        private long pendingBytes;
+        private boolean writing;
+        private boolean paused;
+        private volatile boolean closed;
+
+        private BlockingConnection(final String connectionId,
+                                   final Socket socket,
+                                   final Handler handler) throws IOException {
+            this.connectionId = connectionId;
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+            this.handler = handler;
+        }
+
+        @Override
+        public String connectionId() {
+            return connectionId;
+        }
+
+        @Override
+        public void startReading() {
+            ioPool.execute(this::pump);
+        }
+
+        @Override
+        public void pauseReading() {
+            lock.lock();
+            try {
+                paused = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void resumeReading() {
+            lock.lock();
+            try {
+                paused = false;
+                resumed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void write(final ByteBuffer buffer) throws IOException {
+            // The writer task runs after the caller reused the buffer
+            final var data = new byte[buffer.remaining()];
+            buffer.get(data);
+            writeLock.lock();
+            try {
+                while (pendingBytes >= MAX_PENDING_WRITE_BYTES && !socket.isClosed()) {
+                    drained.await();
+                }
+                if (socket.isClosed()) {
+                    throw new SocketException("Socket closed");
+                }
+                pendingWrites.add(data);
+                pendingBytes += data.length;
+                if (!writing) {
+                    writing = true;
+                    ioPool.execute(this::drainWrites);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for queued writes");
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                log.debug("Failed to close public socket {}: {}", connectionId, e.toString());
+            }
+            discardWrites();
+            resumeReading();
+        }
+
+        private void pump() {
+            final var buffer = new byte[8192];
+            try {
+                while (awaitReadable()) {
+                    final var next = in.read(buffer);
+                    if (next == -1) {
+                        break;
+                    }
+                    handler.onData(this, buffer, 0, next);
+                }
+            } catch (final Exception e) {
+                if (!closed) {
+                    log.debug("Failed to read from public socket {}: {}", connectionId, e.toString());
+                }
+            } finally {
+                log.info("Public socket closed: {}", connectionId);
+                try {
+                    socket.close();
+                } catch (final Exception e) {
+                    log.debug("Failed to close public socket {}: {}", connectionId, e.toString());
+                }
+                if (!closed) {
+                    closed = true;
+                    handler.onClosed(this);
+                }
+            }
+        }
+
+        private void drainWrites() {
+            while (true) {
+                final byte[] data;
+                writeLock.lock();
+                try {
+                    data = pendingWrites.poll();
+                    if (data == null) {
+                        writing = false;
+                        return;
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+                try {
+                    out.write(data);
+                    out.flush();
+                } catch (final IOException e) {
+                    log.debug("Failed to write to public socket {}: {}", connectionId, e.toString());
+                    discardWrites();
+                    // The failed socket also ends the pump, which reports the closure
+                    try {
+                        socket.close();
+                    } catch (final IOException closeEx) {
+                        log.debug("Failed to close public socket {}: {}", connectionId, closeEx.toString());
+                    }
+                    return;
+                }
+                writeLock.lock();
+                try {
+                    pendingBytes -= data.length;
+                    drained.signalAll();
+                } finally {
+                    writeLock.unlock();
+                }
+                handler.onWritten(this, data.length);
+            }
+        }
+
+        private void discardWrites() {
+            writeLock.lock();
+            try {
+                pendingWrites.clear();
+                pendingBytes = 0;
+                writing = false;
+                drained.signalAll();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private boolean awaitReadable() throws InterruptedException {
+            lock.lock();
+            try {
+                while (paused && !closed) {
+                    resumed.await();
+                }
+                return !closed;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.common.tunnel.DatagramCipher;
+import tech.amak.portbuddy.common.tunnel.DatagramFrame;
+import tech.amak.portbuddy.netproxy.config.AppProperties;
+
+/**
+ * The net proxy's end of the datagram path of UDP tunnels, see {@link DatagramFrame}: one UDP port shared
+ * by all tunnels, whose single receive loop finds the session of a client datagram by its token, opens it
+ * with the session's {@link DatagramCipher} and hands the data frames to the session's receiver. Datagrams
+ * failing authentication or replayed are dropped without further effect. A session's path is active while
+ * its client was heard from within {@code app.udp.datagram.peer-timeout}; otherwise its tunnel sends over
+ * the WebSocket.
+ */
+@Slf4j
+public class DatagramTransport implements Closeable {
+
+    // Largest UDP payload plus the datagram overhead and the longest stream id
+    private static final int BUFFER_SIZE = 65535 + DatagramFrame.OVERHEAD + 5;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final DatagramChannel channel;
+    private final long peerTimeoutNanos;
+    private final Map<UUID, Peer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Binds the datagram port and starts the receive loop, unless the transport is disabled.
+     *
+     * @param settings the transport settings, {@code null} to disable it
+     * @param ioPool   executor running the receive loop
+     * @throws IOException if the port cannot be bound
+     */
+    public DatagramTransport(final AppProperties.Udp.Datagram settings, final ExecutorService ioPool)
+        throws IOException {
+        if (settings == null || !settings.enabled()) {
+            this.channel = null;
+            this.peerTimeoutNanos = 0;
+            return;
+        }
+        this.peerTimeoutNanos = settings.peerTimeout().toNanos();
+        this.channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(settings.port()));
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        log.info("UDP tunnel datagram transport listening on port {}", port());
+        ioPool.execute(this::receiveLoop);
+    }
+
+    public boolean isEnabled() {
+        return channel != null;
+    }
+
+    /**
+     * The bound port, 0 if disabled.
+     */
+    public int port() {
+        try {
+            return channel == null ? 0 : ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (final IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Registers a tunnel session with a new token and key.
+     *
+     * @param frames receives the data frames of the client's datagrams, on the receive loop
+     * @return the session's end of the path
+     */
+    Peer register(final Consumer<ByteBuffer> frames) {
+        final var peer = new Peer(UUID.randomUUID(), DatagramCipher.newKey(), frames);
+        peers.put(peer.token, peer);
+        return peer;
+    }
+
+    @Override
+    public void close() {
+        peers.clear();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                log.debug("Failed to close datagram transport channel: {}", e.toString());
+            }
+        }
+    }
+
+    private void receiveLoop() {
+        final var buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final var payload = ByteBuffer.allocate(BUFFER_SIZE);
+        final var reply = ByteBuffer.allocate(DatagramFrame.OVERHEAD);
+        try {
+            while (channel.isOpen()) {
+                buffer.clear();
+                final var remote = (InetSocketAddress) channel.receive(buffer);
+                buffer.flip();
+                final var type = DatagramFrame.type(buffer);
+                if (type != DatagramFrame.HELLO && type != DatagramFrame.DATA) {
+                    continue;
+                }
+                final var peer = peers.get(DatagramFrame.token(buffer));
+                if (peer == null) {
+                    // Unknown or closed session
+                    continue;
+                }
+                if (!peer.opener.open(buffer, payload)) {
+                    log.debug("Dropping forged or replayed datagram from {}", remote);
+                    continue;
+                }
+                // The client may have moved, e.g. after a NAT rebinding
+                peer.address = remote;
+                peer.lastSeen = System.nanoTime();
+                if (type == DatagramFrame.HELLO) {
+                    reply.clear();
+                    peer.sealer.seal(DatagramFrame.HELLO_OK, peer.token, EMPTY, reply);
+                    channel.send(reply.flip(), remote);
+                } else {
+                    peer.frames.accept(payload);
+                }
+            }
+        } catch (final Exception e) {
+            if (channel.isOpen()) {
+                log.warn("Datagram transport receive loop ended: {}", e.toString());
+            }
+        }
+    }
+
+    /**
+     * The datagram path of one tunnel session.
+     */
+    final class Peer {
+
+        private final UUID token;
+        private final byte[] key;
+        private final DatagramCipher sealer;
+        private final DatagramCipher opener;
+        private final Consumer<ByteBuffer> frames;
+        // Used by the tunnel's single UDP receive loop only
+        private final ByteBuffer plainBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // Set by authenticated datagrams only
+        private volatile InetSocketAddress address;
+        private volatile long lastSeen;
+
+        private Peer(final UUID token, final byte[] key, final Consumer<ByteBuffer> frames) {
+            this.token = token;
+            this.key = key;
+            this.sealer = DatagramCipher.sealing(key, DatagramCipher.PROXY_TO_CLIENT);
+            this.opener = DatagramCipher.opening(key, DatagramCipher.CLIENT_TO_PROXY);
+            this.frames = frames;
+        }
+
+        UUID token() {
+            return token;
+        }
+
+        /**
+         * The session key, for the client only; it is sent over the WebSocket.
+         */
+        byte[] key() {
+            return key.clone();
+        }
+
+        /**
+         * Whether the client was heard from recently enough to send it datagrams.
+         */
+        boolean isActive() {
+            return address != null && System.nanoTime() - lastSeen < peerTimeoutNanos;
+        }
+
+        /**
+         * Sends a data frame to the client if the path is active.
+         *
+         * @param header the flow's data frame header
+         * @return whether the frame was sent; if not, the caller sends it over the WebSocket
+         */
+        boolean send(final byte[] header, final byte[] data, final int offset, final int length) {
+            final var target = address;
+            if (!isActive()) {
+                return false;
+            }
+            plainBuffer.clear();
+            plainBuffer.put(header).put(data, offset, length).flip();
+            sendBuffer.clear();
+            try {
+                sealer.seal(DatagramFrame.DATA, token, plainBuffer, sendBuffer);
+                channel.send(sendBuffer.flip(), target);
+                return true;
+            } catch (final IOException | IllegalStateException e) {
+                log.debug("Failed to send datagram to {}: {}", target, e.toString());
+                return false;
+            }
+        }
+
+        void close() {
+            peers.remove(token, this);
+        }
+    }
+}
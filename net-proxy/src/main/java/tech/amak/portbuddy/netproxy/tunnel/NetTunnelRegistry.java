@@ -15,21 +15,33 @@
 package tech.amak.portbuddy.netproxy.tunnel;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -39,7 +51,11 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import tech.amak.portbuddy.common.TunnelType;
 import tech.amak.portbuddy.common.tunnel.BinaryWsFrame;
+import tech.amak.portbuddy.common.tunnel.FlowWindow;
+import tech.amak.portbuddy.common.tunnel.FrameBufferPool;
 import tech.amak.portbuddy.common.tunnel.WsTunnelMessage;
+import tech.amak.portbuddy.netproxy.config.AppProperties;
+import tech.amak.portbuddy.netproxy.config.TcpEngineConfig;
 
 @Slf4j
 @Component
@@ -47,9 +63,26 @@ import tech.amak.portbuddy.common.tunnel.WsTunnelMessage;
 public class NetTunnelRegistry {
 
     private final Map<UUID, Tunnel> byTunnelId = new ConcurrentHashMap<>();
-    private final ExecutorService ioPool = Executors.newCachedThreadPool();
+    // Writers draining the per-tunnel outbound WebSocket queues
+    private final ExecutorService writers = Executors.newCachedThreadPool(runnable -> {
+        final var thread = new Thread(runnable, "net-tunnel-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Closes the tunnels of clients that did not reconnect within the grace period
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final var thread = new Thread(runnable, "net-tunnel-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final ObjectMapper mapper;
+    private final AppProperties properties;
+    private final TcpEngine tcpEngine;
+    private final FrameBufferPool framePool;
+    private final DatagramTransport datagramTransport;
+    @Qualifier(TcpEngineConfig.IO_POOL)
+    private final ExecutorService ioPool;
 
     /**
      * Exposes a network tunnel for either TCP or UDP based on tunnelType parameter.
@@ -73,80 +106,213 @@ public class NetTunnelRegistry {
      */
     private ExposedPort exposeTcp(final UUID tunnelId, final Integer desiredPort) throws IOException {
         final var tunnel = byTunnelId.computeIfAbsent(tunnelId, Tunnel::new);
-        if (tunnel.serverSocket != null && !tunnel.serverSocket.isClosed()) {
-            return new ExposedPort(tunnel.serverSocket.getLocalPort());
+        if (tunnel.listener != null) {
+            return new ExposedPort(tunnel.listener.port());
         }
-        final ServerSocket serverSocket;
-        if (desiredPort != null && desiredPort > 0) {
-            ServerSocket sock;
-            try {
-                sock = new ServerSocket(desiredPort);
-            } catch (final IOException bindEx) {
-                // Requested port is busy; fallback to a random available port
-                log.info("TCP port {} is busy. Falling back to a random port.", desiredPort);
-                sock = new ServerSocket(0);
-            }
-            serverSocket = sock;
-        } else {
-            serverSocket = new ServerSocket(0);
-        }
-        tunnel.serverSocket = serverSocket;
-        ioPool.execute(() -> acceptLoop(tunnel));
-        return new ExposedPort(serverSocket.getLocalPort());
+        final var listener = tcpEngine.listen(desiredPort, new TcpHandler(tunnel));
+        tunnel.listener = listener;
+        return new ExposedPort(listener.port());
     }
 
     /**
-     * Expose UDP by binding a datagram socket and starting a receive loop that forwards
-     * datagrams over the control WebSocket using binary frames.
+     * Expose UDP by binding a datagram channel and starting the tunnel's single receive loop that forwards
+     * datagrams over the client's datagram path while it is active, and over the control WebSocket using
+     * binary frames otherwise. Idle flows are evicted periodically.
      */
     private ExposedPort exposeUdp(final UUID tunnelId, final Integer desiredPort) throws IOException {
         final var tunnel = byTunnelId.computeIfAbsent(tunnelId, Tunnel::new);
-        if (tunnel.udpSocket != null && !tunnel.udpSocket.isClosed()) {
-            return new ExposedPort(tunnel.udpSocket.getLocalPort());
+        if (tunnel.udpChannel != null && tunnel.udpChannel.isOpen()) {
+            return new ExposedPort(((InetSocketAddress) tunnel.udpChannel.getLocalAddress()).getPort());
         }
-        final DatagramSocket socket;
-        if (desiredPort != null && desiredPort > 0) {
-            DatagramSocket sock;
-            try {
-                sock = new DatagramSocket(desiredPort);
-            } catch (final IOException bindEx) {
-                // Requested port is busy; fallback to a random available port
-                log.info("UDP port {} is busy. Falling back to a random port.", desiredPort);
-                sock = new DatagramSocket(0);
+        final var channel = DatagramChannel.open();
+        try {
+            if (desiredPort != null && desiredPort > 0) {
+                try {
+                    channel.bind(new InetSocketAddress(desiredPort));
+                } catch (final IOException bindEx) {
+                    // Requested port is busy; fallback to a random available port
+                    log.info("UDP port {} is busy. Falling back to a random port.", desiredPort);
+                    channel.bind(new InetSocketAddress(0));
+                }
+            } else {
+                channel.bind(new InetSocketAddress(0));
             }
-            socket = sock;
-        } else {
-            socket = new DatagramSocket(0);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
         }
-        tunnel.udpSocket = socket;
+        final var udp = properties.udp();
+        final var idleTimeout = udp.flowIdleTimeout();
+        tunnel.udpFlows = new UdpFlowTable(udp.maxFlows(), idleTimeout.toNanos());
+        tunnel.udpChannel = channel;
         ioPool.execute(() -> udpReceiveLoop(tunnel));
-        return new ExposedPort(socket.getLocalPort());
+        final var sweepMillis = Math.max(1000, idleTimeout.toMillis() / 4);
+        tunnel.udpSweep = reaper.scheduleWithFixedDelay(
+            () -> evictIdleFlows(tunnel), sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        return new ExposedPort(((InetSocketAddress) channel.getLocalAddress()).getPort());
     }
 
-    public void attachSession(final UUID tunnelId, final WebSocketSession session) {
+    /**
+     * Attaches the tunnel client's WebSocket session. Everything sent to the client goes through
+     * a single-writer queue bounded by {@code app.web-socket.send-buffer-size}. The greeting is queued
+     * before anything else, so the client learns the protocol version before the first OPEN.
+     * A client reconnecting within the grace period finds its public port bound. Clients speaking
+     * {@link BinaryWsFrame#RESUME_VERSION} with an unchanged version also find their TCP streams, listed in
+     * the greeting; the streams of other clients are closed. Connections accepted while no client was
+     * attached are opened now. UDP tunnels of clients speaking {@link BinaryWsFrame#DATAGRAM_VERSION} are
+     * offered the datagram transport with a token of the new session.
+     *
+     * @param tunnelId        tunnel identifier
+     * @param session         the client session
+     * @param protocolVersion net tunnel protocol version negotiated with the client
+     * @param greeting        first message for the client, the EXPOSED message
+     * @throws IOException if the greeting cannot be serialized
+     */
+    public void attachSession(final UUID tunnelId,
+                              final WebSocketSession session,
+                              final int protocolVersion,
+                              final WsTunnelMessage greeting) throws IOException {
         final var tunnel = byTunnelId.computeIfAbsent(tunnelId, Tunnel::new);
-        tunnel.session = session;
+        final NetTunnelSender previous;
+        tunnel.attachLock.lock();
+        try {
+            if (tunnel.closed) {
+                // The grace period ended between exposing and attaching; the client will reconnect
+                session.close(CloseStatus.SERVICE_RESTARTED);
+                return;
+            }
+            final var expiry = tunnel.expiry;
+            if (expiry != null) {
+                expiry.cancel(false);
+                tunnel.expiry = null;
+            }
+            previous = tunnel.sender;
+            final var resumable = protocolVersion >= BinaryWsFrame.RESUME_VERSION
+                                  && protocolVersion == tunnel.protocolVersion;
+            final var resumed = new ArrayList<WsTunnelMessage.ResumedStream>();
+            for (final var stream : tunnel.connections.values()) {
+                if (resumable) {
+                    // Nothing flows until the client confirmed the stream with OPEN_OK
+                    stream.resuming = true;
+                    stream.connection().pauseReading();
+                    resumed.add(new WsTunnelMessage.ResumedStream(
+                        stream.connection().connectionId(), stream.streamId(), stream.receivedBytes.get()));
+                } else {
+                    removeStream(tunnel, stream);
+                }
+            }
+            if (!resumed.isEmpty()) {
+                greeting.setResumedStreams(resumed);
+            }
+            // UDP flows get new stream ids, the client does not keep its flows across connections
+            final var flows = tunnel.udpFlows;
+            if (flows != null) {
+                flows.clear();
+            }
+
+            final var batching = protocolVersion >= BinaryWsFrame.BATCH_VERSION
+                ? properties.webSocket().batching()
+                : null;
+            final var sender = new NetTunnelSender(
+                session, properties.webSocket().sendBufferSize().toBytes(), writers, framePool, batching);
+            closeDatagramPeer(tunnel);
+            if (flows != null && protocolVersion >= BinaryWsFrame.DATAGRAM_VERSION
+                && datagramTransport.isEnabled()) {
+                final var peer = datagramTransport.register(frame -> routeClientFrame(tunnel, frame));
+                tunnel.datagramPeer = peer;
+                greeting.setDatagramPort(datagramTransport.port());
+                greeting.setDatagramToken(peer.token().toString());
+                greeting.setDatagramKey(Base64.getEncoder().encodeToString(peer.key()));
+            }
+            sender.send(new TextMessage(mapper.writeValueAsString(greeting)));
+            tunnel.protocolVersion = protocolVersion;
+            tunnel.sender = sender;
+            if (!resumed.isEmpty()) {
+                log.info("Net tunnel {} reattached, resuming {} streams", tunnelId, resumed.size());
+            }
+            TcpEngine.Connection pending;
+            while ((pending = tunnel.pendingConnections.poll()) != null) {
+                open(tunnel, pending);
+            }
+        } finally {
+            tunnel.attachLock.unlock();
+        }
+        if (previous != null && previous.session() != session) {
+            // The client reconnected before the proxy noticed the old connection was gone
+            try {
+                previous.session().close(CloseStatus.SERVICE_RESTARTED);
+            } catch (final IOException e) {
+                log.debug("Failed to close replaced net tunnel session: {}", e.toString());
+            }
+        }
+    }
+
+    /**
+     * Sends a message to the client of the given tunnel, in order with the tunnel data.
+     *
+     * @param tunnelId tunnel identifier
+     * @param message  the message
+     */
+    public void sendToClient(final UUID tunnelId, final WebSocketMessage<?> message) {
+        final var tunnel = byTunnelId.get(tunnelId);
+        final var sender = tunnel == null ? null : tunnel.sender;
+        if (sender != null) {
+            sender.send(message);
+        }
     }
 
     /**
-     * Detaches a given WebSocket session from any associated tunnel.
-     * If the specified session is currently linked to a tunnel, the link is severed.
+     * Detaches a closed WebSocket session from its tunnel, unless the client already attached a newer one.
+     * The tunnel is closed once {@code app.reattach.grace-period} passed without the client reconnecting;
+     * until then its public port stays bound, its streams are paused and new public connections are held.
      *
-     * @param session the WebSocket session to detach
+     * @param tunnelId tunnel identifier
+     * @param session  the closed client session
      */
-    public void detachSession(final WebSocketSession session) {
-        for (final var tunnel : byTunnelId.values()) {
-            if (tunnel.session == session) {
-                tunnel.session = null;
-                break;
+    public void detachSession(final UUID tunnelId, final WebSocketSession session) {
+        final var tunnel = byTunnelId.get(tunnelId);
+        if (tunnel == null) {
+            return;
+        }
+        final var reattach = properties.reattach();
+        final var grace = reattach == null || reattach.gracePeriod() == null ? 0 : reattach.gracePeriod().toMillis();
+        tunnel.attachLock.lock();
+        try {
+            final var sender = tunnel.sender;
+            if (sender != null && sender.session() != session) {
+                return;
+            }
+            tunnel.sender = null;
+            closeDatagramPeer(tunnel);
+            if (grace <= 0) {
+                closeTunnel(tunnelId);
+                return;
+            }
+            tunnel.connections.values().forEach(stream -> stream.connection().pauseReading());
+            tunnel.expiry = reaper.schedule(() -> expire(tunnel), grace, TimeUnit.MILLISECONDS);
+            log.info("Net tunnel {} detached, keeping it for {} ms", tunnelId, grace);
+        } finally {
+            tunnel.attachLock.unlock();
+        }
+    }
+
+    private void expire(final Tunnel tunnel) {
+        tunnel.attachLock.lock();
+        try {
+            if (tunnel.sender != null || tunnel.closed) {
+                return;
             }
+            log.info("Net tunnel {} was not reattached in time, closing", tunnel.tunnelId);
+            closeTunnel(tunnel.tunnelId);
+        } finally {
+            tunnel.attachLock.unlock();
         }
     }
 
     /**
      * Closes and removes the entire tunnel identified by the given tunnelId.
-     * This will immediately close the TCP ServerSocket (if any), all accepted TCP
-     * connections, and the UDP DatagramSocket (if any). Any associated WebSocket
+     * This will immediately close the TCP listener (if any), all accepted TCP
+     * connections, and the UDP DatagramChannel (if any). Any associated WebSocket
      * session reference is cleared. The tunnel entry is removed from the registry.
      *
      * @param tunnelId identifier of the tunnel to close
@@ -156,110 +322,150 @@ public class NetTunnelRegistry {
         if (tunnel == null) {
             return;
         }
-        // Close TCP acceptor first so accept loops break
-        final var server = tunnel.serverSocket;
-        if (server != null) {
-            try {
-                server.close();
-            } catch (final Exception e) {
-                log.debug("Failed to close ServerSocket: {}", e.toString());
-            }
+        tunnel.closed = true;
+        final var expiry = tunnel.expiry;
+        if (expiry != null) {
+            expiry.cancel(false);
         }
-        // Close all live TCP connections
-        for (final var entry : tunnel.connections.entrySet()) {
-            final var connection = entry.getValue();
-            try {
-                connection.socket.close();
-            } catch (final Exception e) {
-                log.debug("Failed to close connection {}: {}", entry.getKey(), e.toString());
-            }
+        // Close TCP acceptor first so no new connections come in
+        final var listener = tunnel.listener;
+        if (listener != null) {
+            listener.close();
         }
+        // Close all live TCP connections
+        tunnel.connections.values().forEach(TcpStream::close);
         tunnel.connections.clear();
-        // Close UDP socket
-        final var udp = tunnel.udpSocket;
+        tunnel.streams.clear();
+        TcpEngine.Connection pending;
+        while ((pending = tunnel.pendingConnections.poll()) != null) {
+            pending.close();
+        }
+        // Close UDP channel
+        final var sweep = tunnel.udpSweep;
+        if (sweep != null) {
+            sweep.cancel(false);
+        }
+        final var udp = tunnel.udpChannel;
         if (udp != null) {
             try {
                 udp.close();
             } catch (final Exception e) {
-                log.debug("Failed to close DatagramSocket: {}", e.toString());
+                log.debug("Failed to close DatagramChannel: {}", e.toString());
             }
         }
-        tunnel.udpRemotes.clear();
-        tunnel.session = null;
+        final var flows = tunnel.udpFlows;
+        if (flows != null) {
+            flows.clear();
+        }
+        closeDatagramPeer(tunnel);
+        tunnel.sender = null;
     }
 
-    private void acceptLoop(final Tunnel tunnel) {
-        try {
-            while (!tunnel.serverSocket.isClosed()) {
-                final var socket = tunnel.serverSocket.accept();
-                final var connId = UUID.randomUUID().toString();
-                final var connection = new Connection(connId, socket);
-                tunnel.connections.put(connId, connection);
-                sendOpen(tunnel, connId);
-                // Wait for client OPEN_OK before starting to pump data from public socket
-            }
-        } catch (final Exception e) {
-            log.info("Accept loop ended for tunnel {}: {}", tunnel.tunnelId, e.toString());
+    private void closeDatagramPeer(final Tunnel tunnel) {
+        final var peer = tunnel.datagramPeer;
+        if (peer != null) {
+            peer.close();
+            tunnel.datagramPeer = null;
         }
     }
 
-    private void pumpFromPublic(final Tunnel tunnel, final Connection connection) {
-        final var buffer = new byte[8192];
+    private void udpReceiveLoop(final Tunnel tunnel) {
+        final var channel = tunnel.udpChannel;
+        final var flows = tunnel.udpFlows;
+        final var buffer = ByteBuffer.allocate(65535);
         try {
-            while (true) {
-                final var next = connection.in.read(buffer);
-                if (next == -1) {
-                    break;
+            while (channel.isOpen()) {
+                buffer.clear();
+                final var remote = (InetSocketAddress) channel.receive(buffer);
+                final var peer = tunnel.datagramPeer;
+                final var viaDatagram = peer != null && peer.isActive();
+                final var sender = tunnel.sender;
+                if (!viaDatagram && (sender == null || !sender.isWritable())) {
+                    // Datagrams are dropped rather than queued without bound while the WebSocket is congested
+                    continue;
+                }
+                // The first datagram of a stream id tells the client about the new flow
+                final var flow = flows.inbound(
+                    remote, tunnel.protocolVersion >= BinaryWsFrame.STREAM_ID_VERSION, tunnel.nextStreamId);
+                if (flow == null) {
+                    log.debug("UDP flows of tunnel {} are at the limit, dropping datagram from {}",
+                        tunnel.tunnelId, remote);
+                    continue;
+                }
+                if (!viaDatagram || !peer.send(flow.header(), buffer.array(), 0, buffer.position())) {
+                    sendBinaryToClient(tunnel, flow.header(), buffer.array(), 0, buffer.position());
                 }
-                sendBinaryToClient(tunnel, connection.connectionId, buffer, 0, next);
-            }
-        } catch (final Exception ignore) {
-            log.error("Failed to read from public socket: {}", ignore.toString());
-        } finally {
-            log.info("Public socket closed for tunnel {}: {}", tunnel.tunnelId, connection.connectionId);
-            try {
-                connection.socket.close();
-            } catch (final Exception ignore) {
-                log.error("Failed to close public socket: {}", ignore.toString());
             }
-            tunnel.connections.remove(connection.connectionId);
-            final var message = new WsTunnelMessage();
-            message.setWsType(WsTunnelMessage.Type.CLOSE);
-            message.setConnectionId(connection.connectionId);
-            sendToClient(tunnel, message);
+        } catch (final Exception e) {
+            log.info("UDP receive loop ended for tunnel {}: {}", tunnel.tunnelId, e.toString());
         }
     }
 
-    private void udpReceiveLoop(final Tunnel tunnel) {
-        final var buffer = new byte[65535];
-        try {
-            while (tunnel.udpSocket != null && !tunnel.udpSocket.isClosed()) {
-                final var packet = new DatagramPacket(buffer, buffer.length);
-                tunnel.udpSocket.receive(packet);
-                final var remote = new InetSocketAddress(packet.getAddress(), packet.getPort());
-                final var connectionId = remote.getHostString() + ":" + remote.getPort();
-                tunnel.udpRemotes.putIfAbsent(connectionId, remote);
-                sendBinaryToClient(tunnel, connectionId, packet.getData(), packet.getOffset(), packet.getLength());
+    /**
+     * Forgets the UDP remotes of a tunnel that were idle for longer than {@code app.udp.flow-idle-timeout}
+     * and tells the client, so it can release its local socket of the flow.
+     */
+    private void evictIdleFlows(final Tunnel tunnel) {
+        final var evicted = tunnel.udpFlows.evictIdle();
+        for (final var flow : evicted) {
+            final var message = new WsTunnelMessage();
+            message.setWsType(WsTunnelMessage.Type.CLOSE);
+            message.setConnectionId(flow.connectionId());
+            if (flow.streamId() > 0) {
+                message.setStreamId(flow.streamId());
             }
-        } catch (final Exception e) {
-            log.info("UDP receive loop ended for tunnel {}: {}", tunnel.tunnelId, e.toString());
+            sendToClient(tunnel, message);
+        }
+        if (!evicted.isEmpty()) {
+            log.debug("Evicted {} idle UDP flows of tunnel {}", evicted.size(), tunnel.tunnelId);
         }
     }
 
     /**
      * Called when client acknowledges an OPEN with OPEN_OK. Starts pumping data
      * from the public socket to the client over WebSocket for the given connection.
+     * For a resumed stream the client reports the bytes it received: the stream continues only if no data
+     * was lost with the previous connection, and is closed otherwise.
+     *
+     * @param receivedBytes bytes the client received on a resumed stream, {@code null} for new streams
      */
-    public void onClientOpenOk(final UUID tunnelId, final String connectionId) {
+    public void onClientOpenOk(final UUID tunnelId, final String connectionId, final Long receivedBytes) {
         final var tunnel = byTunnelId.get(tunnelId);
         if (tunnel == null) {
             return;
         }
-        final var connection = tunnel.connections.get(connectionId);
-        if (connection == null) {
+        final var stream = tunnel.connections.get(connectionId);
+        if (stream == null) {
             return;
         }
-        ioPool.execute(() -> pumpFromPublic(tunnel, connection));
+        if (!stream.resuming) {
+            stream.connection().startReading();
+            return;
+        }
+        stream.lock.lock();
+        try {
+            stream.resuming = false;
+            if (receivedBytes == null || receivedBytes != stream.sentBytes.get()) {
+                log.info("Stream {} of tunnel {} lost data while detached, closing it", connectionId, tunnelId);
+                removeStream(tunnel, stream);
+                final var message = new WsTunnelMessage();
+                message.setWsType(WsTunnelMessage.Type.CLOSE);
+                message.setConnectionId(connectionId);
+                sendToClient(tunnel, message);
+                return;
+            }
+            if (stream.window() != null) {
+                // Window updates in flight on the previous connection are lost, both sides start over
+                stream.window().reset();
+            }
+            for (final var data : stream.parked) {
+                sendData(tunnel, stream, data, 0, data.length);
+            }
+            stream.parked.clear();
+        } finally {
+            stream.lock.unlock();
+        }
+        resumeIfReady(tunnel, stream);
     }
 
     /**
@@ -271,36 +477,59 @@ public class NetTunnelRegistry {
         if (tunnel == null) {
             return;
         }
-        final var connection = tunnel.connections.get(connectionId);
-        if (connection == null) {
+        final var stream = tunnel.connections.get(connectionId);
+        if (stream == null) {
             return;
         }
         try {
-            connection.out.write(Base64.getDecoder().decode(dataB64));
-            connection.out.flush();
+            stream.connection().write(ByteBuffer.wrap(Base64.getDecoder().decode(dataB64)));
         } catch (final IOException e) {
             log.debug("Failed to write to public socket: {}", e.toString());
         }
     }
 
     /**
-     * Handles incoming binary WebSocket frames from the client. Data is routed directly
-     * to the corresponding public TCP socket without base64 encoding.
+     * Handles incoming binary WebSocket frames from the client, decoded in the format negotiated for
+     * the tunnel. Data is routed directly to the corresponding public TCP socket or UDP remote without
+     * base64 encoding; a WINDOW_UPDATE grants credit that may resume reading from a public socket.
+     * The frames packed into a BATCH frame are routed one by one.
      */
-    public void onClientBinaryBytes(final UUID tunnelId, final String connectionId, final byte[] data) {
+    public void onClientFrame(final UUID tunnelId, final ByteBuffer frame) {
         final var tunnel = byTunnelId.get(tunnelId);
         if (tunnel == null) {
             return;
         }
+        if (tunnel.protocolVersion >= BinaryWsFrame.BATCH_VERSION && BinaryWsFrame.isBatch(frame)) {
+            final var records = BinaryWsFrame.splitBatch(frame);
+            if (records == null) {
+                log.debug("Dropping malformed batch frame for tunnel {}", tunnelId);
+                return;
+            }
+            for (final var record : records) {
+                routeClientFrame(tunnel, record);
+            }
+            return;
+        }
+        routeClientFrame(tunnel, frame);
+    }
+
+    private void routeClientFrame(final Tunnel tunnel, final ByteBuffer frame) {
+        final var streamIds = tunnel.protocolVersion >= BinaryWsFrame.STREAM_ID_VERSION;
+        final var decoded = streamIds ? BinaryWsFrame.decodeStream(frame) : BinaryWsFrame.decode(frame);
+        if (decoded == null) {
+            return;
+        }
         // If UDP is active on this tunnel, route as a datagram
-        if (tunnel.udpSocket != null) {
-            final var remote = tunnel.udpRemotes.get(connectionId);
-            if (remote == null) {
+        if (tunnel.udpChannel != null) {
+            final var flow = streamIds
+                ? tunnel.udpFlows.byStream(decoded.streamId())
+                : tunnel.udpFlows.byConnectionId(decoded.connectionId());
+            if (flow == null || decoded.isWindowUpdate()) {
                 return;
             }
             try {
-                final var packet = new DatagramPacket(data, 0, data.length, remote);
-                tunnel.udpSocket.send(packet);
+                flow.touch();
+                tunnel.udpChannel.send(decoded.data(), flow.remote());
             } catch (final IOException e) {
                 log.debug("Failed to send UDP packet: {}", e.toString());
             }
@@ -308,13 +537,22 @@ public class NetTunnelRegistry {
         }
 
         // Else assume TCP
-        final var connection = tunnel.connections.get(connectionId);
-        if (connection == null) {
+        final var stream = streamIds
+            ? tunnel.streams.get(decoded.streamId())
+            : tunnel.connections.get(decoded.connectionId());
+        if (stream == null || stream.resuming) {
+            // A client that cannot resume a stream closes it without confirming; its data is dropped
+            return;
+        }
+        if (decoded.isWindowUpdate()) {
+            if (stream.window() != null && stream.window().grant(decoded.windowIncrement())) {
+                resumeIfReady(tunnel, stream);
+            }
             return;
         }
         try {
-            connection.out.write(data);
-            connection.out.flush();
+            stream.receivedBytes.addAndGet(decoded.data().remaining());
+            stream.connection().write(decoded.data());
         } catch (final IOException e) {
             log.debug("Failed to write to public socket: {}", e.toString());
         }
@@ -332,83 +570,292 @@ public class NetTunnelRegistry {
         if (tunnel == null) {
             return;
         }
-        if (tunnel.udpSocket != null) {
-            // Just remove mapping; no need to close the UDP socket itself
-            tunnel.udpRemotes.remove(connectionId);
+        if (tunnel.udpChannel != null) {
+            // Just remove mapping; no need to close the UDP channel itself
+            final var flow = tunnel.udpFlows.byConnectionId(connectionId);
+            if (flow != null) {
+                tunnel.udpFlows.remove(flow);
+            }
         } else {
-            final var connection = tunnel.connections.remove(connectionId);
-            if (connection != null) {
-                try {
-                    connection.socket.close();
-                } catch (final IOException ignore) {
-                    log.error("Failed to close public socket: {}", ignore.toString());
-                }
+            final var stream = tunnel.connections.get(connectionId);
+            if (stream != null) {
+                removeStream(tunnel, stream);
             }
         }
     }
 
-    private void sendOpen(final Tunnel tunnel, final String connId) {
+    private void removeStream(final Tunnel tunnel, final TcpStream stream) {
+        tunnel.connections.remove(stream.connection().connectionId());
+        tunnel.streams.remove(stream.streamId());
+        stream.close();
+    }
+
+    private void sendOpen(final Tunnel tunnel, final TcpStream stream) {
         final var message = new WsTunnelMessage();
         message.setWsType(WsTunnelMessage.Type.OPEN);
-        message.setConnectionId(connId);
+        message.setConnectionId(stream.connection().connectionId());
+        if (tunnel.protocolVersion >= BinaryWsFrame.STREAM_ID_VERSION) {
+            message.setStreamId(stream.streamId());
+        }
         sendToClient(tunnel, message);
     }
 
     private void sendToClient(final Tunnel tunnel, final WsTunnelMessage message) {
+        final var sender = tunnel.sender;
+        if (sender == null) {
+            return;
+        }
         try {
-            if (tunnel.session != null && tunnel.session.isOpen()) {
-                tunnel.session.sendMessage(new TextMessage(mapper.writeValueAsString(message)));
-            }
+            sender.send(new TextMessage(mapper.writeValueAsString(message)));
         } catch (final IOException e) {
             log.debug("Failed to send to client: {}", e.toString());
         }
     }
 
     private void sendBinaryToClient(final Tunnel tunnel,
-                                    final String connectionId,
+                                    final byte[] header,
                                     final byte[] bytes,
                                     final int offset,
                                     final int length) {
-        try {
-            if (tunnel.session != null && tunnel.session.isOpen()) {
-                final var payload = BinaryWsFrame.encodeToByteBuffer(connectionId, bytes, offset, length);
-                tunnel.session.sendMessage(new BinaryMessage(payload));
+        final var sender = tunnel.sender;
+        if (sender != null) {
+            sender.sendFrame(BinaryWsFrame.encode(framePool, header, bytes, offset, length));
+        }
+    }
+
+    /**
+     * Sends data of a TCP stream and counts it, so a resume can tell whether the client got all of it.
+     */
+    private void sendData(final Tunnel tunnel,
+                          final TcpStream stream,
+                          final byte[] data,
+                          final int offset,
+                          final int length) {
+        sendBinaryToClient(tunnel, stream.header(), data, offset, length);
+        stream.sentBytes.addAndGet(length);
+    }
+
+    /**
+     * Resumes reading from a public connection once the client has granted credit and the tunnel
+     * WebSocket is not congested.
+     */
+    private void resumeIfReady(final Tunnel tunnel, final TcpStream stream) {
+        final var sender = tunnel.sender;
+        final var window = stream.window();
+        if ((sender == null || sender.isWritable()) && (window == null || window.hasCredit())) {
+            stream.connection().resumeReading();
+        }
+    }
+
+    /**
+     * Bridges the public connections of one tunnel to its client. With clients speaking
+     * {@link BinaryWsFrame#FLOW_CONTROL_VERSION} every connection also pauses once the client has
+     * not consumed a window of its data, and grants the client credit as its data reaches the public peer.
+     */
+    private final class TcpHandler implements TcpEngine.Handler {
+
+        private final Tunnel tunnel;
+
+        private TcpHandler(final Tunnel tunnel) {
+            this.tunnel = tunnel;
+        }
+
+        @Override
+        public void onAccepted(final TcpEngine.Connection connection) {
+            tunnel.attachLock.lock();
+            try {
+                if (tunnel.sender == null) {
+                    // Held until a client attaches; the peer sees a connection that has not sent data yet
+                    final var reattach = properties.reattach();
+                    final var max = reattach == null ? 0 : reattach.maxPendingConnections();
+                    if (tunnel.pendingConnections.size() < max) {
+                        tunnel.pendingConnections.add(connection);
+                    } else {
+                        log.debug("No client attached to tunnel {}, closing {}", tunnel.tunnelId,
+                            connection.connectionId());
+                        connection.close();
+                    }
+                    return;
+                }
+            } finally {
+                tunnel.attachLock.unlock();
             }
-        } catch (final IOException e) {
-            log.debug("Failed to send binary to client: {}", e.toString());
+            open(tunnel, connection);
+        }
+
+        @Override
+        public void onData(final TcpEngine.Connection connection,
+                           final byte[] data,
+                           final int offset,
+                           final int length) {
+            final var stream = tunnel.connections.get(connection.connectionId());
+            if (stream == null) {
+                return;
+            }
+            if (tunnel.sender == null || stream.resuming) {
+                // Read before the pause took effect: kept for the stream's resume
+                stream.lock.lock();
+                try {
+                    if (tunnel.sender == null || stream.resuming) {
+                        stream.parked.add(Arrays.copyOfRange(data, offset, offset + length));
+                        connection.pauseReading();
+                        return;
+                    }
+                } finally {
+                    stream.lock.unlock();
+                }
+            }
+            sendData(tunnel, stream, data, offset, length);
+            final var hasCredit = stream.window() == null || stream.window().acquire(length);
+            final var sender = tunnel.sender;
+            final var congested = sender != null && !sender.isWritable();
+            if (hasCredit && !congested) {
+                return;
+            }
+            connection.pauseReading();
+            if (congested) {
+                sender.whenWritable(() -> resumeIfReady(tunnel, stream));
+            } else {
+                // Credit may have been granted between the check and the pause
+                resumeIfReady(tunnel, stream);
+            }
+        }
+
+        @Override
+        public void onWritten(final TcpEngine.Connection connection, final int bytes) {
+            final var stream = tunnel.connections.get(connection.connectionId());
+            if (stream == null || stream.window() == null) {
+                return;
+            }
+            final var increment = stream.window().delivered(bytes);
+            final var sender = tunnel.sender;
+            if (increment > 0 && sender != null) {
+                final var frame = tunnel.protocolVersion >= BinaryWsFrame.STREAM_ID_VERSION
+                    ? BinaryWsFrame.encodeStreamWindowUpdate(stream.streamId(), increment)
+                    : BinaryWsFrame.encodeWindowUpdate(connection.connectionId(), increment);
+                sender.send(new BinaryMessage(frame));
+            }
+        }
+
+        @Override
+        public void onClosed(final TcpEngine.Connection connection) {
+            log.info("Public socket closed for tunnel {}: {}", tunnel.tunnelId, connection.connectionId());
+            if (tunnel.pendingConnections.remove(connection)) {
+                return;
+            }
+            final var stream = tunnel.connections.remove(connection.connectionId());
+            if (stream != null) {
+                tunnel.streams.remove(stream.streamId());
+                if (stream.window() != null) {
+                    stream.window().close();
+                }
+            }
+            final var message = new WsTunnelMessage();
+            message.setWsType(WsTunnelMessage.Type.CLOSE);
+            message.setConnectionId(connection.connectionId());
+            sendToClient(tunnel, message);
         }
     }
 
+    /**
+     * Registers an accepted public connection as a stream and announces it to the client.
+     */
+    private void open(final Tunnel tunnel, final TcpEngine.Connection connection) {
+        final var window = tunnel.protocolVersion >= BinaryWsFrame.FLOW_CONTROL_VERSION
+            ? new FlowWindow(BinaryWsFrame.INITIAL_WINDOW)
+            : null;
+        final var streamId = tunnel.nextStreamId.incrementAndGet();
+        final var header = BinaryWsFrame.dataHeader(connection.connectionId(),
+            tunnel.protocolVersion >= BinaryWsFrame.STREAM_ID_VERSION ? streamId : 0);
+        final var stream = new TcpStream(connection, streamId, header, window);
+        tunnel.connections.put(connection.connectionId(), stream);
+        tunnel.streams.put(stream.streamId(), stream);
+        // The client answers with OPEN_OK, which starts reading from the public connection
+        sendOpen(tunnel, stream);
+    }
+
     @Data
     public static class ExposedPort {
         private final int port;
     }
 
+    /**
+     * A public TCP connection with its stream id, the header of its data frames and its flow control
+     * window, {@code null} for legacy clients. The payload bytes exchanged with the client are counted,
+     * so that resuming the stream on a new client connection can check that nothing was lost.
+     */
+    private static final class TcpStream {
+
+        private final TcpEngine.Connection connection;
+        private final int streamId;
+        private final byte[] header;
+        private final FlowWindow window;
+        private final AtomicLong sentBytes = new AtomicLong();
+        private final AtomicLong receivedBytes = new AtomicLong();
+        private final ReentrantLock lock = new ReentrantLock();
+        // Data read while no client was attached; guarded by lock
+        private final List<byte[]> parked = new ArrayList<>();
+        // Set from a reattach until the client confirmed the stream
+        private volatile boolean resuming;
+
+        private TcpStream(final TcpEngine.Connection connection,
+                          final int streamId,
+                          final byte[] header,
+                          final FlowWindow window) {
+            this.connection = connection;
+            this.streamId = streamId;
+            this.header = header;
+            this.window = window;
+        }
+
+        TcpEngine.Connection connection() {
+            return connection;
+        }
+
+        int streamId() {
+            return streamId;
+        }
+
+        byte[] header() {
+            return header;
+        }
+
+        FlowWindow window() {
+            return window;
+        }
+
+        void close() {
+            connection.close();
+            if (window != null) {
+                window.close();
+            }
+        }
+    }
+
     @Data
     private static class Tunnel {
         private final UUID tunnelId;
-        private volatile WebSocketSession session;
-        private volatile ServerSocket serverSocket;
-        private final Map<String, Connection> connections = new ConcurrentHashMap<>();
-        private volatile DatagramSocket udpSocket;
-        private final Map<String, InetSocketAddress> udpRemotes = new ConcurrentHashMap<>();
+        private volatile NetTunnelSender sender;
+        private volatile int protocolVersion = BinaryWsFrame.LEGACY_VERSION;
+        private volatile TcpEngine.Listener listener;
+        private final Map<String, TcpStream> connections = new ConcurrentHashMap<>();
+        private final Map<Integer, TcpStream> streams = new ConcurrentHashMap<>();
+        // Stream ids of TCP connections and UDP flows, used from STREAM_ID_VERSION on
+        private final AtomicInteger nextStreamId = new AtomicInteger();
+        private volatile DatagramChannel udpChannel;
+        private volatile UdpFlowTable udpFlows;
+        private volatile ScheduledFuture<?> udpSweep;
+        // Datagram path of the attached session, null unless the client may use it
+        private volatile DatagramTransport.Peer datagramPeer;
+        // Serializes attaching and detaching clients with accepting connections
+        private final ReentrantLock attachLock = new ReentrantLock();
+        // Connections accepted while no client was attached
+        private final Queue<TcpEngine.Connection> pendingConnections = new ConcurrentLinkedQueue<>();
+        private volatile ScheduledFuture<?> expiry;
+        private volatile boolean closed;
 
         Tunnel(final UUID tunnelId) {
             this.tunnelId = tunnelId;
         }
     }
-
-    private static class Connection {
-        final String connectionId;
-        final Socket socket;
-        final java.io.InputStream in;
-        final java.io.OutputStream out;
-
-        Connection(final String connectionId, final Socket socket) throws IOException {
-            this.connectionId = connectionId;
-            this.socket = socket;
-            this.in = socket.getInputStream();
-            this.out = socket.getOutputStream();
-        }
-    }
 }
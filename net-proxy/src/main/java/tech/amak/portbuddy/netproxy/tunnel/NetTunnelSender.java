@@ -0,0 +1,268 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.common.tunnel.BinaryWsFrame;
+import tech.amak.portbuddy.common.tunnel.FrameBufferPool;
+import tech.amak.portbuddy.netproxy.config.AppProperties;
+
+/**
+ * Outbound queue of a net tunnel WebSocket session with a single writer, so that socket readers
+ * (including selector loops) never block on the WebSocket and never send concurrently.
+ * Messages are always accepted; once the queued bytes exceed the budget the session reports itself
+ * as not writable and readers pause until the registered {@link #whenWritable} callbacks run.
+ * Frames queued with {@link #sendFrame} go back to the frame pool once written.
+ * With batching, the writer packs consecutive small binary frames into one {@link BinaryWsFrame#BATCH}
+ * frame: frames queued while the previous message was being written cost no extra latency; waiting for
+ * more frames is optional and bounded by {@code window} per frame and {@code max-delay} per batch.
+ */
+@Slf4j
+final class NetTunnelSender {
+
+    private final WebSocketSession session;
+    private final long budgetBytes;
+    private final Executor executor;
+    private final FrameBufferPool framePool;
+    private final AppProperties.WebSocket.Batching batching;
+
+    private final Queue<Outbound> queue = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> writableCallbacks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean failed;
+    // Writer only: bytes of the frames packed into the batch being written
+    private long batchedBytes;
+
+    /**
+     * Creates the sender.
+     *
+     * @param batching batching settings, or {@code null} if the client does not accept batches
+     */
+    NetTunnelSender(final WebSocketSession session,
+                    final long budgetBytes,
+                    final Executor executor,
+                    final FrameBufferPool framePool,
+                    final AppProperties.WebSocket.Batching batching) {
+        this.session = session;
+        this.budgetBytes = budgetBytes;
+        this.executor = executor;
+        this.framePool = framePool;
+        this.batching = batching != null && batching.enabled() ? batching : null;
+    }
+
+    WebSocketSession session() {
+        return session;
+    }
+
+    /**
+     * Queues a message without waiting. Messages queued after a send failure are dropped.
+     *
+     * @param message the message to send
+     */
+    void send(final WebSocketMessage<?> message) {
+        enqueue(new Outbound(message, false, System.nanoTime()));
+    }
+
+    /**
+     * Queues a binary frame obtained from the frame pool, which gets it back once written.
+     *
+     * @param frame the encoded frame
+     */
+    void sendFrame(final ByteBuffer frame) {
+        enqueue(new Outbound(new BinaryMessage(frame), true, System.nanoTime()));
+    }
+
+    private void enqueue(final Outbound outbound) {
+        if (failed) {
+            return;
+        }
+        queuedBytes.addAndGet(outbound.message().getPayloadLength());
+        queue.add(outbound);
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Whether the queued bytes are below the budget.
+     */
+    boolean isWritable() {
+        return failed || queuedBytes.get() < budgetBytes;
+    }
+
+    /**
+     * Runs the callback once the queue drained below the budget; immediately if it already is.
+     *
+     * @param callback the callback, e.g. resuming a paused reader
+     */
+    void whenWritable(final Runnable callback) {
+        writableCallbacks.add(callback);
+        if (isWritable()) {
+            runWritableCallbacks();
+        }
+    }
+
+    private void drain() {
+        do {
+            try {
+                Outbound outbound;
+                while ((outbound = queue.poll()) != null) {
+                    final var batch = batching == null ? null : coalesce(outbound);
+                    if (batch == null) {
+                        write(outbound);
+                    } else {
+                        writeBatch(batch);
+                    }
+                    if (!writableCallbacks.isEmpty() && isWritable()) {
+                        runWritableCallbacks();
+                    }
+                }
+            } finally {
+                draining.set(false);
+            }
+            // A message may have been queued after the last poll but before the flag was cleared
+        } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Packs the frame and the small binary frames queued behind it into a batch.
+     *
+     * @return the batch, or {@code null} if no other frame could be packed with the first one
+     */
+    private ByteBuffer coalesce(final Outbound first) {
+        if (!isBatchable(first)) {
+            return null;
+        }
+        var next = nextBatchable(first);
+        if (next == null) {
+            return null;
+        }
+        final var batch = framePool.acquire((int) batching.maxSize().toBytes());
+        BinaryWsFrame.startBatch(batch);
+        pack(batch, first);
+        while (next != null
+               && batch.remaining() >= BinaryWsFrame.batchRecordLength(next.message().getPayloadLength())) {
+            queue.poll();
+            pack(batch, next);
+            next = nextBatchable(first);
+        }
+        return batch.flip();
+    }
+
+    private Outbound nextBatchable(final Outbound first) {
+        var next = queue.peek();
+        if (next == null && batching.window() != null && !batching.window().isZero()) {
+            final var maxDelay = batching.maxDelay() == null ? 0 : batching.maxDelay().toNanos();
+            final var deadline = first.enqueuedNanos() + maxDelay;
+            final var wait = Math.min(batching.window().toNanos(), deadline - System.nanoTime());
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                next = queue.peek();
+            }
+        }
+        return next != null && isBatchable(next) ? next : null;
+    }
+
+    /**
+     * Small binary frames are batched: up to a quarter of the batch size.
+     */
+    private boolean isBatchable(final Outbound outbound) {
+        return outbound.message() instanceof BinaryMessage
+               && outbound.message().getPayloadLength() <= batching.maxSize().toBytes() / 4;
+    }
+
+    private void pack(final ByteBuffer batch, final Outbound outbound) {
+        final var frame = (ByteBuffer) outbound.message().getPayload();
+        BinaryWsFrame.appendBatchRecord(batch, frame);
+        batchedBytes += outbound.message().getPayloadLength();
+        if (outbound.pooled()) {
+            framePool.release(frame);
+        }
+    }
+
+    private void writeBatch(final ByteBuffer batch) {
+        try {
+            if (!failed && session.isOpen()) {
+                session.sendMessage(new BinaryMessage(batch));
+            }
+        } catch (final IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            queuedBytes.addAndGet(-batchedBytes);
+            batchedBytes = 0;
+            framePool.release(batch);
+        }
+    }
+
+    private void write(final Outbound outbound) {
+        final var message = outbound.message();
+        try {
+            if (!failed && session.isOpen()) {
+                session.sendMessage(message);
+            }
+        } catch (final IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            queuedBytes.addAndGet(-message.getPayloadLength());
+            if (outbound.pooled()) {
+                framePool.release((ByteBuffer) message.getPayload());
+            }
+        }
+    }
+
+    private void runWritableCallbacks() {
+        Runnable callback;
+        while ((callback = writableCallbacks.poll()) != null) {
+            try {
+                callback.run();
+            } catch (final RuntimeException e) {
+                log.debug("Writable callback failed: {}", e.toString());
+            }
+        }
+    }
+
+    private void fail(final Exception error) {
+        if (failed) {
+            return;
+        }
+        failed = true;
+        log.warn("Net tunnel session {} send failed, closing: {}", session.getId(), error.toString());
+        queue.clear();
+        runWritableCallbacks();
+        try {
+            session.close(CloseStatus.SERVER_ERROR);
+        } catch (final IOException e) {
+            log.debug("Failed to close net tunnel session {}: {}", session.getId(), e.toString());
+        }
+    }
+
+    private record Outbound(WebSocketMessage<?> message, boolean pooled, long enqueuedNanos) {
+    }
+}
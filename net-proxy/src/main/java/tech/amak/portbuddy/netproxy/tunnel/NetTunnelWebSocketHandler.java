@@ -87,19 +87,20 @@ public class NetTunnelWebSocketHandler extends AbstractWebSocketHandler {
             return;
         }
         // TODO: validate Authorization header/JWT
-        registry.attachSession(tunnelId, session);
-        log.info("Net tunnel WS established: {} type={} port={}", tunnelId, tunnelType, desiredPort);
+        final var protocolVersion = BinaryWsFrame.negotiateVersion(
+            session.getHandshakeHeaders().getFirst(BinaryWsFrame.PROTOCOL_HEADER));
 
         // Inform client about actual public details in case port was re-assigned
-        try {
-            final var info = new WsTunnelMessage();
-            info.setWsType(WsTunnelMessage.Type.EXPOSED);
-            info.setPublicHost(properties.publicHost());
-            info.setPublicPort(exposedPort.getPort());
-            session.sendMessage(new TextMessage(mapper.writeValueAsString(info)));
-        } catch (final Exception e) {
-            log.debug("Failed to send EXPOSED info: {}", e.toString());
+        final var info = new WsTunnelMessage();
+        info.setWsType(WsTunnelMessage.Type.EXPOSED);
+        info.setPublicHost(properties.publicHost());
+        info.setPublicPort(exposedPort.getPort());
+        if (protocolVersion > BinaryWsFrame.LEGACY_VERSION) {
+            info.setProtocolVersion(protocolVersion);
         }
+        registry.attachSession(tunnelId, session, protocolVersion, info);
+        log.info("Net tunnel WS established: {} type={} port={} protocol={}",
+            tunnelId, tunnelType, desiredPort, protocolVersion);
     }
 
     @Override
@@ -114,14 +115,15 @@ public class NetTunnelWebSocketHandler extends AbstractWebSocketHandler {
                 final var pong = new ControlMessage();
                 pong.setType(ControlMessage.Type.PONG);
                 pong.setTs(System.currentTimeMillis());
-                session.sendMessage(new TextMessage(mapper.writeValueAsString(pong)));
+                registry.sendToClient(tunnelId, new TextMessage(mapper.writeValueAsString(pong)));
             }
             return;
         }
         if (env.getKind() != null && env.getKind().equals("WS")) {
             final var message = mapper.readValue(payload, WsTunnelMessage.class);
             switch (message.getWsType()) {
-                case OPEN_OK -> registry.onClientOpenOk(tunnelId, message.getConnectionId());
+                case OPEN_OK -> registry.onClientOpenOk(
+                    tunnelId, message.getConnectionId(), message.getReceivedBytes());
                 case BINARY -> {
                     // Backward compatibility: accept base64 text payloads
                     registry.onClientBinary(tunnelId, message.getConnectionId(), message.getDataB64());
@@ -137,25 +139,19 @@ public class NetTunnelWebSocketHandler extends AbstractWebSocketHandler {
     @Override
     protected void handleBinaryMessage(final WebSocketSession session, final BinaryMessage message) {
         final var tunnelId = extractTunnelId(session);
-        final var decoded = BinaryWsFrame.decode(message.getPayload());
-        if (decoded == null) {
-            return;
-        }
-        registry.onClientBinaryBytes(tunnelId, decoded.connectionId(), decoded.data());
+        registry.onClientFrame(tunnelId, message.getPayload());
     }
 
     @Override
     public void afterConnectionClosed(final WebSocketSession session, final CloseStatus status) {
-        // Detach session and close exposed sockets for this tunnel immediately
+        // Detach the session; the exposed sockets are kept for the grace period so the client can reattach
         try {
             final var tunnelId = extractTunnelId(session);
             if (tunnelId != null) {
-                registry.closeTunnel(tunnelId);
+                registry.detachSession(tunnelId, session);
             }
         } catch (final Exception e) {
-            log.debug("Failed to close tunnel on WS close: {}", e.toString());
-        } finally {
-            registry.detachSession(session);
+            log.debug("Failed to detach tunnel on WS close: {}", e.toString());
         }
     }
 
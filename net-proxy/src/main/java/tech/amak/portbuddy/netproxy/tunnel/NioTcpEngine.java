@@ -0,0 +1,433 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * TCP engine built on non-blocking channels: a fixed number of selector loops accept, read and
+ * write for the listeners and connections of all tunnels. Listeners and connections are assigned
+ * to loops round-robin and stay on their loop. Handler callbacks run on the loop thread and must not
+ * block; writes from other threads are attempted directly and the remainder is queued for the loop.
+ * Writers block only once {@link TcpEngine#MAX_PENDING_WRITE_BYTES} are queued, so the loop itself
+ * must not write to connections.
+ */
+@Slf4j
+public class NioTcpEngine implements TcpEngine {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Starts the selector loops.
+     *
+     * @param threads number of selector loops
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioTcpEngine(final int threads) throws IOException {
+        loops = new EventLoop[Math.max(1, threads)];
+        for (var i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("net-proxy-nio-" + i);
+        }
+        for (final var loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    @Override
+    public Listener listen(final Integer desiredPort, final Handler handler) throws IOException {
+        final var channel = ServerSocketChannel.open();
+        try {
+            if (desiredPort != null && desiredPort > 0) {
+                try {
+                    channel.bind(new InetSocketAddress(desiredPort));
+                } catch (final IOException bindEx) {
+                    // Requested port is busy; fallback to a random available port
+                    log.info("TCP port {} is busy. Falling back to a random port.", desiredPort);
+                    channel.bind(new InetSocketAddress(0));
+                }
+            } else {
+                channel.bind(new InetSocketAddress(0));
+            }
+            channel.configureBlocking(false);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        final var listener = new NioListener(channel, handler, nextLoop());
+        listener.loop.execute(() -> listener.loop.register(channel, SelectionKey.OP_ACCEPT, listener));
+        return listener;
+    }
+
+    @Override
+    public void close() {
+        for (final var loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private EventLoop nextLoop() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Selector thread with a queue of tasks that must run on it.
+     */
+    private static final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean running = true;
+
+        private EventLoop(final String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void execute(final Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+                return;
+            }
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(final SelectableChannel channel, final int ops, final Object attachment) {
+            try {
+                channel.register(selector, ops, attachment);
+            } catch (final ClosedChannelException e) {
+                log.debug("Channel closed before registration: {}", e.toString());
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    final var keys = selector.selectedKeys();
+                    for (final var key : keys) {
+                        dispatch(key);
+                    }
+                    keys.clear();
+                } catch (final Exception e) {
+                    log.warn("Selector loop {} iteration failed: {}", thread.getName(), e.toString());
+                }
+            }
+            for (final var key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (final IOException e) {
+                    log.debug("Failed to close channel: {}", e.toString());
+                }
+            }
+            try {
+                selector.close();
+            } catch (final IOException e) {
+                log.debug("Failed to close selector: {}", e.toString());
+            }
+        }
+
+        private void dispatch(final SelectionKey key) {
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.attachment() instanceof NioListener listener) {
+                    if (key.isAcceptable()) {
+                        listener.accept();
+                    }
+                    return;
+                }
+                final var connection = (NioConnection) key.attachment();
+                if (key.isWritable()) {
+                    connection.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read(readBuffer);
+                }
+            } catch (final CancelledKeyException e) {
+                log.debug("Key cancelled: {}", e.toString());
+            }
+        }
+    }
+
+    private final class NioListener implements Listener {
+
+        private final ServerSocketChannel channel;
+        private final Handler handler;
+        private final EventLoop loop;
+        private final int port;
+
+        private NioListener(final ServerSocketChannel channel, final Handler handler, final EventLoop loop)
+            throws IOException {
+            this.channel = channel;
+            this.handler = handler;
+            this.loop = loop;
+            this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
+
+        @Override
+        public int port() {
+            return port;
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                log.debug("Failed to close ServerSocketChannel: {}", e.toString());
+            }
+            loop.selector.wakeup();
+        }
+
+        private void accept() {
+            SocketChannel socket;
+            try {
+                while ((socket = channel.accept()) != null) {
+                    socket.configureBlocking(false);
+                    socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    final var connection = new NioConnection(UUID.randomUUID().toString(), socket, handler, nextLoop());
+                    // Wait for client OPEN_OK before registering for reads
+                    handler.onAccepted(connection);
+                }
+            } catch (final IOException e) {
+                log.info("Accept on port {} failed: {}", port, e.toString());
+            }
+        }
+    }
+
+    private static final class NioConnection implements Connection {
+
+        private final String connectionId;
+        private final SocketChannel channel;
+        private final Handler handler;
+        private final EventLoop loop;
+        // Data not yet written to the channel; guarded by this
+        private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private long pendingBytes;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // Loop thread only
+        private SelectionKey key;
+        private boolean reading;
+        private boolean paused;
+
+        private NioConnection(final String connectionId,
+                              final SocketChannel channel,
+                              final Handler handler,
+                              final EventLoop loop) {
+            this.connectionId = connectionId;
+            this.channel = channel;
+            this.handler = handler;
+            this.loop = loop;
+        }
+
+        @Override
+        public String connectionId() {
+            return connectionId;
+        }
+
+        @Override
+        public void startReading() {
+            loop.execute(() -> {
+                reading = true;
+                updateInterest();
+            });
+        }
+
+        @Override
+        public void pauseReading() {
+            loop.execute(() -> {
+                paused = true;
+                updateInterest();
+            });
+        }
+
+        @Override
+        public void resumeReading() {
+            loop.execute(() -> {
+                paused = false;
+                updateInterest();
+            });
+        }
+
+        @Override
+        public void write(final ByteBuffer buffer) throws IOException {
+            if (closed.get()) {
+                throw new ClosedChannelException();
+            }
+            var written = 0;
+            var queued = false;
+            synchronized (this) {
+                try {
+                    while (pendingBytes >= MAX_PENDING_WRITE_BYTES && !closed.get()) {
+                        wait();
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for queued writes");
+                }
+                if (closed.get()) {
+                    throw new ClosedChannelException();
+                }
+                if (pendingWrites.isEmpty()) {
+                    // Fast path: write directly, the loop only takes over what the socket did not accept
+                    written = channel.write(buffer);
+                }
+                if (buffer.hasRemaining()) {
+                    // Only what the socket did not take is copied, the caller reuses the buffer
+                    final var copy = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                    pendingWrites.add(copy);
+                    pendingBytes += copy.remaining();
+                    queued = true;
+                }
+            }
+            if (written > 0) {
+                handler.onWritten(this, written);
+            }
+            if (queued) {
+                loop.execute(this::updateInterest);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                closeChannel();
+            }
+        }
+
+        private void read(final ByteBuffer buffer) {
+            try {
+                buffer.clear();
+                final var read = channel.read(buffer);
+                if (read == -1) {
+                    closeByPeer();
+                    return;
+                }
+                if (read > 0) {
+                    handler.onData(this, buffer.array(), 0, read);
+                }
+            } catch (final IOException e) {
+                log.debug("Failed to read from public socket {}: {}", connectionId, e.toString());
+                closeByPeer();
+            }
+        }
+
+        private void flush() {
+            try {
+                var written = 0;
+                synchronized (this) {
+                    ByteBuffer head;
+                    while ((head = pendingWrites.peek()) != null) {
+                        written += channel.write(head);
+                        if (head.hasRemaining()) {
+                            break;
+                        }
+                        pendingWrites.poll();
+                    }
+                    pendingBytes -= written;
+                    notifyAll();
+                }
+                if (written > 0) {
+                    handler.onWritten(this, written);
+                }
+                updateInterest();
+            } catch (final IOException e) {
+                log.debug("Failed to write to public socket {}: {}", connectionId, e.toString());
+                closeByPeer();
+            }
+        }
+
+        private void updateInterest() {
+            if (closed.get()) {
+                return;
+            }
+            final boolean writePending;
+            synchronized (this) {
+                writePending = !pendingWrites.isEmpty();
+            }
+            final var ops = (reading && !paused ? SelectionKey.OP_READ : 0)
+                            | (writePending ? SelectionKey.OP_WRITE : 0);
+            try {
+                if (key == null) {
+                    if (ops == 0) {
+                        return;
+                    }
+                    key = channel.register(loop.selector, ops, this);
+                } else if (key.isValid()) {
+                    key.interestOps(ops);
+                }
+            } catch (final ClosedChannelException | CancelledKeyException e) {
+                log.debug("Connection {} closed while updating interest: {}", connectionId, e.toString());
+            }
+        }
+
+        private void closeByPeer() {
+            if (closed.compareAndSet(false, true)) {
+                closeChannel();
+                handler.onClosed(this);
+            }
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                log.debug("Failed to close public socket {}: {}", connectionId, e.toString());
+            }
+            synchronized (this) {
+                pendingWrites.clear();
+                pendingBytes = 0;
+                notifyAll();
+            }
+        }
+    }
+}
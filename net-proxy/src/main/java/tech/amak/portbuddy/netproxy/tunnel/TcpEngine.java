@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Socket engine serving the public TCP ports of net tunnels: it accepts public connections,
+ * reads from them and writes the data coming from the tunnel client back.
+ * Implementations: {@link BlockingTcpEngine} (a thread per listener and per connection) and
+ * {@link NioTcpEngine} (a fixed set of selector loops for all tunnels).
+ */
+public interface TcpEngine extends Closeable {
+
+    /**
+     * Bytes queued for a public connection above which {@link Connection#write} blocks. Only reached
+     * with tunnel clients that do not use flow control windows, whose data is otherwise unbounded.
+     */
+    int MAX_PENDING_WRITE_BYTES = 1024 * 1024;
+
+    /**
+     * Binds a public TCP port. Falls back to a random port if the desired one is busy.
+     *
+     * @param desiredPort the port to bind, or {@code null}/0 for a random port
+     * @param handler     receives the events of the accepted connections
+     * @return the bound listener
+     * @throws IOException if no port could be bound
+     */
+    Listener listen(Integer desiredPort, Handler handler) throws IOException;
+
+    /**
+     * A bound public port.
+     */
+    interface Listener {
+
+        int port();
+
+        /**
+         * Stops accepting connections. Already accepted connections stay open.
+         */
+        void close();
+    }
+
+    /**
+     * An accepted public connection. All methods may be called from any thread.
+     */
+    interface Connection {
+
+        String connectionId();
+
+        /**
+         * Starts reading from the connection; called once the tunnel client accepted it.
+         */
+        void startReading();
+
+        /**
+         * Stops reading until {@link #resumeReading()}, e.g. while the tunnel WebSocket is congested.
+         */
+        void pauseReading();
+
+        void resumeReading();
+
+        /**
+         * Queues the remaining bytes of the buffer for the public peer; {@link Handler#onWritten} reports
+         * when they left the queue. The buffer may be reused by the caller once this returns, so engines
+         * copy what they cannot write right away. Blocks only while more than
+         * {@link #MAX_PENDING_WRITE_BYTES} are queued.
+         *
+         * @param data the bytes to write
+         * @throws IOException if the connection is broken
+         */
+        void write(ByteBuffer data) throws IOException;
+
+        /**
+         * Closes the connection. {@link Handler#onClosed} is not called for connections closed this way.
+         */
+        void close();
+    }
+
+    /**
+     * Receives the events of the connections accepted by a listener.
+     */
+    interface Handler {
+
+        void onAccepted(Connection connection);
+
+        /**
+         * Data read from the public peer. The array is only valid during the call.
+         */
+        void onData(Connection connection, byte[] data, int offset, int length);
+
+        /**
+         * Data passed to {@link Connection#write} was handed to the socket. May be called on any thread.
+         */
+        void onWritten(Connection connection, int bytes);
+
+        /**
+         * The public peer closed the connection or it failed.
+         */
+        void onClosed(Connection connection);
+    }
+}
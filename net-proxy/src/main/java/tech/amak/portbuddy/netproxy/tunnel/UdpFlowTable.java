@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tech.amak.portbuddy.common.tunnel.BinaryWsFrame;
+
+/**
+ * The UDP flows of one tunnel: a flow is a public remote address that sent datagrams to the tunnel's
+ * port. Flows are addressed by stream id with clients speaking {@link BinaryWsFrame#STREAM_ID_VERSION}
+ * and by a {@code host:port} connection id otherwise; both ids, as well as the header of the flow's data
+ * frames, are computed once per flow. The table is bounded and flows idle for longer than the timeout
+ * are evicted by {@link #evictIdle}.
+ */
+final class UdpFlowTable {
+
+    private final int maxFlows;
+    private final long idleTimeoutNanos;
+    private final Map<InetSocketAddress, Flow> byRemote = new ConcurrentHashMap<>();
+    private final Map<Integer, Flow> byStream = new ConcurrentHashMap<>();
+    private final Map<String, Flow> byConnectionId = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty table.
+     *
+     * @param maxFlows         maximum number of flows; datagrams of further remotes are dropped
+     * @param idleTimeoutNanos time without datagrams in either direction after which a flow is evicted
+     */
+    UdpFlowTable(final int maxFlows, final long idleTimeoutNanos) {
+        this.maxFlows = maxFlows;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    /**
+     * Returns the flow of a remote that sent a datagram, creating it if needed. Called by the tunnel's
+     * single receive loop.
+     *
+     * @param remote    the sender of the datagram
+     * @param streamIds whether the client addresses flows by stream id
+     * @param nextStreamId source of new stream ids
+     * @return the flow, or {@code null} if the table is full
+     */
+    Flow inbound(final InetSocketAddress remote, final boolean streamIds, final AtomicInteger nextStreamId) {
+        var flow = byRemote.get(remote);
+        if (flow == null) {
+            if (byRemote.size() >= maxFlows) {
+                return null;
+            }
+            final var connectionId = remote.getHostString() + ":" + remote.getPort();
+            final var streamId = streamIds ? nextStreamId.incrementAndGet() : 0;
+            flow = new Flow(remote, connectionId, streamId,
+                BinaryWsFrame.dataHeader(streamIds ? null : connectionId, streamId));
+            byRemote.put(remote, flow);
+            byConnectionId.put(connectionId, flow);
+            if (streamIds) {
+                byStream.put(streamId, flow);
+            }
+        }
+        flow.touch();
+        return flow;
+    }
+
+    Flow byStream(final int streamId) {
+        return byStream.get(streamId);
+    }
+
+    Flow byConnectionId(final String connectionId) {
+        return byConnectionId.get(connectionId);
+    }
+
+    void remove(final Flow flow) {
+        byRemote.remove(flow.remote(), flow);
+        byStream.remove(flow.streamId(), flow);
+        byConnectionId.remove(flow.connectionId(), flow);
+    }
+
+    /**
+     * Removes the flows idle for longer than the timeout.
+     *
+     * @return the evicted flows
+     */
+    List<Flow> evictIdle() {
+        final var now = System.nanoTime();
+        final var evicted = new ArrayList<Flow>();
+        for (final var flow : byRemote.values()) {
+            if (now - flow.lastActive > idleTimeoutNanos) {
+                remove(flow);
+                evicted.add(flow);
+            }
+        }
+        return evicted;
+    }
+
+    void clear() {
+        byRemote.clear();
+        byStream.clear();
+        byConnectionId.clear();
+    }
+
+    int size() {
+        return byRemote.size();
+    }
+
+    /**
+     * A public remote of the tunnel.
+     */
+    static final class Flow {
+
+        private final InetSocketAddress remote;
+        private final String connectionId;
+        private final int streamId;
+        private final byte[] header;
+        private volatile long lastActive;
+
+        private Flow(final InetSocketAddress remote,
+                     final String connectionId,
+                     final int streamId,
+                     final byte[] header) {
+            this.remote = remote;
+            this.connectionId = connectionId;
+            this.streamId = streamId;
+            this.header = header;
+        }
+
+        InetSocketAddress remote() {
+            return remote;
+        }
+
+        String connectionId() {
+            return connectionId;
+        }
+
+        /**
+         * Stream id of the flow, 0 for clients addressing flows by connection id.
+         */
+        int streamId() {
+            return streamId;
+        }
+
+        byte[] header() {
+            return header;
+        }
+
+        /**
+         * Records traffic on the flow, keeping it from being evicted.
+         */
+        void touch() {
+            lastActive = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Echo server on a {@link TcpEngine} and non-blocking loopback clients driving it, for the engine
+ * benchmarks.
+ */
+final class EchoLoad implements Closeable {
+
+    private static final int MAX_UNACCEPTED = 32;
+
+    private final TcpEngine.Listener listener;
+    private final Selector selector;
+    private final List<SocketChannel> clients = new ArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+    private EchoLoad(final TcpEngine.Listener listener, final Selector selector) {
+        this.listener = listener;
+        this.selector = selector;
+    }
+
+    /**
+     * Starts echoing on the engine and connects the clients.
+     *
+     * @param engine      the engine under test
+     * @param connections number of client connections
+     * @return the load, once the engine accepted every connection
+     * @throws IOException if a client cannot connect
+     */
+    static EchoLoad start(final TcpEngine engine, final int connections) throws IOException {
+        final var accepted = new AtomicInteger();
+        final var listener = engine.listen(0, new TcpEngine.Handler() {
+            @Override
+            public void onAccepted(final TcpEngine.Connection connection) {
+                accepted.incrementAndGet();
+                connection.startReading();
+            }
+
+            @Override
+            public void onData(final TcpEngine.Connection connection,
+                               final byte[] data,
+                               final int offset,
+                               final int length) {
+                try {
+                    connection.write(ByteBuffer.wrap(data, offset, length));
+                } catch (final IOException e) {
+                    connection.close();
+                }
+            }
+
+            @Override
+            public void onWritten(final TcpEngine.Connection connection, final int bytes) {
+            }
+
+            @Override
+            public void onClosed(final TcpEngine.Connection connection) {
+            }
+        });
+        final var load = new EchoLoad(listener, Selector.open());
+        try {
+            final var address = new InetSocketAddress("127.0.0.1", listener.port());
+            for (var i = 0; i < connections; i++) {
+                // Stay within the listen backlog, connections beyond it wait for SYN retransmits
+                awaitAccepted(accepted, i - MAX_UNACCEPTED);
+                final var client = SocketChannel.open(address);
+                client.configureBlocking(false);
+                client.register(load.selector, SelectionKey.OP_READ, new int[1]);
+                load.clients.add(client);
+            }
+            awaitAccepted(accepted, connections);
+        } catch (final IOException | InterruptedException e) {
+            load.close();
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw e instanceof IOException io ? io : new IOException(e);
+        }
+        return load;
+    }
+
+    private static void awaitAccepted(final AtomicInteger accepted, final int count)
+        throws IOException, InterruptedException {
+        final var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (accepted.get() < count) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException("Accepted only " + accepted.get() + " of " + count + " connections");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Sends the message on every connection and waits until all of them got it back.
+     *
+     * @param message the message
+     * @return number of bytes echoed
+     * @throws IOException if a connection fails
+     */
+    long roundTrip(final byte[] message) throws IOException {
+        for (final var key : selector.keys()) {
+            final var buffer = ByteBuffer.wrap(message);
+            while (buffer.hasRemaining()) {
+                ((SocketChannel) key.channel()).write(buffer);
+            }
+            ((int[]) key.attachment())[0] = message.length;
+        }
+        var waiting = clients.size();
+        while (waiting > 0) {
+            if (selector.select(TimeUnit.SECONDS.toMillis(10)) == 0) {
+                throw new IOException(waiting + " connections did not echo");
+            }
+            for (final var key : selector.selectedKeys()) {
+                final var remaining = (int[]) key.attachment();
+                readBuffer.clear();
+                final var read = ((SocketChannel) key.channel()).read(readBuffer);
+                if (read < 0) {
+                    throw new IOException("Connection closed by the engine");
+                }
+                remaining[0] -= read;
+                if (read > 0 && remaining[0] == 0) {
+                    waiting--;
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        return (long) message.length * clients.size();
+    }
+
+    int connections() {
+        return clients.size();
+    }
+
+    /**
+     * Live platform threads of the JVM.
+     */
+    static Set<Thread> platformThreads() {
+        return Thread.getAllStackTraces().keySet();
+    }
+
+    /**
+     * Number of live platform threads started since the snapshot was taken.
+     */
+    static long platformThreadsSince(final Set<Thread> snapshot) {
+        return platformThreads().stream().filter(thread -> !snapshot.contains(thread)).count();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final var client : clients) {
+            client.close();
+        }
+        selector.close();
+        listener.close();
+    }
+}
@@ -0,0 +1,708 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.common.TunnelType;
+import tech.amak.portbuddy.common.tunnel.BinaryWsFrame;
+import tech.amak.portbuddy.common.tunnel.DatagramCipher;
+import tech.amak.portbuddy.common.tunnel.DatagramFrame;
+import tech.amak.portbuddy.common.tunnel.FrameBufferPool;
+import tech.amak.portbuddy.common.tunnel.WsTunnelMessage;
+import tech.amak.portbuddy.netproxy.config.AppProperties;
+
+@Slf4j
+class NetTunnelRegistryTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final long ONE_WAY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final double LOSS = 0.02;
+
+    private final UUID tunnelId = UUID.randomUUID();
+    private final Random random = new Random(42);
+    private final AppProperties.Udp.Datagram datagram =
+        new AppProperties.Udp.Datagram(true, 0, Duration.ofSeconds(15));
+    private ExecutorService ioPool;
+    private DatagramTransport datagramTransport;
+    private NetTunnelRegistry registry;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ioPool = Executors.newCachedThreadPool();
+        datagramTransport = new DatagramTransport(datagram, ioPool);
+        registry = registry(new AppProperties.Reattach(Duration.ZERO, 0));
+    }
+
+    private NetTunnelRegistry registry(final AppProperties.Reattach reattach) {
+        final var properties = new AppProperties("localhost",
+            new AppProperties.WebSocket(DataSize.ofMegabytes(1), DataSize.ofMegabytes(1), null, DataSize.ofMegabytes(1),
+                false, null),
+            new AppProperties.Tcp(AppProperties.Tcp.Engine.BLOCKING, 0),
+            reattach,
+            new AppProperties.Udp(4096, Duration.ofMinutes(2), datagram),
+            false, null);
+        return new NetTunnelRegistry(new ObjectMapper(), properties, new BlockingTcpEngine(ioPool),
+            new FrameBufferPool(16 * 1024, 1024, false), datagramTransport, ioPool);
+    }
+
+    @AfterEach
+    void tearDown() {
+        registry.closeTunnel(tunnelId);
+        datagramTransport.close();
+        ioPool.shutdownNow();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {BinaryWsFrame.FLOW_CONTROL_VERSION, BinaryWsFrame.VERSION})
+    void tcp_CreditExhausted_StopsReadingUntilWindowUpdate(final int version) throws Exception {
+        final var port = registry.expose(tunnelId, TunnelType.TCP, 0).getPort();
+        final BlockingQueue<WsTunnelMessage> messages = new LinkedBlockingQueue<>();
+        final var received = new AtomicLong();
+        final var session = client(frame -> received.addAndGet(decode(version, frame).data().remaining()),
+            messages::add);
+        attach(tunnelId, session, version);
+        final var total = 2 * BinaryWsFrame.INITIAL_WINDOW;
+
+        try (var publicPeer = new Socket("127.0.0.1", port)) {
+            final var open = openStream(messages);
+            final var writer = CompletableFuture.runAsync(() -> write(publicPeer, new byte[total]), ioPool);
+
+            // Readers check for credit before every read, so they overshoot by at most one read
+            final var stalled = awaitStall(received);
+            assertTrue(stalled >= BinaryWsFrame.INITIAL_WINDOW && stalled < BinaryWsFrame.INITIAL_WINDOW + 8192,
+                "Read " + stalled + " bytes without credit");
+            Thread.sleep(300);
+            assertEquals(stalled, received.get(), "Public socket read while credit was exhausted");
+
+            registry.onClientFrame(tunnelId, windowUpdate(version, open, (int) stalled));
+            writer.get(5, TimeUnit.SECONDS);
+            assertEquals(total, awaitStall(received));
+        }
+    }
+
+    @Test
+    void tcp_LegacyClient_ConnectionIdFramesWithoutFlowControl() throws Exception {
+        final var port = registry.expose(tunnelId, TunnelType.TCP, 0).getPort();
+        final BlockingQueue<WsTunnelMessage> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<ByteBuffer> frames = new LinkedBlockingQueue<>();
+        final var received = new AtomicLong();
+        final var session = client(frame -> {
+            frames.add(frame.duplicate());
+            received.addAndGet(decode(BinaryWsFrame.LEGACY_VERSION, frame).data().remaining());
+        }, messages::add);
+        attach(tunnelId, session, BinaryWsFrame.LEGACY_VERSION);
+        final var total = 2 * BinaryWsFrame.INITIAL_WINDOW;
+
+        try (var publicPeer = new Socket("127.0.0.1", port)) {
+            publicPeer.setSoTimeout(5000);
+            final var open = openStream(messages);
+            assertNull(open.getStreamId());
+
+            // Without flow control the whole upload flows without a window update
+            write(publicPeer, new byte[total]);
+            assertEquals(total, awaitStall(received));
+            for (final var frame : frames) {
+                final var decoded = BinaryWsFrame.decode(frame);
+                assertEquals(open.getConnectionId(), decoded.connectionId());
+                assertFalse(decoded.isWindowUpdate());
+            }
+
+            frames.clear();
+            registry.onClientFrame(tunnelId, dataFrame(BinaryWsFrame.LEGACY_VERSION, open, ascii("hi")));
+            assertEquals("hi", new String(publicPeer.getInputStream().readNBytes(2), StandardCharsets.US_ASCII));
+            assertNull(frames.poll(200, TimeUnit.MILLISECONDS), "Window update sent to a legacy client");
+        }
+    }
+
+    @Test
+    void tcp_StreamIdsAcrossVarintBoundary_RouteToTheirConnections() throws Exception {
+        final var port = registry.expose(tunnelId, TunnelType.TCP, 0).getPort();
+        final BlockingQueue<WsTunnelMessage> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<ByteBuffer> frames = new LinkedBlockingQueue<>();
+        attach(tunnelId, client(frames::add, messages::add), BinaryWsFrame.VERSION);
+
+        final var peers = new ArrayList<Socket>();
+        try {
+            // Stream ids 127 and 128 take one and two varint bytes
+            final var opens = new ArrayList<WsTunnelMessage>();
+            for (var i = 0; i < 128; i++) {
+                final var peer = new Socket("127.0.0.1", port);
+                peer.setSoTimeout(5000);
+                peers.add(peer);
+                opens.add(openStream(messages));
+            }
+            for (final var streamId : new int[] {127, 128}) {
+                final var open = opens.get(streamId - 1);
+                assertEquals(streamId, open.getStreamId());
+                final var peer = peers.get(streamId - 1);
+
+                peer.getOutputStream().write(ascii("up" + streamId));
+                final var frame = frames.poll(5, TimeUnit.SECONDS);
+                assertEquals(streamId == 127 ? 1 : 2, frame.remaining() - 5);
+                final var decoded = BinaryWsFrame.decodeStream(frame);
+                assertEquals(streamId, decoded.streamId());
+                assertEquals("up" + streamId, StandardCharsets.US_ASCII.decode(decoded.data()).toString());
+
+                registry.onClientFrame(tunnelId, dataFrame(BinaryWsFrame.VERSION, open, ascii("down" + streamId)));
+                assertEquals("down" + streamId,
+                    new String(peer.getInputStream().readNBytes(7), StandardCharsets.US_ASCII));
+            }
+        } finally {
+            for (final var peer : peers) {
+                peer.close();
+            }
+        }
+    }
+
+    @Test
+    void tcp_ReattachWithinGracePeriod_ResumesStreamWithoutLossOrDuplicates() throws Exception {
+        registry = registry(new AppProperties.Reattach(Duration.ofSeconds(30), 1));
+        final var port = registry.expose(tunnelId, TunnelType.TCP, 0).getPort();
+        final BlockingQueue<WsTunnelMessage> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<ByteBuffer> beforeFrames = new LinkedBlockingQueue<>();
+        final var before = client(beforeFrames::add, messages::add);
+        attach(tunnelId, before, BinaryWsFrame.RESUME_VERSION);
+
+        try (var publicPeer = new Socket("127.0.0.1", port)) {
+            publicPeer.setSoTimeout(5000);
+            final var open = openStream(messages);
+            publicPeer.getOutputStream().write(ascii("one"));
+            assertEquals("one", readData(beforeFrames, 3));
+            registry.onClientFrame(tunnelId, BinaryWsFrame.encodeStream(open.getStreamId(), ascii("hi"), 0, 2));
+            assertEquals("hi", new String(publicPeer.getInputStream().readNBytes(2), StandardCharsets.US_ASCII));
+
+            registry.detachSession(tunnelId, before);
+            // The engine is blocked in a read of the paused stream, so this is read and parked
+            publicPeer.getOutputStream().write(ascii("two"));
+            Thread.sleep(100);
+
+            final BlockingQueue<ByteBuffer> afterFrames = new LinkedBlockingQueue<>();
+            final var after = client(afterFrames::add, messages::add);
+            final var greeting = attach(tunnelId, after, BinaryWsFrame.RESUME_VERSION);
+            assertEquals(List.of(new WsTunnelMessage.ResumedStream(open.getConnectionId(), open.getStreamId(), 2)),
+                greeting.getResumedStreams());
+            assertNull(afterFrames.poll(200, TimeUnit.MILLISECONDS), "Data sent before the client confirmed");
+
+            registry.onClientOpenOk(tunnelId, open.getConnectionId(), 3L);
+            publicPeer.getOutputStream().write(ascii("three"));
+            assertEquals("twothree", readData(afterFrames, 8));
+            registry.onClientFrame(tunnelId, BinaryWsFrame.encodeStream(open.getStreamId(), ascii("ok"), 0, 2));
+            assertEquals("ok", new String(publicPeer.getInputStream().readNBytes(2), StandardCharsets.US_ASCII));
+            assertTrue(beforeFrames.isEmpty(), "Data sent to the detached client");
+        }
+    }
+
+    @Test
+    void tcp_ReattachAfterDataLoss_ClosesStream() throws Exception {
+        registry = registry(new AppProperties.Reattach(Duration.ofSeconds(30), 1));
+        final var port = registry.expose(tunnelId, TunnelType.TCP, 0).getPort();
+        final BlockingQueue<WsTunnelMessage> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<ByteBuffer> frames = new LinkedBlockingQueue<>();
+        final var before = client(frames::add, messages::add);
+        attach(tunnelId, before, BinaryWsFrame.RESUME_VERSION);
+
+        try (var publicPeer = new Socket("127.0.0.1", port)) {
+            publicPeer.setSoTimeout(5000);
+            final var open = openStream(messages);
+            publicPeer.getOutputStream().write(ascii("one"));
+            assertEquals("one", readData(frames, 3));
+
+            registry.detachSession(tunnelId, before);
+            attach(tunnelId, client(frames::add, messages::add), BinaryWsFrame.RESUME_VERSION);
+            // The data was lost with the previous client connection
+            registry.onClientOpenOk(tunnelId, open.getConnectionId(), 0L);
+
+            final var close = messages.poll(5, TimeUnit.SECONDS);
+            assertEquals(WsTunnelMessage.Type.CLOSE, close.getWsType());
+            assertEquals(open.getConnectionId(), close.getConnectionId());
+            assertClosed(publicPeer);
+        }
+    }
+
+    @Test
+    void tcp_GracePeriodExpires_ClosesConnectionsAndPort() throws Exception {
+        registry = registry(new AppProperties.Reattach(Duration.ofMillis(300), 1));
+        final var port = registry.expose(tunnelId, TunnelType.TCP, 0).getPort();
+        final BlockingQueue<WsTunnelMessage> messages = new LinkedBlockingQueue<>();
+        final var session = client(frame -> {
+        }, messages::add);
+        attach(tunnelId, session, BinaryWsFrame.RESUME_VERSION);
+
+        try (var streaming = new Socket("127.0.0.1", port)) {
+            streaming.setSoTimeout(5000);
+            openStream(messages);
+            registry.detachSession(tunnelId, session);
+            try (var held = new Socket("127.0.0.1", port)) {
+                held.setSoTimeout(5000);
+
+                assertClosed(streaming);
+                assertClosed(held);
+                assertThrows(ConnectException.class, () -> new Socket("127.0.0.1", port).close());
+            }
+        }
+    }
+
+    @Test
+    void udp_DatagramFromRemote_SentToClientAsStreamFrame() throws Exception {
+        final var port = registry.expose(tunnelId, TunnelType.UDP, 0).getPort();
+        final BlockingQueue<ByteBuffer> frames = new LinkedBlockingQueue<>();
+        attach(tunnelId, client(frames::add), BinaryWsFrame.VERSION);
+
+        try (var remote = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            final var ping = ByteBuffer.wrap("ping".getBytes(StandardCharsets.UTF_8));
+            remote.send(ping, new InetSocketAddress("127.0.0.1", port));
+
+            final var decoded = BinaryWsFrame.decodeStream(frames.poll(5, TimeUnit.SECONDS));
+            assertEquals(1, decoded.streamId());
+            assertEquals("ping", StandardCharsets.UTF_8.decode(decoded.data()).toString());
+        }
+    }
+
+    @Test
+    void udp_ForgedOrReplayedDatagrams_DoNotMoveTheDatagramPath() throws Exception {
+        final var port = registry.expose(tunnelId, TunnelType.UDP, 0).getPort();
+        final var exposed = attach(tunnelId, client(frame -> {
+        }), BinaryWsFrame.VERSION);
+        final var token = UUID.fromString(exposed.getDatagramToken());
+        final var key = Base64.getDecoder().decode(exposed.getDatagramKey());
+        final var opener = DatagramCipher.opening(key, DatagramCipher.PROXY_TO_CLIENT);
+        final var payload = ByteBuffer.allocate(64 * 1024);
+        final var transport = new InetSocketAddress("127.0.0.1", datagramTransport.port());
+
+        try (var tunnelClient = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             var attacker = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             var remote = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            final var hello = seal(DatagramCipher.sealing(key, DatagramCipher.CLIENT_TO_PROXY),
+                DatagramFrame.HELLO, token);
+            tunnelClient.send(hello.duplicate(), transport);
+            final var helloOk = receive(tunnelClient, 5000);
+            assertNotNull(helloOk, "No HELLO_OK");
+            assertEquals(DatagramFrame.HELLO_OK, DatagramFrame.type(helloOk));
+            assertTrue(opener.open(helloOk, payload));
+
+            // The client's HELLO replayed from another address, and one with the token but without the key
+            attacker.send(hello.duplicate(), transport);
+            attacker.send(seal(DatagramCipher.sealing(DatagramCipher.newKey(), DatagramCipher.CLIENT_TO_PROXY),
+                DatagramFrame.HELLO, token), transport);
+            assertNull(receive(attacker, 300), "Answered a forged or replayed datagram");
+
+            remote.send(ByteBuffer.wrap(ascii("ping")), new InetSocketAddress("127.0.0.1", port));
+            final var data = receive(tunnelClient, 5000);
+            assertNotNull(data, "Data did not reach the client's address");
+            assertEquals(DatagramFrame.DATA, DatagramFrame.type(data));
+            assertTrue(opener.open(data, payload));
+            assertEquals("ping", StandardCharsets.US_ASCII.decode(BinaryWsFrame.decodeStream(payload).data())
+                .toString());
+        }
+    }
+
+    /**
+     * Benchmark: datagrams per second of a UDP tunnel's receive loop forwarding 64 B datagrams from many
+     * remotes to the client, and the bytes the loop allocates per datagram.
+     */
+    @Test
+    @Tag("perf")
+    void udp_ManyRemotes_DatagramsPerSecond() throws Exception {
+        final var remotes = 1_000;
+        final var port = registry.expose(tunnelId, TunnelType.UDP, 0).getPort();
+        final var forwarded = new AtomicLong();
+        attach(tunnelId, client(frame -> forwarded.incrementAndGet()), BinaryWsFrame.VERSION);
+        final var channels = new DatagramChannel[remotes];
+        for (var i = 0; i < remotes; i++) {
+            channels[i] = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+        final var stop = new AtomicBoolean();
+        final var load = new Thread(() -> {
+            final var target = new InetSocketAddress("127.0.0.1", port);
+            final var payload = ByteBuffer.allocate(64);
+            try {
+                for (var i = 0; !stop.get(); i++) {
+                    payload.clear();
+                    channels[i % remotes].send(payload, target);
+                }
+            } catch (final IOException e) {
+                // The benchmark closed the channels
+            }
+        });
+        load.start();
+        try {
+            Thread.sleep(2_000);
+            final var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            final var receiveThread = Thread.getAllStackTraces().entrySet().stream()
+                .filter(thread -> Arrays.stream(thread.getValue())
+                    .anyMatch(frame -> frame.getMethodName().equals("udpReceiveLoop")))
+                .findFirst()
+                .orElseThrow()
+                .getKey();
+            final var forwardedBefore = forwarded.get();
+            final var allocatedBefore = threads.getThreadAllocatedBytes(receiveThread.threadId());
+            final var started = System.nanoTime();
+            Thread.sleep(5_000);
+            final var datagrams = forwarded.get() - forwardedBefore;
+            final var allocated = threads.getThreadAllocatedBytes(receiveThread.threadId()) - allocatedBefore;
+            final var perSecond = Math.round(datagrams / ((System.nanoTime() - started) / 1e9));
+            final var bytesPerDatagram = allocated / Math.max(1, datagrams);
+            log.info("UDP receive loop with {} remotes: {} datagrams/s, {} B allocated per datagram", remotes,
+                perSecond, bytesPerDatagram);
+
+            assertTrue(datagrams > 0, "No datagram forwarded");
+            // Includes datagrams dropped while the WebSocket is congested; far below a receive buffer per datagram
+            assertTrue(bytesPerDatagram < 4096, bytesPerDatagram + " B allocated per datagram");
+        } finally {
+            stop.set(true);
+            load.join();
+            for (final var channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Benchmark: latency of 64 B datagrams at 1000/s over a path losing 2% of its packets with a one-way
+     * delay of 20 ms. The datagrams pass a relay that drops and delays them; a lost datagram must not
+     * delay any other, so nearly every delivered one arrives within the path's delay. The first second
+     * warms up the sealing and opening of datagrams and is not measured.
+     */
+    @Test
+    @Tag("perf")
+    void udp_LossyPath_LostDatagramsDelayNoOthers() throws Exception {
+        final var rate = 1_000;
+        final var total = 5 * rate;
+        final var latencies = lossyPathLatencies(rate, rate, total);
+
+        log.info("2% loss over datagrams: p50 {} ms, p99 {} ms, delivered {} of {}", percentileMillis(latencies, 0.5),
+            percentileMillis(latencies, 0.99), latencies.length, total);
+        assertTrue(latencies.length > total * (1 - 3 * LOSS), "Delivered only " + latencies.length);
+        final var boundMillis = 2 * TimeUnit.NANOSECONDS.toMillis(ONE_WAY_DELAY_NANOS);
+        assertTrue(percentileMillis(latencies, 0.99) < boundMillis,
+            "Datagram p99 of " + percentileMillis(latencies, 0.99) + " ms is not below " + boundMillis + " ms");
+    }
+
+    private long[] lossyPathLatencies(final int rate, final int warmup, final int total) throws Exception {
+        final var timer = Executors.newScheduledThreadPool(2);
+        final var latencies = new ConcurrentLinkedQueue<Long>();
+        final Consumer<ByteBuffer> receiver = frame -> {
+            final var data = BinaryWsFrame.decodeStream(frame).data();
+            if (data.getInt(data.position() + 8) >= warmup) {
+                latencies.add(System.nanoTime() - data.getLong(data.position()));
+            }
+        };
+        final var lossTunnelId = UUID.randomUUID();
+        final var port = registry.expose(lossTunnelId, TunnelType.UDP, 0).getPort();
+        // Only datagrams are measured; data falling back to the WebSocket counts as not delivered
+        final var exposed = attach(lossTunnelId, client(frame -> {
+        }), BinaryWsFrame.DATAGRAM_VERSION);
+        try (var publicClient = DatagramChannel.open();
+             var relay = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             var tunnelClient = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            final var active = new CountDownLatch(1);
+            final var key = Base64.getDecoder().decode(exposed.getDatagramKey());
+            startLossyRelay(relay, new InetSocketAddress("127.0.0.1", datagramTransport.port()), timer);
+            startDatagramClient(tunnelClient, DatagramCipher.opening(key, DatagramCipher.PROXY_TO_CLIENT), receiver,
+                active);
+            final var sealer = DatagramCipher.sealing(key, DatagramCipher.CLIENT_TO_PROXY);
+            final var token = UUID.fromString(exposed.getDatagramToken());
+            timer.scheduleWithFixedDelay(() -> {
+                try {
+                    tunnelClient.send(seal(sealer, DatagramFrame.HELLO, token), relay.getLocalAddress());
+                } catch (final IOException e) {
+                    // The benchmark closed the channel
+                }
+            }, 0, 200, TimeUnit.MILLISECONDS);
+            assertTrue(active.await(5, TimeUnit.SECONDS), "Datagram path did not open");
+
+            final var target = new InetSocketAddress("127.0.0.1", port);
+            final var payload = ByteBuffer.allocate(64);
+            final var started = System.nanoTime();
+            for (var i = 0; i < warmup + total; i++) {
+                final var due = started + i * (TimeUnit.SECONDS.toNanos(1) / rate);
+                while (System.nanoTime() < due) {
+                    Thread.onSpinWait();
+                }
+                payload.clear();
+                payload.putLong(System.nanoTime()).putInt(i).position(payload.capacity()).flip();
+                publicClient.send(payload, target);
+            }
+            Thread.sleep(1_000);
+        } finally {
+            timer.shutdownNow();
+            registry.closeTunnel(lossTunnelId);
+        }
+        return latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    /**
+     * Forwards datagrams between the tunnel client and the datagram transport, dropping some and delaying
+     * the others like the lossy path.
+     */
+    private void startLossyRelay(final DatagramChannel relay,
+                                 final InetSocketAddress transport,
+                                 final ScheduledExecutorService timer) {
+        final var client = new AtomicReference<SocketAddress>();
+        ioPool.execute(() -> {
+            final var buffer = ByteBuffer.allocate(64 * 1024);
+            try {
+                while (relay.isOpen()) {
+                    buffer.clear();
+                    final var from = relay.receive(buffer);
+                    final SocketAddress to;
+                    if (from.equals(transport)) {
+                        to = client.get();
+                    } else {
+                        client.set(from);
+                        to = transport;
+                    }
+                    if (to == null || random.nextDouble() < LOSS) {
+                        continue;
+                    }
+                    final var copy = ByteBuffer.allocate(buffer.flip().remaining()).put(buffer).flip();
+                    timer.schedule(() -> {
+                        try {
+                            relay.send(copy, to);
+                        } catch (final IOException e) {
+                            // The benchmark closed the relay
+                        }
+                    }, ONE_WAY_DELAY_NANOS, TimeUnit.NANOSECONDS);
+                }
+            } catch (final IOException e) {
+                // The benchmark closed the relay
+            }
+        });
+    }
+
+    /**
+     * Receives the datagrams of the tunnel client: HELLO_OK opens the path, DATA carries the frames.
+     */
+    private void startDatagramClient(final DatagramChannel channel,
+                                     final DatagramCipher opener,
+                                     final Consumer<ByteBuffer> frames,
+                                     final CountDownLatch active) {
+        ioPool.execute(() -> {
+            final var buffer = ByteBuffer.allocate(64 * 1024);
+            final var payload = ByteBuffer.allocate(64 * 1024);
+            try {
+                while (channel.isOpen()) {
+                    buffer.clear();
+                    channel.receive(buffer);
+                    buffer.flip();
+                    final var type = DatagramFrame.type(buffer);
+                    if (!opener.open(buffer, payload)) {
+                        continue;
+                    }
+                    if (type == DatagramFrame.HELLO_OK) {
+                        active.countDown();
+                    } else if (type == DatagramFrame.DATA) {
+                        frames.accept(payload);
+                    }
+                }
+            } catch (final IOException e) {
+                // The benchmark closed the channel
+            }
+        });
+    }
+
+    private static ByteBuffer seal(final DatagramCipher sealer, final byte type, final UUID token) {
+        final var datagram = ByteBuffer.allocate(DatagramFrame.OVERHEAD);
+        sealer.seal(type, token, ByteBuffer.allocate(0), datagram);
+        return datagram.flip();
+    }
+
+    private static ByteBuffer receive(final DatagramChannel channel, final long timeoutMillis)
+        throws IOException, InterruptedException {
+        channel.configureBlocking(false);
+        final var buffer = ByteBuffer.allocate(64 * 1024);
+        final var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (channel.receive(buffer) == null) {
+            if (System.nanoTime() > deadline) {
+                return null;
+            }
+            Thread.sleep(5);
+        }
+        return buffer.flip();
+    }
+
+    private static double percentileMillis(final long[] sortedNanos, final double percentile) {
+        final var index = Math.min(sortedNanos.length - 1, (int) (sortedNanos.length * percentile));
+        return Math.round(sortedNanos[index] / 100_000.0) / 10.0;
+    }
+
+    private WsTunnelMessage openStream(final BlockingQueue<WsTunnelMessage> messages) throws InterruptedException {
+        final var open = messages.poll(5, TimeUnit.SECONDS);
+        assertEquals(WsTunnelMessage.Type.OPEN, open.getWsType());
+        registry.onClientOpenOk(tunnelId, open.getConnectionId(), null);
+        return open;
+    }
+
+    /**
+     * Concatenates the payload of the data frames sent to the client until the expected length.
+     */
+    private static String readData(final BlockingQueue<ByteBuffer> frames, final int length)
+        throws InterruptedException {
+        final var data = new StringBuilder();
+        while (data.length() < length) {
+            final var frame = frames.poll(5, TimeUnit.SECONDS);
+            assertNotNull(frame, "Received only " + data);
+            final var decoded = BinaryWsFrame.decodeStream(frame);
+            if (!decoded.isWindowUpdate()) {
+                data.append(StandardCharsets.US_ASCII.decode(decoded.data()));
+            }
+        }
+        assertEquals(length, data.length());
+        return data.toString();
+    }
+
+    private static BinaryWsFrame.Decoded decode(final int version, final ByteBuffer frame) {
+        return version >= BinaryWsFrame.STREAM_ID_VERSION
+            ? BinaryWsFrame.decodeStream(frame.duplicate())
+            : BinaryWsFrame.decode(frame.duplicate());
+    }
+
+    private static ByteBuffer dataFrame(final int version, final WsTunnelMessage open, final byte[] data) {
+        return version >= BinaryWsFrame.STREAM_ID_VERSION
+            ? BinaryWsFrame.encodeStream(open.getStreamId(), data, 0, data.length)
+            : BinaryWsFrame.encodeToByteBuffer(open.getConnectionId(), data, 0, data.length);
+    }
+
+    private static ByteBuffer windowUpdate(final int version, final WsTunnelMessage open, final int increment) {
+        return version >= BinaryWsFrame.STREAM_ID_VERSION
+            ? BinaryWsFrame.encodeStreamWindowUpdate(open.getStreamId(), increment)
+            : BinaryWsFrame.encodeWindowUpdate(open.getConnectionId(), increment);
+    }
+
+    /**
+     * Waits until no more data reaches the client and returns how much did.
+     */
+    private static long awaitStall(final AtomicLong received) throws InterruptedException {
+        final var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        var last = -1L;
+        while (received.get() != last && System.nanoTime() < deadline) {
+            last = received.get();
+            Thread.sleep(300);
+        }
+        return last;
+    }
+
+    private static void write(final Socket socket, final byte[] data) {
+        try {
+            socket.getOutputStream().write(data);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void assertClosed(final Socket socket) {
+        try {
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (final SocketException e) {
+            // Reset by the proxy
+        } catch (final IOException e) {
+            throw new AssertionError("Connection not closed", e);
+        }
+    }
+
+    private static byte[] ascii(final String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private WsTunnelMessage attach(final UUID id, final WebSocketSession session, final int protocolVersion)
+        throws IOException {
+        final var exposed = new WsTunnelMessage();
+        exposed.setWsType(WsTunnelMessage.Type.EXPOSED);
+        registry.attachSession(id, session, protocolVersion, exposed);
+        return exposed;
+    }
+
+    private static WebSocketSession client(final Consumer<ByteBuffer> frames) throws IOException {
+        return client(frames, message -> {
+        });
+    }
+
+    private static WebSocketSession client(final Consumer<ByteBuffer> frames,
+                                           final Consumer<WsTunnelMessage> messages) throws IOException {
+        final var session = mock(WebSocketSession.class, withSettings().stubOnly());
+        when(session.isOpen()).thenReturn(true);
+        when(session.getId()).thenReturn("client");
+        doAnswer(invocation -> {
+            if (invocation.getArgument(0) instanceof BinaryMessage message) {
+                final var payload = message.getPayload();
+                frames.accept(ByteBuffer.allocate(payload.remaining()).put(payload.duplicate()).flip());
+            } else if (invocation.getArgument(0) instanceof TextMessage message) {
+                final var decoded = MAPPER.readValue(message.getPayload(), WsTunnelMessage.class);
+                if (decoded.getWsType() != WsTunnelMessage.Type.EXPOSED) {
+                    messages.accept(decoded);
+                }
+            }
+            return null;
+        }).when(session).sendMessage(any());
+        return session;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.common.tunnel.BinaryWsFrame;
+import tech.amak.portbuddy.common.tunnel.FrameBufferPool;
+import tech.amak.portbuddy.netproxy.config.AppProperties;
+
+@Slf4j
+class NetTunnelSenderTest {
+
+    private static final AppProperties.WebSocket.Batching BATCHING = new AppProperties.WebSocket.Batching(
+        true, DataSize.ofKilobytes(16), Duration.ZERO, Duration.ofMillis(2));
+
+    private final FrameBufferPool pool = new FrameBufferPool(16 * 1024, 16, false);
+    private final List<ByteBuffer> sent = new ArrayList<>();
+    private final List<Runnable> tasks = new ArrayList<>();
+    private WebSocketSession session;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        session = mock(WebSocketSession.class);
+        when(session.isOpen()).thenReturn(true);
+        doAnswer(invocation -> {
+            final var payload = ((BinaryMessage) invocation.getArgument(0)).getPayload();
+            sent.add(ByteBuffer.allocate(payload.remaining()).put(payload.duplicate()).flip());
+            return null;
+        }).when(session).sendMessage(any());
+    }
+
+    @Test
+    void sendFrame_QueuedWhileWriterBusy_PackedIntoOneBatch() {
+        final var sender = new NetTunnelSender(session, 1024 * 1024, tasks::add, pool, BATCHING);
+        final var frames = List.of(frame(1, 10), frame(2, 20), frame(1, 30));
+
+        frames.forEach(frame -> sender.sendFrame(copyToPool(frame)));
+        runTasks();
+
+        assertEquals(1, sent.size());
+        assertTrue(BinaryWsFrame.isBatch(sent.getFirst()));
+        assertEquals(frames, BinaryWsFrame.splitBatch(sent.getFirst()));
+        assertTrue(sender.isWritable());
+    }
+
+    @Test
+    void sendFrame_LargeFrame_SentOnItsOwn() {
+        final var sender = new NetTunnelSender(session, 1024 * 1024, tasks::add, pool, BATCHING);
+        final var small = frame(1, 10);
+        final var large = frame(2, 8 * 1024);
+
+        sender.sendFrame(copyToPool(small));
+        sender.sendFrame(copyToPool(large));
+        runTasks();
+
+        assertEquals(List.of(small, large), sent);
+    }
+
+    @Test
+    void sendFrame_BatchingDisabled_OneMessagePerFrame() {
+        final var sender = new NetTunnelSender(session, 1024 * 1024, tasks::add, pool, null);
+        final var frames = List.of(frame(1, 10), frame(2, 20));
+
+        frames.forEach(frame -> sender.sendFrame(copyToPool(frame)));
+        runTasks();
+
+        assertEquals(frames, sent);
+    }
+
+    /**
+     * Benchmark: small frames from two streams written to a socket, one write per WebSocket message as the
+     * container does, with and without batching.
+     */
+    @Test
+    @Tag("perf")
+    void sendFrame_SmallFrames_BatchingPacksFramesPerMessage() throws Exception {
+        final var unbatched = smallFrameThroughput(null);
+        final var batched = smallFrameThroughput(BATCHING);
+
+        log.info("64 B frames without batching: {}", unbatched);
+        log.info("64 B frames with batching: {}", batched);
+        assertEquals(1.0, unbatched.framesPerMessage());
+        assertTrue(batched.framesPerMessage() > 2, "Batching packed " + batched.framesPerMessage() + " frames");
+    }
+
+    private Throughput smallFrameThroughput(final AppProperties.WebSocket.Batching batching) throws Exception {
+        final var producers = 2;
+        final var framesPerProducer = 200_000;
+        final var payload = new byte[64];
+        final var executor = Executors.newCachedThreadPool();
+        try (var server = new ServerSocket(0);
+             var client = new Socket("127.0.0.1", server.getLocalPort());
+             var peer = server.accept()) {
+            executor.execute(() -> {
+                try {
+                    peer.getInputStream().transferTo(OutputStream.nullOutputStream());
+                } catch (final IOException e) {
+                    // The benchmark closed the socket
+                }
+            });
+            final var out = client.getOutputStream();
+            final var messages = new AtomicLong();
+            final var frames = new AtomicLong();
+            final var socketSession = mock(WebSocketSession.class, withSettings().stubOnly());
+            when(socketSession.isOpen()).thenReturn(true);
+            doAnswer(invocation -> {
+                final var frame = ((BinaryMessage) invocation.getArgument(0)).getPayload();
+                final var bytes = new byte[frame.remaining()];
+                frame.duplicate().get(bytes);
+                out.write(bytes);
+                messages.incrementAndGet();
+                frames.addAndGet(BinaryWsFrame.isBatch(frame) ? BinaryWsFrame.splitBatch(frame).size() : 1);
+                return null;
+            }).when(socketSession).sendMessage(any());
+            final var sender = new NetTunnelSender(socketSession, 1024 * 1024, executor, pool, batching);
+
+            final var started = System.nanoTime();
+            final var done = new CountDownLatch(producers);
+            for (var i = 0; i < producers; i++) {
+                final var header = BinaryWsFrame.dataHeader(null, i + 1);
+                executor.execute(() -> {
+                    for (var n = 0; n < framesPerProducer; n++) {
+                        while (!sender.isWritable()) {
+                            LockSupport.parkNanos(50_000);
+                        }
+                        sender.sendFrame(BinaryWsFrame.encode(pool, header, payload, 0, payload.length));
+                    }
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(2, TimeUnit.MINUTES));
+            final long total = (long) producers * framesPerProducer;
+            while (frames.get() < total) {
+                Thread.sleep(1);
+            }
+            final var seconds = (System.nanoTime() - started) / 1e9;
+            return new Throughput(Math.round(total / seconds), (double) total / messages.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.removeFirst().run();
+        }
+    }
+
+    private ByteBuffer copyToPool(final ByteBuffer frame) {
+        return pool.acquire(frame.remaining()).put(frame.duplicate()).flip();
+    }
+
+    private static ByteBuffer frame(final int streamId, final int length) {
+        final var data = new byte[length];
+        data[0] = (byte) streamId;
+        return BinaryWsFrame.encodeStream(streamId, data, 0, length);
+    }
+
+    private record Throughput(long framesPerSecond, double framesPerMessage) {
+    }
+}
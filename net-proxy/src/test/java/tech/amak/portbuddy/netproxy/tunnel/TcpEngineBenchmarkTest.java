@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Benchmark: compares the threads and echo throughput of the TCP engines serving many public
+ * connections. The blocking engine costs a thread per connection, the NIO engine a fixed set of
+ * selector loops.
+ */
+@Slf4j
+@Tag("perf")
+class TcpEngineBenchmarkTest {
+
+    private static final int CONNECTIONS = Integer.getInteger("bench.connections", 2_000);
+    private static final int ROUNDS = 20;
+    private static final int SELECTOR_THREADS = 4;
+
+    private final byte[] message = new byte[1024];
+
+    @Test
+    void nioEngine_ManyConnections_FixedThreads() throws Exception {
+        final var threadsBefore = EchoLoad.platformThreads();
+        try (var engine = new NioTcpEngine(SELECTOR_THREADS);
+             var load = EchoLoad.start(engine, CONNECTIONS)) {
+            final var threads = EchoLoad.platformThreadsSince(threadsBefore);
+
+            run("nio", load, threads);
+
+            assertTrue(threads <= SELECTOR_THREADS + 2, "NIO engine started " + threads + " threads");
+        }
+    }
+
+    @Test
+    void blockingEngine_ManyConnections_ThreadPerConnection() throws Exception {
+        final var ioPool = Executors.newCachedThreadPool();
+        final var threadsBefore = EchoLoad.platformThreads();
+        try (var engine = new BlockingTcpEngine(ioPool);
+             var load = EchoLoad.start(engine, CONNECTIONS)) {
+            final var threads = EchoLoad.platformThreadsSince(threadsBefore);
+
+            run("blocking", load, threads);
+
+            assertTrue(threads >= CONNECTIONS, "Blocking engine started " + threads + " threads");
+        } finally {
+            ioPool.shutdownNow();
+        }
+    }
+
+    private void run(final String engine, final EchoLoad load, final long threads) throws Exception {
+        load.roundTrip(message);
+        var echoed = 0L;
+        final var started = System.nanoTime();
+        for (var i = 0; i < ROUNDS; i++) {
+            echoed += load.roundTrip(message);
+        }
+        final var seconds = (System.nanoTime() - started) / 1e9;
+        assertEquals((long) ROUNDS * message.length * load.connections(), echoed);
+        log.info("{} engine: {} connections, {} threads, {} MB/s, {} round trips/s", engine, load.connections(),
+            threads, Math.round(echoed / seconds / 1e6), Math.round(ROUNDS * load.connections() / seconds));
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import tech.amak.portbuddy.netproxy.config.AppProperties;
+
+/**
+ * Checks that both TCP engines serve public connections the same way.
+ */
+class TcpEngineTest {
+
+    private static final int CONNECTIONS = 32;
+
+    private final ExecutorService ioPool = Executors.newCachedThreadPool();
+    private final ExecutorService peers = Executors.newCachedThreadPool();
+    private TcpEngine engine;
+    private TcpEngine.Listener listener;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (listener != null) {
+            listener.close();
+        }
+        if (engine != null) {
+            engine.close();
+        }
+        peers.shutdownNow();
+        ioPool.shutdownNow();
+    }
+
+    @ParameterizedTest
+    @EnumSource(AppProperties.Tcp.Engine.class)
+    void echo_ManyConnections_EachGetsItsOwnData(final AppProperties.Tcp.Engine type) throws Exception {
+        final var port = listen(type, new Handler() {
+            @Override
+            public void onAccepted(final TcpEngine.Connection connection) {
+                connection.startReading();
+            }
+
+            @Override
+            public void onData(final TcpEngine.Connection connection,
+                               final byte[] data,
+                               final int offset,
+                               final int length) {
+                try {
+                    connection.write(ByteBuffer.wrap(data, offset, length));
+                } catch (final IOException e) {
+                    connection.close();
+                }
+            }
+        });
+
+        final var echoes = new ArrayList<CompletableFuture<Void>>();
+        for (var i = 0; i < CONNECTIONS; i++) {
+            final var sent = pattern(i, 256 * 1024);
+            echoes.add(CompletableFuture.runAsync(() -> {
+                try (var peer = connect(port)) {
+                    final var writer = CompletableFuture.runAsync(() -> write(peer, sent), peers);
+                    assertArrayEquals(sent, peer.getInputStream().readNBytes(sent.length));
+                    writer.join();
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, peers));
+        }
+        CompletableFuture.allOf(echoes.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+    }
+
+    @ParameterizedTest
+    @EnumSource(AppProperties.Tcp.Engine.class)
+    void halfClose_PeerShutsDownOutput_DeliversDataThenClosesOnce(final AppProperties.Tcp.Engine type)
+        throws Exception {
+        final var received = new ByteArrayOutputStream();
+        final var receivedAtClose = new AtomicInteger(-1);
+        final var closes = new AtomicInteger();
+        final var closed = new CountDownLatch(1);
+        final var port = listen(type, new Handler() {
+            @Override
+            public void onAccepted(final TcpEngine.Connection connection) {
+                connection.startReading();
+            }
+
+            @Override
+            public void onData(final TcpEngine.Connection connection,
+                               final byte[] data,
+                               final int offset,
+                               final int length) {
+                synchronized (received) {
+                    received.write(data, offset, length);
+                }
+            }
+
+            @Override
+            public void onClosed(final TcpEngine.Connection connection) {
+                synchronized (received) {
+                    receivedAtClose.set(received.size());
+                }
+                closes.incrementAndGet();
+                closed.countDown();
+            }
+        });
+        final var sent = pattern(0, 100 * 1024);
+
+        try (var peer = connect(port)) {
+            peer.getOutputStream().write(sent);
+            peer.shutdownOutput();
+
+            assertTrue(closed.await(5, TimeUnit.SECONDS), "Engine did not report the closure");
+            assertEquals(sent.length, receivedAtClose.get(), "Closure reported before all data was read");
+            synchronized (received) {
+                assertArrayEquals(sent, received.toByteArray());
+            }
+            // The tunnel protocol has no half-close, the engine closes its side too
+            assertEquals(-1, peer.getInputStream().read());
+            Thread.sleep(200);
+            assertEquals(1, closes.get());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(AppProperties.Tcp.Engine.class)
+    void write_SlowPeer_QueuesPartialWritesAndDeliversAllInOrder(final AppProperties.Tcp.Engine type)
+        throws Exception {
+        final var total = 16 * TcpEngine.MAX_PENDING_WRITE_BYTES;
+        final var accepted = new CompletableFuture<TcpEngine.Connection>();
+        final var written = new AtomicLong();
+        final var port = listen(type, new Handler() {
+            @Override
+            public void onAccepted(final TcpEngine.Connection connection) {
+                accepted.complete(connection);
+            }
+
+            @Override
+            public void onWritten(final TcpEngine.Connection connection, final int bytes) {
+                written.addAndGet(bytes);
+            }
+        });
+
+        try (var peer = new Socket()) {
+            // A small receive buffer makes the engine's socket writes partial early
+            peer.setReceiveBufferSize(4096);
+            peer.connect(new InetSocketAddress("127.0.0.1", port), 5000);
+            peer.setSoTimeout(10_000);
+            final var connection = accepted.get(5, TimeUnit.SECONDS);
+            final var writer = CompletableFuture.runAsync(() -> {
+                // One buffer reused for every chunk, as the tunnel does with its frame buffers
+                final var chunk = new byte[64 * 1024 + 1];
+                for (var position = 0; position < total; position += chunk.length) {
+                    final var length = Math.min(chunk.length, total - position);
+                    for (var i = 0; i < length; i++) {
+                        chunk[i] = patternByte(position + i);
+                    }
+                    try {
+                        connection.write(ByteBuffer.wrap(chunk, 0, length));
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }, peers);
+
+            Thread.sleep(300);
+            assertFalse(writer.isDone(), "Writes were queued without bound while the peer did not read");
+            final var data = peer.getInputStream().readNBytes(total);
+            writer.get(5, TimeUnit.SECONDS);
+
+            assertEquals(total, data.length);
+            for (var i = 0; i < total; i++) {
+                if (data[i] != patternByte(i)) {
+                    throw new AssertionError("Unexpected byte at " + i);
+                }
+            }
+            final var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (written.get() < total && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(total, written.get());
+        }
+    }
+
+    private int listen(final AppProperties.Tcp.Engine type, final TcpEngine.Handler handler) throws IOException {
+        engine = switch (type) {
+            case BLOCKING -> new BlockingTcpEngine(ioPool);
+            case NIO -> new NioTcpEngine(2);
+        };
+        listener = engine.listen(0, handler);
+        return listener.port();
+    }
+
+    private static Socket connect(final int port) throws IOException {
+        final var socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static void write(final Socket socket, final byte[] data) {
+        try {
+            socket.getOutputStream().write(data);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] pattern(final int seed, final int length) {
+        final var data = new byte[length];
+        for (var i = 0; i < length; i++) {
+            data[i] = patternByte(seed * 7919 + i);
+        }
+        return data;
+    }
+
+    private static byte patternByte(final int position) {
+        return (byte) (position % 251);
+    }
+
+    /**
+     * Handler ignoring the events a test does not care about.
+     */
+    private abstract static class Handler implements TcpEngine.Handler {
+
+        @Override
+        public void onData(final TcpEngine.Connection connection,
+                           final byte[] data,
+                           final int offset,
+                           final int length) {
+        }
+
+        @Override
+        public void onWritten(final TcpEngine.Connection connection, final int bytes) {
+        }
+
+        @Override
+        public void onClosed(final TcpEngine.Connection connection) {
+        }
+    }
+}
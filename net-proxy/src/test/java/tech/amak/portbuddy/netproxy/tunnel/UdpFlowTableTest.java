@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import tech.amak.portbuddy.common.tunnel.BinaryWsFrame;
+
+class UdpFlowTableTest {
+
+    private final AtomicInteger nextStreamId = new AtomicInteger();
+
+    @Test
+    void inbound_SameRemote_SameFlow() {
+        final var flows = new UdpFlowTable(10, TimeUnit.MINUTES.toNanos(1));
+        final var remote = new InetSocketAddress("127.0.0.1", 5000);
+
+        final var flow = flows.inbound(remote, true, nextStreamId);
+
+        assertSame(flow, flows.inbound(new InetSocketAddress("127.0.0.1", 5000), true, nextStreamId));
+        assertEquals(1, flow.streamId());
+        assertEquals("127.0.0.1:5000", flow.connectionId());
+        assertSame(flow, flows.byStream(1));
+        assertSame(flow, flows.byConnectionId("127.0.0.1:5000"));
+        assertEquals(1, flows.size());
+    }
+
+    @Test
+    void inbound_StreamIds_HeaderOfStreamIdFormat() {
+        final var flows = new UdpFlowTable(10, TimeUnit.MINUTES.toNanos(1));
+        nextStreamId.set(200);
+
+        final var flow = flows.inbound(new InetSocketAddress("127.0.0.1", 5000), true, nextStreamId);
+
+        assertEquals(201, flow.streamId());
+        final var frame = ByteBuffer.allocate(flow.header().length + 1).put(flow.header()).put((byte) 7).flip();
+        assertEquals(201, BinaryWsFrame.decodeStream(frame).streamId());
+    }
+
+    @Test
+    void inbound_ConnectionIds_NoStreamId() {
+        final var flows = new UdpFlowTable(10, TimeUnit.MINUTES.toNanos(1));
+
+        final var flow = flows.inbound(new InetSocketAddress("127.0.0.1", 5000), false, nextStreamId);
+
+        assertEquals(0, flow.streamId());
+        assertEquals(0, nextStreamId.get());
+        final var frame = ByteBuffer.allocate(flow.header().length + 1).put(flow.header()).put((byte) 7).flip();
+        assertEquals("127.0.0.1:5000", BinaryWsFrame.decode(frame).connectionId());
+    }
+
+    @Test
+    void inbound_TableFull_NewRemotesDropped() {
+        final var flows = new UdpFlowTable(2, TimeUnit.MINUTES.toNanos(1));
+        final var first = flows.inbound(new InetSocketAddress("127.0.0.1", 1), true, nextStreamId);
+        flows.inbound(new InetSocketAddress("127.0.0.1", 2), true, nextStreamId);
+
+        assertNull(flows.inbound(new InetSocketAddress("127.0.0.1", 3), true, nextStreamId));
+        assertSame(first, flows.inbound(new InetSocketAddress("127.0.0.1", 1), true, nextStreamId));
+
+        flows.remove(first);
+        assertNotNull(flows.inbound(new InetSocketAddress("127.0.0.1", 3), true, nextStreamId));
+        assertNull(flows.byStream(first.streamId()));
+    }
+
+    @Test
+    void evictIdle_OnlyFlowsIdleLongerThanTimeout() throws Exception {
+        final var flows = new UdpFlowTable(10, TimeUnit.MILLISECONDS.toNanos(50));
+        final var idle = flows.inbound(new InetSocketAddress("127.0.0.1", 1), true, nextStreamId);
+        final var active = flows.inbound(new InetSocketAddress("127.0.0.1", 2), true, nextStreamId);
+
+        Thread.sleep(100);
+        active.touch();
+
+        assertEquals(List.of(idle), flows.evictIdle());
+        assertEquals(1, flows.size());
+        assertNull(flows.byStream(idle.streamId()));
+        assertNull(flows.byConnectionId(idle.connectionId()));
+        assertSame(active, flows.byStream(active.streamId()));
+    }
+}
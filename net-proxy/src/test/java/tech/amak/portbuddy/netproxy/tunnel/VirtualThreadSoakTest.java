@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.netproxy.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Soak test: the blocking TCP engine on virtual threads, as configured with {@code app.virtual-threads},
+ * keeps many public connections busy with a bounded number of platform threads and bounded memory.
+ * Raise {@code soak.connections} (and the open file limit, two descriptors per connection) and
+ * {@code soak.duration} for longer runs.
+ */
+@Slf4j
+@Tag("perf")
+class VirtualThreadSoakTest {
+
+    private static final int CONNECTIONS = Integer.getInteger("soak.connections", 5_000);
+    private static final Duration DURATION = Duration.parse(System.getProperty("soak.duration", "PT10S"));
+    private static final long MAX_HEAP_PER_CONNECTION = 64 * 1024;
+
+    @Test
+    void blockingEngineOnVirtualThreads_ManyConnections_BoundedThreadsAndMemory() throws Exception {
+        final var ioPool = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("soak-io-", 0).factory());
+        final var threadsBefore = EchoLoad.platformThreads();
+        try (var engine = new BlockingTcpEngine(ioPool);
+             var load = EchoLoad.start(engine, CONNECTIONS)) {
+            final var message = new byte[128];
+            var rounds = 0;
+            final var end = System.nanoTime() + DURATION.toNanos();
+            while (System.nanoTime() < end) {
+                load.roundTrip(message);
+                rounds++;
+            }
+            final var threads = EchoLoad.platformThreadsSince(threadsBefore);
+            System.gc();
+            final var heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            log.info("Virtual threads: {} connections, {} rounds, {} platform threads, {} MB heap", CONNECTIONS,
+                rounds, threads, heap >> 20);
+
+            assertTrue(rounds > 0, "No round completed");
+            assertTrue(threads <= Runtime.getRuntime().availableProcessors() + 8,
+                threads + " platform threads for " + CONNECTIONS + " connections");
+            assertTrue(heap < CONNECTIONS * MAX_HEAP_PER_CONNECTION, (heap >> 20) + " MB heap");
+        } finally {
+            ioPool.shutdownNow();
+        }
+    }
+}
@@ -18,11 +18,12 @@ import java.time.Duration;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 
 import lombok.Getter;
 import lombok.Setter;
 
-/** Configuration for tunnels housekeeping. */
+/** Configuration for tunnels housekeeping and traffic. */
 @Getter
 @Setter
 @Component("tunnelsProperties")
@@ -40,4 +41,35 @@ public class TunnelsProperties {
      * Defaults to 30 seconds.
      */
     private Duration checkInterval = Duration.ofSeconds(30);
+
+    /**
+     * How often heartbeats collected in memory are written to the database.
+     * Must stay well below {@link #heartbeatTimeout}. Defaults to 10 seconds.
+     */
+    private Duration heartbeatFlushInterval = Duration.ofSeconds(10);
+
+    /**
+     * How often the custom domains and passcodes of the tunnels connected to an instance are reloaded,
+     * in case a notification from another instance was lost. Defaults to 1 minute.
+     */
+    private Duration domainCacheRefresh = Duration.ofMinutes(1);
+
+    /**
+     * Maximum number of bytes queued for sending to a single tunnel client. Requests that would
+     * exceed it are rejected with 503 until the client catches up.
+     * Defaults to 4 megabytes.
+     */
+    private DataSize sendBufferSize = DataSize.ofMegabytes(4);
+
+    /**
+     * Secret used to sign access tokens of passcode protected tunnels. Must be the same on all
+     * server instances; if blank, a random per-instance key is used.
+     */
+    private String passcodeTokenSecret;
+
+    /**
+     * How long an access token issued for a verified passcode stays valid.
+     * Defaults to 12 hours.
+     */
+    private Duration passcodeTokenTtl = Duration.ofHours(12);
 }
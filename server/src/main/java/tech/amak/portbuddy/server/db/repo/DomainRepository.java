@@ -14,6 +14,7 @@
 
 package tech.amak.portbuddy.server.db.repo;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -41,6 +42,8 @@ public interface DomainRepository extends JpaRepository<DomainEntity, UUID> {
 
     Optional<DomainEntity> findBySubdomain(String subdomain);
 
+    List<DomainEntity> findAllBySubdomainIn(Collection<String> subdomains);
+
     Optional<DomainEntity> findByCustomDomain(String customDomain);
 
     long countByAccount(AccountEntity account);
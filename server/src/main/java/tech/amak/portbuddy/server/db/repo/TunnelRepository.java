@@ -15,6 +15,7 @@
 package tech.amak.portbuddy.server.db.repo;
 
 import java.time.OffsetDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -66,6 +67,8 @@ public interface TunnelRepository extends JpaRepository<TunnelEntity, UUID> {
     Page<TunnelEntity> pageByAccountOrderByLastHeartbeatDescNullsLast(
         @Param("accountId") UUID accountId, Pageable pageable);
 
+    List<TunnelAccount> findByIdIn(Collection<UUID> ids);
+
     long countByAccountIdAndStatusIn(UUID accountId, List<TunnelStatus> statuses);
 
     List<TunnelEntity> findByAccountIdAndStatusInOrderByLastHeartbeatAtAscCreatedAtAsc(
@@ -86,4 +89,43 @@ public interface TunnelRepository extends JpaRepository<TunnelEntity, UUID> {
                   AND (last_heartbeat_at IS NULL OR last_heartbeat_at < :cutoff)""",
         nativeQuery = true)
     int closeStaleConnected(@Param("cutoff") final OffsetDateTime cutoff);
+
+    /**
+     * Sets the last heartbeat timestamp of several tunnels in a single statement.
+     *
+     * @param ids       tunnel ids
+     * @param heartbeat heartbeat timestamp to set
+     * @return number of rows updated
+     */
+    @Modifying
+    @Query(value = """
+        UPDATE tunnels SET last_heartbeat_at = :heartbeat, updated_at = NOW()
+        WHERE id IN (:ids)""",
+        nativeQuery = true)
+    int updateLastHeartbeat(@Param("ids") final Collection<UUID> ids,
+                            @Param("heartbeat") final OffsetDateTime heartbeat);
+
+    /**
+     * Closes the given tunnels unless they are closed already.
+     *
+     * @param ids tunnel ids
+     * @return number of rows updated
+     */
+    @Modifying
+    @Query(value = """
+        UPDATE tunnels SET status = 'CLOSED', updated_at = NOW()
+        WHERE id IN (:ids)
+                  AND status <> 'CLOSED'""",
+        nativeQuery = true)
+    int closeAllById(@Param("ids") final Collection<UUID> ids);
+
+    /**
+     * Id and owning account of a tunnel.
+     */
+    interface TunnelAccount {
+
+        UUID getId();
+
+        UUID getAccountId();
+    }
 }
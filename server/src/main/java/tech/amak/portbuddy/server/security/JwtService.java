@@ -14,6 +14,7 @@
 
 package tech.amak.portbuddy.server.security;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Map;
 import java.util.Set;
@@ -37,6 +38,12 @@ import tech.amak.portbuddy.server.db.entity.Role;
 public class JwtService {
 
     public static final String TOKEN_TYPE = "JWT";
+    /**
+     * Role of the tokens server instances send to each other; never granted to users.
+     */
+    public static final String PEER_ROLE = "PEER";
+    private static final String PEER_SUBJECT = "port-buddy-server";
+    private static final Duration PEER_TOKEN_TTL = Duration.ofMinutes(1);
 
     private final JwtEncoder jwtEncoder;
     private final AppProperties properties;
@@ -80,6 +87,28 @@ public class JwtService {
         if (roles != null && !roles.isEmpty()) {
             builder.claim(Oauth2SuccessHandler.ROLES_CLAIM, roles.stream().map(Enum::name).collect(Collectors.toSet()));
         }
+        return encode(builder);
+    }
+
+    /**
+     * Creates a short-lived token with the {@link #PEER_ROLE} role, which authenticates a server instance
+     * to the internal endpoints of the other instances. Instances share the signing keys, so every
+     * instance accepts the tokens of the others.
+     *
+     * @return a string representation of the generated JWT token.
+     */
+    public String createPeerToken() {
+        final var now = Instant.now();
+        final var builder = JwtClaimsSet.builder()
+            .issuer(properties.jwt().issuer())
+            .issuedAt(now)
+            .expiresAt(now.plus(PEER_TOKEN_TTL))
+            .subject(PEER_SUBJECT)
+            .claim(Oauth2SuccessHandler.ROLES_CLAIM, Set.of(PEER_ROLE));
+        return encode(builder);
+    }
+
+    private String encode(final JwtClaimsSet.Builder builder) {
         final var header = JwsHeader.with(SignatureAlgorithm.RS256)
             .type(TOKEN_TYPE)
             .keyId(rsaKeyProvider.getCurrentKid())
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.server.config.TunnelsProperties;
+
+/**
+ * Issues and verifies short-lived access tokens for passcode protected tunnels.
+ * A token is handed out once the passcode was verified and is then checked with a single HMAC
+ * instead of BCrypt. It is bound to the subdomain and to the current passcode hash, so changing
+ * or clearing the passcode invalidates all tokens issued for the old one.
+ * Token format: {@code <expiry epoch seconds>.<base64url HMAC-SHA256>}.
+ */
+@Slf4j
+@Component
+public class PasscodeTokenService {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    // Expiry seconds and an unpadded base64url HMAC-SHA256
+    private static final Pattern TOKEN_SHAPE = Pattern.compile("\\d+\\.[A-Za-z0-9_-]{43}");
+
+    private final SecretKeySpec key;
+    private final Duration ttl;
+    private final Clock clock;
+    private final Instant legacyCookiesUntil;
+
+    @Autowired
+    public PasscodeTokenService(final TunnelsProperties properties) {
+        this(properties, Clock.systemUTC());
+    }
+
+    PasscodeTokenService(final TunnelsProperties properties, final Clock clock) {
+        this.key = new SecretKeySpec(secret(properties.getPasscodeTokenSecret()), ALGORITHM);
+        this.ttl = properties.getPasscodeTokenTtl();
+        this.clock = clock;
+        this.legacyCookiesUntil = clock.instant().plus(ttl);
+    }
+
+    /**
+     * Lifetime of issued tokens.
+     */
+    public Duration ttl() {
+        return ttl;
+    }
+
+    /**
+     * Issues a token for the given subdomain.
+     *
+     * @param subdomain    the tunnel subdomain
+     * @param passcodeHash the passcode hash the caller was verified against
+     * @return the token
+     */
+    public String issue(final String subdomain, final String passcodeHash) {
+        final var expiresAt = clock.instant().plus(ttl).getEpochSecond();
+        return expiresAt + "." + sign(subdomain, passcodeHash, expiresAt);
+    }
+
+    /**
+     * Checks that the token was issued for the subdomain and passcode hash and has not expired.
+     *
+     * @param token        the token, may be null or malformed
+     * @param subdomain    the tunnel subdomain
+     * @param passcodeHash the current passcode hash of the tunnel
+     * @return whether the token is valid
+     */
+    public boolean verify(final String token, final String subdomain, final String passcodeHash) {
+        if (token == null) {
+            return false;
+        }
+        final var dot = token.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        final long expiresAt;
+        try {
+            expiresAt = Long.parseLong(token, 0, dot, 10);
+        } catch (final NumberFormatException e) {
+            return false;
+        }
+        if (expiresAt < clock.instant().getEpochSecond()) {
+            return false;
+        }
+        final var expected = sign(subdomain, passcodeHash, expiresAt).getBytes(StandardCharsets.US_ASCII);
+        final var actual = token.substring(dot + 1).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Whether a cookie value that failed {@link #verify} may be a raw passcode, as stored by cookies set
+     * before tokens were introduced. Those cookies lived as long as a token, so none can be left one
+     * TTL after this instance started; token-shaped values are never raw passcodes. Only such values
+     * are worth a BCrypt check, anything else is rejected without one.
+     *
+     * @param value the cookie value
+     * @return whether to check the value against the passcode hash
+     */
+    public boolean mayBeLegacyCookie(final String value) {
+        return value != null
+               && clock.instant().isBefore(legacyCookiesUntil)
+               && !TOKEN_SHAPE.matcher(value).matches();
+    }
+
+    private String sign(final String subdomain, final String passcodeHash, final long expiresAt) {
+        try {
+            final var mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            final var payload = subdomain + '\n' + passcodeHash + '\n' + expiresAt;
+            final var signature = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to sign passcode token", e);
+        }
+    }
+
+    private static byte[] secret(final String configured) {
+        if (configured != null && !configured.isBlank()) {
+            return configured.getBytes(StandardCharsets.UTF_8);
+        }
+        log.warn("app.tunnels.passcode-token-secret is not set; using a random key, "
+                 + "passcode tokens will not be accepted by other server instances");
+        final var random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        return random;
+    }
+}
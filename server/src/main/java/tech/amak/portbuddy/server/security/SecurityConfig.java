@@ -35,6 +35,8 @@ import org.springframework.security.web.authentication.logout.HttpStatusReturnin
 import org.springframework.security.web.context.RequestAttributeSecurityContextRepository;
 
 import lombok.RequiredArgsConstructor;
+import tech.amak.portbuddy.server.service.SubscriptionStatusCache;
+import tech.amak.portbuddy.server.tunnel.DomainChangeListener;
 
 @Configuration
 @EnableWebSecurity
@@ -59,6 +61,12 @@ public class SecurityConfig {
                     "/api/auth/register",
                     "/api/webhooks/stripe").permitAll()
                 .requestMatchers("/api/auth/password-reset/**").permitAll()
+                // Notifications between server instances carry a peer token, see ServerPeers
+                .requestMatchers(
+                    DomainChangeListener.CUSTOM_DOMAIN_CHANGED_PATH,
+                    DomainChangeListener.PASSCODE_CHANGED_PATH,
+                    SubscriptionStatusCache.EVICT_PATH
+                ).hasRole(JwtService.PEER_ROLE)
                 .requestMatchers("/api/internal/**").permitAll()
                 .anyRequest().authenticated()
             )
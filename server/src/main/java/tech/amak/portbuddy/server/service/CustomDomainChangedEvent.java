@@ -0,0 +1,24 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.service;
+
+/**
+ * Application domain event published when the custom domain of a subdomain was set, changed or removed.
+ *
+ * @param subdomain    the subdomain
+ * @param customDomain the new custom domain, {@code null} if it was removed
+ */
+public record CustomDomainChangedEvent(String subdomain, String customDomain) {
+}
@@ -26,6 +26,7 @@ import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
 
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -54,6 +55,7 @@ public class DomainService {
     private final PasswordEncoder passwordEncoder;
     private final SslServiceClient sslServiceClient;
     private final UserRepository userRepository;
+    private final ApplicationEventPublisher eventPublisher;
 
     private final SecureRandom random = new SecureRandom();
 
@@ -179,7 +181,9 @@ public class DomainService {
 
         final var hash = passwordEncoder.encode(passcode);
         domain.setPasscodeHash(hash);
-        return domainRepository.save(domain);
+        final var saved = domainRepository.save(domain);
+        eventPublisher.publishEvent(new PasscodeChangedEvent(saved.getSubdomain()));
+        return saved;
     }
 
     /**
@@ -194,6 +198,7 @@ public class DomainService {
             .orElseThrow(() -> new RuntimeException("Domain not found"));
         domain.setPasscodeHash(null);
         domainRepository.save(domain);
+        eventPublisher.publishEvent(new PasscodeChangedEvent(domain.getSubdomain()));
     }
 
     /**
@@ -213,7 +218,9 @@ public class DomainService {
             domain.setCustomDomain(customDomain);
             domain.setCnameVerified(false);
             domain.setSslActive(false);
-            return domainRepository.save(domain);
+            final var saved = domainRepository.save(domain);
+            eventPublisher.publishEvent(new CustomDomainChangedEvent(saved.getSubdomain(), customDomain));
+            return saved;
         }
         return domain;
     }
@@ -232,6 +239,7 @@ public class DomainService {
         domain.setCnameVerified(false);
         domain.setSslActive(false);
         domainRepository.save(domain);
+        eventPublisher.publishEvent(new CustomDomainChangedEvent(domain.getSubdomain(), null));
     }
 
     /**
@@ -16,6 +16,7 @@ package tech.amak.portbuddy.server.service;
 
 import java.time.OffsetDateTime;
 
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -38,6 +39,7 @@ public class PaymentCleanupService {
     private final AccountRepository accountRepository;
     private final TunnelService tunnelService;
     private final AppProperties appProperties;
+    private final ApplicationEventPublisher eventPublisher;
 
     /**
      * Checks for accounts that need tunnel freezing due to non-active subscription status.
@@ -64,6 +66,7 @@ public class PaymentCleanupService {
                 log.info("Freezing tunnels for account {} (status={}, updatedAt={})",
                     account.getId(), account.getSubscriptionStatus(), account.getUpdatedAt());
                 tunnelService.closeAllTunnels(account);
+                eventPublisher.publishEvent(new SubscriptionChangedEvent(account.getId()));
             }
         }
     }
@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.service;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.serviceregistry.Registration;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.server.security.JwtService;
+
+/**
+ * Notifies the other server instances registered in service discovery about changes that affect
+ * their instance-local caches. Notifications are sent in the background with short timeouts, so a
+ * slow or unreachable peer never holds up the request that made the change. A failed notification
+ * is retried a few times and then dropped; the caches it targets are reloaded periodically, which
+ * bounds how long a peer that missed it stays stale.
+ */
+@Slf4j
+@Service
+public class ServerPeers {
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(1);
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(1);
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final DiscoveryClient discoveryClient;
+    private final ObjectProvider<Registration> registration;
+    private final RestClient restClient;
+    private final String serviceId;
+    private final JwtService jwtService;
+    private final Duration retryDelay;
+    private final ScheduledExecutorService sender = Executors.newScheduledThreadPool(2, runnable -> {
+        final var thread = new Thread(runnable, "server-peers");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates the notifier.
+     *
+     * @param discoveryClient   discovery client used to find peer server instances
+     * @param registration      registration of this instance, used to skip it
+     * @param restClientBuilder builder of the client used to notify peers
+     * @param serviceId         service id of the server instances
+     * @param jwtService        issues the tokens authenticating this instance to its peers
+     */
+    @Autowired
+    public ServerPeers(final DiscoveryClient discoveryClient,
+                       final ObjectProvider<Registration> registration,
+                       final RestClient.Builder restClientBuilder,
+                       @Value("${spring.application.name}") final String serviceId,
+                       final JwtService jwtService) {
+        this(discoveryClient, registration, restClientBuilder, serviceId, jwtService, READ_TIMEOUT, RETRY_DELAY);
+    }
+
+    ServerPeers(final DiscoveryClient discoveryClient,
+                final ObjectProvider<Registration> registration,
+                final RestClient.Builder restClientBuilder,
+                final String serviceId,
+                final JwtService jwtService,
+                final Duration readTimeout,
+                final Duration retryDelay) {
+        final var requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(CONNECT_TIMEOUT);
+        requestFactory.setReadTimeout(readTimeout);
+        this.discoveryClient = discoveryClient;
+        this.registration = registration;
+        this.restClient = restClientBuilder.requestFactory(requestFactory).build();
+        this.serviceId = serviceId;
+        this.jwtService = jwtService;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Sends a POST request to the given internal path of every other server instance, authenticated
+     * with a short-lived peer token, see {@link JwtService#createPeerToken()}. Returns right away,
+     * the requests are sent in the background.
+     *
+     * @param path        internal API path
+     * @param queryParams query parameters; null values are omitted
+     */
+    public void notify(final String path, final Map<String, ?> queryParams) {
+        try {
+            sender.execute(() -> notifyPeers(path, queryParams));
+        } catch (final RejectedExecutionException e) {
+            log.debug("Not notifying server instances ({}), shutting down", path);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        sender.shutdownNow();
+    }
+
+    private void notifyPeers(final String path, final Map<String, ?> queryParams) {
+        final var self = registration.getIfAvailable();
+        final var selfId = self == null ? null : self.getInstanceId();
+        final var peers = discoveryClient.getInstances(serviceId).stream()
+            .filter(instance -> selfId == null || !selfId.equals(instance.getInstanceId()))
+            .toList();
+        for (final var instance : peers) {
+            final var uri = UriComponentsBuilder.fromUri(instance.getUri()).path(path);
+            queryParams.forEach((name, value) -> {
+                if (value != null) {
+                    uri.queryParam(name, value);
+                }
+            });
+            send(instance, uri.build().toUri(), path, 1);
+        }
+    }
+
+    private void send(final ServiceInstance instance, final URI uri, final String path, final int attempt) {
+        try {
+            restClient.post()
+                .uri(uri)
+                .headers(headers -> headers.setBearerAuth(jwtService.createPeerToken()))
+                .retrieve()
+                .toBodilessEntity();
+        } catch (final Exception e) {
+            if (attempt >= MAX_ATTEMPTS) {
+                log.warn("Failed to notify server instance {} ({}) after {} attempts: {}",
+                    instance.getInstanceId(), path, attempt, e.toString());
+                return;
+            }
+            log.debug("Failed to notify server instance {} ({}), retrying: {}",
+                instance.getInstanceId(), path, e.toString());
+            // Back off exponentially without holding a sender thread
+            final var delay = retryDelay.toMillis() << (attempt - 1);
+            try {
+                sender.schedule(() -> send(instance, uri, path, attempt + 1), delay, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException ignore) {
+                log.debug("Not retrying notification of {}, shutting down", instance.getInstanceId());
+            }
+        }
+    }
+}
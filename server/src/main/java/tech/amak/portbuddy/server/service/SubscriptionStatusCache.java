@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.service;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.server.db.entity.AccountEntity;
+import tech.amak.portbuddy.server.db.repo.AccountRepository;
+
+/**
+ * Instance-local cache of account subscription statuses used by the ingress paths, so that
+ * billing checks do not query the database on every public request.
+ * Entries are populated when a tunnel connects and evicted on {@link SubscriptionChangedEvent};
+ * evictions are forwarded to the other server instances through {@link ServerPeers}.
+ * All cached entries are additionally reloaded periodically in case a peer notification was lost.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SubscriptionStatusCache {
+
+    public static final String EVICT_PATH = "/api/internal/accounts/subscription-changed";
+
+    private final AccountRepository accountRepository;
+    private final ServerPeers serverPeers;
+
+    private final Map<UUID, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the subscription of an account, loading it from the database only if it is not cached.
+     *
+     * @param accountId the account id
+     * @return the subscription, or empty if the account does not exist
+     */
+    public Optional<Subscription> find(final UUID accountId) {
+        if (accountId == null) {
+            return Optional.empty();
+        }
+        final var cached = subscriptions.get(accountId);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        return accountRepository.findById(accountId).map(this::put);
+    }
+
+    /**
+     * Caches the current subscription status of the given account.
+     *
+     * @param account the account
+     * @return the cached subscription
+     */
+    public Subscription put(final AccountEntity account) {
+        final var subscription = new Subscription(account.getSubscriptionStatus());
+        subscriptions.put(account.getId(), subscription);
+        return subscription;
+    }
+
+    /**
+     * Drops the cached status of an account on this instance only.
+     *
+     * @param accountId the account id
+     */
+    public void evict(final UUID accountId) {
+        if (accountId != null) {
+            subscriptions.remove(accountId);
+        }
+    }
+
+    /**
+     * Evicts the account once the change is committed and asks the other server instances to do the same.
+     *
+     * @param event the subscription change
+     */
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onSubscriptionChanged(final SubscriptionChangedEvent event) {
+        evict(event.accountId());
+        serverPeers.notify(EVICT_PATH, Map.of("accountId", event.accountId()));
+    }
+
+    /**
+     * Reloads all cached statuses in one query. Bounds staleness when a peer notification was lost.
+     */
+    @Scheduled(
+        fixedDelayString =
+            "#{@'app-tech.amak.portbuddy.server.config.AppProperties'.subscriptions().statusCacheRefresh().toMillis()}",
+        initialDelayString =
+            "#{@'app-tech.amak.portbuddy.server.config.AppProperties'.subscriptions().statusCacheRefresh().toMillis()}"
+    )
+    public void refresh() {
+        final var ids = new HashSet<>(subscriptions.keySet());
+        if (ids.isEmpty()) {
+            return;
+        }
+        for (final var account : accountRepository.findAllById(ids)) {
+            put(account);
+            ids.remove(account.getId());
+        }
+        ids.forEach(subscriptions::remove);
+        log.debug("Refreshed {} cached subscription statuses", subscriptions.size());
+    }
+
+    /**
+     * Cached subscription state of an account.
+     *
+     * @param status Stripe subscription status, null if the account never had a subscription
+     */
+    public record Subscription(String status) {
+
+        /**
+         * Whether public traffic is allowed: there is no subscription record or it is active.
+         */
+        public boolean isActive() {
+            return status == null || "active".equals(status);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.service;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.server.db.repo.TunnelRepository;
+import tech.amak.portbuddy.server.service.SubscriptionStatusCache.Subscription;
+
+/**
+ * Collects tunnel heartbeats in memory and writes them to the database in periodic batches,
+ * so that tunnel traffic does not cost a database transaction per message.
+ * A flushed heartbeat is stamped with the flush time, which is at most one flush interval later
+ * than the actual heartbeat; the interval is kept well below the heartbeat timeout used by
+ * {@link StaleTunnelsReaper}.
+ * Tunnels of accounts whose subscription is no longer active are closed on flush instead of being
+ * kept alive, using the statuses held by {@link SubscriptionStatusCache}.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class TunnelHeartbeats {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final TunnelRepository tunnelRepository;
+    private final SubscriptionStatusCache subscriptionStatusCache;
+    private final TransactionTemplate transactionTemplate;
+
+    private final Set<UUID> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Records a heartbeat of the given tunnel. It is written to the database on the next flush.
+     *
+     * @param tunnelId the tunnel id, ignored if null
+     */
+    public void record(final UUID tunnelId) {
+        if (tunnelId != null) {
+            pending.add(tunnelId);
+        }
+    }
+
+    /**
+     * Writes all heartbeats recorded since the previous flush and closes the tunnels among them whose
+     * subscription is not active. Runs on every instance, since each one only holds the heartbeats
+     * of the tunnels connected to it.
+     */
+    @Scheduled(
+        fixedDelayString = "#{@tunnelsProperties.heartbeatFlushInterval.toMillis()}",
+        initialDelayString = "#{@tunnelsProperties.heartbeatFlushInterval.toMillis()}"
+    )
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final var ids = new ArrayList<UUID>(pending.size());
+        for (final var iterator = pending.iterator(); iterator.hasNext(); ) {
+            ids.add(iterator.next());
+            iterator.remove();
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> write(ids));
+        } catch (final RuntimeException e) {
+            // Keep the heartbeats for the next attempt
+            pending.addAll(ids);
+            throw e;
+        }
+    }
+
+    private void write(final List<UUID> ids) {
+        final var now = OffsetDateTime.now();
+        var updated = 0;
+        var closed = 0;
+        for (var from = 0; from < ids.size(); from += BATCH_SIZE) {
+            final var batch = new ArrayList<>(ids.subList(from, Math.min(from + BATCH_SIZE, ids.size())));
+            final var inactive = findWithInactiveSubscription(batch);
+            if (!inactive.isEmpty()) {
+                closed += tunnelRepository.closeAllById(inactive);
+                batch.removeAll(inactive);
+            }
+            if (!batch.isEmpty()) {
+                updated += tunnelRepository.updateLastHeartbeat(batch, now);
+            }
+        }
+        log.debug("Flushed {} tunnel heartbeats ({} updated, {} closed)", ids.size(), updated, closed);
+    }
+
+    private List<UUID> findWithInactiveSubscription(final List<UUID> tunnelIds) {
+        final var inactive = new ArrayList<UUID>();
+        for (final var tunnel : tunnelRepository.findByIdIn(tunnelIds)) {
+            final var active = subscriptionStatusCache.find(tunnel.getAccountId())
+                .map(Subscription::isActive)
+                .orElse(true);
+            if (!active) {
+                log.info("Closing tunnel of inactive subscription: tunnelId={} accountId={}",
+                    tunnel.getId(), tunnel.getAccountId());
+                inactive.add(tunnel.getId());
+            }
+        }
+        return inactive;
+    }
+
+    @PreDestroy
+    void flushOnShutdown() {
+        try {
+            flush();
+        } catch (final RuntimeException e) {
+            log.warn("Failed to flush tunnel heartbeats on shutdown: {}", e.toString());
+        }
+    }
+}
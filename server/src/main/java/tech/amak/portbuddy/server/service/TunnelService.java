@@ -45,6 +45,8 @@ public class TunnelService {
     private final TunnelRepository tunnelRepository;
     private final AccountRepository accountRepository;
     private final AppProperties properties;
+    private final TunnelHeartbeats heartbeats;
+    private final SubscriptionStatusCache subscriptionStatusCache;
 
     /**
      * Creates a new HTTP tunnel using the database entity id as the tunnel id.
@@ -272,7 +274,7 @@ public class TunnelService {
      * Updates the status of a tunnel to 'CONNECTED' and sets its last heartbeat
      * timestamp to the current time. This method retrieves the tunnel from the
      * repository using the provided tunnel ID and applies the updates if the
-     * tunnel is found.
+     * tunnel is found. The account's subscription status is cached for the ingress checks.
      *
      * @param tunnelId The unique identifier of the tunnel to update. If null or
      *                 the tunnel is not found, no action is taken.
@@ -281,7 +283,10 @@ public class TunnelService {
     public void markConnected(final UUID tunnelId) {
         findByTunnelId(tunnelId).ifPresent(entity -> {
             accountRepository.findById(entity.getAccountId())
-                .ifPresent(this::checkSubscriptionStatus);
+                .ifPresent(account -> {
+                    subscriptionStatusCache.put(account);
+                    checkSubscriptionStatus(account);
+                });
 
             entity.setStatus(TunnelStatus.CONNECTED);
             entity.setLastHeartbeatAt(OffsetDateTime.now());
@@ -290,22 +295,15 @@ public class TunnelService {
     }
 
     /**
-     * Updates the last heartbeat timestamp of a tunnel to the current time. This method
-     * retrieves the tunnel from the repository using the provided tunnel ID and updates
-     * the last heartbeat timestamp if the tunnel is found.
+     * Records a heartbeat of a tunnel. The timestamp is kept in memory and written to the database
+     * in batches by {@link TunnelHeartbeats}, so this method does no database I/O. The subscription
+     * status is checked when the tunnel connects, on ingress and for each batch of heartbeats.
      *
      * @param tunnelId The unique identifier of the tunnel whose heartbeat should be updated.
-     *                 If null or the tunnel is not found, no action is taken.
+     *                 If null, no action is taken.
      */
-    @Transactional
     public void heartbeat(final UUID tunnelId) {
-        findByTunnelId(tunnelId).ifPresent(entity -> {
-            accountRepository.findById(entity.getAccountId())
-                .ifPresent(this::checkSubscriptionStatus);
-
-            entity.setLastHeartbeatAt(OffsetDateTime.now());
-            tunnelRepository.save(entity);
-        });
+        heartbeats.record(tunnelId);
     }
 
     /**
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.tunnel;
+
+import java.util.HashSet;
+import java.util.Map;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.server.db.repo.DomainRepository;
+import tech.amak.portbuddy.server.service.CustomDomainChangedEvent;
+import tech.amak.portbuddy.server.service.PasscodeChangedEvent;
+import tech.amak.portbuddy.server.service.ServerPeers;
+
+/**
+ * Keeps the domain data cached in {@link TunnelRegistry} (custom domain index, passcode hashes)
+ * in sync with domain changes, on this instance and, through {@link ServerPeers}, on the
+ * instance that holds the tunnel. The data is additionally reloaded periodically in case a peer
+ * notification was lost.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class DomainChangeListener {
+
+    public static final String CUSTOM_DOMAIN_CHANGED_PATH = "/api/internal/domains/custom-domain-changed";
+    public static final String PASSCODE_CHANGED_PATH = "/api/internal/domains/passcode-changed";
+
+    private final TunnelRegistry registry;
+    private final ServerPeers serverPeers;
+    private final DomainRepository domainRepository;
+
+    /**
+     * Applies a committed custom domain change locally and forwards it to the other server instances.
+     *
+     * @param event the change
+     */
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onCustomDomainChanged(final CustomDomainChangedEvent event) {
+        registry.updateCustomDomain(event.subdomain(), event.customDomain());
+        // Peers read the new custom domain from the database, the notification only names the subdomain
+        serverPeers.notify(CUSTOM_DOMAIN_CHANGED_PATH, Map.of("subdomain", event.subdomain()));
+    }
+
+    /**
+     * Drops the cached passcode hash once the change is committed, here and on the other server instances.
+     *
+     * @param event the change
+     */
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onPasscodeChanged(final PasscodeChangedEvent event) {
+        registry.invalidatePasscode(event.subdomain());
+        serverPeers.notify(PASSCODE_CHANGED_PATH, Map.of("subdomain", event.subdomain()));
+    }
+
+    /**
+     * Reloads the custom domains of the tunnels registered on this instance and drops their cached
+     * passcode hashes. Bounds staleness when a peer notification was lost.
+     */
+    @Scheduled(
+        fixedDelayString = "#{@tunnelsProperties.domainCacheRefresh.toMillis()}",
+        initialDelayString = "#{@tunnelsProperties.domainCacheRefresh.toMillis()}"
+    )
+    public void refresh() {
+        final var registered = registry.subdomains();
+        if (registered.isEmpty()) {
+            return;
+        }
+        final var missing = new HashSet<>(registered);
+        for (final var domain : domainRepository.findAllBySubdomainIn(registered)) {
+            registry.updateCustomDomain(domain.getSubdomain(), domain.getCustomDomain());
+            missing.remove(domain.getSubdomain());
+        }
+        // Tunnels whose domain is gone keep no custom domain
+        missing.forEach(subdomain -> registry.updateCustomDomain(subdomain, null));
+        registered.forEach(registry::invalidatePasscode);
+        log.debug("Refreshed the domains of {} tunnels", registered.size());
+    }
+}
@@ -33,8 +33,7 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import tech.amak.portbuddy.common.tunnel.WsTunnelMessage;
 import tech.amak.portbuddy.server.config.AppProperties;
-import tech.amak.portbuddy.server.db.repo.AccountRepository;
-import tech.amak.portbuddy.server.db.repo.DomainRepository;
+import tech.amak.portbuddy.server.service.SubscriptionStatusCache;
 
 /**
  * Accepts public WebSocket connections from browsers for tunneled subdomains and bridges them
@@ -47,8 +46,7 @@ public class PublicWebSocketProxyHandler extends AbstractWebSocketHandler {
 
     private final TunnelRegistry registry;
     private final AppProperties properties;
-    private final DomainRepository domainRepository;
-    private final AccountRepository accountRepository;
+    private final SubscriptionStatusCache subscriptionStatusCache;
 
     @Override
     public void afterConnectionEstablished(final WebSocketSession browserSession) throws Exception {
@@ -59,15 +57,8 @@ public class PublicWebSocketProxyHandler extends AbstractWebSocketHandler {
             return;
         }
 
-        var tunnel = registry.getBySubdomain(subdomain);
-        if (tunnel == null) {
-            // It might be a custom domain, try to resolve it to a subdomain
-            final var domainOpt = domainRepository.findByCustomDomain(subdomain);
-            if (domainOpt.isPresent()) {
-                final var resolvedSubdomain = domainOpt.get().getSubdomain();
-                tunnel = registry.getBySubdomain(resolvedSubdomain);
-            }
-        }
+        // It might also be a custom domain
+        final var tunnel = registry.getByHost(subdomain);
 
         if (tunnel == null || !tunnel.isOpen()) {
             browserSession.close(CloseStatus.SERVICE_RESTARTED);
@@ -75,15 +66,12 @@ public class PublicWebSocketProxyHandler extends AbstractWebSocketHandler {
         }
 
         // Check subscription status
-        final var accountOpt = accountRepository.findById(tunnel.accountId());
-        if (accountOpt.isPresent()) {
-            final var status = accountOpt.get().getSubscriptionStatus();
-            if (status != null && !"active".equals(status)) {
-                log.warn("Blocked WS request to subdomain {} because subscription is not active (status: {})",
-                    subdomain, status);
-                browserSession.close(CloseStatus.POLICY_VIOLATION.withReason("Subscription inactive"));
-                return;
-            }
+        final var subscription = subscriptionStatusCache.find(tunnel.accountId()).orElse(null);
+        if (subscription != null && !subscription.isActive()) {
+            log.warn("Blocked WS request to subdomain {} because subscription is not active (status: {})",
+                subdomain, subscription.status());
+            browserSession.close(CloseStatus.POLICY_VIOLATION.withReason("Subscription inactive"));
+            return;
         }
 
         final var connectionId = UUID.randomUUID().toString();
@@ -176,9 +164,9 @@ public class PublicWebSocketProxyHandler extends AbstractWebSocketHandler {
                 }
             } else {
                 // Check if it's a custom domain
-                final var domainOpt = domainRepository.findByCustomDomain(host.toLowerCase());
-                if (domainOpt.isPresent()) {
-                    return domainOpt.get().getSubdomain();
+                final var tunnel = registry.getByCustomDomain(host);
+                if (tunnel != null) {
+                    return tunnel.subdomain();
                 }
             }
         }
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.tunnel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+
+/**
+ * Collects the whole body of a public request with non-blocking I/O, for tunnel clients that take
+ * the request in a single message.
+ */
+final class RequestBodyCollector implements ReadListener {
+
+    private final ServletInputStream body;
+    private final CompletableFuture<byte[]> result;
+    private final byte[] buffer = new byte[TunnelRegistry.REQUEST_BODY_CHUNK_SIZE];
+
+    // Guarded by this
+    private final ByteArrayOutputStream collected = new ByteArrayOutputStream();
+
+    /**
+     * Creates the collector; register it with {@link ServletInputStream#setReadListener}.
+     *
+     * @param body   the request body, in async mode
+     * @param result completes with the body once it was read completely, null if it is empty
+     */
+    RequestBodyCollector(final ServletInputStream body, final CompletableFuture<byte[]> result) {
+        this.body = body;
+        this.result = result;
+    }
+
+    @Override
+    public synchronized void onDataAvailable() throws IOException {
+        int read;
+        while (!result.isDone() && body.isReady() && (read = body.read(buffer)) != -1) {
+            collected.write(buffer, 0, read);
+        }
+        if (body.isFinished()) {
+            onAllDataRead();
+        }
+    }
+
+    @Override
+    public synchronized void onAllDataRead() {
+        result.complete(collected.size() == 0 ? null : collected.toByteArray());
+    }
+
+    @Override
+    public void onError(final Throwable error) {
+        result.completeExceptionally(error);
+    }
+}
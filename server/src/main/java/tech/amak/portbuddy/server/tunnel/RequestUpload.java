@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.tunnel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelFrame;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
+
+/**
+ * Streams the body of a public request to a binary tunnel client as REQUEST_BODY chunks terminated
+ * by REQUEST_END, without holding a thread while it waits. The body is read with non-blocking I/O
+ * as long as the container has data, the client granted credit and the tunnel's send queue has room.
+ * Reading stops when one of them runs out and resumes when the container reports more data
+ * ({@link ReadListener}), the client acknowledges consumed bytes ({@link #grant(int)}) or the send
+ * queue drained, whichever was missing.
+ */
+@Slf4j
+final class RequestUpload implements ReadListener {
+
+    private final TunnelRegistry.Tunnel tunnel;
+    private final String id;
+    private final ServletInputStream body;
+    private final CompletableFuture<HttpTunnelMessage> future;
+    private final Runnable onEnd;
+    private final byte[] buffer = new byte[TunnelRegistry.REQUEST_BODY_CHUNK_SIZE];
+
+    // Guarded by this
+    private int credit = TunnelRegistry.REQUEST_BODY_WINDOW;
+    private WebSocketMessage<?> unsent;
+    private boolean ending;
+    private boolean endQueued;
+
+    /**
+     * Creates the upload; register it with {@link ServletInputStream#setReadListener} once the request
+     * head was sent.
+     *
+     * @param tunnel the tunnel the request goes to
+     * @param id     the request identifier
+     * @param body   the request body, in async mode
+     * @param future the pending response; the upload stops once it completes
+     * @param onEnd  called once REQUEST_END was queued
+     */
+    RequestUpload(final TunnelRegistry.Tunnel tunnel,
+                  final String id,
+                  final ServletInputStream body,
+                  final CompletableFuture<HttpTunnelMessage> future,
+                  final Runnable onEnd) {
+        this.tunnel = tunnel;
+        this.id = id;
+        this.body = body;
+        this.future = future;
+        this.onEnd = onEnd;
+    }
+
+    @Override
+    public void onDataAvailable() {
+        pump();
+    }
+
+    @Override
+    public void onAllDataRead() {
+        pump();
+    }
+
+    @Override
+    public void onError(final Throwable error) {
+        log.debug("Failed to read request {} body: {}", id, error.toString());
+        future.completeExceptionally(error);
+    }
+
+    /**
+     * Returns credit once the client acknowledged consumed body bytes, and resumes reading.
+     *
+     * @param bytes number of body bytes the client consumed
+     */
+    void grant(final int bytes) {
+        synchronized (this) {
+            credit += bytes;
+        }
+        pump();
+    }
+
+    // Sends as much of the body as the client connection, the credit and the send queue allow right now
+    private synchronized void pump() {
+        try {
+            while (!endQueued && !future.isDone()) {
+                if (unsent != null) {
+                    if (!queue(unsent)) {
+                        return;
+                    }
+                    unsent = null;
+                    if (ending) {
+                        ended();
+                    }
+                    continue;
+                }
+                if (body.isFinished()) {
+                    ending = true;
+                    if (queue(frame(HttpTunnelMessage.Type.REQUEST_END, null))) {
+                        ended();
+                    }
+                    return;
+                }
+                // Without credit the client resumes the upload; otherwise the container does once data arrives
+                if (credit == 0 || !body.isReady()) {
+                    return;
+                }
+                final var read = body.read(buffer, 0, Math.min(buffer.length, credit));
+                if (read > 0) {
+                    credit -= read;
+                    if (!queue(frame(HttpTunnelMessage.Type.REQUEST_BODY, Arrays.copyOf(buffer, read)))) {
+                        return;
+                    }
+                }
+            }
+        } catch (final IOException | IllegalStateException e) {
+            log.debug("Aborted streaming request {} to tunnel {}: {}", id, tunnel.tunnelId(), e.toString());
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void ended() {
+        endQueued = true;
+        onEnd.run();
+    }
+
+    /**
+     * Queues a frame on the tunnel. A frame the send queue has no room for is kept and queued again
+     * once the queue drained.
+     *
+     * @return {@code false} if the frame has to wait for the send queue
+     */
+    private boolean queue(final WebSocketMessage<?> message) throws IOException {
+        final var sender = tunnel.sender();
+        if (sender == null || !tunnel.isOpen()) {
+            throw new IOException("Tunnel closed during request upload");
+        }
+        if (sender.offer(message)) {
+            return true;
+        }
+        unsent = message;
+        if (!sender.whenDrained(this::pump)) {
+            throw new IOException("Tunnel closed during request upload");
+        }
+        return false;
+    }
+
+    private BinaryMessage frame(final HttpTunnelMessage.Type type, final byte[] chunk) {
+        final var message = new HttpTunnelMessage();
+        message.setId(id);
+        message.setType(type);
+        message.setBody(chunk);
+        return new BinaryMessage(HttpTunnelFrame.encode(message));
+    }
+}
@@ -14,27 +14,46 @@
 
 package tech.amak.portbuddy.server.tunnel;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.ServletInputStream;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.common.tunnel.ControlMessage;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelFrame;
 import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
 import tech.amak.portbuddy.common.tunnel.WsTunnelMessage;
+import tech.amak.portbuddy.server.config.TunnelsProperties;
 import tech.amak.portbuddy.server.db.entity.TunnelEntity;
 
 /**
@@ -42,28 +61,76 @@ import tech.amak.portbuddy.server.db.entity.TunnelEntity;
  */
 @Slf4j
 @Component
-@RequiredArgsConstructor
 public class TunnelRegistry {
 
     private final Map<String, Tunnel> bySubdomain = new ConcurrentHashMap<>();
+    // Custom domains (lower case) of the tunnels registered on this instance
+    private final Map<String, Tunnel> byCustomDomain = new ConcurrentHashMap<>();
     private final Map<UUID, Tunnel> byTunnelId = new ConcurrentHashMap<>();
+    // Browser WS peers of all tunnels, looked up on every browser message
+    private final Map<WebSocketSession, Ids> browserSessions = new ConcurrentHashMap<>();
+    // Version of the routable hosts, prefixed with a per-process epoch so versions never repeat across restarts
+    private final String routesEpoch = UUID.randomUUID().toString();
+    private final AtomicLong routesVersion = new AtomicLong();
     public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+    /**
+     * Size of a single REQUEST_BODY chunk read from the ingress request.
+     */
+    static final int REQUEST_BODY_CHUNK_SIZE = 64 * 1024;
+    /**
+     * Maximum number of streamed request body bytes in flight that the CLI has not acknowledged yet.
+     */
+    static final int REQUEST_BODY_WINDOW = 1024 * 1024;
+    /**
+     * How long browser WebSocket frames wait for send capacity before they are dropped.
+     */
+    private static final long WS_SEND_WAIT_MILLIS = 5000;
 
     private final ObjectMapper mapper;
+    private final TunnelsProperties properties;
+    private final TunnelSenderMetrics senderMetrics;
+    // Writers draining the per-tunnel outbound queues
+    private final ExecutorService writers = Executors.newCachedThreadPool(runnable -> {
+        final var thread = new Thread(runnable, "tunnel-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public TunnelRegistry(final ObjectMapper mapper,
+                          final TunnelsProperties properties,
+                          final MeterRegistry meterRegistry) {
+        this.mapper = mapper;
+        this.properties = properties;
+        this.senderMetrics = new TunnelSenderMetrics(meterRegistry);
+    }
 
     /**
      * Registers a WebSocket session for a given tunnel entity by associating it with a newly created
-     * tunnel instance based on the subdomain and tunnel ID.
+     * tunnel instance based on the subdomain and tunnel ID. The HTTP tunnel protocol version is
+     * negotiated from the {@link HttpTunnelFrame#PROTOCOL_HEADER} handshake header and announced to
+     * binary capable clients with a {@link ControlMessage.Type#HELLO} message.
      *
      * @param tunnelEntity the {@code TunnelEntity} containing information about the domain and tunnel identifiers
      * @param session      the {@code WebSocketSession} to be associated with the created tunnel instance
      * @return {@code true} to indicate successful registration
      */
     public boolean register(final TunnelEntity tunnelEntity, final WebSocketSession session) {
-        final var tunnel = register(tunnelEntity.getDomain().getSubdomain(), tunnelEntity.getId(),
-                tunnelEntity.getAccountId());
+        final var domain = tunnelEntity.getDomain();
+        final var tunnel = register(domain.getSubdomain(), tunnelEntity.getId(), tunnelEntity.getAccountId());
+        updateCustomDomain(tunnel, domain.getCustomDomain());
+        tunnel.setSender(new TunnelSender(session, properties.getSendBufferSize().toBytes(), writers, senderMetrics));
         tunnel.setSession(session);
-        log.info("Registered tunnel {} with session {}", tunnel.tunnelId(), session.getId());
+        tunnel.setProtocolVersion(HttpTunnelFrame.negotiateVersion(
+            session.getHandshakeHeaders().getFirst(HttpTunnelFrame.PROTOCOL_HEADER)));
+        routesVersion.incrementAndGet();
+        log.info("Registered tunnel {} with session {} (protocol version {})",
+            tunnel.tunnelId(), session.getId(), tunnel.protocolVersion());
+        if (tunnel.protocolVersion() > HttpTunnelFrame.JSON) {
+            final var hello = new ControlMessage();
+            hello.setType(ControlMessage.Type.HELLO);
+            hello.setProtocolVersion(tunnel.protocolVersion());
+            sendControl(tunnel.tunnelId(), hello);
+        }
         return true;
     }
 
@@ -77,17 +144,116 @@ public class TunnelRegistry {
      * @return the created Tunnel instance
      */
     private Tunnel register(final String subdomain, final UUID tunnelId, final UUID accountId) {
-        final var tunnel = new Tunnel(tunnelId, accountId);
-        bySubdomain.put(subdomain, tunnel);
+        final var tunnel = new Tunnel(tunnelId, accountId, subdomain);
+        final var previous = bySubdomain.put(subdomain, tunnel);
+        if (previous != null) {
+            updateCustomDomain(previous, null);
+        }
         byTunnelId.put(tunnelId, tunnel);
         return tunnel;
     }
 
+    /**
+     * Points the custom domain index to the current custom domain of the tunnel registered for the
+     * given subdomain. Does nothing if no tunnel for the subdomain is registered on this instance.
+     *
+     * @param subdomain    the subdomain of the tunnel
+     * @param customDomain the new custom domain, or {@code null} if it was removed
+     */
+    public void updateCustomDomain(final String subdomain, final String customDomain) {
+        final var tunnel = bySubdomain.get(subdomain);
+        if (tunnel != null) {
+            updateCustomDomain(tunnel, customDomain);
+        }
+    }
+
+    private void updateCustomDomain(final Tunnel tunnel, final String customDomain) {
+        final var normalized = customDomain == null || customDomain.isBlank() ? null : customDomain.toLowerCase();
+        synchronized (tunnel) {
+            final var previous = tunnel.customDomain();
+            if (Objects.equals(previous, normalized)) {
+                // Unchanged, e.g. on a periodic refresh; the routes of the gateway stay valid
+                return;
+            }
+            if (previous != null) {
+                byCustomDomain.remove(previous, tunnel);
+            }
+            tunnel.setCustomDomain(normalized);
+            if (normalized != null) {
+                byCustomDomain.put(normalized, tunnel);
+            }
+        }
+        routesVersion.incrementAndGet();
+    }
 
     public Tunnel getBySubdomain(final String subdomain) {
         return bySubdomain.get(subdomain);
     }
 
+    /**
+     * Returns the subdomains of the tunnels registered on this instance.
+     */
+    public Set<String> subdomains() {
+        return Set.copyOf(bySubdomain.keySet());
+    }
+
+    /**
+     * Drops the cached passcode hash of the tunnel registered for the given subdomain, so that it is
+     * loaded again on the next request.
+     *
+     * @param subdomain the subdomain whose passcode changed
+     */
+    public void invalidatePasscode(final String subdomain) {
+        final var tunnel = bySubdomain.get(subdomain);
+        if (tunnel != null) {
+            tunnel.passcode = null;
+        }
+    }
+
+    /**
+     * Returns the tunnel registered on this instance for the given custom domain.
+     *
+     * @param customDomain the custom domain, compared case-insensitively
+     * @return the tunnel, or {@code null} if none is registered here
+     */
+    public Tunnel getByCustomDomain(final String customDomain) {
+        return customDomain == null ? null : byCustomDomain.get(customDomain.toLowerCase());
+    }
+
+    /**
+     * Resolves a public host name, which is either a tunnel subdomain or a custom domain.
+     *
+     * @param host the subdomain or custom domain
+     * @return the tunnel, or {@code null} if none is registered here
+     */
+    public Tunnel getByHost(final String host) {
+        final var tunnel = bySubdomain.get(host);
+        return tunnel != null ? tunnel : getByCustomDomain(host);
+    }
+
+    /**
+     * Returns the subdomains and custom domains of the tunnels currently open on this instance,
+     * together with a version that changes whenever the set may have changed. The version is read
+     * before the hosts, so a change racing with this call always yields a newer version next time.
+     *
+     * @return the routable hosts of this instance
+     */
+    public Routes routes() {
+        final var version = routesEpoch + "-" + routesVersion.get();
+        final var hosts = new ArrayList<String>();
+        for (final var tunnel : bySubdomain.values()) {
+            if (!tunnel.isOpen()) {
+                continue;
+            }
+            hosts.add(tunnel.subdomain());
+            final var customDomain = tunnel.customDomain();
+            if (customDomain != null) {
+                hosts.add(customDomain);
+            }
+        }
+        return new Routes(version, hosts);
+    }
+
     public Tunnel getByTunnelId(final UUID tunnelId) {
         return byTunnelId.get(tunnelId);
     }
@@ -96,6 +262,9 @@ public class TunnelRegistry {
      * Forwards an HTTP tunnel request through a WebSocket session associated with a specified subdomain.
      * If the tunnel is not connected or not open, the request will fail with an exception.
      * A timeout can be specified to limit the operation’s duration.
+     * The request body is taken from {@link HttpTunnelMessage#getBody()} and sent raw in a binary
+     * frame when the client supports it, or base64 encoded in a JSON message otherwise.
+     * Streamed responses are collected, so the future always completes with a full RESPONSE.
      *
      * @param subdomain the subdomain associated with the destination tunnel
      * @param request   the HTTP tunnel message to be forwarded
@@ -105,40 +274,260 @@ public class TunnelRegistry {
     public CompletableFuture<HttpTunnelMessage> forwardRequest(final String subdomain,
                                                                final HttpTunnelMessage request,
                                                                final Duration timeout) {
+        return forwardWholeRequest(subdomain, request, timeout, null);
+    }
+
+    /**
+     * Forwards an HTTP tunnel request whose body is read from the given stream.
+     *
+     * @see #forwardRequest(String, HttpTunnelMessage, ServletInputStream, Duration, TunnelResponseListener)
+     */
+    public CompletableFuture<HttpTunnelMessage> forwardRequest(final String subdomain,
+                                                               final HttpTunnelMessage request,
+                                                               final ServletInputStream body,
+                                                               final Duration timeout) {
+        return forwardRequest(subdomain, request, body, timeout, null);
+    }
+
+    /**
+     * Forwards an HTTP tunnel request whose body is read from the given stream.
+     * When the client speaks binary frames, the request head is
+     * sent first and the body follows as REQUEST_BODY chunks terminated by REQUEST_END, so the body is
+     * never fully buffered in memory. At most {@link #REQUEST_BODY_WINDOW} bytes are sent ahead of the
+     * client's REQUEST_BODY_ACK messages (see {@link RequestUpload}).
+     * For JSON clients the body is read fully and sent in a single message.
+     * The body is read with non-blocking I/O, so the request must be in async mode; the call returns
+     * right away and no thread waits for body data, credit or send capacity.
+     * If the client streams the response (RESPONSE_HEAD, RESPONSE_BODY..., RESPONSE_END), it is passed
+     * to the {@code listener} as it arrives and the future completes with the RESPONSE_HEAD message
+     * once the body ended; otherwise the future completes with the full RESPONSE. The timeout only
+     * bounds the time from REQUEST_END until the response head arrives, so neither slow uploads nor
+     * long-lived streams (e.g. server-sent events) are cut off.
+     *
+     * @param subdomain the subdomain associated with the destination tunnel
+     * @param request   the HTTP tunnel message to be forwarded, without body
+     * @param body      the request body stream of a request in async mode; null if the request has no body
+     * @param timeout   the maximum duration to wait for a response once the body was sent; null indicates
+     *                  default timeout
+     * @param listener  receives streamed responses; null to collect them into a full RESPONSE
+     * @return a CompletableFuture that will complete with the response message or fail with an exception
+     */
+    public CompletableFuture<HttpTunnelMessage> forwardRequest(final String subdomain,
+                                                               final HttpTunnelMessage request,
+                                                               final ServletInputStream body,
+                                                               final Duration timeout,
+                                                               final TunnelResponseListener listener) {
+        final var tunnel = bySubdomain.get(subdomain);
+        if (body == null || tunnel == null) {
+            return forwardWholeRequest(subdomain, request, timeout, listener);
+        }
+        if (tunnel.protocolVersion() == HttpTunnelFrame.JSON) {
+            final var collected = new CompletableFuture<byte[]>();
+            try {
+                body.setReadListener(new RequestBodyCollector(body, collected));
+            } catch (final IllegalStateException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return collected.thenCompose(bytes -> {
+                request.setBody(bytes);
+                return forwardWholeRequest(subdomain, request, timeout, listener);
+            });
+        }
+        if (!tunnel.isOpen()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Tunnel not connected"));
+        }
+        if (request.getId() == null) {
+            request.setId(UUID.randomUUID().toString());
+        }
+        request.setType(HttpTunnelMessage.Type.REQUEST_HEAD);
+        request.setBody(null);
+
+        final var id = request.getId();
+        final var pending = new PendingResponse(listener);
+        // The timeout is armed once the body is sent, so slow uploads are not cut off
+        final var future = track(tunnel, id, pending);
+        try {
+            send(tunnel, new BinaryMessage(HttpTunnelFrame.encode(request)));
+            final var upload = new RequestUpload(tunnel, id, body, pending.future, () -> {
+                log.trace("Forwarded streaming request {} to tunnel {}", id, tunnel.tunnelId());
+                tunnel.uploads().remove(id);
+                armTimeout(pending, timeout);
+            });
+            tunnel.uploads().put(id, upload);
+            pending.future.whenComplete((response, error) -> tunnel.uploads().remove(id));
+            body.setReadListener(upload);
+        } catch (final IOException | IllegalStateException e) {
+            pending.future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private CompletableFuture<HttpTunnelMessage> forwardWholeRequest(final String subdomain,
+                                                                     final HttpTunnelMessage request,
+                                                                     final Duration timeout,
+                                                                     final TunnelResponseListener listener) {
         final var tunnel = bySubdomain.get(subdomain);
         if (tunnel == null || !tunnel.isOpen()) {
-            final var future = new CompletableFuture<HttpTunnelMessage>();
-            future.completeExceptionally(new IllegalStateException("Tunnel not connected"));
-            return future;
+            return CompletableFuture.failedFuture(new IllegalStateException("Tunnel not connected"));
         }
         // Assign id if missing
         if (request.getId() == null) {
             request.setId(UUID.randomUUID().toString());
         }
         request.setType(HttpTunnelMessage.Type.REQUEST);
-        final var future = new CompletableFuture<HttpTunnelMessage>();
-        tunnel.pending().put(request.getId(), future);
+        final var pending = new PendingResponse(listener);
+        final var future = track(tunnel, request.getId(), pending);
+        armTimeout(pending, timeout);
+        try {
+            if (tunnel.protocolVersion() > HttpTunnelFrame.JSON) {
+                send(tunnel, new BinaryMessage(HttpTunnelFrame.encode(request)));
+                log.trace("Forwarded binary request {} to tunnel {}", request.getId(), tunnel.tunnelId());
+            } else {
+                if (request.getBody() != null && request.getBodyB64() == null) {
+                    request.setBodyB64(Base64.getEncoder().encodeToString(request.getBody()));
+                }
+                final var json = mapper.writeValueAsString(request);
+                send(tunnel, new TextMessage(json));
+                log.trace("Forwarded request {} to tunnel {}", json, tunnel.tunnelId());
+            }
+        } catch (final IOException e) {
+            pending.future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Registers a pending response. On failure (timeout, public client gone) the client is asked to
+     * cancel the request.
+     */
+    private CompletableFuture<HttpTunnelMessage> track(final Tunnel tunnel,
+                                                       final String id,
+                                                       final PendingResponse pending) {
+        tunnel.pending().put(id, pending);
+        return pending.future.whenComplete((res, err) -> {
+            tunnel.pending().remove(id);
+            if (err != null) {
+                cancel(tunnel, id);
+            }
+        });
+    }
+
+    /**
+     * Fails the pending response unless its head arrives within the timeout, counted from the end of
+     * the request.
+     */
+    private static void armTimeout(final PendingResponse pending, final Duration timeout) {
+        final var timeoutMillis = (timeout == null ? DEFAULT_TIMEOUT : timeout).toMillis();
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (pending.head == null) {
+                pending.future.completeExceptionally(
+                    new TimeoutException("No response from tunnel within " + timeoutMillis + " ms"));
+            }
+        });
+    }
+
+    private void cancel(final Tunnel tunnel, final String id) {
+        if (!tunnel.isOpen() || tunnel.protocolVersion() == HttpTunnelFrame.JSON) {
+            return;
+        }
         try {
-            final var json = mapper.writeValueAsString(request);
-            tunnel.session().sendMessage(new TextMessage(json));
-            log.trace("Forwarded request {} to tunnel {}", json, tunnel.tunnelId());
+            send(tunnel, new BinaryMessage(HttpTunnelFrame.encode(
+                bodyMessage(HttpTunnelMessage.Type.REQUEST_CANCEL, id, null))));
         } catch (final IOException e) {
-            tunnel.pending().remove(request.getId());
-            future.completeExceptionally(e);
-            return future;
+            log.debug("Failed to cancel request {} on tunnel {}: {}", id, tunnel.tunnelId(), e.toString());
+        }
+    }
+
+    private static HttpTunnelMessage bodyMessage(final HttpTunnelMessage.Type type,
+                                                 final String id,
+                                                 final byte[] chunk) {
+        final var message = new HttpTunnelMessage();
+        message.setId(id);
+        message.setType(type);
+        message.setBody(chunk);
+        return message;
+    }
+
+    /**
+     * Returns credit to a streaming request upload once the client acknowledged consumed body bytes.
+     *
+     * @param tunnelId the unique identifier of the tunnel the acknowledgement came from
+     * @param ack      the REQUEST_BODY_ACK message
+     */
+    public void onRequestBodyAck(final UUID tunnelId, final HttpTunnelMessage ack) {
+        final var tunnel = byTunnelId.get(tunnelId);
+        if (tunnel == null || ack.getCredit() == null || ack.getCredit() <= 0) {
+            return;
+        }
+        final var upload = tunnel.uploads().get(ack.getId());
+        if (upload != null) {
+            upload.grant(ack.getCredit());
+        }
+    }
+
+    /**
+     * Grants the client credit to send more of a streamed response once the public client took the
+     * given number of body bytes. Only binary clients stream responses and wait for it.
+     *
+     * @param tunnelId  the unique identifier of the tunnel the response comes from
+     * @param requestId the request identifier
+     * @param credit    number of response body bytes delivered to the public client
+     */
+    public void acknowledgeResponseBody(final UUID tunnelId, final String requestId, final int credit) {
+        final var tunnel = byTunnelId.get(tunnelId);
+        final var sender = tunnel == null ? null : tunnel.sender();
+        if (sender == null || !tunnel.isOpen() || tunnel.protocolVersion() == HttpTunnelFrame.JSON) {
+            return;
         }
+        final var ack = bodyMessage(HttpTunnelMessage.Type.RESPONSE_BODY_ACK, requestId, null);
+        ack.setCredit(credit);
+        // A lost acknowledgement would stall the response, so it does not count against the send budget
+        sender.offerControl(new BinaryMessage(HttpTunnelFrame.encode(ack)));
+    }
 
-        final var futureTimeout = timeout == null ? DEFAULT_TIMEOUT : timeout;
-        // Apply timeout
-        return future.orTimeout(futureTimeout.toMillis(), TimeUnit.MILLISECONDS)
-            .whenComplete((res, err) ->
-                tunnel.pending().remove(request.getId()));
+    /**
+     * Queues a message on the tunnel's outbound queue without waiting.
+     *
+     * @throws TunnelBackPressureException if the tunnel's send budget is exhausted
+     */
+    private void send(final Tunnel tunnel, final WebSocketMessage<?> message) throws IOException {
+        final var sender = tunnel.sender();
+        if (sender == null || !tunnel.isOpen()) {
+            throw new IOException("Tunnel not connected");
+        }
+        if (!sender.offer(message)) {
+            throw new TunnelBackPressureException("Tunnel " + tunnel.tunnelId() + " send budget exhausted ("
+                                                  + sender.queuedBytes() + " bytes queued)");
+        }
+    }
+
+    /**
+     * Sends a control message (e.g. HELLO, PONG) to the client of the specified tunnel.
+     *
+     * @param tunnelId the unique identifier of the tunnel
+     * @param message  the control message
+     */
+    public void sendControl(final UUID tunnelId, final ControlMessage message) {
+        final var tunnel = byTunnelId.get(tunnelId);
+        if (tunnel == null || !tunnel.isOpen()) {
+            return;
+        }
+        try {
+            send(tunnel, new TextMessage(mapper.writeValueAsString(message)));
+        } catch (final IOException e) {
+            log.warn("Failed to send {} to tunnel {}: {}", message.getType(), tunnelId, e.toString());
+        }
     }
 
     /**
      * Processes an HTTP tunnel response message associated with the specified tunnel ID.
      * If the tunnel with the given ID exists and the response matches an existing pending
      * request in the tunnel, the request's future is completed with the response.
+     * Base64 bodies of JSON responses are decoded so that callers can always rely on
+     * {@link HttpTunnelMessage#getBody()}.
+     * Streamed responses (RESPONSE_HEAD, RESPONSE_BODY, RESPONSE_END) are passed to the request's
+     * {@link TunnelResponseListener}, or collected into a full RESPONSE if there is none; RESPONSE_ABORT
+     * fails the request.
      *
      * @param tunnelId the unique identifier of the tunnel associated with the response
      * @param response the HTTP tunnel message representing the response to be processed
@@ -148,11 +537,71 @@ public class TunnelRegistry {
         if (tunnel == null) {
             return;
         }
-        final var future = tunnel.pending()
+        final var pending = tunnel.pending()
             .get(response.getId());
-        if (future != null) {
-            future.complete(response);
+        if (pending == null) {
+            return;
+        }
+        try {
+            switch (response.getType()) {
+                case RESPONSE -> {
+                    if (response.getBody() == null && response.getRespBodyB64() != null) {
+                        response.setBody(Base64.getDecoder().decode(response.getRespBodyB64()));
+                        response.setRespBodyB64(null);
+                    }
+                    pending.future.complete(response);
+                }
+                case RESPONSE_HEAD -> pending.onHead(response);
+                case RESPONSE_BODY -> pending.onBody(response.getBody());
+                case RESPONSE_END -> pending.onEnd();
+                case RESPONSE_ABORT -> pending.future.completeExceptionally(
+                    new IOException("Streamed response aborted by the tunnel client"));
+                default -> log.debug("Ignoring unexpected response type {}", response.getType());
+            }
+        } catch (final IOException e) {
+            log.debug("Aborting streamed response {} of tunnel {}: {}", response.getId(), tunnelId, e.toString());
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Fails a pending request, e.g. because the public client disconnected. The client is asked to
+     * stop processing it.
+     *
+     * @param tunnelId  the unique identifier of the tunnel the request was forwarded to
+     * @param requestId the request identifier
+     */
+    public void cancelRequest(final UUID tunnelId, final String requestId) {
+        final var tunnel = byTunnelId.get(tunnelId);
+        if (tunnel == null || requestId == null) {
+            return;
+        }
+        final var pending = tunnel.pending().get(requestId);
+        if (pending != null) {
+            pending.future.completeExceptionally(new CancellationException("Request cancelled by the public client"));
+        }
+    }
+
+    /**
+     * Detaches the closed WebSocket session from its tunnel and fails the requests still waiting
+     * for a response on it. Closes of sessions already replaced by a reconnect are ignored.
+     *
+     * @param tunnelId the unique identifier of the tunnel
+     * @param session  the closed session
+     * @return {@code true} if the session was the tunnel's current session
+     */
+    public boolean onSessionClosed(final UUID tunnelId, final WebSocketSession session) {
+        final var tunnel = byTunnelId.get(tunnelId);
+        if (tunnel == null || tunnel.session() != session) {
+            return false;
         }
+        tunnel.setSession(null);
+        tunnel.setSender(null);
+        routesVersion.incrementAndGet();
+        final var closed = new IOException("Tunnel closed");
+        tunnel.pending().values()
+            .forEach(pending -> pending.future.completeExceptionally(closed));
+        return true;
     }
 
     /**
@@ -165,21 +614,27 @@ public class TunnelRegistry {
     // ============ WebSocket tunneling support ============
     public void sendWsToClient(final UUID tunnelId, final WsTunnelMessage message) {
         final var tunnel = byTunnelId.get(tunnelId);
-        if (tunnel == null || !tunnel.isOpen()) {
+        final var sender = tunnel == null ? null : tunnel.sender();
+        if (sender == null || !tunnel.isOpen()) {
             return;
         }
         try {
             final var json = mapper.writeValueAsString(message);
-            tunnel.session().sendMessage(new TextMessage(json));
+            // Waiting here slows down the browser socket instead of growing the tunnel queue
+            if (!sender.offer(new TextMessage(json), WS_SEND_WAIT_MILLIS)) {
+                log.warn("Dropped WS message for tunnel {}: send budget exhausted", tunnelId);
+            }
         } catch (final IOException e) {
             log.warn("Failed to send WS message to client: {}", e.toString());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
      * Registers a browser WebSocket session associated with the specified tunnel ID and connection ID.
      * If no tunnel with the provided tunnel ID exists, the operation is aborted.
-     * The session is mapped in both the forward and reverse lookup structures for later reference.
+     * The session is mapped in both the tunnel's connection index and the registry-wide session index.
      *
      * @param tunnelId       the unique identifier of the tunnel to associate with the browser session
      * @param connectionId   the unique identifier of the connection within the tunnel
@@ -193,12 +648,12 @@ public class TunnelRegistry {
             return;
         }
         tunnel.browserByConnection().put(connectionId, browserSession);
-        tunnel.browserReverse().put(browserSession, new Ids(tunnelId, connectionId));
+        browserSessions.put(browserSession, new Ids(tunnelId, connectionId));
     }
 
     /**
      * Unregisters a browser WebSocket session from the tunnel registry. This method
-     * removes the browser session from the reverse mapping and connection ID mapping
+     * removes the browser session from the session index and the connection ID mapping
      * of the associated tunnel. If the session is successfully unregistered, the related
      * IDs (tunnel ID and connection ID) are returned; otherwise, null is returned.
      *
@@ -207,32 +662,37 @@ public class TunnelRegistry {
      *     unregistered browser session, or {@code null} if the session was not found
      */
     public Ids unregisterBrowserWs(final WebSocketSession browserSession) {
-        for (final var tunnel : byTunnelId.values()) {
-            final var ids = tunnel.browserReverse().remove(browserSession);
-            if (ids != null) {
-                tunnel.browserByConnection().remove(ids.connectionId);
-                return ids;
-            }
+        final var ids = browserSessions.remove(browserSession);
+        if (ids == null) {
+            return null;
+        }
+        final var tunnel = byTunnelId.get(ids.tunnelId);
+        if (tunnel == null || !tunnel.browserByConnection().remove(ids.connectionId, browserSession)) {
+            // The tunnel was registered anew since, the session is unknown to it
+            return null;
         }
-        return null;
+        return ids;
     }
 
     /**
      * Retrieves the tunnel and connection IDs associated with a given browser WebSocket session.
-     * Iterates through the registered tunnels to find a reverse mapping for the specified session.
+     * Called for every browser message, so the session is looked up in the registry-wide index
+     * rather than in each tunnel.
      *
      * @param browserSession the WebSocketSession representing the browser connection to look up
      * @return an {@code Ids} object containing the tunnel ID and connection ID associated with
      *     the specified session, or {@code null} if no match is found
      */
     public Ids findIdsByBrowserSession(final WebSocketSession browserSession) {
-        for (final var tunnel : byTunnelId.values()) {
-            final var ids = tunnel.browserReverse().get(browserSession);
-            if (ids != null) {
-                return ids;
-            }
+        final var ids = browserSessions.get(browserSession);
+        if (ids == null) {
+            return null;
+        }
+        final var tunnel = byTunnelId.get(ids.tunnelId);
+        if (tunnel == null || tunnel.browserByConnection().get(ids.connectionId) != browserSession) {
+            return null;
         }
-        return null;
+        return ids;
     }
 
     /**
@@ -253,6 +713,15 @@ public class TunnelRegistry {
         return tunnel.browserByConnection().get(connectionId);
     }
 
+    /**
+     * Snapshot of the hosts routable to this instance.
+     *
+     * @param version opaque version of the snapshot
+     * @param hosts   subdomains and custom domains of the open tunnels
+     */
+    public record Routes(String version, List<String> hosts) {
+    }
+
     @Data
     @AllArgsConstructor
     public static class Ids {
@@ -260,18 +729,78 @@ public class TunnelRegistry {
         private String connectionId;
     }
 
+    /**
+     * A request waiting for its response. Streamed responses are handed to the listener, which
+     * queues them without blocking, or collected into a full RESPONSE when there is none. Only
+     * touched by the tunnel WebSocket thread, apart from the future.
+     */
+    public static final class PendingResponse {
+
+        private final CompletableFuture<HttpTunnelMessage> future = new CompletableFuture<>();
+        private final TunnelResponseListener listener;
+        private volatile HttpTunnelMessage head;
+        private ByteArrayOutputStream collected;
+
+        PendingResponse(final TunnelResponseListener listener) {
+            this.listener = listener;
+        }
+
+        private void onHead(final HttpTunnelMessage message) throws IOException {
+            head = message;
+            if (listener != null) {
+                listener.onHead(message);
+            } else {
+                collected = new ByteArrayOutputStream();
+            }
+        }
+
+        private void onBody(final byte[] chunk) throws IOException {
+            if (head == null || chunk == null) {
+                return;
+            }
+            if (listener != null) {
+                listener.onBody(chunk);
+            } else {
+                collected.write(chunk);
+            }
+        }
+
+        private void onEnd() {
+            if (head == null) {
+                return;
+            }
+            if (listener != null) {
+                future.complete(head);
+                return;
+            }
+            head.setType(HttpTunnelMessage.Type.RESPONSE);
+            head.setBody(collected.size() == 0 ? null : collected.toByteArray());
+            future.complete(head);
+        }
+    }
+
     @RequiredArgsConstructor
     public static class Tunnel {
 
         private final UUID tunnelId;
         private final UUID accountId;
+        private final String subdomain;
 
         @Setter
         private volatile WebSocketSession session;
-        private final Map<String, CompletableFuture<HttpTunnelMessage>> pending = new ConcurrentHashMap<>();
+        @Setter
+        private volatile TunnelSender sender;
+        @Setter
+        private volatile int protocolVersion = HttpTunnelFrame.JSON;
+        @Setter(AccessLevel.PRIVATE)
+        private volatile String customDomain;
+        // Passcode hash of the tunnel or its domain; null until loaded
+        private volatile PasscodeCache passcode;
+        private final Map<String, PendingResponse> pending = new ConcurrentHashMap<>();
+        // Send credit of in-progress streaming request uploads by request id
+        private final Map<String, RequestUpload> uploads = new ConcurrentHashMap<>();
         // Browser WS peers for this tunnel
         private final Map<String, WebSocketSession> browserByConnection = new ConcurrentHashMap<>();
-        private final Map<WebSocketSession, Ids> browserReverse = new ConcurrentHashMap<>();
 
 
         public UUID tunnelId() {
@@ -282,14 +811,34 @@ public class TunnelRegistry {
             return accountId;
         }
 
+        public String subdomain() {
+            return subdomain;
+        }
+
+        public String customDomain() {
+            return customDomain;
+        }
+
         public WebSocketSession session() {
             return session;
         }
 
-        public Map<String, CompletableFuture<HttpTunnelMessage>> pending() {
+        TunnelSender sender() {
+            return sender;
+        }
+
+        public int protocolVersion() {
+            return protocolVersion;
+        }
+
+        public Map<String, PendingResponse> pending() {
             return pending;
         }
 
+        public Map<String, RequestUpload> uploads() {
+            return uploads;
+        }
+
         public boolean isOpen() {
             return session != null && session.isOpen();
         }
@@ -298,10 +847,28 @@ public class TunnelRegistry {
             return browserByConnection;
         }
 
-        public Map<WebSocketSession, Ids> browserReverse() {
-            return browserReverse;
+        /**
+         * The passcode hash loaded for this tunnel, or {@code null} if it has to be loaded.
+         */
+        public PasscodeCache cachedPasscode() {
+            return passcode;
         }
 
-        // No passcode kept in-memory; use DB via TunnelService when needed
+        /**
+         * Keeps the passcode hash until {@link TunnelRegistry#invalidatePasscode} drops it.
+         *
+         * @param hash the hash, {@code null} if the tunnel is not protected
+         */
+        public void cachePasscodeHash(final String hash) {
+            passcode = new PasscodeCache(hash);
+        }
+    }
+
+    /**
+     * A loaded passcode hash of a tunnel or its domain.
+     *
+     * @param hash the hash, {@code null} if the tunnel is not protected
+     */
+    public record PasscodeCache(String hash) {
     }
 }
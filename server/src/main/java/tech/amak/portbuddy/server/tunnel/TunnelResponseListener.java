@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.tunnel;
+
+import java.io.IOException;
+
+import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
+
+/**
+ * Receives a streamed tunnel response (RESPONSE_HEAD, RESPONSE_BODY..., RESPONSE_END) as it arrives
+ * from the CLI. Callbacks are invoked in order on the tunnel WebSocket thread, which serves every
+ * request of the tunnel, so they must not block on the public client: implementations queue the data
+ * and write it asynchronously. Throwing an {@link IOException} (e.g. because the public client
+ * disconnected or does not keep up) aborts the request.
+ */
+public interface TunnelResponseListener {
+
+    /**
+     * Called once with the response status and headers.
+     *
+     * @param head the RESPONSE_HEAD message
+     * @throws IOException if the head cannot be queued
+     */
+    void onHead(HttpTunnelMessage head) throws IOException;
+
+    /**
+     * Called for every response body chunk.
+     *
+     * @param chunk the body bytes
+     * @throws IOException if the chunk cannot be queued
+     */
+    void onBody(byte[] chunk) throws IOException;
+}
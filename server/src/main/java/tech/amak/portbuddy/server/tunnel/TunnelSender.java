@@ -0,0 +1,255 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.tunnel;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import jakarta.websocket.Session;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Outbound queue of a tunnel WebSocket session with a single writer.
+ * Any thread may queue messages; one drain task at a time writes everything queued so far with
+ * container batching enabled, so that a burst of small frames ends up in few socket writes.
+ * The queue is bounded by a byte budget: messages that do not fit are rejected, and the caller
+ * decides whether to fail (see {@link TunnelBackPressureException}), wait for capacity, or retry
+ * once the queue drained (see {@link #whenDrained(Runnable)}).
+ */
+@Slf4j
+final class TunnelSender {
+
+    private final WebSocketSession session;
+    private final long budgetBytes;
+    private final Executor executor;
+    private final TunnelSenderMetrics metrics;
+
+    private final Queue<Queued> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Queue<Runnable> drainedCallbacks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Object capacity = new Object();
+    private volatile boolean failed;
+
+    TunnelSender(final WebSocketSession session,
+                 final long budgetBytes,
+                 final Executor executor,
+                 final TunnelSenderMetrics metrics) {
+        this.session = session;
+        this.budgetBytes = budgetBytes;
+        this.executor = executor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues a message without waiting. A message is always accepted into an empty queue, so that
+     * frames larger than the budget can still be sent.
+     *
+     * @param message the message to send
+     * @return {@code false} if the byte budget is exhausted or the session failed
+     */
+    boolean offer(final WebSocketMessage<?> message) {
+        if (failed) {
+            return false;
+        }
+        final var size = message.getPayloadLength();
+        while (true) {
+            final var current = queuedBytes.get();
+            if (current > 0 && current + size > budgetBytes) {
+                metrics.rejected();
+                return false;
+            }
+            if (queuedBytes.compareAndSet(current, current + size)) {
+                break;
+            }
+        }
+        enqueue(message, size);
+        return true;
+    }
+
+    /**
+     * Queues a small control message regardless of the byte budget, e.g. a credit grant the client
+     * waits for before it sends more.
+     *
+     * @param message the message to send
+     * @return {@code false} if the session failed
+     */
+    boolean offerControl(final WebSocketMessage<?> message) {
+        if (failed) {
+            return false;
+        }
+        final var size = message.getPayloadLength();
+        queuedBytes.addAndGet(size);
+        enqueue(message, size);
+        return true;
+    }
+
+    private void enqueue(final WebSocketMessage<?> message, final int size) {
+        metrics.queued(size);
+        queue.add(new Queued(message, size, System.nanoTime()));
+        scheduleDrain();
+    }
+
+    /**
+     * Queues a message, waiting up to the given time for the queue to drain below the budget.
+     *
+     * @param message       the message to send
+     * @param timeoutMillis maximum time to wait for capacity
+     * @return {@code false} if there was no capacity in time or the session failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean offer(final WebSocketMessage<?> message, final long timeoutMillis) throws InterruptedException {
+        final var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!offer(message)) {
+            final var remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (failed || remaining <= 0) {
+                return false;
+            }
+            synchronized (capacity) {
+                capacity.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the callback once on the writer thread after everything queued so far was written. Lets a
+     * producer whose message was rejected resume without waiting.
+     *
+     * @param callback the callback to run
+     * @return {@code false} if the session failed and the callback will not run
+     */
+    boolean whenDrained(final Runnable callback) {
+        if (failed) {
+            return false;
+        }
+        drainedCallbacks.add(callback);
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Number of bytes queued and not yet written.
+     */
+    long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        do {
+            final var remote = batchingRemote();
+            try {
+                var batch = 0;
+                Queued item;
+                while ((item = queue.poll()) != null) {
+                    write(item);
+                    batch++;
+                }
+                metrics.batch(batch);
+            } finally {
+                if (remote != null) {
+                    try {
+                        // Turning batching off flushes whatever the container still buffers
+                        remote.setBatchingAllowed(false);
+                    } catch (final IOException e) {
+                        fail(e);
+                    }
+                }
+                synchronized (capacity) {
+                    capacity.notifyAll();
+                }
+                runDrainedCallbacks();
+                draining.set(false);
+            }
+            // A message may have been queued after the last poll but before the flag was cleared
+        } while ((!queue.isEmpty() || !drainedCallbacks.isEmpty()) && draining.compareAndSet(false, true));
+    }
+
+    private void runDrainedCallbacks() {
+        // Callbacks registered while these run wait for the messages they queued to be written
+        for (var remaining = drainedCallbacks.size(); remaining > 0; remaining--) {
+            final var callback = drainedCallbacks.poll();
+            try {
+                callback.run();
+            } catch (final RuntimeException e) {
+                log.warn("Tunnel session {} drain callback failed: {}", session.getId(), e.toString());
+            }
+        }
+    }
+
+    private void write(final Queued item) {
+        try {
+            if (!failed) {
+                session.sendMessage(item.message);
+                metrics.sent(System.nanoTime() - item.queuedAt);
+            }
+        } catch (final IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            queuedBytes.addAndGet(-item.size);
+            metrics.dequeued(item.size);
+        }
+    }
+
+    private void fail(final Exception error) {
+        if (failed) {
+            return;
+        }
+        failed = true;
+        log.warn("Tunnel session {} send failed, closing: {}", session.getId(), error.toString());
+        try {
+            session.close(CloseStatus.SERVER_ERROR);
+        } catch (final IOException e) {
+            log.debug("Failed to close tunnel session {}: {}", session.getId(), e.toString());
+        }
+    }
+
+    private jakarta.websocket.RemoteEndpoint.Basic batchingRemote() {
+        if (!(session instanceof NativeWebSocketSession nativeSession)) {
+            return null;
+        }
+        final var standard = nativeSession.getNativeSession(Session.class);
+        if (standard == null) {
+            return null;
+        }
+        try {
+            final var remote = standard.getBasicRemote();
+            remote.setBatchingAllowed(true);
+            return remote;
+        } catch (final IOException | RuntimeException e) {
+            log.debug("Batching not available for session {}: {}", session.getId(), e.toString());
+            return null;
+        }
+    }
+
+    private record Queued(WebSocketMessage<?> message, int size, long queuedAt) {
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.tunnel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metrics of the tunnel outbound queues, aggregated over all tunnels of this instance.
+ */
+final class TunnelSenderMetrics {
+
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong queuedMessages = new AtomicLong();
+    private final Timer sendLatency;
+    private final Counter rejected;
+    private final DistributionSummary batchSize;
+
+    TunnelSenderMetrics(final MeterRegistry registry) {
+        Gauge.builder("portbuddy.tunnel.send.queue.bytes", queuedBytes, AtomicLong::get)
+            .description("Bytes queued for tunnel WebSocket sessions and not yet written")
+            .baseUnit("bytes")
+            .register(registry);
+        Gauge.builder("portbuddy.tunnel.send.queue.messages", queuedMessages, AtomicLong::get)
+            .description("Messages queued for tunnel WebSocket sessions and not yet written")
+            .register(registry);
+        sendLatency = Timer.builder("portbuddy.tunnel.send.latency")
+            .description("Time from queuing a tunnel message until it was written")
+            .register(registry);
+        rejected = Counter.builder("portbuddy.tunnel.send.rejected")
+            .description("Tunnel messages rejected because the send budget was exhausted")
+            .register(registry);
+        batchSize = DistributionSummary.builder("portbuddy.tunnel.send.batch")
+            .description("Number of tunnel messages written per drain")
+            .register(registry);
+    }
+
+    void queued(final int bytes) {
+        queuedBytes.addAndGet(bytes);
+        queuedMessages.incrementAndGet();
+    }
+
+    void dequeued(final int bytes) {
+        queuedBytes.addAndGet(-bytes);
+        queuedMessages.decrementAndGet();
+    }
+
+    void sent(final long latencyNanos) {
+        sendLatency.record(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void batch(final int messages) {
+        if (messages > 0) {
+            batchSize.record(messages);
+        }
+    }
+}
@@ -19,16 +19,18 @@ import java.util.UUID;
 
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import tech.amak.portbuddy.common.tunnel.ControlMessage;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelFrame;
 import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
 import tech.amak.portbuddy.common.tunnel.MessageEnvelope;
 import tech.amak.portbuddy.common.tunnel.WsTunnelMessage;
@@ -38,7 +40,7 @@ import tech.amak.portbuddy.server.service.TunnelService;
 @Slf4j
 @Component
 @RequiredArgsConstructor
-public class TunnelWebSocketHandler extends TextWebSocketHandler {
+public class TunnelWebSocketHandler extends AbstractWebSocketHandler {
 
     private final TunnelRegistry registry;
     private final ObjectMapper mapper;
@@ -88,7 +90,7 @@ public class TunnelWebSocketHandler extends TextWebSocketHandler {
                     final var pong = new ControlMessage();
                     pong.setType(ControlMessage.Type.PONG);
                     pong.setTs(System.currentTimeMillis());
-                    session.sendMessage(new TextMessage(mapper.writeValueAsString(pong)));
+                    registry.sendControl(tunnelId, pong);
                 }
                 return;
             }
@@ -108,6 +110,28 @@ public class TunnelWebSocketHandler extends TextWebSocketHandler {
         }
     }
 
+    @Override
+    protected void handleBinaryMessage(final WebSocketSession session, final BinaryMessage message) {
+        try {
+            final var tunnelId = extractTunnelId(session);
+
+            tunnelService.heartbeat(tunnelId);
+
+            final var httpMsg = HttpTunnelFrame.decode(message.getPayload());
+            if (httpMsg == null) {
+                log.debug("Ignoring malformed binary frame from tunnel {}", tunnelId);
+                return;
+            }
+            switch (httpMsg.getType()) {
+                case RESPONSE, RESPONSE_HEAD, RESPONSE_BODY, RESPONSE_END -> registry.onResponse(tunnelId, httpMsg);
+                case REQUEST_BODY_ACK -> registry.onRequestBodyAck(tunnelId, httpMsg);
+                default -> log.debug("Ignoring unexpected binary message type from client: {}", httpMsg.getType());
+            }
+        } catch (final Exception e) {
+            log.warn("Tunnel binary message handling error: {}", e.toString());
+        }
+    }
+
     private void handleWsFromClient(final UUID tunnelId, final WsTunnelMessage message) throws Exception {
         final var browser = registry.getBrowserSession(tunnelId, message.getConnectionId());
         if (browser == null) {
@@ -136,9 +160,7 @@ public class TunnelWebSocketHandler extends TextWebSocketHandler {
     @Override
     public void afterConnectionClosed(final WebSocketSession session, final CloseStatus status) {
         final var tunnelId = extractTunnelId(session);
-        final var tunnel = registry.getByTunnelId(tunnelId);
-        if (tunnel != null) {
-            tunnel.setSession(null);
+        if (registry.onSessionClosed(tunnelId, session)) {
             log.info("Tunnel session closed: {} code={} reason={}", tunnelId,
                 status != null ? status.getCode() : null,
                 status != null ? status.getReason() : null);
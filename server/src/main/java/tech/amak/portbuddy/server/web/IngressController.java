@@ -17,41 +17,46 @@ package tech.amak.portbuddy.server.web;
 import static org.springframework.http.HttpStatus.TEMPORARY_REDIRECT;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Stream;
 
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.http.HttpHeaders;
 import org.springframework.security.crypto.password.PasswordEncoder;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.AntPathMatcher;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.HandlerMapping;
 
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelFrame;
 import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
 import tech.amak.portbuddy.server.config.AppProperties;
 import tech.amak.portbuddy.server.db.entity.DomainEntity;
-import tech.amak.portbuddy.server.db.repo.AccountRepository;
 import tech.amak.portbuddy.server.db.repo.DomainRepository;
+import tech.amak.portbuddy.server.security.PasscodeTokenService;
+import tech.amak.portbuddy.server.service.SubscriptionStatusCache;
 import tech.amak.portbuddy.server.service.TunnelService;
+import tech.amak.portbuddy.server.tunnel.TunnelBackPressureException;
 import tech.amak.portbuddy.server.tunnel.TunnelRegistry;
 
 /**
@@ -67,27 +72,19 @@ public class IngressController {
     private final TunnelRegistry registry;
     private final AppProperties properties;
     private final DomainRepository domainRepository;
-    private final AccountRepository accountRepository;
+    private final SubscriptionStatusCache subscriptionStatusCache;
     private final TunnelService tunnelService;
     private final PasswordEncoder passwordEncoder;
+    private final PasscodeTokenService passcodeTokenService;
 
-    private static final Set<String> HOP_BY_HOP_RESPONSE_HEADERS = Set.of(
-        // RFC 7230 hop-by-hop headers + common variants we do not want to relay
-        HttpHeaders.CONNECTION.toLowerCase(),
-        "keep-alive",
-        "proxy-authenticate",
-        "proxy-authorization",
-        "te",
-        "trailer",
-        HttpHeaders.TRANSFER_ENCODING.toLowerCase(),
-        HttpHeaders.UPGRADE.toLowerCase(),
-        // Avoid conflicting length management across hops; let container decide
-        HttpHeaders.CONTENT_LENGTH.toLowerCase()
-    );
+    /**
+     * Streamed response bytes a public client may fall behind before the response is aborted. Twice the
+     * window leaves room for the chunk the CLI may overshoot it by.
+     */
+    private static final long MAX_QUEUED_RESPONSE_BYTES = 2L * HttpTunnelFrame.RESPONSE_BODY_WINDOW;
 
     // HTTP route for subdomain ingress (non-WS traffic)
     @RequestMapping("/_/{subdomain:.+}/**")
-    @Transactional
     public void ingressPathBased(final @PathVariable("subdomain") String subdomain,
                                  final HttpServletRequest request,
                                  final HttpServletResponse response) throws IOException {
@@ -107,7 +104,6 @@ public class IngressController {
      */
     // Path-based custom domain ingress: http://server/_custom/{customDomain}/...
     @RequestMapping("/_custom/{customDomain:.+}/**")
-    @Transactional
     public void ingressCustomDomainPathBased(final @PathVariable("customDomain") String customDomain,
                                              final HttpServletRequest request,
                                              final HttpServletResponse response) throws IOException {
@@ -117,9 +113,9 @@ public class IngressController {
             lookupDomain = lookupDomain.substring(0, colonIdx);
         }
 
-        final var domainOpt = domainRepository.findByCustomDomain(lookupDomain);
-        if (domainOpt.isPresent()) {
-            forwardViaTunnel(domainOpt.get().getSubdomain(), request, response);
+        final var tunnel = registry.getByCustomDomain(lookupDomain);
+        if (tunnel != null) {
+            forwardViaTunnel(tunnel.subdomain(), request, response);
         } else {
             response.sendError(HttpServletResponse.SC_NOT_FOUND, "Custom domain not found: " + lookupDomain);
         }
@@ -138,20 +134,17 @@ public class IngressController {
         }
 
         // Check subscription status
-        final var accountOpt = accountRepository.findById(tunnel.accountId());
-        if (accountOpt.isPresent()) {
-            final var status = accountOpt.get().getSubscriptionStatus();
-            if (status != null && !"active".equals(status)) {
-                log.warn("Blocked request to subdomain {} because subscription is not active (status: {})",
-                    subdomain, status);
-                response.sendError(HttpServletResponse.SC_PAYMENT_REQUIRED,
-                    "Subscription is not active. Please check your billing information.");
-                return;
-            }
+        final var subscription = subscriptionStatusCache.find(tunnel.accountId()).orElse(null);
+        if (subscription != null && !subscription.isActive()) {
+            log.warn("Blocked request to subdomain {} because subscription is not active (status: {})",
+                subdomain, subscription.status());
+            response.sendError(HttpServletResponse.SC_PAYMENT_REQUIRED,
+                "Subscription is not active. Please check your billing information.");
+            return;
         }
 
         // Passcode protection check (query param, header, or cookie)
-        if (!isAuthorized(subdomain, tunnel.tunnelId(), request, response)) {
+        if (!isAuthorized(subdomain, tunnel, request, response)) {
             final var gateway = properties.gateway();
             final var originalDomain = "%s.%s".formatted(subdomain, gateway.domain());
             final var redirect = "%s?target_domain=%s".formatted(gateway.passcodePage(), originalDomain);
@@ -193,59 +186,93 @@ public class IngressController {
         headers.put("X-Forwarded-Host", List.of(request.getServerName()));
         headers.put("X-Forwarded-Proto", List.of(request.isSecure() ? "https" : "http"));
 
-        final var bodyBytes = request.getInputStream().readAllBytes();
-        final var bodyB64 = bodyBytes.length == 0 ? null : Base64.getEncoder().encodeToString(bodyBytes);
-
         final var msg = new HttpTunnelMessage();
+        msg.setId(UUID.randomUUID().toString());
         msg.setMethod(method);
         msg.setPath(path);
         msg.setQuery(query);
         msg.setHeaders(headers);
-        msg.setBodyB64(bodyB64);
         msg.setBodyContentType(request.getContentType());
 
-        try {
-            final var resp = registry.forwardRequest(subdomain, msg, Duration.ofSeconds(30)).join();
-            final var status = resp.getStatus() == null ? 502 : resp.getStatus();
-            response.setStatus(status);
-            if (resp.getRespHeaders() != null) {
-                for (final var header : resp.getRespHeaders().entrySet()) {
-                    final var name = header.getKey();
-                    final var values = header.getValue();
-                    if (name == null || values == null) {
-                        continue;
-                    }
-                    final var nameLc = name.toLowerCase();
-                    if (HOP_BY_HOP_RESPONSE_HEADERS.contains(nameLc)) {
-                        // Skip hop-by-hop or conflicting headers
-                        continue;
-                    }
-                    values.stream()
-                        .filter(Objects::nonNull)
-                        .forEach(value ->
-                            response.addHeader(name, value));
-                }
+        // Bodies are streamed to clients that support it instead of being buffered in memory
+        final var hasBody = request.getContentLengthLong() > 0
+                            || request.getHeader(HttpHeaders.TRANSFER_ENCODING) != null;
+
+        // Release the request thread while the tunnel round-trip is pending. The request body is read and
+        // the response written with non-blocking I/O, so neither a slow upload nor a slow public client
+        // ties up a container thread or holds up the other requests of the tunnel. The registry bounds the
+        // wait for the response head, and streamed responses (e.g. server-sent events) may stay open
+        // indefinitely after that.
+        final var asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(0);
+        // JSON clients send whole responses, only binary ones stream them against credit
+        final var binary = tunnel.protocolVersion() > HttpTunnelFrame.JSON;
+        final var writer = new TunnelResponseWriter(asyncContext, response, MAX_QUEUED_RESPONSE_BYTES,
+            binary ? credit -> registry.acknowledgeResponseBody(tunnel.tunnelId(), msg.getId(), credit) : null,
+            () -> registry.cancelRequest(tunnel.tunnelId(), msg.getId()));
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onError(final AsyncEvent event) {
+                registry.cancelRequest(tunnel.tunnelId(), msg.getId());
+            }
+
+            @Override
+            public void onComplete(final AsyncEvent event) {
             }
-            if (resp.getRespBodyB64() != null) {
-                final var bytes = Base64.getDecoder().decode(resp.getRespBodyB64());
-                response.getOutputStream().write(bytes);
+
+            @Override
+            public void onTimeout(final AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
             }
-        } catch (final Exception ex) {
-            log.warn("Tunnel forward failed for subdomain={}: {}", subdomain, ex.toString());
+        });
+        response.getOutputStream().setWriteListener(writer);
+
+        CompletableFuture<HttpTunnelMessage> future;
+        try {
+            future = registry.forwardRequest(subdomain, msg,
+                hasBody ? request.getInputStream() : null, Duration.ofSeconds(30), writer);
+        } catch (final IOException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((resp, error) -> {
+            if (error != null) {
+                writer.fail(errorResponse(subdomain, msg.getId(), error));
+            } else {
+                writer.complete(resp);
+            }
+        });
+    }
+
+    private HttpTunnelMessage errorResponse(final String subdomain, final String id, final Throwable error) {
+        log.warn("Tunnel forward failed for subdomain={}: {}", subdomain, error.toString());
+        final var response = new HttpTunnelMessage();
+        response.setId(id);
+        response.setType(HttpTunnelMessage.Type.RESPONSE);
+        final var headers = new HashMap<String, List<String>>();
+        headers.put(HttpHeaders.CONTENT_TYPE, List.of("text/plain;charset=UTF-8"));
+        final var cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause instanceof TunnelBackPressureException) {
+            // The CLI does not keep up; ask the client to retry instead of queueing more
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            headers.put(HttpHeaders.RETRY_AFTER, List.of("1"));
+            response.setBody("Service Unavailable: tunnel is overloaded".getBytes(StandardCharsets.UTF_8));
+        } else {
             response.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
-            response.getWriter().write("Bad Gateway: tunnel unavailable");
+            response.setBody("Bad Gateway: tunnel unavailable".getBytes(StandardCharsets.UTF_8));
         }
+        response.setRespHeaders(headers);
+        return response;
     }
 
     private boolean isAuthorized(final String subdomain,
-                                 final UUID tunnelId,
+                                 final TunnelRegistry.Tunnel tunnel,
                                  final HttpServletRequest request,
                                  final HttpServletResponse response) {
 
-        final var passcodeHash = tunnelService.getTempPasscodeHash(tunnelId)
-            .or(() -> domainRepository.findBySubdomain(subdomain)
-                .map(DomainEntity::getPasscodeHash))
-            .orElse(null);
+        final var passcodeHash = passcodeHash(subdomain, tunnel);
 
         // If there is no passcode configured for either the domain or the tunnel — allow access
         if (passcodeHash == null) {
@@ -259,16 +286,41 @@ public class IngressController {
         // If passcode provided via header or query, validate and set cookie on success
         if (passcode != null) {
             if (matches(passcode, passcodeHash)) {
-                issueCookie(response, subdomain, passcode);
+                issueCookie(response, subdomain, passcodeTokenService.issue(subdomain, passcodeHash));
                 return true;
             }
             return false;
         }
 
-        return findCookie(request, PASSCODE_COOKIE_NAME)
+        final var cookieValue = findCookie(request, PASSCODE_COOKIE_NAME)
             .map(Cookie::getValue)
-            .map(cookiePasscode -> matches(cookiePasscode, passcodeHash))
-            .orElse(false);
+            .orElse(null);
+        if (cookieValue == null) {
+            return false;
+        }
+        if (passcodeTokenService.verify(cookieValue, subdomain, passcodeHash)) {
+            return true;
+        }
+        // Cookies issued before tokens were introduced carry the raw passcode: exchange it once
+        if (passcodeTokenService.mayBeLegacyCookie(cookieValue) && matches(cookieValue, passcodeHash)) {
+            issueCookie(response, subdomain, passcodeTokenService.issue(subdomain, passcodeHash));
+            return true;
+        }
+        return false;
+    }
+
+    // The hash is cached on the tunnel and dropped by TunnelRegistry.invalidatePasscode
+    private String passcodeHash(final String subdomain, final TunnelRegistry.Tunnel tunnel) {
+        final var cached = tunnel.cachedPasscode();
+        if (cached != null) {
+            return cached.hash();
+        }
+        final var hash = tunnelService.getTempPasscodeHash(tunnel.tunnelId())
+            .or(() -> domainRepository.findBySubdomain(subdomain)
+                .map(DomainEntity::getPasscodeHash))
+            .orElse(null);
+        tunnel.cachePasscodeHash(hash);
+        return hash;
     }
 
     private boolean matches(final String raw, final String hash) {
@@ -313,7 +365,8 @@ public class IngressController {
             cookie.setDomain(fullDomain);
         }
 
-        cookie.setMaxAge(60 * 60 * 12); // 12 hours
+        final var maxAge = (int) passcodeTokenService.ttl().toSeconds();
+        cookie.setMaxAge(maxAge);
         response.addCookie(cookie);
 
         // Compose manual Set-Cookie with SameSite=Lax; add Domain only when it is valid
@@ -321,7 +374,7 @@ public class IngressController {
         sb.append(PASSCODE_COOKIE_NAME)
             .append("=")
             .append(value)
-            .append("; Path=/; Max-Age=43200; HttpOnly; SameSite=Lax");
+            .append("; Path=/; Max-Age=").append(maxAge).append("; HttpOnly; SameSite=Lax");
         if (shouldSetDomain) {
             sb.append("; Domain=").append(fullDomain);
         }
@@ -14,21 +14,24 @@
 
 package tech.amak.portbuddy.server.web;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import lombok.RequiredArgsConstructor;
-import tech.amak.portbuddy.server.db.repo.AccountRepository;
-import tech.amak.portbuddy.server.db.repo.DomainRepository;
+import tech.amak.portbuddy.server.service.SubscriptionStatusCache;
 import tech.amak.portbuddy.server.tunnel.TunnelRegistry;
 
 /**
  * Lightweight, instance-local endpoint for the API Gateway to resolve which server instance
  * currently owns an active tunnel for the given subdomain or custom domain. Returns 200 if
- * this instance has an open tunnel for the subdomain, otherwise 404.
+ * this instance has an open tunnel for the subdomain, otherwise 404. The gateway normally routes
+ * from the table built from {@code /ingress/routes} and only probes the resolve endpoints on a miss.
  * This endpoint is intentionally placed under "/ingress/**" which is already permitted in
  * {@link tech.amak.portbuddy.server.security.SecurityConfig} so the gateway can probe it
  * without authentication.
@@ -39,8 +42,7 @@ import tech.amak.portbuddy.server.tunnel.TunnelRegistry;
 public class IngressResolveController {
 
     private final TunnelRegistry registry;
-    private final DomainRepository domainRepository;
-    private final AccountRepository accountRepository;
+    private final SubscriptionStatusCache subscriptionStatusCache;
 
     /**
      * Checks if the given subdomain is owned by an active tunnel.
@@ -65,23 +67,35 @@ public class IngressResolveController {
      */
     @GetMapping("/resolve-custom/{domain}")
     public ResponseEntity<Void> resolveCustomOwner(final @PathVariable("domain") String domain) {
-        return domainRepository.findByCustomDomain(domain)
-            .map(domainEntity -> {
-                final var tunnel = registry.getBySubdomain(domainEntity.getSubdomain());
-                if (tunnel != null && tunnel.isOpen() && isSubscriptionActive(tunnel)) {
-                    return ResponseEntity.ok().<Void>build();
-                }
-                return ResponseEntity.notFound().<Void>build();
-            })
-            .orElseGet(() -> ResponseEntity.notFound().build());
+        final var tunnel = registry.getByCustomDomain(domain);
+        if (tunnel != null && tunnel.isOpen() && isSubscriptionActive(tunnel)) {
+            return ResponseEntity.ok().build();
+        }
+        return ResponseEntity.notFound().build();
+    }
+
+    /**
+     * Lists the subdomains and custom domains of the tunnels open on this instance. The response
+     * carries the registry version as ETag; when the gateway sends it back in {@code If-None-Match}
+     * and nothing changed, 304 is returned without a body.
+     *
+     * @param ifNoneMatch the ETag of the routes the caller already has
+     * @return the routes, or 304 if they are unchanged
+     */
+    @GetMapping("/routes")
+    public ResponseEntity<TunnelRegistry.Routes> routes(
+        final @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        final var routes = registry.routes();
+        final var etag = "\"" + routes.version() + "\"";
+        if (etag.equals(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        return ResponseEntity.ok().eTag(etag).body(routes);
     }
 
     private boolean isSubscriptionActive(final TunnelRegistry.Tunnel tunnel) {
-        return accountRepository.findById(tunnel.accountId())
-            .map(account -> {
-                final var status = account.getSubscriptionStatus();
-                return status == null || "active".equals(status);
-            })
+        return subscriptionStatusCache.find(tunnel.accountId())
+            .map(SubscriptionStatusCache.Subscription::isActive)
             .orElse(false);
     }
 }
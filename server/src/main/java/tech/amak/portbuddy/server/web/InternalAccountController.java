@@ -0,0 +1,48 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.web;
+
+import java.util.UUID;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import lombok.RequiredArgsConstructor;
+import tech.amak.portbuddy.server.service.SubscriptionStatusCache;
+
+/**
+ * Controller for internal account operations between server instances.
+ */
+@RestController
+@RequestMapping(path = "/api/internal/accounts", produces = MediaType.APPLICATION_JSON_VALUE)
+@RequiredArgsConstructor
+public class InternalAccountController {
+
+    private final SubscriptionStatusCache subscriptionStatusCache;
+
+    /**
+     * Drops the cached subscription status of the account on this instance after it changed on another one.
+     * Only server instances may call it.
+     *
+     * @param accountId the account id
+     */
+    @PostMapping("/subscription-changed")
+    public void subscriptionChanged(@RequestParam("accountId") final UUID accountId) {
+        subscriptionStatusCache.evict(accountId);
+    }
+}
@@ -21,7 +21,10 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import lombok.RequiredArgsConstructor;
+import tech.amak.portbuddy.server.db.entity.DomainEntity;
+import tech.amak.portbuddy.server.db.repo.DomainRepository;
 import tech.amak.portbuddy.server.service.DomainService;
+import tech.amak.portbuddy.server.tunnel.TunnelRegistry;
 
 /**
  * Controller for internal domain operations.
@@ -32,6 +35,8 @@ import tech.amak.portbuddy.server.service.DomainService;
 public class InternalDomainController {
 
     private final DomainService domainService;
+    private final TunnelRegistry registry;
+    private final DomainRepository domainRepository;
 
     /**
      * Marks the domain as SSL active.
@@ -42,4 +47,29 @@ public class InternalDomainController {
     public void markSslActive(@RequestParam("domain") final String domain) {
         domainService.markSslActive(domain);
     }
+
+    /**
+     * Reloads the custom domain of a tunnel registered on this instance after it changed on another one.
+     * Only server instances may call it; the custom domain is read from the database, never from the caller.
+     *
+     * @param subdomain the subdomain
+     */
+    @PostMapping("/custom-domain-changed")
+    public void customDomainChanged(@RequestParam("subdomain") final String subdomain) {
+        final var customDomain = domainRepository.findBySubdomain(subdomain)
+            .map(DomainEntity::getCustomDomain)
+            .orElse(null);
+        registry.updateCustomDomain(subdomain, customDomain);
+    }
+
+    /**
+     * Drops the cached passcode hash of a tunnel registered on this instance after it changed on another one.
+     * Only server instances may call it.
+     *
+     * @param subdomain the subdomain
+     */
+    @PostMapping("/passcode-changed")
+    public void passcodeChanged(@RequestParam("subdomain") final String subdomain) {
+        registry.invalidatePasscode(subdomain);
+    }
 }
@@ -16,6 +16,7 @@ package tech.amak.portbuddy.server.web;
 
 import static tech.amak.portbuddy.server.security.JwtService.resolveAccountId;
 
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
@@ -37,6 +38,7 @@ import tech.amak.portbuddy.common.Plan;
 import tech.amak.portbuddy.server.db.repo.AccountRepository;
 import tech.amak.portbuddy.server.db.repo.UserRepository;
 import tech.amak.portbuddy.server.service.StripeService;
+import tech.amak.portbuddy.server.service.SubscriptionChangedEvent;
 
 @Slf4j
 @RestController
@@ -48,6 +50,7 @@ public class PaymentController {
     private final StripeService stripeService;
     private final UserRepository userRepository;
     private final AccountRepository accountRepository;
+    private final ApplicationEventPublisher eventPublisher;
 
     /**
      * Creates a checkout session for the user's account and the requested plan.
@@ -105,6 +108,7 @@ public class PaymentController {
         account.setSubscriptionStatus("active");
         account.setStripeSubscriptionId(null);
         accountRepository.save(account);
+        eventPublisher.publishEvent(new SubscriptionChangedEvent(account.getId()));
     }
 
     @Data
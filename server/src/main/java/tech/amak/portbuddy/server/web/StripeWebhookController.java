@@ -18,6 +18,7 @@ import java.time.OffsetDateTime;
 import java.util.Map;
 import java.util.UUID;
 
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.transaction.annotation.Transactional;
@@ -44,6 +45,7 @@ import tech.amak.portbuddy.server.db.repo.StripeEventRepository;
 import tech.amak.portbuddy.server.mail.EmailService;
 import tech.amak.portbuddy.server.service.StripeService;
 import tech.amak.portbuddy.server.service.StripeWebhookService;
+import tech.amak.portbuddy.server.service.SubscriptionChangedEvent;
 import tech.amak.portbuddy.server.service.TunnelService;
 
 @Slf4j
@@ -59,6 +61,7 @@ public class StripeWebhookController {
     private final StripeService stripeService;
     private final StripeWebhookService stripeWebhookService;
     private final AppProperties properties;
+    private final ApplicationEventPublisher eventPublisher;
 
     /**
      * Handles Stripe webhooks.
@@ -183,6 +186,7 @@ public class StripeWebhookController {
             account.setExtraTunnels(Integer.parseInt(extraTunnelsStr));
         }
         accountRepository.save(account);
+        eventPublisher.publishEvent(new SubscriptionChangedEvent(account.getId()));
         tunnelService.enforceTunnelLimit(account);
         log.info("Updated account {} with Stripe customer {} and subscription {}",
             accountId, session.getCustomer(), session.getSubscription());
@@ -267,6 +271,7 @@ public class StripeWebhookController {
             }
 
             accountRepository.save(account);
+            eventPublisher.publishEvent(new SubscriptionChangedEvent(account.getId()));
             tunnelService.enforceTunnelLimit(account);
             log.info("Updated subscription status for account {} to {}", account.getId(), subscription.getStatus());
 
@@ -303,6 +308,7 @@ public class StripeWebhookController {
         accountRepository.findByStripeCustomerId(customerId).ifPresentOrElse(account -> {
             account.setSubscriptionStatus("past_due");
             accountRepository.save(account);
+            eventPublisher.publishEvent(new SubscriptionChangedEvent(account.getId()));
 
             final var user = account.getUsers().stream().findFirst().orElse(null);
             if (user != null) {
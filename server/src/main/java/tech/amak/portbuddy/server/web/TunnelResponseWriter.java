@@ -0,0 +1,321 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.web;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.connector.ResponseFacade;
+import org.apache.coyote.ActionCode;
+import org.springframework.http.HttpHeaders;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.ServletResponseWrapper;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import tech.amak.portbuddy.common.tunnel.FlowWindow;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelFrame;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
+import tech.amak.portbuddy.server.tunnel.TunnelResponseListener;
+
+/**
+ * Writes a tunnel response to the public client without blocking the thread that delivers it.
+ * The tunnel WebSocket thread only queues the head and body chunks; they are written with
+ * non-blocking I/O whenever the client connection takes more, driven by the servlet container
+ * through {@link WriteListener}. Written body bytes are granted back to the CLI in batches of half
+ * a {@link HttpTunnelFrame#RESPONSE_BODY_WINDOW}, and a client falling further behind than the
+ * queue limit aborts the response. A response that fails after its head went out is cut short by
+ * closing the client connection, so the client does not take the truncated body for a complete one.
+ */
+@Slf4j
+final class TunnelResponseWriter implements TunnelResponseListener, WriteListener {
+
+    private static final Set<String> HOP_BY_HOP_RESPONSE_HEADERS = Set.of(
+        // RFC 7230 hop-by-hop headers + common variants we do not want to relay
+        HttpHeaders.CONNECTION.toLowerCase(),
+        "keep-alive",
+        "proxy-authenticate",
+        "proxy-authorization",
+        "te",
+        "trailer",
+        HttpHeaders.TRANSFER_ENCODING.toLowerCase(),
+        HttpHeaders.UPGRADE.toLowerCase(),
+        // Avoid conflicting length management across hops; let container decide
+        HttpHeaders.CONTENT_LENGTH.toLowerCase()
+    );
+
+    // Tomcat does not expose the connector response it needs to close a connection
+    private static final Field CONNECTOR_RESPONSE = connectorResponseField();
+
+    private final AsyncContext asyncContext;
+    private final HttpServletResponse response;
+    private final long maxQueuedBytes;
+    private final IntConsumer onDelivered;
+    private final Runnable onAbort;
+    private final FlowWindow window = new FlowWindow(HttpTunnelFrame.RESPONSE_BODY_WINDOW);
+
+    // Guarded by this
+    private final Queue<byte[]> chunks = new ArrayDeque<>();
+    private long queuedBytes;
+    private HttpTunnelMessage head;
+    private boolean headWritten;
+    private boolean flushNeeded;
+    private boolean ended;
+    private boolean writable;
+    private boolean done;
+
+    /**
+     * Creates the writer; register it with {@link jakarta.servlet.ServletOutputStream#setWriteListener}.
+     *
+     * @param asyncContext   the async context of the ingress request, completed once the response is written
+     * @param response       the response to the public client
+     * @param maxQueuedBytes streamed body bytes the public client may fall behind before the response is aborted
+     * @param onDelivered    receives credit to grant to the CLI; null if the tunnel does not take it
+     * @param onAbort        called when the public client went away, to cancel the request
+     */
+    TunnelResponseWriter(final AsyncContext asyncContext,
+                         final HttpServletResponse response,
+                         final long maxQueuedBytes,
+                         final IntConsumer onDelivered,
+                         final Runnable onAbort) {
+        this.asyncContext = asyncContext;
+        this.response = response;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.onDelivered = onDelivered;
+        this.onAbort = onAbort;
+    }
+
+    @Override
+    public synchronized void onHead(final HttpTunnelMessage message) throws IOException {
+        if (done) {
+            throw new IOException("Public client went away");
+        }
+        if (head == null) {
+            head = message;
+            drain();
+        }
+    }
+
+    @Override
+    public synchronized void onBody(final byte[] chunk) throws IOException {
+        if (done) {
+            throw new IOException("Public client went away");
+        }
+        if (chunk.length == 0) {
+            return;
+        }
+        if (queuedBytes + chunk.length > maxQueuedBytes) {
+            // The request fails with this exception, there is no point in queueing an error page behind
+            final var queued = queuedBytes;
+            chunks.clear();
+            queuedBytes = 0;
+            closeConnection();
+            throw new IOException("Public client does not keep up, " + queued + " response bytes queued");
+        }
+        chunks.add(chunk);
+        queuedBytes += chunk.length;
+        drain();
+    }
+
+    /**
+     * Ends the response once everything queued is written. A whole RESPONSE is written first, the
+     * RESPONSE_HEAD of a streamed response only marks its end.
+     *
+     * @param message the message the request completed with
+     */
+    synchronized void complete(final HttpTunnelMessage message) {
+        if (done) {
+            return;
+        }
+        if (message.getType() == HttpTunnelMessage.Type.RESPONSE && head == null) {
+            head = message;
+            if (message.getBody() != null && message.getBody().length > 0) {
+                chunks.add(message.getBody());
+                queuedBytes += message.getBody().length;
+            }
+        }
+        ended = true;
+        drain();
+    }
+
+    /**
+     * Answers with the given error response, or closes the connection if the response head is already out.
+     *
+     * @param error the error response
+     */
+    synchronized void fail(final HttpTunnelMessage error) {
+        if (done) {
+            return;
+        }
+        chunks.clear();
+        queuedBytes = 0;
+        if (headWritten) {
+            closeConnection();
+            return;
+        }
+        head = error;
+        if (error.getBody() != null) {
+            chunks.add(error.getBody());
+        }
+        ended = true;
+        drain();
+    }
+
+    @Override
+    public synchronized void onWritePossible() {
+        writable = true;
+        drain();
+    }
+
+    @Override
+    public synchronized void onError(final Throwable error) {
+        log.debug("Failed to write tunnel response: {}", error.toString());
+        abort();
+    }
+
+    // Writes as much as the client connection takes right now
+    private void drain() {
+        if (done || !writable) {
+            return;
+        }
+        try {
+            final var out = response.getOutputStream();
+            if (!headWritten) {
+                if (head == null) {
+                    return;
+                }
+                writeHead(head);
+                headWritten = true;
+                flushNeeded = true;
+            }
+            while (out.isReady()) {
+                final var chunk = chunks.poll();
+                if (chunk != null) {
+                    out.write(chunk);
+                    queuedBytes -= chunk.length;
+                    flushNeeded = true;
+                    delivered(chunk.length);
+                } else if (flushNeeded) {
+                    // Streamed chunks (e.g. server-sent events) go out as soon as the queue is empty
+                    flushNeeded = false;
+                    out.flush();
+                } else {
+                    if (ended) {
+                        finish();
+                    }
+                    return;
+                }
+            }
+            // The container calls onWritePossible once the client connection takes more
+            writable = false;
+        } catch (final IOException e) {
+            log.debug("Failed to write tunnel response: {}", e.toString());
+            abort();
+        }
+    }
+
+    private void delivered(final int bytes) {
+        // Credit is of no use once the CLI sent the whole body
+        if (onDelivered == null || ended) {
+            return;
+        }
+        final var increment = window.delivered(bytes);
+        if (increment > 0) {
+            onDelivered.accept(increment);
+        }
+    }
+
+    private void writeHead(final HttpTunnelMessage message) {
+        final var status = message.getStatus() == null ? 502 : message.getStatus();
+        response.setStatus(status);
+        if (message.getRespHeaders() == null) {
+            return;
+        }
+        for (final var header : message.getRespHeaders().entrySet()) {
+            final var name = header.getKey();
+            final var values = header.getValue();
+            if (name == null || values == null) {
+                continue;
+            }
+            final var nameLc = name.toLowerCase();
+            if (HOP_BY_HOP_RESPONSE_HEADERS.contains(nameLc)) {
+                // Skip hop-by-hop or conflicting headers
+                continue;
+            }
+            values.stream()
+                .filter(Objects::nonNull)
+                .forEach(value ->
+                    response.addHeader(name, value));
+        }
+    }
+
+    private void abort() {
+        if (done) {
+            return;
+        }
+        chunks.clear();
+        queuedBytes = 0;
+        finish();
+        onAbort.run();
+    }
+
+    // Completing the response would end a chunked body with its last chunk as if it was whole
+    private void closeConnection() {
+        ServletResponse current = response;
+        while (current instanceof ServletResponseWrapper wrapper) {
+            current = wrapper.getResponse();
+        }
+        if (CONNECTOR_RESPONSE != null && current instanceof ResponseFacade facade) {
+            try {
+                final var connectorResponse = (Response) CONNECTOR_RESPONSE.get(facade);
+                done = true;
+                // The container fails the request and releases the async context itself
+                connectorResponse.getCoyoteResponse().action(ActionCode.CLOSE_NOW, null);
+                return;
+            } catch (final IllegalAccessException e) {
+                log.debug("Failed to close the public connection: {}", e.toString());
+            }
+        }
+        finish();
+    }
+
+    private static Field connectorResponseField() {
+        try {
+            final var field = ResponseFacade.class.getDeclaredField("response");
+            field.setAccessible(true);
+            return field;
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            log.warn("Truncated tunnel responses cannot be signalled to public clients: {}", e.toString());
+            return null;
+        }
+    }
+
+    private void finish() {
+        done = true;
+        try {
+            asyncContext.complete();
+        } catch (final IllegalStateException e) {
+            log.debug("Tunnel response already completed: {}", e.toString());
+        }
+    }
+}
@@ -14,13 +14,17 @@
 
 package tech.amak.portbuddy.server.web;
 
+import java.util.List;
 import java.util.UUID;
 
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -37,6 +41,11 @@ import tech.amak.portbuddy.server.service.TunnelService;
 @Slf4j
 public class TunnelStatusController {
 
+    /**
+     * Most tunnels a single batched heartbeat may carry.
+     */
+    public static final int MAX_HEARTBEAT_BATCH = 100;
+
     private final TunnelService tunnelService;
 
     /**
@@ -56,6 +65,18 @@ public class TunnelStatusController {
         tunnelService.heartbeat(tunnelId);
     }
 
+    /**
+     * Updates the heartbeat timestamps of several tunnels at once, sent by a CLI running many tunnels.
+     */
+    @PostMapping(path = "/heartbeat")
+    public void heartbeats(final @RequestBody List<UUID> tunnelIds) {
+        if (tunnelIds.size() > MAX_HEARTBEAT_BATCH) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                "At most " + MAX_HEARTBEAT_BATCH + " tunnels per heartbeat");
+        }
+        tunnelIds.forEach(tunnelService::heartbeat);
+    }
+
     /**
      * Marks a tunnel as closed.
      */
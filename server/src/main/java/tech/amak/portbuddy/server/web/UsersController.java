@@ -23,6 +23,7 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.MediaType;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
@@ -53,6 +54,7 @@ import tech.amak.portbuddy.server.db.repo.UserRepository;
 import tech.amak.portbuddy.server.security.JwtService;
 import tech.amak.portbuddy.server.security.Oauth2SuccessHandler;
 import tech.amak.portbuddy.server.service.StripeService;
+import tech.amak.portbuddy.server.service.SubscriptionChangedEvent;
 import tech.amak.portbuddy.server.service.TeamService;
 import tech.amak.portbuddy.server.service.TunnelService;
 
@@ -70,6 +72,7 @@ public class UsersController {
     private final TeamService teamService;
     private final JwtService jwtService;
     private final AppProperties properties;
+    private final ApplicationEventPublisher eventPublisher;
 
     /**
      * User details endpoint.
@@ -212,6 +215,7 @@ public class UsersController {
 
         account.setExtraTunnels(requestedExtra);
         accountRepository.save(account);
+        eventPublisher.publishEvent(new SubscriptionChangedEvent(account.getId()));
         tunnelService.enforceTunnelLimit(account);
 
         return toAccountDto(account);
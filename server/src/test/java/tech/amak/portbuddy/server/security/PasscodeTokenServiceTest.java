@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.security;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import tech.amak.portbuddy.server.config.TunnelsProperties;
+
+class PasscodeTokenServiceTest {
+
+    private static final String HASH = "$2a$10$hash";
+    private static final Instant NOW = Instant.parse("2025-01-01T00:00:00Z");
+
+    private TunnelsProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        properties = new TunnelsProperties();
+        properties.setPasscodeTokenSecret("secret");
+        properties.setPasscodeTokenTtl(Duration.ofHours(1));
+    }
+
+    @Test
+    void verify_IssuedToken_IsValidForSameSubdomainAndHash() {
+        final var service = service(NOW);
+        final var token = service.issue("abc", HASH);
+
+        assertTrue(service.verify(token, "abc", HASH));
+        assertFalse(service.verify(token, "other", HASH));
+        assertFalse(service.verify(token, "abc", "$2a$10$changed"));
+    }
+
+    @Test
+    void verify_ExpiredOrForged_Rejected() {
+        final var token = service(NOW).issue("abc", HASH);
+
+        assertFalse(service(NOW.plus(Duration.ofHours(2))).verify(token, "abc", HASH));
+        final var forged = (NOW.getEpochSecond() + 86_400) + token.substring(token.indexOf('.'));
+        assertFalse(service(NOW).verify(forged, "abc", HASH));
+        assertFalse(service(NOW).verify("raw-passcode", "abc", HASH));
+        assertFalse(service(NOW).verify(null, "abc", HASH));
+    }
+
+    @Test
+    void verify_TokenFromOtherInstanceWithSameSecret_Accepted() {
+        final var token = service(NOW).issue("abc", HASH);
+
+        assertTrue(service(NOW).verify(token, "abc", HASH));
+        properties.setPasscodeTokenSecret("another");
+        assertFalse(service(NOW).verify(token, "abc", HASH));
+    }
+
+    @Test
+    void mayBeLegacyCookie_OnlyValuesThatAreNotTokensWithinOneTtl() {
+        final var clock = new MutableClock(NOW);
+        final var service = new PasscodeTokenService(properties, clock);
+        final var token = service.issue("abc", HASH);
+        final var forged = (NOW.getEpochSecond() + 86_400) + token.substring(token.indexOf('.'));
+
+        assertTrue(service.mayBeLegacyCookie("raw-passcode"));
+        assertFalse(service.mayBeLegacyCookie(token));
+        assertFalse(service.mayBeLegacyCookie(forged));
+        assertFalse(service.mayBeLegacyCookie(null));
+
+        clock.now = NOW.plus(properties.getPasscodeTokenTtl());
+        assertFalse(service.mayBeLegacyCookie("raw-passcode"));
+    }
+
+    private PasscodeTokenService service(final Instant now) {
+        return new PasscodeTokenService(properties, Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    private static final class MutableClock extends Clock {
+
+        private Instant now;
+
+        private MutableClock(final Instant now) {
+            this.now = now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(final ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
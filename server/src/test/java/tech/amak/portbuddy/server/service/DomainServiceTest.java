@@ -34,6 +34,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.security.crypto.password.PasswordEncoder;
 
 import tech.amak.portbuddy.server.client.SslServiceClient;
@@ -60,6 +61,8 @@ class DomainServiceTest {
     private PasswordEncoder passwordEncoder;
     @Mock
     private SslServiceClient sslServiceClient;
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
 
     private DomainService domainService;
     private AccountEntity account;
@@ -91,7 +94,8 @@ class DomainServiceTest {
             appProps,
             passwordEncoder,
             sslServiceClient,
-            userRepository);
+            userRepository,
+            eventPublisher);
         account = new AccountEntity();
         account.setId(UUID.randomUUID());
     }
@@ -188,5 +192,6 @@ class DomainServiceTest {
         assertNull(domain.getCustomDomain());
         assertFalse(domain.isCnameVerified());
         verify(domainRepository).save(domain);
+        verify(eventPublisher).publishEvent(new CustomDomainChangedEvent(domain.getSubdomain(), null));
     }
 }
@@ -29,6 +29,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
 
 import tech.amak.portbuddy.server.config.AppProperties;
 import tech.amak.portbuddy.server.db.entity.AccountEntity;
@@ -45,13 +46,16 @@ class PaymentCleanupServiceTest {
     private AppProperties appProperties;
     @Mock
     private AppProperties.Subscriptions subscriptions;
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
 
     private PaymentCleanupService paymentCleanupService;
 
     @BeforeEach
     void setUp() {
         when(appProperties.subscriptions()).thenReturn(subscriptions);
-        paymentCleanupService = new PaymentCleanupService(accountRepository, tunnelService, appProperties);
+        paymentCleanupService = new PaymentCleanupService(accountRepository, tunnelService, appProperties,
+            eventPublisher);
     }
 
     @Test
@@ -69,6 +73,7 @@ class PaymentCleanupServiceTest {
         paymentCleanupService.cleanupFailedPayments();
 
         verify(tunnelService).closeAllTunnels(account);
+        verify(eventPublisher).publishEvent(new SubscriptionChangedEvent(account.getId()));
     }
 
     @Test
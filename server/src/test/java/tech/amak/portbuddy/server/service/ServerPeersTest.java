@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.serviceregistry.Registration;
+import org.springframework.web.client.RestClient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import tech.amak.portbuddy.server.security.JwtService;
+
+class ServerPeersTest {
+
+    private static final String SERVICE_ID = "port-buddy-server";
+    private static final String PATH = "/api/internal/domains/passcode-changed";
+
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final ExecutorService handlers = Executors.newCachedThreadPool();
+    private volatile long delayMillis;
+    private HttpServer peer;
+    private ServerPeers serverPeers;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws IOException {
+        peer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        peer.createContext(PATH, this::handle);
+        peer.setExecutor(handlers);
+        peer.start();
+
+        final var discoveryClient = mock(DiscoveryClient.class);
+        when(discoveryClient.getInstances(SERVICE_ID)).thenReturn(List.of(new DefaultServiceInstance(
+            "peer-1", SERVICE_ID, "127.0.0.1", peer.getAddress().getPort(), false)));
+        final ObjectProvider<Registration> registration = mock(ObjectProvider.class);
+        final var jwtService = mock(JwtService.class);
+        when(jwtService.createPeerToken()).thenReturn("peer-token");
+        serverPeers = new ServerPeers(discoveryClient, registration, RestClient.builder(), SERVICE_ID, jwtService,
+            Duration.ofMillis(300), Duration.ofMillis(50));
+    }
+
+    @AfterEach
+    void tearDown() {
+        serverPeers.shutdown();
+        peer.stop(0);
+        handlers.shutdownNow();
+    }
+
+    @Test
+    void notify_SlowPeer_ReturnsRightAwayAndGivesUpAfterRetries() throws Exception {
+        delayMillis = 5_000;
+
+        final var started = System.nanoTime();
+        serverPeers.notify(PATH, Map.of("subdomain", "abc"));
+        final var elapsed = Duration.ofNanos(System.nanoTime() - started);
+
+        assertTrue(elapsed.toMillis() < 200, "notify took " + elapsed.toMillis() + " ms");
+        for (var attempt = 0; attempt < 3; attempt++) {
+            assertEquals("Bearer peer-token subdomain=abc", received.poll(5, TimeUnit.SECONDS));
+        }
+        // Three read timeouts and two backoffs later nothing else arrives
+        assertNull(received.poll(1500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void notify_FailingPeer_RetriedUntilDelivered() throws Exception {
+        failures.set(2);
+
+        serverPeers.notify(PATH, Map.of("subdomain", "abc"));
+
+        for (var attempt = 0; attempt < 3; attempt++) {
+            assertEquals("Bearer peer-token subdomain=abc", received.poll(5, TimeUnit.SECONDS));
+        }
+        assertEquals(0, failures.get());
+        assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void notify_PeerKeepsFailing_StopsAfterMaxAttempts() throws Exception {
+        failures.set(Integer.MAX_VALUE);
+
+        serverPeers.notify(PATH, Map.of("subdomain", "abc"));
+
+        for (var attempt = 0; attempt < 3; attempt++) {
+            assertEquals("Bearer peer-token subdomain=abc", received.poll(5, TimeUnit.SECONDS));
+        }
+        assertNull(received.poll(1000, TimeUnit.MILLISECONDS));
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try (exchange) {
+            received.add(exchange.getRequestHeaders().getFirst("Authorization") + " "
+                         + exchange.getRequestURI().getQuery());
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            final var status = failures.getAndUpdate(left -> Math.max(0, left - 1)) > 0 ? 500 : 204;
+            exchange.sendResponseHeaders(status, -1);
+        }
+    }
+}
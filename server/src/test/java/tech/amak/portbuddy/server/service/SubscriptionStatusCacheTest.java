@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import tech.amak.portbuddy.server.db.entity.AccountEntity;
+import tech.amak.portbuddy.server.db.repo.AccountRepository;
+
+@ExtendWith(MockitoExtension.class)
+class SubscriptionStatusCacheTest {
+
+    @Mock
+    private AccountRepository accountRepository;
+    @Mock
+    private ServerPeers serverPeers;
+
+    private SubscriptionStatusCache cache;
+    private AccountEntity account;
+
+    @BeforeEach
+    void setUp() {
+        cache = new SubscriptionStatusCache(accountRepository, serverPeers);
+        account = new AccountEntity();
+        account.setId(UUID.randomUUID());
+        account.setSubscriptionStatus("active");
+    }
+
+    @Test
+    void find_Cached_DoesNotQueryDatabase() {
+        cache.put(account);
+
+        for (var i = 0; i < 10; i++) {
+            assertTrue(cache.find(account.getId()).orElseThrow().isActive());
+        }
+
+        verify(accountRepository, never()).findById(account.getId());
+    }
+
+    @Test
+    void find_Missing_LoadsOnce() {
+        when(accountRepository.findById(account.getId())).thenReturn(Optional.of(account));
+
+        cache.find(account.getId());
+        cache.find(account.getId());
+
+        verify(accountRepository, times(1)).findById(account.getId());
+    }
+
+    @Test
+    void onSubscriptionChanged_EvictsAndReloadsNewStatus() {
+        cache.put(account);
+
+        account.setSubscriptionStatus("past_due");
+        when(accountRepository.findById(account.getId())).thenReturn(Optional.of(account));
+        cache.onSubscriptionChanged(new SubscriptionChangedEvent(account.getId()));
+
+        final var subscription = cache.find(account.getId()).orElseThrow();
+        assertFalse(subscription.isActive());
+        assertEquals("past_due", subscription.status());
+        verify(serverPeers).notify(SubscriptionStatusCache.EVICT_PATH, Map.of("accountId", account.getId()));
+    }
+
+    @Test
+    void refresh_ReloadsCachedStatusesAndDropsDeletedAccounts() {
+        final var deleted = new AccountEntity();
+        deleted.setId(UUID.randomUUID());
+        cache.put(account);
+        cache.put(deleted);
+
+        account.setSubscriptionStatus("unpaid");
+        when(accountRepository.findAllById(anyIterable())).thenReturn(List.of(account));
+        cache.refresh();
+
+        assertEquals("unpaid", cache.find(account.getId()).orElseThrow().status());
+        when(accountRepository.findById(deleted.getId())).thenReturn(Optional.empty());
+        assertTrue(cache.find(deleted.getId()).isEmpty());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import tech.amak.portbuddy.server.db.repo.TunnelRepository;
+import tech.amak.portbuddy.server.db.repo.TunnelRepository.TunnelAccount;
+import tech.amak.portbuddy.server.service.SubscriptionStatusCache.Subscription;
+
+@ExtendWith(MockitoExtension.class)
+class TunnelHeartbeatsTest {
+
+    @Mock
+    private TunnelRepository tunnelRepository;
+
+    @Mock
+    private SubscriptionStatusCache subscriptionStatusCache;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private TunnelHeartbeats heartbeats;
+
+    @BeforeEach
+    void setUp() {
+        heartbeats = new TunnelHeartbeats(
+            tunnelRepository, subscriptionStatusCache, new TransactionTemplate(transactionManager));
+    }
+
+    @Test
+    void flush_RepeatedHeartbeats_WrittenOnceInOneStatement() {
+        final var first = UUID.randomUUID();
+        final var second = UUID.randomUUID();
+        for (var i = 0; i < 100; i++) {
+            heartbeats.record(first);
+            heartbeats.record(second);
+        }
+
+        heartbeats.flush();
+
+        final ArgumentCaptor<Collection<UUID>> ids = ArgumentCaptor.captor();
+        verify(tunnelRepository, times(1)).updateLastHeartbeat(ids.capture(), any());
+        assertEquals(Set.of(first, second), Set.copyOf(ids.getValue()));
+    }
+
+    @Test
+    void flush_NothingRecorded_DoesNotTouchDatabase() {
+        heartbeats.record(null);
+
+        heartbeats.flush();
+
+        verifyNoInteractions(tunnelRepository);
+    }
+
+    @Test
+    void flush_Failure_KeepsHeartbeatsForNextFlush() {
+        final var tunnelId = UUID.randomUUID();
+        heartbeats.record(tunnelId);
+        when(tunnelRepository.updateLastHeartbeat(anyCollection(), any()))
+            .thenThrow(new IllegalStateException("db down"))
+            .thenReturn(1);
+
+        assertThrows(IllegalStateException.class, heartbeats::flush);
+        heartbeats.flush();
+
+        final ArgumentCaptor<Collection<UUID>> ids = ArgumentCaptor.captor();
+        verify(tunnelRepository, times(2)).updateLastHeartbeat(ids.capture(), any());
+        assertEquals(List.of(tunnelId), List.copyOf(ids.getValue()));
+    }
+
+    @Test
+    void flush_InactiveSubscription_ClosesTunnelInsteadOfHeartbeat() {
+        final var active = UUID.randomUUID();
+        final var inactive = UUID.randomUUID();
+        final var activeAccount = UUID.randomUUID();
+        final var inactiveAccount = UUID.randomUUID();
+        heartbeats.record(active);
+        heartbeats.record(inactive);
+        when(tunnelRepository.findByIdIn(anyCollection())).thenReturn(List.of(
+            tunnelAccount(active, activeAccount), tunnelAccount(inactive, inactiveAccount)));
+        when(subscriptionStatusCache.find(activeAccount)).thenReturn(Optional.of(new Subscription("active")));
+        when(subscriptionStatusCache.find(inactiveAccount)).thenReturn(Optional.of(new Subscription("past_due")));
+
+        heartbeats.flush();
+
+        final ArgumentCaptor<Collection<UUID>> updated = ArgumentCaptor.captor();
+        verify(tunnelRepository).updateLastHeartbeat(updated.capture(), any());
+        assertEquals(List.of(active), List.copyOf(updated.getValue()));
+        verify(tunnelRepository).closeAllById(List.of(inactive));
+    }
+
+    @Test
+    void flush_OnlyInactiveSubscriptions_DoesNotWriteHeartbeats() {
+        final var tunnelId = UUID.randomUUID();
+        final var accountId = UUID.randomUUID();
+        heartbeats.record(tunnelId);
+        when(tunnelRepository.findByIdIn(anyCollection())).thenReturn(List.of(tunnelAccount(tunnelId, accountId)));
+        when(subscriptionStatusCache.find(accountId)).thenReturn(Optional.of(new Subscription("canceled")));
+
+        heartbeats.flush();
+
+        verify(tunnelRepository).closeAllById(List.of(tunnelId));
+        verify(tunnelRepository, never()).updateLastHeartbeat(anyCollection(), any());
+    }
+
+    @Test
+    void flushOnShutdown_RunsInTransaction() {
+        heartbeats.record(UUID.randomUUID());
+
+        heartbeats.flushOnShutdown();
+
+        verify(transactionManager).getTransaction(any());
+        verify(transactionManager).commit(any());
+    }
+
+    private static TunnelAccount tunnelAccount(final UUID tunnelId, final UUID accountId) {
+        return new TunnelAccount() {
+            @Override
+            public UUID getId() {
+                return tunnelId;
+            }
+
+            @Override
+            public UUID getAccountId() {
+                return accountId;
+            }
+        };
+    }
+}
@@ -21,6 +21,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import java.time.Duration;
@@ -53,6 +54,10 @@ class TunnelServiceTest {
     private TunnelRepository tunnelRepository;
     @Mock
     private AccountRepository accountRepository;
+    @Mock
+    private TunnelHeartbeats heartbeats;
+    @Mock
+    private SubscriptionStatusCache subscriptionStatusCache;
 
     private TunnelService tunnelService;
     private AccountEntity account;
@@ -64,11 +69,13 @@ class TunnelServiceTest {
             new AppProperties.Subscriptions(
                 Duration.ofDays(3),
                 Duration.ofHours(1),
+                Duration.ofMinutes(1),
                 new AppProperties.Subscriptions.Tunnels(
                     Map.of(Plan.PRO, 1, Plan.TEAM, 10), Map.of(Plan.PRO, 1, Plan.TEAM, 5))),
             null
         );
-        tunnelService = new TunnelService(tunnelRepository, accountRepository, properties);
+        tunnelService = new TunnelService(tunnelRepository, accountRepository, properties, heartbeats,
+            subscriptionStatusCache);
         account = new AccountEntity();
         account.setId(UUID.randomUUID());
         account.setPlan(Plan.PRO);
@@ -102,21 +109,17 @@ class TunnelServiceTest {
         when(accountRepository.findById(account.getId())).thenReturn(Optional.of(account));
 
         assertThrows(IllegalStateException.class, () -> tunnelService.markConnected(tunnelId));
+        verify(subscriptionStatusCache).put(account);
     }
 
     @Test
-    void heartbeat_InactiveSubscription_ThrowsException() {
+    void heartbeat_RecordsWithoutDatabaseAccess() {
         final var tunnelId = UUID.randomUUID();
-        final var tunnel = new TunnelEntity();
-        tunnel.setId(tunnelId);
-        tunnel.setAccountId(account.getId());
 
-        account.setSubscriptionStatus("past_due");
-
-        when(tunnelRepository.findById(tunnelId)).thenReturn(Optional.of(tunnel));
-        when(accountRepository.findById(account.getId())).thenReturn(Optional.of(account));
+        tunnelService.heartbeat(tunnelId);
 
-        assertThrows(IllegalStateException.class, () -> tunnelService.heartbeat(tunnelId));
+        verify(heartbeats).record(tunnelId);
+        verifyNoInteractions(tunnelRepository, accountRepository);
     }
 
     @Test
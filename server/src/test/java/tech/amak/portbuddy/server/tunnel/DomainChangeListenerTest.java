@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import tech.amak.portbuddy.server.config.TunnelsProperties;
+import tech.amak.portbuddy.server.db.entity.DomainEntity;
+import tech.amak.portbuddy.server.db.entity.TunnelEntity;
+import tech.amak.portbuddy.server.db.repo.DomainRepository;
+import tech.amak.portbuddy.server.service.CustomDomainChangedEvent;
+import tech.amak.portbuddy.server.service.ServerPeers;
+
+class DomainChangeListenerTest {
+
+    private static final String SUBDOMAIN = "abc";
+
+    private final DomainRepository domainRepository = mock(DomainRepository.class);
+    private final ServerPeers serverPeers = mock(ServerPeers.class);
+    private TunnelRegistry registry;
+    private DomainChangeListener listener;
+    private DomainEntity domain;
+
+    @BeforeEach
+    void setUp() {
+        registry = new TunnelRegistry(new ObjectMapper(), new TunnelsProperties(), new SimpleMeterRegistry());
+        listener = new DomainChangeListener(registry, serverPeers, domainRepository);
+        domain = new DomainEntity();
+        domain.setSubdomain(SUBDOMAIN);
+        domain.setCustomDomain("old.example.com");
+        final var tunnelEntity = new TunnelEntity();
+        tunnelEntity.setId(UUID.randomUUID());
+        tunnelEntity.setAccountId(UUID.randomUUID());
+        tunnelEntity.setDomain(domain);
+        registry.register(tunnelEntity, openSession());
+    }
+
+    @Test
+    void onCustomDomainChanged_UpdatesIndexAndNotifiesPeers() {
+        listener.onCustomDomainChanged(new CustomDomainChangedEvent(SUBDOMAIN, "new.example.com"));
+
+        assertSame(registry.getBySubdomain(SUBDOMAIN), registry.getByCustomDomain("new.example.com"));
+        verify(serverPeers).notify(DomainChangeListener.CUSTOM_DOMAIN_CHANGED_PATH, Map.of("subdomain", SUBDOMAIN));
+    }
+
+    @Test
+    void refresh_MissedNotification_ReloadsCustomDomainAndPasscode() {
+        final var tunnel = registry.getBySubdomain(SUBDOMAIN);
+        tunnel.cachePasscodeHash("old-hash");
+        // Changed on another instance whose notification never arrived
+        domain.setCustomDomain("new.example.com");
+        when(domainRepository.findAllBySubdomainIn(Set.of(SUBDOMAIN))).thenReturn(List.of(domain));
+
+        listener.refresh();
+
+        assertNull(registry.getByCustomDomain("old.example.com"));
+        assertSame(tunnel, registry.getByCustomDomain("new.example.com"));
+        assertNull(tunnel.cachedPasscode());
+    }
+
+    @Test
+    void refresh_DomainGone_DropsCustomDomain() {
+        when(domainRepository.findAllBySubdomainIn(any())).thenReturn(List.of());
+
+        listener.refresh();
+
+        assertNull(registry.getByCustomDomain("old.example.com"));
+        assertNull(registry.getBySubdomain(SUBDOMAIN).customDomain());
+    }
+
+    private static WebSocketSession openSession() {
+        final var session = mock(WebSocketSession.class);
+        when(session.getHandshakeHeaders()).thenReturn(new HttpHeaders());
+        when(session.isOpen()).thenReturn(true);
+        when(session.getId()).thenReturn("session");
+        return session;
+    }
+}
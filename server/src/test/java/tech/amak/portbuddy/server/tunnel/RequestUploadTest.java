@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelFrame;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
+import tech.amak.portbuddy.server.config.TunnelsProperties;
+import tech.amak.portbuddy.server.db.entity.DomainEntity;
+import tech.amak.portbuddy.server.db.entity.TunnelEntity;
+
+class RequestUploadTest {
+
+    private static final String SUBDOMAIN = "abc";
+    private static final int MAX_THREADS = 2;
+    private static final int UPLOADS = 4 * MAX_THREADS;
+
+    private final TunnelRegistry registry =
+        new TunnelRegistry(new ObjectMapper(), new TunnelsProperties(), new SimpleMeterRegistry());
+    private final List<HttpTunnelMessage> frames = new CopyOnWriteArrayList<>();
+    private final UUID tunnelId = UUID.randomUUID();
+
+    @TempDir
+    private Path baseDir;
+    private Tomcat tomcat;
+
+    @AfterEach
+    void tearDown() throws LifecycleException {
+        if (tomcat != null) {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    @Test
+    void uploads_MoreThanContainerThreads_AllReachTheTunnel() throws Exception {
+        registerTunnel();
+        final var port = startTomcat();
+
+        final var clients = new ArrayList<Socket>();
+        try {
+            // Each upload sends a first chunk and then stalls, as a slow client would
+            for (var i = 0; i < UPLOADS; i++) {
+                final var client = new Socket("127.0.0.1", port);
+                client.setSoTimeout(5000);
+                client.getOutputStream().write(("POST /upload HTTP/1.1\r\nHost: test\r\n"
+                                                + "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+                clients.add(client);
+            }
+            awaitFrames(frame -> frame.getType() == HttpTunnelMessage.Type.REQUEST_BODY, UPLOADS);
+
+            for (final var client : clients) {
+                client.getOutputStream().write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            final var ends = awaitFrames(frame -> frame.getType() == HttpTunnelMessage.Type.REQUEST_END, UPLOADS);
+            for (final var end : ends) {
+                final var response = new HttpTunnelMessage();
+                response.setId(end.getId());
+                response.setType(HttpTunnelMessage.Type.RESPONSE);
+                response.setStatus(204);
+                registry.onResponse(tunnelId, response);
+            }
+            for (final var client : clients) {
+                final var in = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                    StandardCharsets.US_ASCII));
+                assertEquals("HTTP/1.1 204 ", in.readLine());
+            }
+        } finally {
+            for (final var client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    private void registerTunnel() throws IOException {
+        final var session = mock(WebSocketSession.class);
+        final var headers = new HttpHeaders();
+        headers.add(HttpTunnelFrame.PROTOCOL_HEADER, String.valueOf(HttpTunnelFrame.VERSION));
+        when(session.getHandshakeHeaders()).thenReturn(headers);
+        when(session.isOpen()).thenReturn(true);
+        when(session.getId()).thenReturn("session");
+        doAnswer(invocation -> frames.add(HttpTunnelFrame.decode(
+            invocation.<BinaryMessage>getArgument(0).getPayload())))
+            .when(session).sendMessage(any(BinaryMessage.class));
+
+        final var domain = new DomainEntity();
+        domain.setSubdomain(SUBDOMAIN);
+        final var entity = new TunnelEntity();
+        entity.setId(tunnelId);
+        entity.setDomain(domain);
+        registry.register(entity, session);
+    }
+
+    // Handles requests like the ingress controller does, on a connector with few threads
+    private int startTomcat() throws LifecycleException {
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        final var connector = tomcat.getConnector();
+        connector.setProperty("maxThreads", String.valueOf(MAX_THREADS));
+        connector.setProperty("minSpareThreads", "1");
+        final var context = tomcat.addContext("", null);
+        Tomcat.addServlet(context, "ingress", new HttpServlet() {
+            @Override
+            protected void service(final HttpServletRequest request, final HttpServletResponse response)
+                throws IOException {
+                final var asyncContext = request.startAsync();
+                asyncContext.setTimeout(0);
+                final var message = new HttpTunnelMessage();
+                message.setMethod(request.getMethod());
+                message.setPath(request.getRequestURI());
+                message.setHeaders(Map.of());
+                registry.forwardRequest(SUBDOMAIN, message, request.getInputStream(), Duration.ofSeconds(5))
+                    .whenComplete((result, error) -> {
+                        response.setStatus(error == null ? result.getStatus() : 502);
+                        asyncContext.complete();
+                    });
+            }
+        }).setAsyncSupported(true);
+        context.addServletMappingDecoded("/*", "ingress");
+        tomcat.start();
+        return connector.getLocalPort();
+    }
+
+    private List<HttpTunnelMessage> awaitFrames(final Predicate<HttpTunnelMessage> filter, final int expected)
+        throws InterruptedException {
+        final var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (true) {
+            final var matching = frames.stream().filter(filter).toList();
+            if (matching.size() >= expected || System.nanoTime() > deadline) {
+                assertEquals(expected, matching.size(), "frames: " + frames);
+                assertEquals(expected, matching.stream().map(HttpTunnelMessage::getId).distinct().count());
+                return matching;
+            }
+            Thread.sleep(20);
+        }
+    }
+}
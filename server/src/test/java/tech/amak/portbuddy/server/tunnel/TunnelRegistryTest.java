@@ -0,0 +1,737 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import tech.amak.portbuddy.common.tunnel.ControlMessage;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelFrame;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
+import tech.amak.portbuddy.server.config.TunnelsProperties;
+import tech.amak.portbuddy.server.db.entity.DomainEntity;
+import tech.amak.portbuddy.server.db.entity.TunnelEntity;
+
+class TunnelRegistryTest {
+
+    private static final String SUBDOMAIN = "abc";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private TunnelRegistry registry;
+    private TunnelEntity tunnelEntity;
+
+    @BeforeEach
+    void setUp() {
+        registry = new TunnelRegistry(mapper, new TunnelsProperties(), new SimpleMeterRegistry());
+        final var domain = new DomainEntity();
+        domain.setSubdomain(SUBDOMAIN);
+        tunnelEntity = new TunnelEntity();
+        tunnelEntity.setId(UUID.randomUUID());
+        tunnelEntity.setAccountId(UUID.randomUUID());
+        tunnelEntity.setDomain(domain);
+    }
+
+    @Test
+    void getByHost_ResolvesSubdomainAndCustomDomain() {
+        tunnelEntity.getDomain().setCustomDomain("App.Example.com");
+        registry.register(tunnelEntity, openSession(null));
+        final var tunnel = registry.getBySubdomain(SUBDOMAIN);
+
+        assertSame(tunnel, registry.getByHost(SUBDOMAIN));
+        assertSame(tunnel, registry.getByHost("app.example.com"));
+        assertEquals(SUBDOMAIN, registry.getByCustomDomain("APP.example.com").subdomain());
+
+        registry.updateCustomDomain(SUBDOMAIN, "www.example.com");
+        assertNull(registry.getByCustomDomain("app.example.com"));
+        assertSame(tunnel, registry.getByCustomDomain("www.example.com"));
+
+        registry.updateCustomDomain(SUBDOMAIN, null);
+        assertNull(registry.getByHost("www.example.com"));
+    }
+
+    @Test
+    void invalidatePasscode_DropsCachedHashUntilLoadedAgain() {
+        registry.register(tunnelEntity, openSession(null));
+        final var tunnel = registry.getBySubdomain(SUBDOMAIN);
+        assertNull(tunnel.cachedPasscode());
+
+        tunnel.cachePasscodeHash(null);
+        assertNull(tunnel.cachedPasscode().hash());
+        tunnel.cachePasscodeHash("hash");
+        assertEquals("hash", tunnel.cachedPasscode().hash());
+
+        registry.invalidatePasscode(SUBDOMAIN);
+        assertNull(tunnel.cachedPasscode());
+    }
+
+    @Test
+    void routes_ListOpenTunnelsAndChangeVersionOnUpdates() {
+        final var empty = registry.routes();
+        assertEquals(List.of(), empty.hosts());
+
+        tunnelEntity.getDomain().setCustomDomain("App.Example.com");
+        final var session = openSession(null);
+        registry.register(tunnelEntity, session);
+        final var registered = registry.routes();
+        assertEquals(List.of(SUBDOMAIN, "app.example.com"), registered.hosts());
+        assertNotEquals(empty.version(), registered.version());
+        assertEquals(registered.version(), registry.routes().version());
+        registry.updateCustomDomain(SUBDOMAIN, "APP.example.com");
+        assertEquals(registered.version(), registry.routes().version());
+
+        registry.onSessionClosed(tunnelEntity.getId(), session);
+        final var closed = registry.routes();
+        assertEquals(List.of(), closed.hosts());
+        assertNotEquals(registered.version(), closed.version());
+    }
+
+    @Test
+    void forwardRequest_BinaryClient_SendsRawBodyFrame() throws Exception {
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        registry.register(tunnelEntity, session);
+
+        final var body = "hello".getBytes(StandardCharsets.UTF_8);
+        final var future = registry.forwardRequest(SUBDOMAIN, request(body), Duration.ofSeconds(5));
+
+        final var sent = captureSent(session, 2);
+        final var binary = assertInstanceOf(BinaryMessage.class, sent);
+        final var decoded = HttpTunnelFrame.decode(binary.getPayload());
+        assertEquals(HttpTunnelMessage.Type.REQUEST, decoded.getType());
+        assertEquals("POST", decoded.getMethod());
+        assertEquals("/api", decoded.getPath());
+        assertEquals(List.of("a", "b"), decoded.getHeaders().get("X-Test"));
+        assertArrayEquals(body, decoded.getBody());
+
+        final var response = new HttpTunnelMessage();
+        response.setId(decoded.getId());
+        response.setType(HttpTunnelMessage.Type.RESPONSE);
+        response.setStatus(201);
+        response.setBody(body);
+        final var echoed = HttpTunnelFrame.decode(HttpTunnelFrame.encode(response));
+        registry.onResponse(tunnelEntity.getId(), echoed);
+
+        final var result = future.join();
+        assertEquals(201, result.getStatus());
+        assertArrayEquals(body, result.getBody());
+    }
+
+    @Test
+    void forwardRequest_LegacyClient_SendsJsonWithBase64Body() throws Exception {
+        final var session = openSession(null);
+        registry.register(tunnelEntity, session);
+
+        final var body = "hello".getBytes(StandardCharsets.UTF_8);
+        final var future = registry.forwardRequest(SUBDOMAIN, request(body), Duration.ofSeconds(5));
+
+        final var sent = assertInstanceOf(TextMessage.class, captureSent(session, 1));
+        final var json = mapper.readValue(sent.getPayload(), HttpTunnelMessage.class);
+        assertEquals("aGVsbG8=", json.getBodyB64());
+        assertNull(json.getBody());
+
+        final var response = new HttpTunnelMessage();
+        response.setId(json.getId());
+        response.setType(HttpTunnelMessage.Type.RESPONSE);
+        response.setStatus(200);
+        response.setRespBodyB64("aGVsbG8=");
+        registry.onResponse(tunnelEntity.getId(), response);
+
+        final var result = future.join();
+        assertArrayEquals(body, result.getBody());
+    }
+
+    @Test
+    void forwardRequest_StreamingClient_SendsHeadBodyChunksAndEnd() throws Exception {
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        registry.register(tunnelEntity, session);
+
+        final var body = new byte[TunnelRegistry.REQUEST_BODY_CHUNK_SIZE + 10];
+        body[body.length - 1] = 42;
+        final var request = request(null);
+        final var future = registry.forwardRequest(SUBDOMAIN, request,
+            AsyncBody.of(body), Duration.ofSeconds(5));
+
+        final var frames = captureFrames(session, 5);
+        assertEquals(4, frames.size());
+        assertEquals(HttpTunnelMessage.Type.REQUEST_HEAD, frames.get(0).getType());
+        assertEquals("/api", frames.get(0).getPath());
+        assertNull(frames.get(0).getBody());
+        assertEquals(HttpTunnelMessage.Type.REQUEST_BODY, frames.get(1).getType());
+        assertEquals(TunnelRegistry.REQUEST_BODY_CHUNK_SIZE, frames.get(1).getBody().length);
+        assertEquals(HttpTunnelMessage.Type.REQUEST_BODY, frames.get(2).getType());
+        assertEquals(42, frames.get(2).getBody()[9]);
+        assertEquals(HttpTunnelMessage.Type.REQUEST_END, frames.get(3).getType());
+        assertEquals(request.getId(), frames.get(3).getId());
+
+        final var response = new HttpTunnelMessage();
+        response.setId(request.getId());
+        response.setType(HttpTunnelMessage.Type.RESPONSE);
+        response.setStatus(204);
+        registry.onResponse(tunnelEntity.getId(), response);
+        assertEquals(204, future.join().getStatus());
+    }
+
+    @Test
+    void forwardRequest_CreditExhausted_ReadsMoreOnceAcknowledged() throws Exception {
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        registry.register(tunnelEntity, session);
+
+        final var body = AsyncBody.of(new byte[TunnelRegistry.REQUEST_BODY_WINDOW + 10]);
+        final var request = request(null);
+        registry.forwardRequest(SUBDOMAIN, request, body, Duration.ofSeconds(5));
+
+        // HELLO, REQUEST_HEAD and a window of body chunks; the rest waits for credit
+        final var sent = captureFrames(session, 18);
+        assertEquals(HttpTunnelMessage.Type.REQUEST_BODY, sent.getLast().getType());
+        assertEquals(10, body.remaining());
+
+        final var ack = frame(HttpTunnelMessage.Type.REQUEST_BODY_ACK, request.getId(), null);
+        ack.setCredit(TunnelRegistry.REQUEST_BODY_CHUNK_SIZE);
+        registry.onRequestBodyAck(tunnelEntity.getId(), ack);
+
+        final var resumed = captureFrames(session, 20);
+        assertEquals(10, resumed.get(resumed.size() - 2).getBody().length);
+        assertEquals(HttpTunnelMessage.Type.REQUEST_END, resumed.getLast().getType());
+        assertEquals(0, body.remaining());
+    }
+
+    @Test
+    void forwardRequest_SendQueueFull_ReadsMoreOnceDrained() throws Exception {
+        final var properties = new TunnelsProperties();
+        properties.setSendBufferSize(DataSize.ofKilobytes(100));
+        registry = new TunnelRegistry(mapper, properties, new SimpleMeterRegistry());
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        final var release = new CountDownLatch(1);
+        doAnswer(invocation -> release.await(5, TimeUnit.SECONDS))
+            .when(session).sendMessage(any(BinaryMessage.class));
+        registry.register(tunnelEntity, session);
+
+        final var body = AsyncBody.of(new byte[4 * TunnelRegistry.REQUEST_BODY_CHUNK_SIZE]);
+        registry.forwardRequest(SUBDOMAIN, request(null), body, Duration.ofSeconds(5));
+
+        // The writer is stuck on the head, so the queue takes one chunk and the next waits for room
+        verify(session, timeout(2000).times(2)).sendMessage(any());
+        assertEquals(2 * TunnelRegistry.REQUEST_BODY_CHUNK_SIZE, body.remaining());
+
+        release.countDown();
+        final var frames = captureFrames(session, 7);
+        assertEquals(HttpTunnelMessage.Type.REQUEST_END, frames.getLast().getType());
+        assertEquals(0, body.remaining());
+    }
+
+    @Test
+    void forwardRequest_SlowUpload_TimeoutCountsFromRequestEnd() throws Exception {
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        registry.register(tunnelEntity, session);
+
+        // The upload takes several times the timeout
+        final var request = request(null);
+        final var future = registry.forwardRequest(SUBDOMAIN, request,
+            slowBody(5, 100), Duration.ofMillis(200));
+        assertFalse(future.isDone());
+        assertEquals(HttpTunnelMessage.Type.REQUEST_END, captureFrames(session, 8).getLast().getType());
+
+        final var response = new HttpTunnelMessage();
+        response.setId(request.getId());
+        response.setType(HttpTunnelMessage.Type.RESPONSE);
+        response.setStatus(201);
+        registry.onResponse(tunnelEntity.getId(), response);
+        assertEquals(201, future.join().getStatus());
+    }
+
+    @Test
+    void forwardRequest_NoResponseAfterUpload_TimesOut() throws Exception {
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        registry.register(tunnelEntity, session);
+
+        final var future = registry.forwardRequest(SUBDOMAIN, request(null),
+            slowBody(2, 100), Duration.ofMillis(200));
+
+        final var error = assertThrows(CompletionException.class, future::join);
+        assertInstanceOf(TimeoutException.class, error.getCause());
+    }
+
+    @Test
+    void forwardRequest_LegacyClient_BuffersStreamedBody() throws Exception {
+        final var session = openSession(null);
+        registry.register(tunnelEntity, session);
+
+        final var body = "hello".getBytes(StandardCharsets.UTF_8);
+        registry.forwardRequest(SUBDOMAIN, request(null), AsyncBody.of(body), Duration.ofSeconds(5));
+
+        final var sent = assertInstanceOf(TextMessage.class, captureSent(session, 1));
+        final var json = mapper.readValue(sent.getPayload(), HttpTunnelMessage.class);
+        assertEquals(HttpTunnelMessage.Type.REQUEST, json.getType());
+        assertEquals("aGVsbG8=", json.getBodyB64());
+    }
+
+    @Test
+    void register_BinaryClient_AnnouncesNegotiatedVersion() throws Exception {
+        final var session = openSession("99");
+        registry.register(tunnelEntity, session);
+
+        final var hello = assertInstanceOf(TextMessage.class, captureSent(session, 1));
+        final var ctrl = mapper.readValue(hello.getPayload(), ControlMessage.class);
+        assertEquals(ControlMessage.Type.HELLO, ctrl.getType());
+        assertEquals(HttpTunnelFrame.VERSION, ctrl.getProtocolVersion());
+    }
+
+    @Test
+    void register_LegacyClient_SendsNoHello() throws Exception {
+        final var session = openSession(null);
+        registry.register(tunnelEntity, session);
+
+        verify(session, never()).sendMessage(any());
+    }
+
+    @Test
+    void onResponse_StreamedResponse_IsPassedToListenerInOrder() throws Exception {
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        registry.register(tunnelEntity, session);
+
+        final var events = new ArrayList<String>();
+        final var listener = new TunnelResponseListener() {
+            @Override
+            public void onHead(final HttpTunnelMessage head) {
+                events.add("head:" + head.getStatus());
+            }
+
+            @Override
+            public void onBody(final byte[] chunk) {
+                events.add("body:" + new String(chunk, StandardCharsets.UTF_8));
+            }
+        };
+        final var request = request(null);
+        final var future = registry.forwardRequest(SUBDOMAIN, request, null, Duration.ofSeconds(5), listener);
+
+        final var id = request.getId();
+        registry.onResponse(tunnelEntity.getId(), head(id));
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_BODY, id, "data: 1\n\n"));
+        assertFalse(future.isDone());
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_BODY, id, "data: 2\n\n"));
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_END, id, null));
+
+        assertEquals(HttpTunnelMessage.Type.RESPONSE_HEAD, future.join().getType());
+        assertEquals(List.of("head:200", "body:data: 1\n\n", "body:data: 2\n\n"), events);
+    }
+
+    @Test
+    void onResponse_StreamedResponseWithoutListener_IsCollected() throws Exception {
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        registry.register(tunnelEntity, session);
+
+        final var request = request(null);
+        final var future = registry.forwardRequest(SUBDOMAIN, request, Duration.ofSeconds(5));
+
+        final var id = request.getId();
+        registry.onResponse(tunnelEntity.getId(), head(id));
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_BODY, id, "he"));
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_BODY, id, "llo"));
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_END, id, null));
+
+        final var result = future.join();
+        assertEquals(HttpTunnelMessage.Type.RESPONSE, result.getType());
+        assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), result.getBody());
+    }
+
+    @Test
+    void onResponse_StreamedResponseAborted_FailsRequest() throws Exception {
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        registry.register(tunnelEntity, session);
+
+        final var request = request(null);
+        final var future = registry.forwardRequest(SUBDOMAIN, request, null, Duration.ofSeconds(5),
+            new TunnelResponseListener() {
+                @Override
+                public void onHead(final HttpTunnelMessage head) {
+                }
+
+                @Override
+                public void onBody(final byte[] chunk) {
+                }
+            });
+
+        final var id = request.getId();
+        registry.onResponse(tunnelEntity.getId(), head(id));
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_BODY, id, "he"));
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_ABORT, id, null));
+
+        final var error = assertThrows(CompletionException.class, future::join);
+        assertInstanceOf(IOException.class, error.getCause());
+    }
+
+    @Test
+    void onResponse_ListenerFails_CancelsRequestOnClient() throws Exception {
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        registry.register(tunnelEntity, session);
+
+        final var listener = new TunnelResponseListener() {
+            @Override
+            public void onHead(final HttpTunnelMessage head) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+
+            @Override
+            public void onBody(final byte[] chunk) {
+            }
+        };
+        final var request = request(null);
+        final var future = registry.forwardRequest(SUBDOMAIN, request, null, Duration.ofSeconds(5), listener);
+        registry.onResponse(tunnelEntity.getId(), head(request.getId()));
+
+        assertThrows(CompletionException.class, future::join);
+        final var cancel = captureFrames(session, 3).getLast();
+        assertEquals(HttpTunnelMessage.Type.REQUEST_CANCEL, cancel.getType());
+        assertEquals(request.getId(), cancel.getId());
+    }
+
+    @Test
+    void onSessionClosed_FailsPendingRequests() {
+        final var session = openSession(String.valueOf(HttpTunnelFrame.VERSION));
+        registry.register(tunnelEntity, session);
+        final var future = registry.forwardRequest(SUBDOMAIN, request(null), Duration.ofSeconds(5));
+
+        assertFalse(registry.onSessionClosed(tunnelEntity.getId(), openSession(null)));
+        assertFalse(future.isDone());
+        assertTrue(registry.onSessionClosed(tunnelEntity.getId(), session));
+        assertThrows(CompletionException.class, future::join);
+    }
+
+    @Test
+    void browserSession_RegisteredFoundAndUnregistered() {
+        registry.register(tunnelEntity, openSession(null));
+        final var browser = mock(WebSocketSession.class);
+        registry.registerBrowserWs(tunnelEntity.getId(), "c1", browser);
+
+        final var ids = registry.findIdsByBrowserSession(browser);
+        assertEquals(tunnelEntity.getId(), ids.getTunnelId());
+        assertEquals("c1", ids.getConnectionId());
+        assertSame(browser, registry.getBrowserSession(tunnelEntity.getId(), "c1"));
+        assertNull(registry.findIdsByBrowserSession(mock(WebSocketSession.class)));
+
+        assertEquals(ids, registry.unregisterBrowserWs(browser));
+        assertNull(registry.findIdsByBrowserSession(browser));
+        assertNull(registry.getBrowserSession(tunnelEntity.getId(), "c1"));
+        assertNull(registry.unregisterBrowserWs(browser));
+    }
+
+    @Test
+    void browserSession_TunnelRegisteredAgain_ForgetsOldSessions() {
+        registry.register(tunnelEntity, openSession(null));
+        final var browser = mock(WebSocketSession.class);
+        registry.registerBrowserWs(tunnelEntity.getId(), "c1", browser);
+
+        registry.register(tunnelEntity, openSession(null));
+
+        assertNull(registry.findIdsByBrowserSession(browser));
+        assertNull(registry.unregisterBrowserWs(browser));
+    }
+
+    @Test
+    void findIdsByBrowserSession_ManyTunnels_FindsOwnTunnelAndConnection() {
+        final var browsers = registerTunnelsWithBrowsers(1_000);
+
+        var index = 0;
+        for (final var entry : browsers.entrySet()) {
+            final var ids = registry.findIdsByBrowserSession(entry.getKey());
+            assertEquals(entry.getValue(), ids.getTunnelId());
+            assertEquals("c" + index++, ids.getConnectionId());
+        }
+    }
+
+    /**
+     * Benchmark: a browser message looks its session up in one index, so the cost does not grow with the
+     * number of tunnels. Before the index every lookup scanned the browser sessions of each tunnel.
+     */
+    @Test
+    @Tag("perf")
+    void findIdsByBrowserSession_LatencyIndependentOfTunnelCount() {
+        final var iterations = 200_000;
+        final var averageNanos = new ArrayList<Long>();
+        for (final var size : new int[] {1, 10_000}) {
+            registry = new TunnelRegistry(mapper, new TunnelsProperties(), new SimpleMeterRegistry());
+            final var browsers = new ArrayList<>(registerTunnelsWithBrowsers(size).keySet());
+
+            for (var i = 0; i < iterations; i++) {
+                registry.findIdsByBrowserSession(browsers.get(i % size));
+            }
+            final var started = System.nanoTime();
+            for (var i = 0; i < iterations; i++) {
+                assertNotNull(registry.findIdsByBrowserSession(browsers.get(i % size)));
+            }
+            averageNanos.add((System.nanoTime() - started) / iterations);
+        }
+        // A scan over all tunnels would be thousands of times slower; allow for cache misses and noise
+        assertTrue(averageNanos.get(1) < Math.max(averageNanos.get(0), 100) * 20,
+            "Lookup times per tunnel count 1 and 10000: " + averageNanos);
+    }
+
+    @Test
+    void negotiateVersion_UnknownOrNewerValues_AreClamped() {
+        assertEquals(HttpTunnelFrame.JSON, HttpTunnelFrame.negotiateVersion(null));
+        assertEquals(HttpTunnelFrame.JSON, HttpTunnelFrame.negotiateVersion("garbage"));
+        assertEquals(HttpTunnelFrame.VERSION, HttpTunnelFrame.negotiateVersion("99"));
+        assertNull(HttpTunnelFrame.decode(new byte[] {99, 1}));
+    }
+
+    private Map<WebSocketSession, UUID> registerTunnelsWithBrowsers(final int count) {
+        final var clientSession = openSession(null);
+        final var browsers = new LinkedHashMap<WebSocketSession, UUID>();
+        for (var i = 0; i < count; i++) {
+            final var domain = new DomainEntity();
+            domain.setSubdomain("t" + i);
+            final var entity = new TunnelEntity();
+            entity.setId(UUID.randomUUID());
+            entity.setDomain(domain);
+            registry.register(entity, clientSession);
+            final var browser = mock(WebSocketSession.class);
+            registry.registerBrowserWs(entity.getId(), "c" + i, browser);
+            browsers.put(browser, entity.getId());
+        }
+        return browsers;
+    }
+
+    private WebSocketSession openSession(final String protocolHeader) {
+        final var session = mock(WebSocketSession.class);
+        final var headers = new HttpHeaders();
+        if (protocolHeader != null) {
+            headers.add(HttpTunnelFrame.PROTOCOL_HEADER, protocolHeader);
+        }
+        when(session.getHandshakeHeaders()).thenReturn(headers);
+        when(session.isOpen()).thenReturn(true);
+        when(session.getId()).thenReturn("session");
+        return session;
+    }
+
+    /**
+     * Waits until the expected number of messages was written and returns the last one.
+     */
+    private static WebSocketMessage<?> captureSent(final WebSocketSession session, final int expected)
+        throws Exception {
+        return captureAll(session, expected).getLast();
+    }
+
+    private static List<HttpTunnelMessage> captureFrames(final WebSocketSession session, final int expected)
+        throws Exception {
+        return captureAll(session, expected).stream()
+            .filter(BinaryMessage.class::isInstance)
+            .map(message -> HttpTunnelFrame.decode(((BinaryMessage) message).getPayload()))
+            .toList();
+    }
+
+    // Messages are written by the tunnel writer thread
+    private static List<WebSocketMessage<?>> captureAll(final WebSocketSession session, final int expected)
+        throws Exception {
+        final ArgumentCaptor<WebSocketMessage<?>> captor = ArgumentCaptor.captor();
+        verify(session, timeout(2000).times(expected)).sendMessage(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private static HttpTunnelMessage head(final String id) {
+        final var head = new HttpTunnelMessage();
+        head.setId(id);
+        head.setType(HttpTunnelMessage.Type.RESPONSE_HEAD);
+        head.setStatus(200);
+        head.setRespHeaders(Map.of("Content-Type", List.of("text/event-stream")));
+        return HttpTunnelFrame.decode(HttpTunnelFrame.encode(head));
+    }
+
+    private static HttpTunnelMessage frame(final HttpTunnelMessage.Type type, final String id, final String body) {
+        final var message = new HttpTunnelMessage();
+        message.setId(id);
+        message.setType(type);
+        message.setBody(body == null ? null : body.getBytes(StandardCharsets.UTF_8));
+        return HttpTunnelFrame.decode(HttpTunnelFrame.encode(message));
+    }
+
+    private static HttpTunnelMessage request(final byte[] body) {
+        final var message = new HttpTunnelMessage();
+        message.setMethod("POST");
+        message.setPath("/api");
+        message.setHeaders(Map.of("X-Test", List.of("a", "b")));
+        message.setBodyContentType("text/plain");
+        message.setBody(body);
+        return message;
+    }
+
+    /**
+     * Request body of an upload that delivers one byte per chunk with a delay before each.
+     */
+    private static AsyncBody slowBody(final int chunks, final long delayMillis) {
+        final var body = new AsyncBody();
+        Thread.ofVirtual().start(() -> {
+            try {
+                for (var i = 0; i < chunks; i++) {
+                    Thread.sleep(delayMillis);
+                    body.push(new byte[] {1});
+                }
+                body.end();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return body;
+    }
+
+    /**
+     * Request body in async mode that the test feeds chunk by chunk. Calls the read listener like the
+     * container does: once data arrives after {@link #isReady()} returned {@code false}.
+     */
+    private static final class AsyncBody extends ServletInputStream {
+
+        // Guarded by this
+        private final Queue<byte[]> chunks = new ArrayDeque<>();
+        private int offset;
+        private boolean ended;
+        private boolean waiting;
+        private ReadListener listener;
+
+        static AsyncBody of(final byte[] content) {
+            final var body = new AsyncBody();
+            body.push(content);
+            body.end();
+            return body;
+        }
+
+        void push(final byte[] chunk) {
+            final boolean notify;
+            synchronized (this) {
+                chunks.add(chunk);
+                notify = waiting;
+                waiting = false;
+            }
+            if (notify) {
+                try {
+                    listener.onDataAvailable();
+                } catch (final IOException e) {
+                    listener.onError(e);
+                }
+            }
+        }
+
+        void end() {
+            final boolean notify;
+            synchronized (this) {
+                ended = true;
+                notify = waiting && chunks.isEmpty();
+                waiting = false;
+            }
+            if (notify) {
+                try {
+                    listener.onAllDataRead();
+                } catch (final IOException e) {
+                    listener.onError(e);
+                }
+            }
+        }
+
+        synchronized int remaining() {
+            return chunks.stream().mapToInt(chunk -> chunk.length).sum() - offset;
+        }
+
+        @Override
+        public void setReadListener(final ReadListener readListener) {
+            synchronized (this) {
+                listener = readListener;
+            }
+            try {
+                readListener.onDataAvailable();
+            } catch (final IOException e) {
+                readListener.onError(e);
+            }
+        }
+
+        @Override
+        public synchronized boolean isReady() {
+            waiting = chunks.isEmpty();
+            return !waiting;
+        }
+
+        @Override
+        public synchronized boolean isFinished() {
+            return ended && chunks.isEmpty();
+        }
+
+        @Override
+        public int read() {
+            final var buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0];
+        }
+
+        @Override
+        public synchronized int read(final byte[] buffer, final int off, final int length) {
+            final var chunk = chunks.peek();
+            if (chunk == null) {
+                if (ended) {
+                    return -1;
+                }
+                throw new IllegalStateException("Read while not ready");
+            }
+            final var read = Math.min(length, chunk.length - offset);
+            System.arraycopy(chunk, offset, buffer, off, read);
+            offset += read;
+            if (offset == chunk.length) {
+                chunks.poll();
+                offset = 0;
+            }
+            return read;
+        }
+    }
+}
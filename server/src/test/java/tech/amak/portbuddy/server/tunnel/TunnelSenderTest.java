@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.tunnel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class TunnelSenderTest {
+
+    private final List<Runnable> drains = new ArrayList<>();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private WebSocketSession session;
+    private TunnelSender sender;
+
+    @BeforeEach
+    void setUp() {
+        session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("session");
+        // Drains run only when the test says so
+        sender = new TunnelSender(session, 100, drains::add, new TunnelSenderMetrics(meterRegistry));
+    }
+
+    @Test
+    void offer_BudgetExhausted_RejectsUntilDrained() throws Exception {
+        final var first = message(60);
+        final var second = message(30);
+        assertTrue(sender.offer(first));
+        assertTrue(sender.offer(second));
+        assertFalse(sender.offer(message(20)));
+        assertEquals(90, sender.queuedBytes());
+        assertEquals(1, meterRegistry.counter("portbuddy.tunnel.send.rejected").count());
+        // A single writer drains everything queued so far, in order
+        assertEquals(1, drains.size());
+
+        drains.removeFirst().run();
+
+        final var order = inOrder(session);
+        order.verify(session).sendMessage(first);
+        order.verify(session).sendMessage(second);
+        assertEquals(0, sender.queuedBytes());
+        assertEquals(2, meterRegistry.timer("portbuddy.tunnel.send.latency").count());
+        assertTrue(sender.offer(message(20)));
+    }
+
+    @Test
+    void offer_EmptyQueue_AcceptsMessageLargerThanBudget() {
+        assertTrue(sender.offer(message(500)));
+        assertFalse(sender.offer(message(1)));
+    }
+
+    @Test
+    void drain_SendFails_ClosesSessionAndRejectsFurtherMessages() throws Exception {
+        doThrow(new IOException("Broken pipe")).when(session).sendMessage(any());
+        sender.offer(message(10));
+        drains.removeFirst().run();
+
+        verify(session).close(CloseStatus.SERVER_ERROR);
+        assertFalse(sender.offer(message(10)));
+        assertEquals(0, sender.queuedBytes());
+    }
+
+    private static BinaryMessage message(final int size) {
+        return new BinaryMessage(new byte[size]);
+    }
+}
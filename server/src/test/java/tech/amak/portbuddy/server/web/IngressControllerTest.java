@@ -0,0 +1,410 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelFrame;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
+import tech.amak.portbuddy.server.config.AppProperties;
+import tech.amak.portbuddy.server.config.TunnelsProperties;
+import tech.amak.portbuddy.server.db.entity.DomainEntity;
+import tech.amak.portbuddy.server.db.entity.TunnelEntity;
+import tech.amak.portbuddy.server.db.repo.DomainRepository;
+import tech.amak.portbuddy.server.security.PasscodeTokenService;
+import tech.amak.portbuddy.server.service.SubscriptionStatusCache;
+import tech.amak.portbuddy.server.service.TunnelService;
+import tech.amak.portbuddy.server.tunnel.TunnelRegistry;
+
+class IngressControllerTest {
+
+    private static final String SUBDOMAIN = "abc";
+
+    private TunnelRegistry registry;
+    private WebSocketSession session;
+    private TunnelEntity tunnelEntity;
+    private IngressController controller;
+    private TunnelService tunnelService;
+    private PasswordEncoder passwordEncoder;
+
+    @BeforeEach
+    void setUp() {
+        registry = new TunnelRegistry(new ObjectMapper(), new TunnelsProperties(), new SimpleMeterRegistry());
+
+        final var domain = new DomainEntity();
+        domain.setSubdomain(SUBDOMAIN);
+        tunnelEntity = new TunnelEntity();
+        tunnelEntity.setId(UUID.randomUUID());
+        tunnelEntity.setAccountId(UUID.randomUUID());
+        tunnelEntity.setDomain(domain);
+
+        session = mock(WebSocketSession.class);
+        final var headers = new HttpHeaders();
+        headers.add(HttpTunnelFrame.PROTOCOL_HEADER, String.valueOf(HttpTunnelFrame.VERSION));
+        when(session.getHandshakeHeaders()).thenReturn(headers);
+        when(session.isOpen()).thenReturn(true);
+        when(session.getId()).thenReturn("session");
+        registry.register(tunnelEntity, session);
+
+        final var domainRepository = mock(DomainRepository.class);
+        when(domainRepository.findBySubdomain(SUBDOMAIN)).thenReturn(Optional.empty());
+        final var subscriptionStatusCache = mock(SubscriptionStatusCache.class);
+        when(subscriptionStatusCache.find(any())).thenReturn(Optional.empty());
+        tunnelService = mock(TunnelService.class);
+        when(tunnelService.getTempPasscodeHash(any())).thenReturn(Optional.empty());
+        passwordEncoder = mock(PasswordEncoder.class);
+        final var appProperties = mock(AppProperties.class);
+        when(appProperties.gateway()).thenReturn(new AppProperties.Gateway(
+            "https://portbuddy.dev", "portbuddy.dev", "https://%s.portbuddy.dev", "/404", "/passcode"));
+        final var tunnelsProperties = new TunnelsProperties();
+        tunnelsProperties.setPasscodeTokenSecret("secret");
+
+        controller = new IngressController(registry, appProperties, domainRepository,
+            subscriptionStatusCache, tunnelService, passwordEncoder, new PasscodeTokenService(tunnelsProperties));
+    }
+
+    @Test
+    void ingress_PendingRequests_DoNotHoldRequestThreads() throws Exception {
+        final var inFlight = 50;
+        final var requests = new ArrayList<MockHttpServletRequest>();
+        final var responses = new ArrayList<MockHttpServletResponse>();
+        // All requests are issued from this single thread; none of them may block it
+        for (var i = 0; i < inFlight; i++) {
+            final var request = ingressRequest("/_/abc/item/" + i);
+            final var response = new MockHttpServletResponse();
+            controller.ingressPathBased(SUBDOMAIN, request, new NonBlockingResponse(response));
+            assertTrue(request.isAsyncStarted());
+            requests.add(request);
+            responses.add(response);
+        }
+
+        final var forwarded = sentFrames(inFlight);
+        assertEquals(inFlight, forwarded.size());
+        for (final var frame : forwarded) {
+            final var response = new HttpTunnelMessage();
+            response.setId(frame.getId());
+            response.setType(HttpTunnelMessage.Type.RESPONSE);
+            response.setStatus(200);
+            response.setBody(frame.getPath().getBytes(StandardCharsets.UTF_8));
+            registry.onResponse(tunnelEntity.getId(), response);
+        }
+
+        for (var i = 0; i < inFlight; i++) {
+            assertFalse(requests.get(i).isAsyncStarted());
+            assertEquals(200, responses.get(i).getStatus());
+            assertEquals("/item/" + i, responses.get(i).getContentAsString());
+        }
+    }
+
+    @Test
+    void ingress_StreamedResponse_IsFlushedBeforeItEnds() throws Exception {
+        final var request = ingressRequest("/_/abc/events");
+        final var response = new MockHttpServletResponse();
+        controller.ingressPathBased(SUBDOMAIN, request, new NonBlockingResponse(response));
+        final var id = sentFrames(1).getFirst().getId();
+
+        final var head = new HttpTunnelMessage();
+        head.setId(id);
+        head.setType(HttpTunnelMessage.Type.RESPONSE_HEAD);
+        head.setStatus(200);
+        head.setRespHeaders(Map.of("Content-Type", List.of("text/event-stream")));
+        registry.onResponse(tunnelEntity.getId(), head);
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_BODY, id, "data: 1\n\n"));
+
+        assertTrue(response.isCommitted());
+        assertEquals("text/event-stream", response.getContentType());
+        assertEquals("data: 1\n\n", response.getContentAsString());
+        assertTrue(request.isAsyncStarted());
+
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_END, id, null));
+        assertFalse(request.isAsyncStarted());
+    }
+
+    @Test
+    void ingress_SlowPublicClient_DoesNotHoldUpTunnel() throws Exception {
+        final var slowRequest = ingressRequest("/_/abc/download");
+        final var slowResponse = new MockHttpServletResponse();
+        final var slowClient = new NonBlockingResponse(slowResponse);
+        slowClient.setReady(false);
+        controller.ingressPathBased(SUBDOMAIN, slowRequest, slowClient);
+        final var fastRequest = ingressRequest("/_/abc/page");
+        final var fastResponse = new MockHttpServletResponse();
+        controller.ingressPathBased(SUBDOMAIN, fastRequest, new NonBlockingResponse(fastResponse));
+        final var forwarded = sentFrames(2);
+        final var slowId = forwarded.get(0).getId();
+        final var fastId = forwarded.get(1).getId();
+
+        // A window worth of chunks is queued for the client that does not read, the tunnel thread moves on
+        final var chunk = new byte[64 * 1024];
+        final var chunks = HttpTunnelFrame.RESPONSE_BODY_WINDOW / chunk.length;
+        registry.onResponse(tunnelEntity.getId(), head(slowId));
+        for (var i = 0; i < chunks; i++) {
+            registry.onResponse(tunnelEntity.getId(), bytesFrame(slowId, chunk));
+        }
+        registry.onResponse(tunnelEntity.getId(), head(fastId));
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_BODY, fastId, "ok"));
+        registry.onResponse(tunnelEntity.getId(), frame(HttpTunnelMessage.Type.RESPONSE_END, fastId, null));
+
+        assertFalse(fastRequest.isAsyncStarted());
+        assertEquals("ok", fastResponse.getContentAsString());
+        assertEquals(0, slowResponse.getContentAsByteArray().length);
+        assertTrue(slowRequest.isAsyncStarted());
+
+        // Once the client reads, the written bytes are granted back to the CLI
+        slowClient.setReady(true);
+        assertEquals(chunks * chunk.length, slowResponse.getContentAsByteArray().length);
+        // Credit is granted every half window
+        final var acks = sentFrames(4).stream()
+            .filter(frame -> frame.getType() == HttpTunnelMessage.Type.RESPONSE_BODY_ACK)
+            .toList();
+        assertEquals(2, acks.size());
+        for (final var ack : acks) {
+            assertEquals(slowId, ack.getId());
+            assertEquals(HttpTunnelFrame.RESPONSE_BODY_WINDOW / 2, ack.getCredit());
+        }
+    }
+
+    @Test
+    void ingress_PublicClientTooFarBehind_CancelsRequest() throws Exception {
+        final var request = ingressRequest("/_/abc/download");
+        final var response = new MockHttpServletResponse();
+        final var client = new NonBlockingResponse(response);
+        client.setReady(false);
+        controller.ingressPathBased(SUBDOMAIN, request, client);
+        final var id = sentFrames(1).getFirst().getId();
+
+        registry.onResponse(tunnelEntity.getId(), head(id));
+        final var chunk = new byte[64 * 1024];
+        for (var i = 0; i <= 2 * HttpTunnelFrame.RESPONSE_BODY_WINDOW / chunk.length; i++) {
+            registry.onResponse(tunnelEntity.getId(), bytesFrame(id, chunk));
+        }
+
+        assertFalse(request.isAsyncStarted());
+        final var sent = sentFrames(2);
+        assertEquals(HttpTunnelMessage.Type.REQUEST_CANCEL, sent.getLast().getType());
+        assertEquals(id, sent.getLast().getId());
+    }
+
+    @Test
+    void ingress_TunnelClosed_RespondsBadGateway() throws Exception {
+        final var request = ingressRequest("/_/abc/slow");
+        final var response = new MockHttpServletResponse();
+        controller.ingressPathBased(SUBDOMAIN, request, new NonBlockingResponse(response));
+
+        registry.onSessionClosed(tunnelEntity.getId(), session);
+
+        assertFalse(request.isAsyncStarted());
+        assertEquals(502, response.getStatus());
+    }
+
+    @Test
+    void ingress_PasscodeProtected_VerifiesPasscodeOnceThenToken() throws Exception {
+        when(tunnelService.getTempPasscodeHash(tunnelEntity.getId())).thenReturn(Optional.of("hash"));
+        when(passwordEncoder.matches("secret-passcode", "hash")).thenReturn(true);
+
+        final var denied = new MockHttpServletResponse();
+        controller.ingressPathBased(SUBDOMAIN, ingressRequest("/_/abc/"), denied);
+        assertEquals(307, denied.getStatus());
+
+        final var first = ingressRequest("/_/abc/");
+        first.addHeader("X-API-Key", "secret-passcode");
+        final var firstResponse = new MockHttpServletResponse();
+        controller.ingressPathBased(SUBDOMAIN, first, new NonBlockingResponse(firstResponse));
+        assertTrue(first.isAsyncStarted());
+        final var token = firstResponse.getCookie("pbp").getValue();
+        assertNotEquals("secret-passcode", token);
+
+        for (var i = 0; i < 10; i++) {
+            final var request = ingressRequest("/_/abc/");
+            request.setCookies(new Cookie("pbp", token));
+            controller.ingressPathBased(SUBDOMAIN, request, new NonBlockingResponse(new MockHttpServletResponse()));
+            assertTrue(request.isAsyncStarted());
+        }
+
+        // BCrypt ran only for the passcode exchange and the hash was loaded once
+        verify(passwordEncoder, times(1)).matches(any(), any());
+        verify(tunnelService, times(1)).getTempPasscodeHash(tunnelEntity.getId());
+    }
+
+    @Test
+    void ingress_PasscodeProtected_ChecksOnlyLegacyCookiesWithBcrypt() throws Exception {
+        when(tunnelService.getTempPasscodeHash(tunnelEntity.getId())).thenReturn(Optional.of("hash"));
+        when(passwordEncoder.matches("secret-passcode", "hash")).thenReturn(true);
+        final var forged = (System.currentTimeMillis() / 1000 + 3600) + "." + "A".repeat(43);
+
+        for (var i = 0; i < 10; i++) {
+            final var request = ingressRequest("/_/abc/");
+            request.setCookies(new Cookie("pbp", forged));
+            final var response = new MockHttpServletResponse();
+            controller.ingressPathBased(SUBDOMAIN, request, response);
+            assertEquals(307, response.getStatus());
+        }
+        verify(passwordEncoder, never()).matches(any(), any());
+
+        final var legacy = ingressRequest("/_/abc/");
+        legacy.setCookies(new Cookie("pbp", "secret-passcode"));
+        final var legacyResponse = new MockHttpServletResponse();
+        controller.ingressPathBased(SUBDOMAIN, legacy, new NonBlockingResponse(legacyResponse));
+
+        assertTrue(legacy.isAsyncStarted());
+        assertNotEquals("secret-passcode", legacyResponse.getCookie("pbp").getValue());
+        verify(passwordEncoder, times(1)).matches(any(), any());
+    }
+
+    private static MockHttpServletRequest ingressRequest(final String uri) {
+        final var request = new MockHttpServletRequest("GET", uri);
+        request.setAsyncSupported(true);
+        request.setAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE, uri);
+        request.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/_/{subdomain:.+}/**");
+        return request;
+    }
+
+    // Frames are written by the tunnel writer thread, after the HELLO message
+    private List<HttpTunnelMessage> sentFrames(final int expected) throws Exception {
+        final ArgumentCaptor<WebSocketMessage<?>> captor = ArgumentCaptor.captor();
+        verify(session, timeout(2000).times(expected + 1)).sendMessage(captor.capture());
+        return captor.getAllValues().stream()
+            .filter(BinaryMessage.class::isInstance)
+            .map(message -> HttpTunnelFrame.decode(((BinaryMessage) message).getPayload().duplicate()))
+            .toList();
+    }
+
+    private static HttpTunnelMessage head(final String id) {
+        final var head = new HttpTunnelMessage();
+        head.setId(id);
+        head.setType(HttpTunnelMessage.Type.RESPONSE_HEAD);
+        head.setStatus(200);
+        return head;
+    }
+
+    private static HttpTunnelMessage bytesFrame(final String id, final byte[] body) {
+        final var message = new HttpTunnelMessage();
+        message.setId(id);
+        message.setType(HttpTunnelMessage.Type.RESPONSE_BODY);
+        message.setBody(body);
+        return message;
+    }
+
+    private static HttpTunnelMessage frame(final HttpTunnelMessage.Type type, final String id, final String body) {
+        final var message = new HttpTunnelMessage();
+        message.setId(id);
+        message.setType(type);
+        message.setBody(body == null ? null : body.getBytes(StandardCharsets.UTF_8));
+        return message;
+    }
+
+    /**
+     * Response with a non-blocking output stream like the servlet container's, whose client connection
+     * can be made to stop taking bytes.
+     */
+    private static final class NonBlockingResponse extends HttpServletResponseWrapper {
+
+        private final MockHttpServletResponse target;
+        private final Output output = new Output();
+
+        NonBlockingResponse(final MockHttpServletResponse target) {
+            super(target);
+            this.target = target;
+        }
+
+        void setReady(final boolean ready) throws IOException {
+            output.ready = ready;
+            if (ready && output.listener != null) {
+                output.listener.onWritePossible();
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return output;
+        }
+
+        private final class Output extends ServletOutputStream {
+
+            private volatile boolean ready = true;
+            private WriteListener listener;
+
+            @Override
+            public boolean isReady() {
+                return ready;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+                listener = writeListener;
+                if (ready) {
+                    try {
+                        writeListener.onWritePossible();
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+
+            @Override
+            public void write(final int b) throws IOException {
+                target.getOutputStream().write(b);
+            }
+
+            @Override
+            public void write(final byte[] bytes, final int off, final int len) throws IOException {
+                target.getOutputStream().write(bytes, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                target.flushBuffer();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.web;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+
+import tech.amak.portbuddy.server.db.repo.UserRepository;
+import tech.amak.portbuddy.server.security.Oauth2SuccessHandler;
+import tech.amak.portbuddy.server.security.SecurityConfig;
+import tech.amak.portbuddy.server.service.ApiTokenService;
+import tech.amak.portbuddy.server.service.SubscriptionStatusCache;
+
+@WebMvcTest(InternalAccountController.class)
+@AutoConfigureMockMvc
+@Import(SecurityConfig.class)
+class InternalAccountControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockitoBean
+    private SubscriptionStatusCache subscriptionStatusCache;
+
+    @MockitoBean
+    private ApiTokenService apiTokenService;
+
+    @MockitoBean
+    private UserRepository userRepository;
+
+    @MockitoBean
+    private Oauth2SuccessHandler oauth2SuccessHandler;
+
+    @MockitoBean
+    private JwtDecoder jwtDecoder;
+
+    @Test
+    void subscriptionChanged_shouldEvictForPeer() throws Exception {
+        final var accountId = UUID.randomUUID();
+
+        mockMvc.perform(post(SubscriptionStatusCache.EVICT_PATH)
+                .param("accountId", accountId.toString())
+                .with(jwt().authorities(new SimpleGrantedAuthority("ROLE_PEER"))))
+            .andExpect(status().isOk());
+
+        verify(subscriptionStatusCache).evict(accountId);
+    }
+
+    @Test
+    void subscriptionChanged_shouldRejectCallsWithoutPeerToken() throws Exception {
+        final var accountId = UUID.randomUUID().toString();
+
+        mockMvc.perform(post(SubscriptionStatusCache.EVICT_PATH)
+                .param("accountId", accountId))
+            .andExpect(status().isUnauthorized());
+        mockMvc.perform(post(SubscriptionStatusCache.EVICT_PATH)
+                .param("accountId", accountId)
+                .with(jwt().authorities(new SimpleGrantedAuthority("ROLE_USER"))))
+            .andExpect(status().isForbidden());
+
+        verify(subscriptionStatusCache, never()).evict(any());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.web;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+
+import tech.amak.portbuddy.server.db.entity.DomainEntity;
+import tech.amak.portbuddy.server.db.repo.DomainRepository;
+import tech.amak.portbuddy.server.db.repo.UserRepository;
+import tech.amak.portbuddy.server.security.Oauth2SuccessHandler;
+import tech.amak.portbuddy.server.security.SecurityConfig;
+import tech.amak.portbuddy.server.service.ApiTokenService;
+import tech.amak.portbuddy.server.service.DomainService;
+import tech.amak.portbuddy.server.tunnel.DomainChangeListener;
+import tech.amak.portbuddy.server.tunnel.TunnelRegistry;
+
+@WebMvcTest(InternalDomainController.class)
+@AutoConfigureMockMvc
+@Import(SecurityConfig.class)
+class InternalDomainControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockitoBean
+    private DomainService domainService;
+
+    @MockitoBean
+    private TunnelRegistry registry;
+
+    @MockitoBean
+    private DomainRepository domainRepository;
+
+    @MockitoBean
+    private ApiTokenService apiTokenService;
+
+    @MockitoBean
+    private UserRepository userRepository;
+
+    @MockitoBean
+    private Oauth2SuccessHandler oauth2SuccessHandler;
+
+    @MockitoBean
+    private JwtDecoder jwtDecoder;
+
+    @Test
+    void customDomainChanged_shouldReloadCustomDomainFromDatabase() throws Exception {
+        final var domain = new DomainEntity();
+        domain.setSubdomain("abc");
+        domain.setCustomDomain("app.example.com");
+        when(domainRepository.findBySubdomain("abc")).thenReturn(Optional.of(domain));
+
+        mockMvc.perform(post(DomainChangeListener.CUSTOM_DOMAIN_CHANGED_PATH)
+                .param("subdomain", "abc")
+                .param("customDomain", "victim.example.com")
+                .with(jwt().authorities(new SimpleGrantedAuthority("ROLE_PEER"))))
+            .andExpect(status().isOk());
+
+        verify(registry).updateCustomDomain("abc", "app.example.com");
+    }
+
+    @Test
+    void customDomainChanged_shouldRejectCallsWithoutPeerToken() throws Exception {
+        mockMvc.perform(post(DomainChangeListener.CUSTOM_DOMAIN_CHANGED_PATH)
+                .param("subdomain", "abc"))
+            .andExpect(status().isUnauthorized());
+        mockMvc.perform(post(DomainChangeListener.CUSTOM_DOMAIN_CHANGED_PATH)
+                .param("subdomain", "abc")
+                .with(jwt().authorities(new SimpleGrantedAuthority("ROLE_USER"))))
+            .andExpect(status().isForbidden());
+
+        verify(registry, never()).updateCustomDomain(any(), any());
+    }
+
+    @Test
+    void passcodeChanged_shouldRequirePeerToken() throws Exception {
+        mockMvc.perform(post(DomainChangeListener.PASSCODE_CHANGED_PATH)
+                .param("subdomain", "abc")
+                .with(jwt().authorities(new SimpleGrantedAuthority("ROLE_USER"))))
+            .andExpect(status().isForbidden());
+        verify(registry, never()).invalidatePasscode(any());
+
+        mockMvc.perform(post(DomainChangeListener.PASSCODE_CHANGED_PATH)
+                .param("subdomain", "abc")
+                .with(jwt().authorities(new SimpleGrantedAuthority("ROLE_PEER"))))
+            .andExpect(status().isOk());
+        verify(registry).invalidatePasscode("abc");
+    }
+}
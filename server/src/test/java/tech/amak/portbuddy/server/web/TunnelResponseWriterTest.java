@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.amak.portbuddy.server.web;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import tech.amak.portbuddy.common.tunnel.HttpTunnelMessage;
+
+class TunnelResponseWriterTest {
+
+    private final AsyncContext asyncContext = mock(AsyncContext.class);
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+    private final CompletableFuture<TunnelResponseWriter> served = new CompletableFuture<>();
+
+    @TempDir
+    private Path baseDir;
+    private Tomcat tomcat;
+
+    @AfterEach
+    void tearDown() throws LifecycleException {
+        if (tomcat != null) {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    @Test
+    void onBody_ClientFallsBehind_FailsWithQueuedBytes() throws IOException {
+        final var writer = new TunnelResponseWriter(asyncContext, response, 10, null, () -> {
+        });
+        writer.onHead(head());
+        writer.onBody(new byte[8]);
+
+        final var error = assertThrows(IOException.class, () -> writer.onBody(new byte[8]));
+
+        assertTrue(error.getMessage().contains("8 response bytes queued"), error.getMessage());
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    void complete_StreamedResponse_EndsChunkedBody() throws Exception {
+        try (final var client = request(startTomcat())) {
+            final var in = client.getInputStream();
+            readUntil(in, "partial");
+            served.get(5, TimeUnit.SECONDS).complete(head());
+
+            final var rest = readUntil(in, "\r\n0\r\n\r\n");
+            assertTrue(rest.endsWith("\r\n0\r\n\r\n"), rest);
+        }
+    }
+
+    @Test
+    void fail_HeadWritten_ClosesConnectionWithoutLastChunk() throws Exception {
+        try (final var client = request(startTomcat())) {
+            final var in = client.getInputStream();
+            readUntil(in, "partial");
+            final var error = head();
+            error.setStatus(502);
+            served.get(5, TimeUnit.SECONDS).fail(error);
+
+            final var rest = readToEnd(in);
+            assertFalse(rest.contains("0\r\n\r\n"), rest);
+            assertFalse(rest.contains("502"), rest);
+        }
+    }
+
+    private int startTomcat() throws LifecycleException {
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        final var context = tomcat.addContext("", null);
+        Tomcat.addServlet(context, "tunnel", new HttpServlet() {
+            @Override
+            protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+                throws IOException {
+                final var asyncContext = request.startAsync(request, response);
+                asyncContext.setTimeout(0);
+                final var writer = new TunnelResponseWriter(asyncContext, response, 1024, null, () -> {
+                });
+                response.getOutputStream().setWriteListener(writer);
+                writer.onHead(head());
+                writer.onBody("partial".getBytes(StandardCharsets.UTF_8));
+                served.complete(writer);
+            }
+        }).setAsyncSupported(true);
+        context.addServletMappingDecoded("/*", "tunnel");
+        tomcat.getConnector();
+        tomcat.start();
+        return tomcat.getConnector().getLocalPort();
+    }
+
+    private static Socket request(final int port) throws IOException {
+        final var socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: test\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        return socket;
+    }
+
+    private static String readUntil(final InputStream in, final String marker) throws IOException {
+        final var read = new ByteArrayOutputStream();
+        while (!read.toString(StandardCharsets.US_ASCII).contains(marker)) {
+            final var b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed before " + marker + ": " + read);
+            }
+            read.write(b);
+        }
+        return read.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static String readToEnd(final InputStream in) throws IOException {
+        final var read = new ByteArrayOutputStream();
+        try {
+            in.transferTo(read);
+        } catch (final SocketException e) {
+            // A reset is as good as a close here
+        }
+        return read.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static HttpTunnelMessage head() {
+        final var message = new HttpTunnelMessage();
+        message.setId("r1");
+        message.setType(HttpTunnelMessage.Type.RESPONSE_HEAD);
+        message.setStatus(200);
+        return message;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tech.amak.portbuddy.server.web;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import tech.amak.portbuddy.server.db.repo.UserRepository;
+import tech.amak.portbuddy.server.service.ApiTokenService;
+import tech.amak.portbuddy.server.service.TunnelService;
+
+@WebMvcTest(TunnelStatusController.class)
+@AutoConfigureMockMvc(addFilters = false)
+class TunnelStatusControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @MockitoBean
+    private TunnelService tunnelService;
+
+    @MockitoBean
+    private ApiTokenService apiTokenService;
+
+    @MockitoBean
+    private UserRepository userRepository;
+
+    @Test
+    void heartbeats_shouldRecordEveryTunnel() throws Exception {
+        final var first = UUID.randomUUID();
+        final var second = UUID.randomUUID();
+
+        mockMvc.perform(post("/api/tunnels/heartbeat")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(List.of(first, second))))
+            .andExpect(status().isOk());
+
+        verify(tunnelService).heartbeat(first);
+        verify(tunnelService).heartbeat(second);
+    }
+
+    @Test
+    void heartbeats_shouldRejectOversizedBatch() throws Exception {
+        final var ids = new ArrayList<UUID>();
+        for (var i = 0; i <= TunnelStatusController.MAX_HEARTBEAT_BATCH; i++) {
+            ids.add(UUID.randomUUID());
+        }
+
+        mockMvc.perform(post("/api/tunnels/heartbeat")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(ids)))
+            .andExpect(status().isBadRequest());
+
+        verify(tunnelService, never()).heartbeat(any());
+    }
+}
@@ -151,6 +151,7 @@ public class UsersControllerTest {
             .thenReturn(Optional.of(userAccount));
 
         final var subscriptions = new AppProperties.Subscriptions(
+            null,
             null,
             null,
             new AppProperties.Subscriptions.Tunnels(